@@ -126,7 +126,7 @@ public class AnnotationServiceImpl implements AnnotationService {
 	}
 
     public LayerConfiguration getLayerConfiguration( String layer, JSONObject query ) {
-        LayerConfiguration config = _layerService.getLayerConfiguration( layer, query );
+        LayerConfiguration config = _layerService.createLayerConfiguration( layer, query );
         config.addProperty( GROUPS, GROUPS_PATH );
 		config.addChildFactory( _annotationIOFactoryProvider.createFactory(config, LayerConfiguration.PYRAMID_IO_PATH) );
         config.addChildFactory( _annotationFilterFactoryProvider.createFactory(config, LayerConfiguration.FILTER_PATH) );
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning;
+
+
+
+/**
+ * A tile whose bins are stored as primitive numbers, rather than as boxed
+ * objects.
+ *
+ * The boxed {@link TileData#getBin(int, int)} and
+ * {@link TileData#setBin(int, int, Object)} methods still work on such tiles,
+ * but code that knows it is dealing with numbers (renderers, serializers,
+ * binners) should check for this interface and use the unboxed accessors
+ * instead, which neither allocate nor unbox.
+ *
+ * @param <T> The boxed type of the numbers stored in the bins of this tile.
+ */
+public interface PrimitiveTileData<T extends Number> extends TileData<T> {
+	/**
+	 * Get the value of a particular bin in this tile, as a double.
+	 *
+	 * @param x The x coordinate of the bin in question.
+	 * @param y The y coordinate of the bin in question.
+	 * @return The value of the bin in question.
+	 */
+	double getBinDouble (int x, int y);
+
+	/**
+	 * Set the value of a particular bin in this tile from a double. Tiles
+	 * storing integral types will truncate the value.
+	 *
+	 * @param x The x coordinate of the bin to be changed.
+	 * @param y The y coordinate of the bin to be changed.
+	 * @param value The value to which to set the bin in question.
+	 */
+	void setBinDouble (int x, int y, double value);
+}
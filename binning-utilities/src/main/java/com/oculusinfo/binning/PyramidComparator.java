@@ -157,9 +157,32 @@ public class PyramidComparator implements Serializable {
 	 */
 	public long getComparisonKey (double rawX, double rawY) {
 		TileIndex index = _pyramid.rootToTile(rawX, rawY, _comparisonLevel);
-		long x = index.getX();
-		long y = index.getY();
+		long z = interleave(index.getX(), index.getY());
 
+		// Apply fence bit
+		return (0x01L << (2 * (_comparisonLevel + 1))) | z;
+	}
+
+	/**
+	 * Returns a lookup key for a tile index, at its own level. The bits of
+	 * the X and Y are interleaved to generate a Morton code, which is then
+	 * combined with a fence bit for the level, so that keys order tiles first
+	 * by level, and then along the Morton curve within each level.
+	 * 
+	 * This is the same order in which HBase stores tiles with binary row keys
+	 * (see {@link com.oculusinfo.binning.io.impl.HBasePyramidIO#rowKeyFromTileIndex(TileIndex)}).
+	 * 
+	 * @param tile The tile for which to get a key
+	 * 
+	 * @return A location key that should be in order according to level, then
+	 *         according to the Morton curve ordering.
+	 */
+	public static long getTileIndexKey (TileIndex tile) {
+		return (0x01L << (2 * tile.getLevel())) | interleave(tile.getX(), tile.getY());
+	}
+
+	// Interleave the bits of x and y into a Morton code, x taking the even bits
+	private static long interleave (long x, long y) {
 		x = (x | (x << SHIFTS[4])) & BITS[4];
 		x = (x | (x << SHIFTS[3])) & BITS[3];
 		x = (x | (x << SHIFTS[2])) & BITS[2];
@@ -172,10 +195,7 @@ public class PyramidComparator implements Serializable {
 		y = (y | (y << SHIFTS[1])) & BITS[1];
 		y = (y | (y << SHIFTS[0])) & BITS[0];
 
-		long z = x | (y << 1);
-
-		// Apply fence bit
-		return (0x01L << (2 * (_comparisonLevel + 1))) | z;
+		return x | (y << 1);
 	}
 
 
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.impl;
+
+
+
+import com.oculusinfo.binning.TileIndex;
+
+
+
+/**
+ * A sparse tile of doubles, stored in a primitive hash table.
+ *
+ * This object is not necessarily immutable.
+ */
+public class DoubleSparseTileData extends PrimitiveSparseTileData<Double> {
+	private static final long serialVersionUID = 1L;
+
+
+
+	// No-argument constructor, really just for use by Kryo.
+	private DoubleSparseTileData () {
+		super();
+	}
+
+	/**
+	 * Construct an empty, sparse tile for a particular tile index.
+	 *
+	 * @param definition The index of the tile whose data is to be collected by this object.
+	 * @param defaultValue The default value of each bin
+	 */
+	public DoubleSparseTileData (TileIndex definition, double defaultValue) {
+		super(definition, Double.doubleToRawLongBits(defaultValue));
+	}
+
+	@Override
+	protected long toBits (Double value) {
+		return Double.doubleToRawLongBits(value);
+	}
+
+	@Override
+	protected Double fromBits (long bits) {
+		return Double.longBitsToDouble(bits);
+	}
+
+	@Override
+	protected long doubleToBits (double value) {
+		return Double.doubleToRawLongBits(value);
+	}
+
+	@Override
+	protected double bitsToDouble (long bits) {
+		return Double.longBitsToDouble(bits);
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.impl;
+
+
+
+import java.util.Arrays;
+
+import com.oculusinfo.binning.TileIndex;
+
+
+
+/**
+ * A dense tile of ints, stored in a primitive array.
+ *
+ * This object is not necessarily immutable.
+ */
+public class IntDenseTileData extends PrimitiveDenseTileData<Integer> {
+	private static final long serialVersionUID = 1L;
+
+
+
+	private int[] _data;
+
+
+
+	// No-argument constructor, really just for use by Kryo.
+	private IntDenseTileData () {
+		super();
+	}
+
+	/**
+	 * Construct a dense tile data object for a particular tile.  All entries are initialized to 0.
+	 *
+	 * @param definition The index of the tile whose data is to be collected by this object.
+	 */
+	public IntDenseTileData (TileIndex definition) {
+		super(definition);
+		_data = new int[definition.getXBins() * definition.getYBins()];
+	}
+
+	/**
+	 * Construct a dense tile for a particular tile index.  All entries are initialized to the given default value.
+	 *
+	 * @param definition The index of the tile whose data is to be collected by this object.
+	 * @param defaultValue The default value of each bin
+	 */
+	public IntDenseTileData (TileIndex definition, int defaultValue) {
+		this(definition);
+		Arrays.fill(_data, defaultValue);
+	}
+
+	/**
+	 * Construct a tile for a particular tile index, with preset data.  Note the passed-in preset data is used as is,
+	 * not copied.
+	 *
+	 * @param definition The index of the tile whose data is to be represented by this object.
+	 * @param tileData The data for this tile, row by row
+	 */
+	public IntDenseTileData (TileIndex definition, int[] tileData) {
+		super(definition);
+		checkLength(tileData.length);
+		_data = tileData;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBin (int x, int y, Integer value) {
+		_data[getIndex(x, y)] = checkValue(value);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Integer getBin (int x, int y) {
+		return _data[getIndex(x, y)];
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBinDouble (int x, int y, double value) {
+		_data[getIndex(x, y)] = (int) value;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public double getBinDouble (int x, int y) {
+		return _data[getIndex(x, y)];
+	}
+
+	/**
+	 * Get all the data for this tile, row by row.  This is the raw data array, not a copy; it is intended for users
+	 * using the data as a block (such as for I/O), and is in the same format expected by
+	 * {@link #IntDenseTileData(TileIndex, int[])}.
+	 */
+	public int[] getData () {
+		return _data;
+	}
+}
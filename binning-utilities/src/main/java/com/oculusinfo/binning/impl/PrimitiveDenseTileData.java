@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.impl;
+
+
+
+import com.oculusinfo.binning.PrimitiveTileData;
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileDataMetadataImpl;
+import com.oculusinfo.binning.TileIndex;
+
+
+
+/**
+ * Base class for dense tiles whose bins are stored in a single primitive
+ * array, rather than in a list of boxed objects.  A 256x256 tile of doubles
+ * stored this way takes 512k, instead of the several megabytes needed by a
+ * {@link DenseTileData} of boxed Doubles.
+ *
+ * Bins are stored row-by-row, in the same order used by {@link DenseTileData}.
+ *
+ * This object is not necessarily immutable.
+ *
+ * @param <T> The boxed type of the numbers stored in the bins of this tile.
+ */
+abstract public class PrimitiveDenseTileData<T extends Number> extends TileDataMetadataImpl<T>
+	implements PrimitiveTileData<T> {
+	private static final long serialVersionUID = 1L;
+
+
+
+	/**
+	 * Create a primitive-backed dense tile capable of holding values of the given type.
+	 *
+	 * @param definition The index of the tile whose data is to be collected by the new tile
+	 * @param binType The type of value to be stored in the tile
+	 * @return A primitive dense tile, or null if the given type has no primitive equivalent.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> TileData<T> create (TileIndex definition, Class<? extends T> binType) {
+		if (Double.class.equals(binType)) {
+			return (TileData<T>) new DoubleDenseTileData(definition);
+		} else if (Long.class.equals(binType)) {
+			return (TileData<T>) new LongDenseTileData(definition);
+		} else if (Integer.class.equals(binType)) {
+			return (TileData<T>) new IntDenseTileData(definition);
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Create a primitive-backed dense tile capable of holding values of the same type as the given default, with all
+	 * bins initialized to that default.
+	 *
+	 * @param definition The index of the tile whose data is to be collected by the new tile
+	 * @param defaultValue The default value of each bin
+	 * @return A primitive dense tile, or null if the default value is null, or of a type with no primitive equivalent.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> TileData<T> createWithDefault (TileIndex definition, T defaultValue) {
+		if (defaultValue instanceof Double) {
+			return (TileData<T>) new DoubleDenseTileData(definition, (Double) defaultValue);
+		} else if (defaultValue instanceof Long) {
+			return (TileData<T>) new LongDenseTileData(definition, (Long) defaultValue);
+		} else if (defaultValue instanceof Integer) {
+			return (TileData<T>) new IntDenseTileData(definition, (Integer) defaultValue);
+		} else {
+			return null;
+		}
+	}
+
+
+
+	private TileIndex _definition;
+
+
+
+	// No-argument constructor, really just for use by Kryo.
+	protected PrimitiveDenseTileData () {
+		super();
+	}
+
+	protected PrimitiveDenseTileData (TileIndex definition) {
+		super();
+		_definition = definition;
+	}
+
+	/**
+	 * Check that the given preset data is of the right length for this tile.
+	 */
+	protected void checkLength (int length) {
+		int requiredLength = _definition.getXBins() * _definition.getYBins();
+		if (length != requiredLength) {
+			throw new IllegalArgumentException("Data was of the wrong length.  Should have been "
+			                                   + requiredLength + ", was " + length);
+		}
+	}
+
+	/**
+	 * Get the index into our data array of the given bin.
+	 */
+	protected int getIndex (int x, int y) {
+		if (x < 0 || x >= _definition.getXBins()) {
+			throw new IllegalArgumentException("Bin x index is outside of tile's valid bin range");
+		}
+		if (y < 0 || y >= _definition.getYBins()) {
+			throw new IllegalArgumentException("Bin y index is outside of tile's valid bin range");
+		}
+		return x + y * _definition.getXBins();
+	}
+
+	/**
+	 * Check that a boxed value can be stored in a primitive bin.
+	 */
+	protected T checkValue (T value) {
+		if (null == value) {
+			throw new IllegalArgumentException("Primitive tiles cannot contain null bin values");
+		}
+		return value;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public TileIndex getDefinition () {
+		return _definition;
+	}
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.impl;
+
+
+
+import java.util.Arrays;
+
+import com.oculusinfo.binning.PrimitiveTileData;
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileDataMetadataImpl;
+import com.oculusinfo.binning.TileIndex;
+
+
+
+/**
+ * Base class for sparse tiles whose bins are primitive numbers.
+ *
+ * Rather than the nested maps used by {@link SparseTileData}, bins are stored
+ * in a single open-addressing hash table, keyed by the bin's offset within the
+ * tile (x + y * xBins), with values stored as the raw 64 bits of the
+ * primitive.  No objects are allocated per bin, either when storing values or
+ * when iterating over them with a {@link BinCursor}.
+ *
+ * This object is not necessarily immutable.
+ *
+ * @param <T> The boxed type of the numbers stored in the bins of this tile.
+ */
+abstract public class PrimitiveSparseTileData<T extends Number> extends TileDataMetadataImpl<T>
+	implements PrimitiveTileData<T> {
+	private static final long serialVersionUID = 1L;
+	private static final int EMPTY = -1;
+	private static final int INITIAL_CAPACITY = 16;
+
+
+
+	/**
+	 * Create an empty, primitive-backed sparse tile capable of holding values of the same type as the given default.
+	 *
+	 * @param definition The index of the tile whose data is to be collected by the new tile
+	 * @param defaultValue The default value of each bin
+	 * @return A primitive sparse tile, or null if the default value is null, or of a type with no primitive
+	 *         equivalent.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> TileData<T> createWithDefault (TileIndex definition, T defaultValue) {
+		if (defaultValue instanceof Double) {
+			return (TileData<T>) new DoubleSparseTileData(definition, (Double) defaultValue);
+		} else if (defaultValue instanceof Long) {
+			return (TileData<T>) new LongSparseTileData(definition, (Long) defaultValue);
+		} else if (defaultValue instanceof Integer) {
+			return (TileData<T>) new IntSparseTileData(definition, (Integer) defaultValue);
+		} else {
+			return null;
+		}
+	}
+
+
+
+	private TileIndex _definition;
+	// Bin offsets, or EMPTY for unused slots.  Always a power of two in length.
+	private int[]     _keys;
+	// Raw bits of the value stored in the corresponding slot of _keys
+	private long[]    _values;
+	private int       _size;
+	private long      _defaultValue;
+
+
+
+	// No-argument constructor, really just for use by Kryo.
+	protected PrimitiveSparseTileData () {
+		super();
+	}
+
+	protected PrimitiveSparseTileData (TileIndex definition, long defaultValue) {
+		super();
+		_definition = definition;
+		_defaultValue = defaultValue;
+		_size = 0;
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Convert a boxed bin value to the raw bits in which it is stored.
+	 */
+	abstract protected long toBits (T value);
+
+	/**
+	 * Convert stored bits back to a boxed bin value.
+	 */
+	abstract protected T fromBits (long bits);
+
+	/**
+	 * Convert a double to the raw bits in which it is stored.
+	 */
+	abstract protected long doubleToBits (double value);
+
+	/**
+	 * Convert stored bits to a double.
+	 */
+	abstract protected double bitsToDouble (long bits);
+
+
+
+	private void allocate (int capacity) {
+		_keys = new int[capacity];
+		Arrays.fill(_keys, EMPTY);
+		_values = new long[capacity];
+	}
+
+	private static int hash (int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	// Find the slot containing the given key, or the empty slot into which it
+	// should go if it isn't present.
+	private int findSlot (int key) {
+		int mask = _keys.length - 1;
+		int slot = hash(key) & mask;
+		while (EMPTY != _keys[slot] && key != _keys[slot]) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void rehash (int capacity) {
+		int[] oldKeys = _keys;
+		long[] oldValues = _values;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; ++i) {
+			if (EMPTY != oldKeys[i]) {
+				int slot = findSlot(oldKeys[i]);
+				_keys[slot] = oldKeys[i];
+				_values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private int getKey (int x, int y) {
+		if (x < 0 || x >= _definition.getXBins()) {
+			throw new IllegalArgumentException("Bin x index is outside of tile's valid bin range");
+		}
+		if (y < 0 || y >= _definition.getYBins()) {
+			throw new IllegalArgumentException("Bin y index is outside of tile's valid bin range");
+		}
+		return x + y * _definition.getXBins();
+	}
+
+	private long getBits (int x, int y) {
+		int slot = findSlot(getKey(x, y));
+		if (EMPTY == _keys[slot]) return _defaultValue;
+		return _values[slot];
+	}
+
+	private void setBits (int x, int y, long bits) {
+		int key = getKey(x, y);
+		int slot = findSlot(key);
+		if (EMPTY == _keys[slot]) {
+			// Keep the table at most 3/4 full
+			if (4 * (_size + 1) > 3 * _keys.length) {
+				rehash(2 * _keys.length);
+				slot = findSlot(key);
+			}
+			_keys[slot] = key;
+			++_size;
+		}
+		_values[slot] = bits;
+	}
+
+
+
+	/** {@inheritDoc} */
+	@Override
+	public TileIndex getDefinition () {
+		return _definition;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBin (int x, int y, T value) {
+		if (null == value) {
+			throw new IllegalArgumentException("Primitive tiles cannot contain null bin values");
+		}
+		setBits(x, y, toBits(value));
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public T getBin (int x, int y) {
+		return fromBits(getBits(x, y));
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBinDouble (int x, int y, double value) {
+		setBits(x, y, doubleToBits(value));
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public double getBinDouble (int x, int y) {
+		return bitsToDouble(getBits(x, y));
+	}
+
+	/**
+	 * Get the default value for bins not defined in our sparse array.
+	 */
+	public T getDefaultBinValue () {
+		return fromBits(_defaultValue);
+	}
+
+	/**
+	 * Get the number of bins with defined values in this tile.
+	 */
+	public int size () {
+		return _size;
+	}
+
+	/**
+	 * Get a cursor over all our defined data, ignoring defaulted bins.  Bins
+	 * are visited in no particular order.
+	 */
+	public BinCursor getCursor () {
+		return new BinCursor();
+	}
+
+
+
+	/**
+	 * A cursor over the defined bins of a sparse tile.  Unlike an iterator, a
+	 * cursor allocates nothing per bin; it is positioned before the first bin
+	 * on creation, and {@link #next()} must be called before reading each bin.
+	 *
+	 * The results of using a cursor while its tile is being modified are
+	 * undefined.
+	 */
+	public class BinCursor {
+		private int _slot = -1;
+
+		/**
+		 * Move to the next defined bin.
+		 *
+		 * @return True if there is another bin, false if all bins have been
+		 *         visited.
+		 */
+		public boolean next () {
+			while (++_slot < _keys.length) {
+				if (EMPTY != _keys[_slot]) return true;
+			}
+			return false;
+		}
+
+		/** Get the x coordinate of the current bin */
+		public int getX () {
+			return _keys[_slot] % _definition.getXBins();
+		}
+
+		/** Get the y coordinate of the current bin */
+		public int getY () {
+			return _keys[_slot] / _definition.getXBins();
+		}
+
+		/** Get the value of the current bin */
+		public T getBin () {
+			return fromBits(_values[_slot]);
+		}
+
+		/** Get the value of the current bin, as a double */
+		public double getBinDouble () {
+			return bitsToDouble(_values[_slot]);
+		}
+	}
+}
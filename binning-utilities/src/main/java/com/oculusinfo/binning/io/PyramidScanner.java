@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.io;
+
+import java.io.IOException;
+
+import com.oculusinfo.binning.TileIndex;
+
+
+
+/**
+ * Implemented by pyramid IOs (and pyramid sources) that can list the tiles
+ * that actually exist in a level of a pyramid, along with their serialized
+ * contents, without having to be told which tiles to look for.
+ * 
+ * This lets bulk operations (such as copying a pyramid from one store to
+ * another) touch only the tiles that are there, rather than probing every
+ * possible tile of every level.
+ */
+public interface PyramidScanner {
+	/**
+	 * Pass every tile in one level of a pyramid, still serialized, to a
+	 * handler. Tiles are passed in whatever order is cheapest for the
+	 * underlying store.
+	 * 
+	 * @param pyramidId The ID of the pyramid; the meaning of this ID is
+	 *            dependent on the I/O type
+	 * @param level The level to scan
+	 * @param handler The handler to which to pass each tile
+	 * @throws IOException If the tiles could not be read, or if the handler
+	 *             throws an exception, in which case the scan stops
+	 */
+	public void scanLevel (String pyramidId, int level, SerializedTileHandler handler) throws IOException;
+
+
+
+	/**
+	 * Receives the tiles found by a scan.
+	 */
+	public static interface SerializedTileHandler {
+		/**
+		 * Handle one tile.
+		 * 
+		 * @param index The index of the tile
+		 * @param data The serialized contents of the tile, exactly as they
+		 *            are stored. The array belongs to the handler.
+		 */
+		public void handleTile (TileIndex index, byte[] data) throws IOException;
+	}
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.io;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.oculusinfo.binning.TileIndex;
+
+
+
+/**
+ * A compact record of which tiles of a pyramid exist, so that requests for
+ * missing tiles - common in sparse pyramids - can be answered without going to
+ * the backing store.
+ * 
+ * Shallow levels are recorded exactly, with one bit per possible tile. Deeper
+ * levels, where such a bitmap would be too large, share a blocked Bloom
+ * filter: each tile's bits all lie in one 512-bit (cache line sized) block,
+ * so a lookup touches a single block. The filter can report that a missing
+ * tile exists (a false positive), but never that an existing tile is missing.
+ * 
+ * An index is stamped with a hash of the pyramid's metadata at the time it was
+ * built, so that users can tell when the pyramid has been rewritten since.
+ * 
+ * The index also keeps track of how useful it is: how many reads it has saved,
+ * and how many tiles it let through that turned out not to exist.
+ */
+public class TileExistenceIndex {
+	/** By default, levels 0 through 8 (at most 8KB per level) are stored as bitmaps */
+	public static final int    DEFAULT_BITMAP_LEVELS       = 9;
+	/** The default target rate of false positives from the Bloom filter */
+	public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+	private static final int   MAGIC       = 0x54455849; // "TEXI"
+	private static final int   VERSION     = 1;
+	private static final int   BLOCK_LONGS = 8;
+	private static final int   BLOCK_BITS  = BLOCK_LONGS * 64;
+	// Bits of hash needed to pick one bit in a block
+	private static final int   BIT_INDEX_BITS = 9;
+	private static final int   MAX_HASHES  = 16;
+
+
+
+	/**
+	 * Get the stamp by which an index built from a pyramid with the given
+	 * metadata should be identified.
+	 */
+	public static long getStamp (String metaData) {
+		if (null == metaData) return 0L;
+		// 64-bit FNV-1a
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < metaData.length(); ++i) {
+			hash ^= metaData.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+
+
+	private final long       _stamp;
+	// Exact bitmaps of the shallow levels; a null level has no tiles.
+	private final long[][]   _bitmaps;
+	// The Bloom filter for all deeper levels; null if there are no deep tiles
+	private final long[]     _bloom;
+	private final int        _bloomBlocks;
+	private final int        _hashes;
+	private final long       _deepTiles;
+
+	private final AtomicLong _readsSaved;
+	private final AtomicLong _falsePositives;
+
+	private TileExistenceIndex (long stamp, long[][] bitmaps, long[] bloom, int hashes, long deepTiles) {
+		_stamp = stamp;
+		_bitmaps = bitmaps;
+		_bloom = bloom;
+		_bloomBlocks = (null == bloom) ? 0 : bloom.length / BLOCK_LONGS;
+		_hashes = hashes;
+		_deepTiles = deepTiles;
+		_readsSaved = new AtomicLong(0L);
+		_falsePositives = new AtomicLong(0L);
+	}
+
+	/**
+	 * The stamp of the metadata of the pyramid from which this index was
+	 * built.
+	 * 
+	 * @see #getStamp(String)
+	 */
+	public long getStamp () {
+		return _stamp;
+	}
+
+	/**
+	 * Determine whether a tile might exist. If this returns false, the tile
+	 * definitely doesn't exist.
+	 */
+	public boolean mightExist (TileIndex tile) {
+		int level = tile.getLevel();
+		int x = tile.getX();
+		int y = tile.getY();
+		if (level < 0 || level > 30) return false;
+		int size = 1 << level;
+		if (x < 0 || x >= size || y < 0 || y >= size) return false;
+
+		if (level < _bitmaps.length) {
+			long[] bitmap = _bitmaps[level];
+			if (null == bitmap) return false;
+			long bit = (long) x * size + y;
+			return 0 != (bitmap[(int) (bit >>> 6)] & (1L << bit));
+		}
+
+		if (null == _bloom) return false;
+		long hash = hash(level, x, y);
+		int base = blockOf(hash, _bloomBlocks) * BLOCK_LONGS;
+		long bits = mix(hash);
+		for (int i = 0, used = 0; i < _hashes; ++i, used += BIT_INDEX_BITS) {
+			if (used + BIT_INDEX_BITS > 64) {
+				bits = mix(bits);
+				used = 0;
+			}
+			int bit = (int) ((bits >>> used) & (BLOCK_BITS - 1));
+			if (0 == (_bloom[base + (bit >>> 6)] & (1L << bit))) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Determine whether a tile needs to be read, counting it as a saved read if
+	 * it doesn't.
+	 */
+	public boolean shouldRead (TileIndex tile) {
+		if (mightExist(tile)) return true;
+		_readsSaved.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Drop the tiles that definitely don't exist from a request, counting
+	 * each as a saved read.
+	 * 
+	 * @return The tiles that might exist, in the order requested
+	 */
+	public List<TileIndex> filter (Iterable<TileIndex> tiles) {
+		List<TileIndex> result = new ArrayList<>();
+		for (TileIndex tile: tiles) {
+			if (shouldRead(tile)) result.add(tile);
+		}
+		return result;
+	}
+
+	/**
+	 * Record that some tiles this index let through turned out not to exist.
+	 */
+	public void recordFalsePositives (int count) {
+		if (count > 0) _falsePositives.addAndGet(count);
+	}
+
+	/** The number of tile reads this index has saved */
+	public long getReadsSaved () {
+		return _readsSaved.get();
+	}
+
+	/** The number of tiles this index has let through that didn't exist */
+	public long getFalsePositives () {
+		return _falsePositives.get();
+	}
+
+	/**
+	 * The observed false positive rate: the fraction of the missing tiles
+	 * asked for that the index failed to rule out.
+	 */
+	public double getFalsePositiveRate () {
+		long falsePositives = _falsePositives.get();
+		long total = falsePositives + _readsSaved.get();
+		if (0 == total) return 0.0;
+		return ((double) falsePositives) / total;
+	}
+
+	/**
+	 * The false positive rate expected of the Bloom filter, given its size
+	 * and contents. Shallow levels have no false positives.
+	 */
+	public double getExpectedFalsePositiveRate () {
+		if (null == _bloom) return 0.0;
+		double bits = (double) _bloom.length * 64;
+		return Math.pow(1.0 - Math.exp(-_hashes * _deepTiles / bits), _hashes);
+	}
+
+	/** The approximate in-memory size of this index, in bytes */
+	public long getSizeInBytes () {
+		long longs = (null == _bloom) ? 0 : _bloom.length;
+		for (long[] bitmap: _bitmaps) {
+			if (null != bitmap) longs += bitmap.length;
+		}
+		return longs * 8;
+	}
+
+
+
+	/**
+	 * Write this index out, in a form that can be read back by
+	 * {@link #read(InputStream)}.
+	 */
+	public void write (OutputStream output) throws IOException {
+		DataOutputStream data = new DataOutputStream(output);
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		data.writeLong(_stamp);
+		data.writeInt(_bitmaps.length);
+		for (long[] bitmap: _bitmaps) {
+			data.writeBoolean(null != bitmap);
+			if (null != bitmap) {
+				for (long word: bitmap) data.writeLong(word);
+			}
+		}
+		data.writeInt(_bloomBlocks);
+		data.writeInt(_hashes);
+		data.writeLong(_deepTiles);
+		if (null != _bloom) {
+			for (long word: _bloom) data.writeLong(word);
+		}
+		data.flush();
+	}
+
+	/**
+	 * Read in an index written by {@link #write(OutputStream)}.
+	 */
+	public static TileExistenceIndex read (InputStream input) throws IOException {
+		DataInputStream data = new DataInputStream(input);
+		if (MAGIC != data.readInt()) throw new IOException("Not a tile existence index");
+		int version = data.readInt();
+		if (VERSION != version) throw new IOException("Unsupported tile existence index version "+version);
+		long stamp = data.readLong();
+		int bitmapLevels = data.readInt();
+		long[][] bitmaps = new long[bitmapLevels][];
+		for (int level = 0; level < bitmapLevels; ++level) {
+			if (data.readBoolean()) {
+				bitmaps[level] = readLongs(data, bitmapLength(level));
+			}
+		}
+		int bloomBlocks = data.readInt();
+		int hashes = data.readInt();
+		long deepTiles = data.readLong();
+		long[] bloom = null;
+		if (bloomBlocks > 0) {
+			bloom = readLongs(data, bloomBlocks * BLOCK_LONGS);
+		}
+		return new TileExistenceIndex(stamp, bitmaps, bloom, hashes, deepTiles);
+	}
+
+	private static long[] readLongs (DataInputStream data, int length) throws IOException {
+		long[] result = new long[length];
+		for (int i = 0; i < length; ++i) result[i] = data.readLong();
+		return result;
+	}
+
+
+
+	private static int bitmapLength (int level) {
+		return Math.max(1, (int) ((1L << (2 * level)) >>> 6));
+	}
+
+	private static long hash (int level, int x, int y) {
+		long hash = mix(level * 0x9e3779b97f4a7c15L + x);
+		return mix(hash + y);
+	}
+
+	// The finalization step of MurmurHash3's 64-bit hash
+	private static long mix (long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return value;
+	}
+
+	private static int blockOf (long hash, int blocks) {
+		return (int) ((hash >>> 1) % blocks);
+	}
+
+
+
+	/**
+	 * Accumulates the tiles of a pyramid, and builds an index of them.
+	 * 
+	 * Shallow tiles are recorded directly; deep tiles are held (as an 8-byte
+	 * hash each) until the index is built, since the Bloom filter can only be
+	 * sized once we know how many there are.
+	 */
+	public static class Builder {
+		private final long     _stamp;
+		private final double   _falsePositiveRate;
+		private final long[][] _bitmaps;
+		private long[]         _deepHashes;
+		private int            _deepCount;
+
+		public Builder (long stamp) {
+			this(stamp, DEFAULT_BITMAP_LEVELS, DEFAULT_FALSE_POSITIVE_RATE);
+		}
+
+		/**
+		 * @param stamp The stamp of the metadata of the pyramid being indexed
+		 * @param bitmapLevels The number of levels, starting at 0, to record
+		 *            exactly
+		 * @param falsePositiveRate The target false positive rate for deeper
+		 *            levels
+		 */
+		public Builder (long stamp, int bitmapLevels, double falsePositiveRate) {
+			_stamp = stamp;
+			_falsePositiveRate = falsePositiveRate;
+			_bitmaps = new long[Math.max(0, Math.min(bitmapLevels, 16))][];
+			_deepHashes = new long[1024];
+			_deepCount = 0;
+		}
+
+		public Builder add (TileIndex tile) {
+			return add(tile.getLevel(), tile.getX(), tile.getY());
+		}
+
+		public Builder add (int level, int x, int y) {
+			if (level < 0 || level > 30) return this;
+			int size = 1 << level;
+			if (x < 0 || x >= size || y < 0 || y >= size) return this;
+
+			if (level < _bitmaps.length) {
+				if (null == _bitmaps[level]) _bitmaps[level] = new long[bitmapLength(level)];
+				long bit = (long) x * size + y;
+				_bitmaps[level][(int) (bit >>> 6)] |= (1L << bit);
+			} else {
+				if (_deepCount == _deepHashes.length) {
+					_deepHashes = Arrays.copyOf(_deepHashes, _deepHashes.length * 2);
+				}
+				_deepHashes[_deepCount++] = hash(level, x, y);
+			}
+			return this;
+		}
+
+		public TileExistenceIndex build () {
+			long[] deep = Arrays.copyOf(_deepHashes, _deepCount);
+			// Duplicates would only inflate the filter
+			Arrays.sort(deep);
+			int unique = 0;
+			for (int i = 0; i < deep.length; ++i) {
+				if (0 == i || deep[i] != deep[i - 1]) deep[unique++] = deep[i];
+			}
+
+			long[] bloom = null;
+			int hashes = 0;
+			if (unique > 0) {
+				double ln2 = Math.log(2.0);
+				double bits = -unique * Math.log(_falsePositiveRate) / (ln2 * ln2);
+				int blocks = (int) Math.max(1L, Math.min(Integer.MAX_VALUE / BLOCK_LONGS,
+				                                         (long) Math.ceil(bits / BLOCK_BITS)));
+				hashes = (int) Math.max(1L, Math.min(MAX_HASHES, Math.round(ln2 * blocks * BLOCK_BITS / unique)));
+
+				bloom = new long[blocks * BLOCK_LONGS];
+				for (int n = 0; n < unique; ++n) {
+					long hash = deep[n];
+					int base = blockOf(hash, blocks) * BLOCK_LONGS;
+					long bitSource = mix(hash);
+					for (int i = 0, used = 0; i < hashes; ++i, used += BIT_INDEX_BITS) {
+						if (used + BIT_INDEX_BITS > 64) {
+							bitSource = mix(bitSource);
+							used = 0;
+						}
+						int bit = (int) ((bitSource >>> used) & (BLOCK_BITS - 1));
+						bloom[base + (bit >>> 6)] |= (1L << bit);
+					}
+				}
+			}
+			return new TileExistenceIndex(_stamp, _bitmaps.clone(), bloom, hashes, unique);
+		}
+	}
+}
@@ -32,6 +32,8 @@ import java.util.Properties;
 import com.oculusinfo.binning.TileData;
 import com.oculusinfo.binning.TileIndex;
 import com.oculusinfo.binning.io.PyramidIO;
+import com.oculusinfo.binning.io.TileExistenceIndex;
+import com.oculusinfo.binning.io.TileExistenceIndexProvider;
 import com.oculusinfo.binning.io.serialization.TileSerializer;
 
 
@@ -41,7 +43,7 @@ import com.oculusinfo.binning.io.serialization.TileSerializer;
  *  on the particular type of file system tile used.
  *  
  */
-public class FileBasedPyramidIO implements PyramidIO {
+public class FileBasedPyramidIO implements PyramidIO, TileExistenceIndexProvider {
 	
 	private PyramidSource _source;
 	
@@ -53,6 +55,14 @@ public class FileBasedPyramidIO implements PyramidIO {
 		return _source;
 	}
 
+	@Override
+	public TileExistenceIndex getTileExistenceIndex (String basePath) {
+		if (_source instanceof TileExistenceIndexProvider) {
+			return ((TileExistenceIndexProvider) _source).getTileExistenceIndex(basePath);
+		}
+		return null;
+	}
+
 	@Override
 	public void initializeForWrite (String basePath) throws IOException {
 		_source.initializeForWrite(basePath);
@@ -26,6 +26,7 @@ package com.oculusinfo.binning.io.impl;
 
 import com.oculusinfo.binning.io.PyramidIO;
 import com.oculusinfo.factory.ConfigurableFactory;
+import com.oculusinfo.factory.properties.BooleanProperty;
 import com.oculusinfo.factory.properties.StringProperty;
 
 import org.slf4j.Logger;
@@ -35,7 +36,7 @@ import java.util.List;
 
 
 /**
- * Extends a ConfigurableFactory for file system based (zip, resource, or directory) PyramidIO types.
+ * Extends a ConfigurableFactory for file system based (zip, resource, directory, or packed) PyramidIO types.
  * 	This class will be injected with a PyramidSource object that will provide the necesarry tile access depending
  *  on the particular type of file system tile used.
  *  
@@ -46,18 +47,24 @@ public class FileBasedPyramidIOFactory extends ConfigurableFactory<PyramidIO> {
 	public static final String NAME = "file";
 
 	public static StringProperty ROOT_PATH              = new StringProperty("root.path",
-		   "Indicates the root path of the tile pyramid - the full path to an archive file(zip), directory, or resource location."
+		   "Indicates the root path of the tile pyramid - the full path to an archive file(zip), directory, or resource location,"
+		   + " or, prefixed with packed://, a directory of packed pyramid files."
 		   + "  There is no default for this property.",
 		   null);
 	public static StringProperty EXTENSION              = new StringProperty("extension",
 		   "The file extension which the serializer should expect to find on individual tiles.",
 		   "avro");
+	public static BooleanProperty EXISTENCE_INDEX       = new BooleanProperty("existence.index",
+		   "Only used for directory pyramids.  If true, an index of which tiles exist is kept (and stored in the pyramid's"
+		   + " directory), so that requests for missing tiles don't touch the file system.",
+		   false);
 	
 	public FileBasedPyramidIOFactory (ConfigurableFactory<?> parent, List<String> path) {
 		super(NAME, PyramidIO.class, parent, path);
 		
 		addProperty(ROOT_PATH);
 		addProperty(EXTENSION);
+		addProperty(EXISTENCE_INDEX);
 	}
 
 
@@ -75,14 +82,18 @@ public class FileBasedPyramidIOFactory extends ConfigurableFactory<PyramidIO> {
 			} else if (rootpath.startsWith("file://")) {
 				// a file/directory on the file system
 				rootpath = rootpath.substring(7);
-				source = new FileSystemPyramidSource(rootpath, extension); 
+				source = createFileSystemSource(rootpath, extension);
+			} else if (rootpath.startsWith("packed://")) {
+				// a directory of single-file, memory-mapped pyramids
+				rootpath = rootpath.substring(9);
+				source = new PackedPyramidSource(rootpath);
 			} else if (rootpath.startsWith("res://")) {
 				// a file/directory within the webapp resources
 				rootpath = rootpath.substring(6);
 				source = new ResourcePyramidSource(rootpath, extension);
 			} else {
 				// no prefix / postfix supplied, default to file for legacy support
-				source = new FileSystemPyramidSource(rootpath, extension);
+				source = createFileSystemSource(rootpath, extension);
 			}
 			return new FileBasedPyramidIO(source);
 		}
@@ -91,4 +102,10 @@ public class FileBasedPyramidIOFactory extends ConfigurableFactory<PyramidIO> {
 		}
 		return null;
 	}
+
+	private PyramidSource createFileSystemSource (String rootPath, String extension) {
+		FileSystemPyramidSource source = new FileSystemPyramidSource(rootPath, extension);
+		source.setTileExistenceIndexEnabled(getPropertyValue(EXISTENCE_INDEX));
+		return source;
+	}
 }
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.io.impl;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+
+
+
+/**
+ * Writes large numbers of tiles into a {@link FileSystemPyramidSource} in
+ * parallel.
+ * 
+ * Tiles are serialized and written on a pool of worker threads, each
+ * through a temporary file that is synced and moved into place once
+ * complete, so an interrupted write never leaves a truncated tile behind.
+ * Levels are recorded in a manifest in the pyramid directory as they are
+ * marked complete, once their tiles are on disk, so an interrupted export -
+ * even one interrupted by a crash - can tell which levels it can skip when it
+ * is run again.
+ */
+public class FileSystemBulkWriter implements Closeable {
+	/** The name of the manifest file of completed levels */
+	public static final String MANIFEST_FILENAME = "completed-levels";
+
+
+
+	private final FileSystemPyramidSource _source;
+	private final String                  _basePath;
+	private final File                    _manifest;
+	private final Set<Integer>            _completedLevels;
+	private final ExecutorService         _workers;
+	private final Semaphore               _inFlight;
+	private final int                     _maxInFlight;
+	private final AtomicLong              _tilesWritten;
+	private final AtomicLong              _writeNanos;
+
+	/**
+	 * @param source The file system source to which to write
+	 * @param basePath The pyramid to write
+	 * @param threads The number of worker threads with which to write
+	 */
+	public FileSystemBulkWriter (FileSystemPyramidSource source, String basePath, int threads) throws IOException {
+		_source = source;
+		_basePath = basePath;
+		_manifest = new File(source.getPyramidDirectory(basePath), MANIFEST_FILENAME);
+		_completedLevels = Collections.synchronizedSet(readManifest(_manifest));
+
+		final String threadPrefix = "pyramid-writer-"+basePath+"-";
+		_workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger _count = new AtomicInteger(0);
+			@Override
+			public Thread newThread (Runnable runnable) {
+				Thread thread = new Thread(runnable, threadPrefix + _count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// Bound the number of tiles held in memory waiting to be written
+		_maxInFlight = threads * 4;
+		_inFlight = new Semaphore(_maxInFlight);
+		_tilesWritten = new AtomicLong(0L);
+		_writeNanos = new AtomicLong(0L);
+	}
+
+	/**
+	 * Write a set of tiles, returning only once all have been written.
+	 * 
+	 * @throws IOException If any tile couldn't be written. All tiles are
+	 *             attempted regardless.
+	 */
+	public <T> void writeTiles (final TileSerializer<T> serializer, Iterable<TileData<T>> tiles) throws IOException {
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		long startTime = System.nanoTime();
+		try {
+			for (final TileData<T> tile: tiles) {
+				_inFlight.acquire();
+				_workers.execute(new Runnable() {
+					@Override
+					public void run () {
+						try {
+							_source.writeTile(_basePath, serializer, tile);
+							_tilesWritten.incrementAndGet();
+						} catch (Throwable t) {
+							error.compareAndSet(null, t);
+						} finally {
+							_inFlight.release();
+						}
+					}
+				});
+			}
+			// Wait for everything we've handed out to finish
+			_inFlight.acquire(_maxInFlight);
+			_inFlight.release(_maxInFlight);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted writing tiles to "+_basePath, e);
+		} finally {
+			_writeNanos.addAndGet(System.nanoTime() - startTime);
+		}
+
+		Throwable failure = error.get();
+		if (null != failure) {
+			if (failure instanceof IOException) throw (IOException) failure;
+			throw new IOException("Error writing tiles to "+_basePath, failure);
+		}
+	}
+
+	/**
+	 * Record that all tiles of a level have been written.
+	 */
+	public void completeLevel (int level) throws IOException {
+		_source.syncLevel(_basePath, level);
+		synchronized (_completedLevels) {
+			_completedLevels.add(level);
+			writeManifest();
+		}
+	}
+
+	/**
+	 * Determine if a level was completed, by this writer or a previous one.
+	 */
+	public boolean isLevelComplete (int level) {
+		return _completedLevels.contains(level);
+	}
+
+	/**
+	 * Forget all completed levels, so the whole pyramid is written anew.
+	 */
+	public void resetManifest () throws IOException {
+		synchronized (_completedLevels) {
+			_completedLevels.clear();
+			writeManifest();
+		}
+	}
+
+	/** The number of tiles this writer has written */
+	public long getTilesWritten () {
+		return _tilesWritten.get();
+	}
+
+	/**
+	 * The write throughput so far, counting only the time spent in
+	 * {@link #writeTiles(TileSerializer, Iterable)}.
+	 */
+	public double getTilesPerSecond () {
+		long nanos = _writeNanos.get();
+		if (0 == nanos) return 0.0;
+		return _tilesWritten.get() * 1E9 / nanos;
+	}
+
+	@Override
+	public void close () {
+		_workers.shutdown();
+	}
+
+	private void writeManifest () throws IOException {
+		File parent = _manifest.getParentFile();
+		if (!parent.exists()) parent.mkdirs();
+		File tempFile = new File(parent, MANIFEST_FILENAME+".tmp");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8");
+		try {
+			for (int level: new TreeSet<>(_completedLevels)) {
+				writer.write(level+"\n");
+			}
+		} finally {
+			writer.close();
+		}
+		FileSystemPyramidSource.syncFile(tempFile);
+		FileSystemPyramidSource.moveIntoPlace(tempFile, _manifest);
+		FileSystemPyramidSource.syncDirectory(parent);
+	}
+
+	private static Set<Integer> readManifest (File manifest) throws IOException {
+		Set<Integer> levels = new TreeSet<>();
+		if (manifest.isFile()) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+			try {
+				String line;
+				while (null != (line = reader.readLine())) {
+					line = line.trim();
+					if (!line.isEmpty()) levels.add(Integer.parseInt(line));
+				}
+			} catch (NumberFormatException e) {
+				throw new IOException("Corrupt manifest "+manifest, e);
+			} finally {
+				reader.close();
+			}
+		}
+		return levels;
+	}
+}
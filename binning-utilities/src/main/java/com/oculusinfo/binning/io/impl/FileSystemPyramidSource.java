@@ -24,31 +24,54 @@
  */
 package com.oculusinfo.binning.io.impl;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.oculusinfo.binning.TileData;
 import com.oculusinfo.binning.TileIndex;
 import com.oculusinfo.binning.io.PyramidIO;
+import com.oculusinfo.binning.io.PyramidScanner;
+import com.oculusinfo.binning.io.TileExistenceIndex;
+import com.oculusinfo.binning.io.TileExistenceIndexProvider;
 import com.oculusinfo.binning.io.serialization.TileSerializer;
 
 
 /**
  * Extends the PyramidSource abstract class for file system (directory) based tiles.
- *  
+ * 
+ * Optionally, this source can keep an index of which tiles exist, so that
+ * requests for missing tiles don't have to touch the file system; the index is
+ * stored in the pyramid's directory, next to its metadata.
  */
-public class FileSystemPyramidSource implements PyramidSource {
-	
+public class FileSystemPyramidSource implements PyramidSource, PyramidScanner, TileExistenceIndexProvider {
+	/** The name of the file, in a pyramid's directory, holding its tile existence index */
+	public static final String EXISTENCE_INDEX_FILENAME = "tiles.existence";
+
 	private String _rootPath;
 	private String _extension;
+	// Tile directories we know exist, so we don't check for every tile
+	private Set<String> _knownDirectories;
+	// Null unless tile existence indices are enabled
+	private volatile TileExistenceIndexManager _existenceIndices;
 
 
 	public FileSystemPyramidSource (String rootPath, String extension){
@@ -60,10 +83,43 @@ public class FileSystemPyramidSource implements PyramidSource {
 		//make sure the root path ends with a slash
 		_rootPath = (rootPath.trim().endsWith("/"))? rootPath : rootPath.trim() + "/";
 		_extension = extension;
+		_knownDirectories = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		_existenceIndices = null;
+	}
+
+	/**
+	 * Turn on or off the use of tile existence indices, with which reads of
+	 * missing tiles are answered without touching the file system.
+	 */
+	public void setTileExistenceIndexEnabled (boolean enabled) {
+		if (enabled && null == _existenceIndices) {
+			_existenceIndices = new ExistenceIndices();
+		} else if (!enabled && null != _existenceIndices) {
+			_existenceIndices.shutdown();
+			_existenceIndices = null;
+		}
+	}
+
+	@Override
+	public TileExistenceIndex getTileExistenceIndex (String basePath) {
+		TileExistenceIndexManager indices = _existenceIndices;
+		if (null == indices) return null;
+		return indices.getIndex(basePath);
+	}
+
+	// Exposed for testing
+	TileExistenceIndexManager getExistenceIndices () {
+		return _existenceIndices;
+	}
+
+	private void invalidateExistenceIndex (String basePath) {
+		TileExistenceIndexManager indices = _existenceIndices;
+		if (null != indices) indices.invalidate(basePath);
 	}
 	
 	@Override
 	public void initializeForWrite (String basePath) throws IOException {
+		invalidateExistenceIndex(basePath);
 		File metaDataFile = getMetaDataFile(basePath);
 		File parent = metaDataFile.getParentFile();
 		if (!parent.exists()) parent.mkdirs();
@@ -73,18 +129,49 @@ public class FileSystemPyramidSource implements PyramidSource {
 	public <T> void writeTiles (String basePath, TileSerializer<T> serializer,
 	                            Iterable<TileData<T>> data) throws IOException {
 		for (TileData<T> tile: data) {
-			File tileFile = getTileFile(basePath, tile.getDefinition());
-			File parent = tileFile.getParentFile();
-			if (!parent.exists()) parent.mkdirs();
+			writeTile(basePath, serializer, tile);
+		}
+	}
 
-			FileOutputStream fileStream = new FileOutputStream(tileFile);
-			serializer.serialize(tile, fileStream);
-			fileStream.close();
+	/**
+	 * Write a single tile. The tile is written to a temporary file, which is
+	 * synced to disk and then moved into place, so a tile file is never seen
+	 * half-written, even if the writer - or the machine - dies part way
+	 * through. This is safe to call from many threads at once, as long as
+	 * they are writing different tiles.
+	 */
+	<T> void writeTile (String basePath, TileSerializer<T> serializer, TileData<T> tile) throws IOException {
+		invalidateExistenceIndex(basePath);
+		File tileFile = getTileFile(basePath, tile.getDefinition());
+		File parent = tileFile.getParentFile();
+		String parentPath = parent.getPath();
+		if (!_knownDirectories.contains(parentPath)) {
+			if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+				throw new IOException("Couldn't create tile directory "+parent);
+			}
+			_knownDirectories.add(parentPath);
+		}
+
+		File tempFile = new File(parent, tileFile.getName()+"."+Thread.currentThread().getId()+".tmp");
+		boolean moved = false;
+		try {
+			OutputStream fileStream = new BufferedOutputStream(new FileOutputStream(tempFile));
+			try {
+				serializer.serialize(tile, fileStream);
+			} finally {
+				fileStream.close();
+			}
+			syncFile(tempFile);
+			moveIntoPlace(tempFile, tileFile);
+			moved = true;
+		} finally {
+			if (!moved) tempFile.delete();
 		}
 	}
 
 	@Override
 	public void writeMetaData (String basePath, String metaData) throws IOException {
+		invalidateExistenceIndex(basePath);
 		FileOutputStream stream = new FileOutputStream(getMetaDataFile(basePath));
 		stream.write(metaData.getBytes());
 		stream.close();
@@ -95,7 +182,11 @@ public class FileSystemPyramidSource implements PyramidSource {
 	public <T> List<TileData<T>> readTiles (String basePath,
 	                                        TileSerializer<T> serializer,
 	                                        Iterable<TileIndex> tiles) throws IOException {
+		TileExistenceIndex index = getTileExistenceIndex(basePath);
+		if (null != index) tiles = index.filter(tiles);
+
 		List<TileData<T>> results = new LinkedList<TileData<T>>();
+		int missing = 0;
 		for (TileIndex tile: tiles) {
 			File tileFile = getTileFile(basePath, tile);
 
@@ -104,8 +195,11 @@ public class FileSystemPyramidSource implements PyramidSource {
 				TileData<T> data = serializer.deserialize(tile, stream);
 				results.add(data);
 				stream.close();
+			} else {
+				++missing;
 			}
 		}
+		if (null != index) index.recordFalsePositives(missing);
 		return results;
 	}
 
@@ -113,15 +207,44 @@ public class FileSystemPyramidSource implements PyramidSource {
 	public <T> InputStream getTileStream (String basePath,
 	                                      TileSerializer<T> serializer,
 	                                      TileIndex tile) throws IOException {
+		TileExistenceIndex index = getTileExistenceIndex(basePath);
+		if (null != index && !index.shouldRead(tile)) return null;
+
 		File tileFile = getTileFile(basePath, tile);
 
 		if (tileFile.exists() && tileFile.isFile()) {
 			return new FileInputStream(tileFile);
 		} else {
+			if (null != index) index.recordFalsePositives(1);
 			return null;
 		}
 	}
 
+	/**
+	 * Scan one level by listing its directories; only tiles that exist are
+	 * read.
+	 */
+	@Override
+	public void scanLevel (String basePath, int level, SerializedTileHandler handler) throws IOException {
+		File levelDir = new File(getPyramidDirectory(basePath), PyramidIO.TILES_FOLDERNAME + "/" + level);
+		String suffix = "." + _extension;
+		File[] xDirs = levelDir.listFiles();
+		if (null == xDirs) return;
+		for (File xDir: xDirs) {
+			Integer x = parseInt(xDir.getName());
+			if (null == x) continue;
+			File[] tileFiles = xDir.listFiles();
+			if (null == tileFiles) continue;
+			for (File tileFile: tileFiles) {
+				String name = tileFile.getName();
+				if (!name.endsWith(suffix) || !tileFile.isFile()) continue;
+				Integer y = parseInt(name.substring(0, name.length() - suffix.length()));
+				if (null == y) continue;
+				handler.handleTile(new TileIndex(level, x, y), Files.readAllBytes(tileFile.toPath()));
+			}
+		}
+	}
+
 	@Override
 	public String readMetaData (String basePath) throws IOException {
 		File metaDataFile = getMetaDataFile(basePath);
@@ -139,7 +262,8 @@ public class FileSystemPyramidSource implements PyramidSource {
 	}
 	
 	@Override
-	public void removeTiles (String basePath, Iterable<TileIndex> tiles ) throws IOException {		
+	public void removeTiles (String basePath, Iterable<TileIndex> tiles ) throws IOException {
+		invalidateExistenceIndex(basePath);
 		for (TileIndex tile: tiles) {
 			// delete tile
 			File tileFile = getTileFile(basePath, tile);
@@ -156,6 +280,8 @@ public class FileSystemPyramidSource implements PyramidSource {
 			}
 
 		}
+		// We may have deleted directories we were remembering
+		_knownDirectories.clear();
 	}
 	
 	@Override	
@@ -163,6 +289,71 @@ public class FileSystemPyramidSource implements PyramidSource {
 		// Not Implemented
 	}
 	
+	/*
+	 * Move a fully-written file to its final location, atomically if the file
+	 * system allows it.
+	 */
+	static void moveIntoPlace (File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/*
+	 * Sync a written file to disk. The file is reopened to do so, as some
+	 * serializers close the streams they are given.
+	 */
+	static void syncFile (File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+	}
+
+	/*
+	 * Make the moves of all tile files of a level into place durable, by
+	 * syncing the level's directories.
+	 */
+	void syncLevel (String basePath, int level) {
+		File levelDir = getLevelDir(basePath, new TileIndex(level, 0, 0));
+		File[] columnDirs = levelDir.listFiles();
+		if (null != columnDirs) {
+			for (File columnDir: columnDirs) {
+				if (columnDir.isDirectory()) syncDirectory(columnDir);
+			}
+		}
+		syncDirectory(levelDir);
+	}
+
+	/*
+	 * Sync a directory, so files moved into it stay moved.
+	 */
+	static void syncDirectory (File directory) {
+		try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// Not all platforms allow directories to be opened; there, moves
+			// are as durable as the platform makes them.
+		}
+	}
+
+	// Parse a tile coordinate from a file or directory name, or null if it isn't one
+	private static Integer parseInt (String value) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Get the directory in which the given pyramid is stored.
+	 */
+	public File getPyramidDirectory (String basePath) {
+		return new File(_rootPath + basePath);
+	}
+
 	private File getLevelDir (String basePath, TileIndex tile) {
 		return new File(String.format("%s/" + PyramidIO.TILES_FOLDERNAME
 		                              + "/%d/",
@@ -177,7 +368,7 @@ public class FileSystemPyramidSource implements PyramidSource {
 		                              tile.getLevel(), tile.getX() ));
 	}
 
-	private File getTileFile (String basePath, TileIndex tile) {
+	File getTileFile (String basePath, TileIndex tile) {
 		return new File(String.format("%s/" + PyramidIO.TILES_FOLDERNAME
 		                              + "/%d/%d/%d." + _extension,
 		                              _rootPath + basePath,
@@ -187,5 +378,73 @@ public class FileSystemPyramidSource implements PyramidSource {
 	private File getMetaDataFile (String basePath) {
 		return new File(_rootPath + basePath+"/"+PyramidIO.METADATA_FILENAME);
 	}
-    
+
+
+
+	/*
+	 * Tile existence indices, built by listing the tile directories
+	 */
+	private class ExistenceIndices extends TileExistenceIndexManager {
+		@Override
+		protected String readMetaData (String basePath) throws IOException {
+			return FileSystemPyramidSource.this.readMetaData(basePath);
+		}
+
+		@Override
+		protected TileExistenceIndex readStoredIndex (String basePath) throws IOException {
+			File indexFile = new File(getPyramidDirectory(basePath), EXISTENCE_INDEX_FILENAME);
+			if (!indexFile.isFile()) return null;
+			InputStream stream = new BufferedInputStream(new FileInputStream(indexFile));
+			try {
+				return TileExistenceIndex.read(stream);
+			} finally {
+				stream.close();
+			}
+		}
+
+		@Override
+		protected void storeIndex (String basePath, TileExistenceIndex index) throws IOException {
+			File indexFile = new File(getPyramidDirectory(basePath), EXISTENCE_INDEX_FILENAME);
+			File tempFile = new File(indexFile.getPath()+"."+Thread.currentThread().getId()+".tmp");
+			boolean moved = false;
+			try {
+				OutputStream stream = new BufferedOutputStream(new FileOutputStream(tempFile));
+				try {
+					index.write(stream);
+				} finally {
+					stream.close();
+				}
+				moveIntoPlace(tempFile, indexFile);
+				moved = true;
+			} finally {
+				if (!moved) tempFile.delete();
+			}
+		}
+
+		@Override
+		protected void addTiles (String basePath, TileExistenceIndex.Builder builder) throws IOException {
+			File tilesDir = new File(getPyramidDirectory(basePath), PyramidIO.TILES_FOLDERNAME);
+			String suffix = "." + _extension;
+			File[] levelDirs = tilesDir.listFiles();
+			if (null == levelDirs) return;
+			for (File levelDir: levelDirs) {
+				Integer level = parseInt(levelDir.getName());
+				if (null == level) continue;
+				File[] xDirs = levelDir.listFiles();
+				if (null == xDirs) continue;
+				for (File xDir: xDirs) {
+					Integer x = parseInt(xDir.getName());
+					if (null == x) continue;
+					String[] tileFiles = xDir.list();
+					if (null == tileFiles) continue;
+					for (String tileFile: tileFiles) {
+						if (!tileFile.endsWith(suffix)) continue;
+						Integer y = parseInt(tileFile.substring(0, tileFile.length() - suffix.length()));
+						if (null != y) builder.add(level, x, y);
+					}
+				}
+			}
+		}
+
+	}
 }
@@ -32,29 +32,57 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HRegionLocation;
 import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.TableExistsException;
 import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import com.oculusinfo.binning.TileData;
 import com.oculusinfo.binning.TileIndex;
 import com.oculusinfo.binning.io.PyramidIO;
+import com.oculusinfo.binning.io.PyramidScanner;
+import com.oculusinfo.binning.io.TileExistenceIndex;
+import com.oculusinfo.binning.io.TileExistenceIndexProvider;
 import com.oculusinfo.binning.io.serialization.TileSerializer;
 
 //import org.apache.hadoop.hbase.TableName;
 
-public class HBasePyramidIO implements PyramidIO {
+public class HBasePyramidIO implements PyramidIO, PyramidScanner, TileExistenceIndexProvider {
+	private static final Logger LOGGER = Logger.getLogger(HBasePyramidIO.class);
+
 	private static final String META_DATA_INDEX      = "metadata";
 
+	/** The default number of threads used to read from different regions at once */
+	public static final int     DEFAULT_READ_THREADS = 8;
+	// The most idle table handles we keep for any one table
+	private static final int    MAX_POOLED_TABLES    = 16;
+	// Binary row keys are a level byte followed by an 8-byte Morton code
+	private static final int    BINARY_ROW_KEY_LENGTH = 9;
+
 	public static class HBaseColumn {
 		byte[] family;
 		byte[] qualifier;
@@ -73,31 +101,149 @@ public class HBasePyramidIO implements PyramidIO {
 	public static final HBaseColumn  TILE_COLUMN          = new HBaseColumn(TILE_FAMILY_NAME, EMPTY_BYTES);
 	private static final byte[]      METADATA_FAMILY_NAME = "metaData".getBytes();
 	public static final HBaseColumn  METADATA_COLUMN      = new HBaseColumn(METADATA_FAMILY_NAME, EMPTY_BYTES);
+	// The tile existence index is kept in the metadata row, next to the metadata
+	public static final HBaseColumn  EXISTENCE_INDEX_COLUMN = new HBaseColumn(METADATA_FAMILY_NAME, "tileExistence".getBytes());
 
 
 	private Configuration       _config;
 	private HBaseAdmin          _admin;
 	private HConnection         _connection;
+	// Idle table handles, by table name.  Table handles are not thread-safe,
+	// so each is used by one thread at a time, but they are reused.
+	private ConcurrentHashMap<String, ConcurrentLinkedQueue<HTableInterface>> _tablePool;
+	// Whether each table we've seen uses the old, string row keys
+	private ConcurrentHashMap<String, Boolean> _legacyRowKeys;
+	private ThreadPoolExecutor  _readExecutor;
+	// Null unless tile existence indices are enabled
+	private volatile TileExistenceIndexManager _existenceIndices;
 
 	public HBasePyramidIO (String zookeeperQuorum, String zookeeperPort, String hbaseMaster)
 		throws IOException {
+		this(zookeeperQuorum, zookeeperPort, hbaseMaster, DEFAULT_READ_THREADS);
+	}
 
+	/**
+	 * @param readThreads The maximum number of regions to read from at once
+	 *            when reading several tiles
+	 */
+	public HBasePyramidIO (String zookeeperQuorum, String zookeeperPort, String hbaseMaster, int readThreads)
+		throws IOException {
+		this(createConfiguration(zookeeperQuorum, zookeeperPort, hbaseMaster), readThreads);
+	}
+
+	private HBasePyramidIO (Configuration config, int readThreads) throws IOException {
+		this(config, new HBaseAdmin(config), HConnectionManager.createConnection(config), readThreads);
+	}
+
+	// Exposed for testing against a stand-in connection
+	HBasePyramidIO (Configuration config, HBaseAdmin admin, HConnection connection, int readThreads) {
+		_config = config;
+		_admin = admin;
+		_connection = connection;
+		_tablePool = new ConcurrentHashMap<>();
+		_legacyRowKeys = new ConcurrentHashMap<>();
+		_readExecutor = new ThreadPoolExecutor(readThreads, readThreads, 60L, TimeUnit.SECONDS,
+		                                       new LinkedBlockingQueue<Runnable>(), new ReadThreadFactory());
+		_readExecutor.allowCoreThreadTimeOut(true);
+		_existenceIndices = null;
+	}
+
+	private static Configuration createConfiguration (String zookeeperQuorum, String zookeeperPort, String hbaseMaster) {
 		Logger.getLogger("org.apache.zookeeper").setLevel(Level.WARN);
 		Logger.getLogger("org.apache.hadoop").setLevel(Level.WARN);
 
-		_config = HBaseConfiguration.create();
-		_config.set("hbase.zookeeper.quorum", zookeeperQuorum);
-		_config.set("hbase.zookeeper.property.clientPort", zookeeperPort);
-		_config.set("hbase.master", hbaseMaster);
-		_config.set("hbase.client.keyvalue.maxsize", "0");
-		_admin = new HBaseAdmin(_config);
-		_connection = HConnectionManager.createConnection(_config);
+		Configuration config = HBaseConfiguration.create();
+		config.set("hbase.zookeeper.quorum", zookeeperQuorum);
+		config.set("hbase.zookeeper.property.clientPort", zookeeperPort);
+		config.set("hbase.master", hbaseMaster);
+		config.set("hbase.client.keyvalue.maxsize", "0");
+		return config;
+	}
+
+	private static class ReadThreadFactory implements ThreadFactory {
+		private static final AtomicInteger POOL_NUMBER = new AtomicInteger(0);
+		private final int _pool = POOL_NUMBER.incrementAndGet();
+		private final AtomicInteger _thread = new AtomicInteger(0);
+
+		@Override
+		public Thread newThread (Runnable runnable) {
+			Thread thread = new Thread(runnable, "hbase-pyramid-read-"+_pool+"-"+_thread.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
 	}
 
 
 
 	/**
-	 * Determine the row ID we use in HBase for a given tile index
+	 * Determine the binary row key we use in HBase for a given tile index.
+	 *
+	 * Keys are the tile level, followed by the Morton (Z-order) code of the
+	 * tile's x and y coordinates, so tiles that are near each other on a level
+	 * are near each other in the table - and usually in the same region.
+	 */
+	public static byte[] rowKeyFromTileIndex (TileIndex tile) {
+		long code = spreadBits(tile.getX()) | (spreadBits(tile.getY()) << 1);
+		byte[] key = new byte[BINARY_ROW_KEY_LENGTH];
+		key[0] = (byte) tile.getLevel();
+		for (int i = 8; i > 0; --i) {
+			key[i] = (byte) code;
+			code >>>= 8;
+		}
+		return key;
+	}
+
+	/**
+	 * Determine the tile index for a row key, in either the binary format or
+	 * the older string format.
+	 */
+	public static TileIndex tileIndexFromRowKey (byte[] rowKey) {
+		if (!isBinaryRowKey(rowKey)) {
+			return tileIndexFromRowId(new String(rowKey));
+		}
+		long code = 0L;
+		for (int i = 1; i < BINARY_ROW_KEY_LENGTH; ++i) {
+			code = (code << 8) | (rowKey[i] & 0xff);
+		}
+		return new TileIndex(rowKey[0], compactBits(code), compactBits(code >>> 1));
+	}
+
+	/**
+	 * Determine if a row key is in the binary format, as opposed to the older
+	 * string format.  String keys always start with a digit, and are never
+	 * the length of a binary key; binary keys start with a level, well below
+	 * the first digit.
+	 */
+	public static boolean isBinaryRowKey (byte[] rowKey) {
+		return BINARY_ROW_KEY_LENGTH == rowKey.length && (rowKey[0] & 0xff) < '0';
+	}
+
+	// Spread the bits of a non-negative int out into the even bits of a long
+	private static long spreadBits (int value) {
+		long v = value & 0xffffffffL;
+		v = (v | (v << 16)) & 0x0000ffff0000ffffL;
+		v = (v | (v << 8))  & 0x00ff00ff00ff00ffL;
+		v = (v | (v << 4))  & 0x0f0f0f0f0f0f0f0fL;
+		v = (v | (v << 2))  & 0x3333333333333333L;
+		v = (v | (v << 1))  & 0x5555555555555555L;
+		return v;
+	}
+
+	// The inverse of spreadBits
+	private static int compactBits (long value) {
+		long v = value & 0x5555555555555555L;
+		v = (v | (v >>> 1))  & 0x3333333333333333L;
+		v = (v | (v >>> 2))  & 0x0f0f0f0f0f0f0f0fL;
+		v = (v | (v >>> 4))  & 0x00ff00ff00ff00ffL;
+		v = (v | (v >>> 8))  & 0x0000ffff0000ffffL;
+		v = (v | (v >>> 16)) & 0x00000000ffffffffL;
+		return (int) v;
+	}
+
+	/**
+	 * Determine the row ID used in HBase for a given tile index in the older,
+	 * string row key format.  Tables written in this format are still read
+	 * and written in it; new tables use {@link #rowKeyFromTileIndex(TileIndex)}.
 	 */
 	public static String rowIdFromTileIndex (TileIndex tile) {
 		// Use the minimum possible number of digits for the tile key
@@ -107,7 +253,7 @@ public class HBasePyramidIO implements PyramidIO {
 	}
 
 	/**
-	 * Determine tile index given a row id
+	 * Determine tile index given a row id in the older, string row key format
 	 */
 	public static TileIndex tileIndexFromRowId (String rowId) {
 		String[] fields = rowId.split(",");
@@ -121,7 +267,49 @@ public class HBasePyramidIO implements PyramidIO {
 	 * Close down this pyramid IO
 	 */
 	public void close () throws IOException {
-		_admin.close();
+		setTileExistenceIndexEnabled(false);
+		_readExecutor.shutdown();
+		for (ConcurrentLinkedQueue<HTableInterface> tables: _tablePool.values()) {
+			HTableInterface table;
+			while (null != (table = tables.poll())) {
+				table.close();
+			}
+		}
+		if (null != _admin) _admin.close();
+		_connection.close();
+	}
+
+
+	/**
+	 * Turn on or off the use of tile existence indices, with which reads of
+	 * missing tiles are answered without going to HBase. A table's index is
+	 * built the first time it's needed by scanning the table's row keys, and
+	 * is then stored in the table's metadata row for later use.
+	 */
+	public void setTileExistenceIndexEnabled (boolean enabled) {
+		if (enabled && null == _existenceIndices) {
+			_existenceIndices = new ExistenceIndices();
+		} else if (!enabled && null != _existenceIndices) {
+			_existenceIndices.shutdown();
+			_existenceIndices = null;
+		}
+	}
+
+	@Override
+	public TileExistenceIndex getTileExistenceIndex (String tableName) {
+		TileExistenceIndexManager indices = _existenceIndices;
+		if (null == indices) return null;
+		return indices.getIndex(tableName);
+	}
+
+	// Exposed for testing
+	TileExistenceIndexManager getExistenceIndices () {
+		return _existenceIndices;
+	}
+
+	private void invalidateExistenceIndex (String tableName) {
+		TileExistenceIndexManager indices = _existenceIndices;
+		if (null != indices) indices.invalidate(tableName);
 	}
 
 
@@ -134,13 +322,79 @@ public class HBasePyramidIO implements PyramidIO {
 
 
 	/*
-	 * Gets an existing table (without creating it)
+	 * Gets an existing table (without creating it), reusing an idle handle
+	 * if there is one.  The table must be given back with returnTable when
+	 * the caller is done with it.
 	 */
 	private HTableInterface getTable (String tableName) throws IOException {
-
+		ConcurrentLinkedQueue<HTableInterface> pool = _tablePool.get(tableName);
+		if (null != pool) {
+			HTableInterface table = pool.poll();
+			if (null != table) return table;
+		}
 		return _connection.getTable( tableName );
 	}
 
+	/*
+	 * Gives back a table handle gotten from getTable, for reuse.
+	 */
+	private void returnTable (String tableName, HTableInterface table) throws IOException {
+		ConcurrentLinkedQueue<HTableInterface> pool = _tablePool.get(tableName);
+		if (null == pool) {
+			pool = new ConcurrentLinkedQueue<>();
+			ConcurrentLinkedQueue<HTableInterface> existing = _tablePool.putIfAbsent(tableName, pool);
+			if (null != existing) pool = existing;
+		}
+		// Slightly racy, but this only bounds how many idle handles we keep
+		if (pool.size() < MAX_POOLED_TABLES) {
+			pool.offer(table);
+		} else {
+			table.close();
+		}
+	}
+
+	/**
+	 * Determine whether a table uses the older, string row key format.  An
+	 * existing table's format is taken from its first tile row; binary keys
+	 * sort before any string key, so if there are any binary rows, the first
+	 * one will be.  Empty and new tables use binary keys.
+	 */
+	public boolean usesLegacyRowKeys (String tableName) throws IOException {
+		Boolean legacy = _legacyRowKeys.get(tableName);
+		if (null == legacy) {
+			legacy = false;
+			HTableInterface table = getTable(tableName);
+			try {
+				Scan scan = new Scan();
+				scan.addFamily(TILE_FAMILY_NAME);
+				scan.setFilter(new FirstKeyOnlyFilter());
+				scan.setCaching(1);
+				ResultScanner scanner = table.getScanner(scan);
+				try {
+					Result first = scanner.next();
+					if (null != first && !isBinaryRowKey(first.getRow())) {
+						legacy = true;
+					}
+				} finally {
+					scanner.close();
+				}
+			} finally {
+				returnTable(tableName, table);
+			}
+			_legacyRowKeys.put(tableName, legacy);
+		}
+		return legacy;
+	}
+
+	/*
+	 * Get the row key for a tile in a given table, in whichever format that
+	 * table uses.
+	 */
+	private byte[] getRowKey (boolean legacy, TileIndex tile) {
+		if (legacy) return rowIdFromTileIndex(tile).getBytes();
+		else return rowKeyFromTileIndex(tile);
+	}
+
 	/*
 	 * Given a put request (a request to put data into a table), add a single
 	 * entry into the request
@@ -161,9 +415,9 @@ public class HBasePyramidIO implements PyramidIO {
 	 * @return The put request - the same as is passed in, or a new request if
 	 *         none was passed in.
 	 */
-	private Put addToPut (Put existingPut, String rowId, HBaseColumn column, byte[] data) {
+	private Put addToPut (Put existingPut, byte[] rowId, HBaseColumn column, byte[] data) {
 		if (null == existingPut) {
-			existingPut = new Put(rowId.getBytes());
+			existingPut = new Put(rowId);
 		}
 
 		existingPut.add(column.family, column.qualifier, data);
@@ -181,9 +435,12 @@ public class HBasePyramidIO implements PyramidIO {
 	 */
 	private void writeRows (String tableName, List<Row> rows) throws InterruptedException, IOException {
 		HTableInterface table = getTable(tableName);
-		table.batch(rows);
-		table.flushCommits();
-		table.close();
+		try {
+			table.batch(rows);
+			table.flushCommits();
+		} finally {
+			returnTable(tableName, table);
+		}
 	}
 
 	private Map<HBaseColumn, byte[]> decodeRawResult (Result row, HBaseColumn[] columns) {
@@ -200,6 +457,10 @@ public class HBasePyramidIO implements PyramidIO {
 	/*
 	 * Read several rows of data.
 	 * 
+	 * Rows are grouped by the region holding them, and each region's rows are
+	 * read with a single batch get; when more than one region is involved,
+	 * the regions are read in parallel.
+	 * 
 	 * @param table
 	 *            The table to read
 	 * @param rows
@@ -211,24 +472,86 @@ public class HBasePyramidIO implements PyramidIO {
 	 *         the map. Rows which returned no data have a null instead of a
 	 *         map.
 	 */
-	private List<Map<HBaseColumn, byte[]>> readRows (String tableName, List<String> rows, HBaseColumn... columns) throws IOException {
-		HTableInterface table = getTable(tableName);
+	private List<Map<HBaseColumn, byte[]>> readRows (final String tableName, List<byte[]> rows, final HBaseColumn... columns) throws IOException {
+		final Result[] results = new Result[rows.size()];
+
+		// Group our gets by region, remembering where each goes in the output
+		Map<String, List<Integer>> rowsByRegion = new LinkedHashMap<>();
+		byte[] tableNameBytes = tableName.getBytes();
+		for (int i = 0, n = rows.size(); i < n; ++i) {
+			String region = "";
+			if (n > 1) {
+				HRegionLocation location = _connection.locateRegion(tableNameBytes, rows.get(i));
+				if (null != location) region = location.getRegionInfo().getRegionNameAsString();
+			}
+			List<Integer> regionRows = rowsByRegion.get(region);
+			if (null == regionRows) {
+				regionRows = new ArrayList<>();
+				rowsByRegion.put(region, regionRows);
+			}
+			regionRows.add(i);
+		}
 
-		List<Get> gets = new ArrayList<Get>(rows.size());
-		for (String rowId: rows) {
-			Get get = new Get(rowId.getBytes());
-			for (HBaseColumn column: columns) {
-				get.addColumn(column.family, column.qualifier);
+		List<Callable<Void>> reads = new ArrayList<>(rowsByRegion.size());
+		for (final List<Integer> regionRows: rowsByRegion.values()) {
+			final List<Get> gets = new ArrayList<Get>(regionRows.size());
+			for (int i: regionRows) {
+				Get get = new Get(rows.get(i));
+				for (HBaseColumn column: columns) {
+					get.addColumn(column.family, column.qualifier);
+				}
+				gets.add(get);
+			}
+			reads.add(new Callable<Void>() {
+				@Override
+				public Void call () throws IOException {
+					HTableInterface table = getTable(tableName);
+					try {
+						Result[] regionResults = table.get(gets);
+						for (int i = 0; i < regionResults.length; ++i) {
+							results[regionRows.get(i)] = regionResults[i];
+						}
+					} finally {
+						returnTable(tableName, table);
+					}
+					return null;
+				}
+			});
+		}
+
+		if (1 == reads.size()) {
+			// Not worth handing off to another thread
+			try {
+				reads.get(0).call();
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+		} else {
+			List<Future<Void>> futures = new ArrayList<>(reads.size());
+			for (Callable<Void> read: reads) {
+				futures.add(_readExecutor.submit(read));
+			}
+			try {
+				for (Future<Void> future: futures) {
+					future.get();
+				}
+			} catch (InterruptedException e) {
+				for (Future<Void> future: futures) future.cancel(true);
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted reading from table "+tableName, e);
+			} catch (ExecutionException e) {
+				for (Future<Void> future: futures) future.cancel(true);
+				if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+				throw new IOException("Error reading from table "+tableName, e.getCause());
 			}
-			gets.add(get);
 		}
 
-		Result[] results = table.get(gets);
 		List<Map<HBaseColumn, byte[]>> allResults = new ArrayList<Map<HBaseColumn,byte[]>>(rows.size());
 		for (Result result: results) {
 			allResults.add(decodeRawResult(result, columns));
 		}
-		table.close();
 		return allResults;
 	}
 
@@ -236,6 +559,21 @@ public class HBasePyramidIO implements PyramidIO {
 
 	@Override
 	public void initializeForWrite (String tableName) throws IOException {
+		initializeForWrite(tableName, null);
+	}
+
+	/**
+	 * Create a table, if it doesn't exist yet, split into regions from the
+	 * start.  Tables written all at once (as by a bulk load) should be
+	 * created this way, so the write is spread over the cluster from the
+	 * beginning, instead of waiting for a single region to fill and split.
+	 * 
+	 * @param splitKeys The start keys of all regions but the first, in
+	 *            order, or null to create the table as a single region.
+	 *            Ignored if the table already exists.
+	 */
+	public void initializeForWrite (String tableName, byte[][] splitKeys) throws IOException {
+		invalidateExistenceIndex(tableName);
 		if ( !_admin.tableExists(tableName) ) {
 			try {
 				HTableDescriptor tableDesc = new HTableDescriptor(tableName);          
@@ -243,23 +581,37 @@ public class HBasePyramidIO implements PyramidIO {
 				tableDesc.addFamily(metadataFamily);
 				HColumnDescriptor tileFamily = new HColumnDescriptor(TILE_FAMILY_NAME);
 				tableDesc.addFamily(tileFamily);
-				_admin.createTable(tableDesc);
-			} catch (Exception e) {
-				e.printStackTrace();
+				if (null == splitKeys || 0 == splitKeys.length) {
+					_admin.createTable(tableDesc);
+				} else {
+					_admin.createTable(tableDesc, splitKeys);
+				}
+			} catch (TableExistsException e) {
+				// Created by another writer since we checked - nothing left to do
+			} catch (IOException e) {
+				throw new IOException("Error creating table "+tableName, e);
 			}
-			
 		}
 	}
 
+	/**
+	 * Determine if a table exists.
+	 */
+	public boolean tableExists (String tableName) throws IOException {
+		return _admin.tableExists(tableName);
+	}
+
 	@Override
 	public <T> void writeTiles (String tableName, TileSerializer<T> serializer,
 	                            Iterable<TileData<T>> data) throws IOException {
+		invalidateExistenceIndex(tableName);
+		boolean legacy = usesLegacyRowKeys(tableName);
 		List<Row> rows = new ArrayList<Row>();
 		for (TileData<T> tile: data) {
 			ByteArrayOutputStream baos = new ByteArrayOutputStream();
 			serializer.serialize(tile, baos);
 
-			rows.add(addToPut(null, rowIdFromTileIndex(tile.getDefinition()),
+			rows.add(addToPut(null, getRowKey(legacy, tile.getDefinition()),
 			                  TILE_COLUMN, baos.toByteArray()));
 		}
 		try {
@@ -271,9 +623,10 @@ public class HBasePyramidIO implements PyramidIO {
 
 	@Override
 	public void writeMetaData (String tableName, String metaData) throws IOException {
+		invalidateExistenceIndex(tableName);
 		try {
 			List<Row> rows = new ArrayList<Row>();
-			rows.add(addToPut(null, META_DATA_INDEX, METADATA_COLUMN, metaData.getBytes()));
+			rows.add(addToPut(null, META_DATA_INDEX.getBytes(), METADATA_COLUMN, metaData.getBytes()));
 			Put put = new Put(META_DATA_INDEX.getBytes());
 			put.add(METADATA_FAMILY_NAME, EMPTY_BYTES, metaData.getBytes());
 			writeRows(tableName, rows);
@@ -286,8 +639,8 @@ public class HBasePyramidIO implements PyramidIO {
 	public void initializeForRead(String pyramidId, int width, int height, Properties dataDescription) {
 		try {
 			initializeForWrite( pyramidId );
-		} catch (Exception e) {
-			e.printStackTrace();
+		} catch (IOException e) {
+			LOGGER.warn("Error initializing table "+pyramidId+" for read", e);
 		}
 	}
 
@@ -295,9 +648,16 @@ public class HBasePyramidIO implements PyramidIO {
 	public <T> List<TileData<T>> readTiles (String tableName,
 	                                        TileSerializer<T> serializer,
 	                                        Iterable<TileIndex> tiles) throws IOException {
-		List<String> rowIds = new ArrayList<String>();
+		TileExistenceIndex existenceIndex = getTileExistenceIndex(tableName);
+		if (null != existenceIndex) {
+			tiles = existenceIndex.filter(tiles);
+			if (!tiles.iterator().hasNext()) return new LinkedList<TileData<T>>();
+		}
+
+		boolean legacy = usesLegacyRowKeys(tableName);
+		List<byte[]> rowIds = new ArrayList<byte[]>();
 		for (TileIndex tile: tiles) {
-			rowIds.add(rowIdFromTileIndex(tile));
+			rowIds.add(getRowKey(legacy, tile));
 		}
         
 		List<Map<HBaseColumn, byte[]>> rawResults = readRows(tableName, rowIds, TILE_COLUMN);
@@ -318,6 +678,7 @@ public class HBasePyramidIO implements PyramidIO {
 			}
 		}
 
+		if (null != existenceIndex) existenceIndex.recordFalsePositives(rowIds.size() - results.size());
 		return results;
 	}
 
@@ -325,8 +686,11 @@ public class HBasePyramidIO implements PyramidIO {
 	public <T> InputStream getTileStream (String tableName,
 	                                      TileSerializer<T> serializer,
 	                                      TileIndex tile) throws IOException {
-		List<String> rowIds = new ArrayList<String>();
-		rowIds.add(rowIdFromTileIndex(tile));
+		TileExistenceIndex existenceIndex = getTileExistenceIndex(tableName);
+		if (null != existenceIndex && !existenceIndex.shouldRead(tile)) return null;
+
+		List<byte[]> rowIds = new ArrayList<byte[]>();
+		rowIds.add(getRowKey(usesLegacyRowKeys(tableName), tile));
         
 		List<Map<HBaseColumn, byte[]>> rawResults = readRows(tableName, rowIds, TILE_COLUMN);
 		Iterator<Map<HBaseColumn, byte[]>> iData = rawResults.iterator();
@@ -339,12 +703,52 @@ public class HBasePyramidIO implements PyramidIO {
 			}
 		}
 
+		if (null != existenceIndex) existenceIndex.recordFalsePositives(1);
 		return null;
 	}
 
+	/**
+	 * Scan one level of a table with a single range scan.  Both row key
+	 * formats sort by level first, so the rows of a level are contiguous.
+	 */
+	@Override
+	public void scanLevel (String tableName, int level, SerializedTileHandler handler) throws IOException {
+		byte[] startRow;
+		byte[] stopRow;
+		if (usesLegacyRowKeys(tableName)) {
+			// "LL,x,y" - ',' is immediately followed by '-'
+			startRow = String.format("%02d,", level).getBytes();
+			stopRow = String.format("%02d-", level).getBytes();
+		} else {
+			startRow = new byte[] {(byte) level};
+			stopRow = new byte[] {(byte) (level + 1)};
+		}
+
+		HTableInterface table = getTable(tableName);
+		try {
+			Scan scan = new Scan(startRow, stopRow);
+			scan.addColumn(TILE_COLUMN.family, TILE_COLUMN.qualifier);
+			scan.setCaching(100);
+			// A bulk scan shouldn't push hot tiles out of the block cache
+			scan.setCacheBlocks(false);
+			ResultScanner scanner = table.getScanner(scan);
+			try {
+				Result row;
+				while (null != (row = scanner.next())) {
+					byte[] data = row.getValue(TILE_COLUMN.family, TILE_COLUMN.qualifier);
+					if (null != data) handler.handleTile(tileIndexFromRowKey(row.getRow()), data);
+				}
+			} finally {
+				scanner.close();
+			}
+		} finally {
+			returnTable(tableName, table);
+		}
+	}
+
 	@Override
 	public String readMetaData (String tableName) throws IOException {
-		List<Map<HBaseColumn, byte[]>> rawData = readRows(tableName, Collections.singletonList(META_DATA_INDEX), METADATA_COLUMN);
+		List<Map<HBaseColumn, byte[]>> rawData = readRows(tableName, Collections.singletonList(META_DATA_INDEX.getBytes()), METADATA_COLUMN);
 
 		if (null == rawData) return null;
 		if (rawData.isEmpty()) return null;
@@ -356,24 +760,28 @@ public class HBasePyramidIO implements PyramidIO {
 	
 	@Override
 	public void removeTiles (String tableName, Iterable<TileIndex> tiles) throws IOException {
-    	
-		List<String> rowIds = new ArrayList<>();
+		invalidateExistenceIndex(tableName);
+		boolean legacy = usesLegacyRowKeys(tableName);
+		List<byte[]> rowIds = new ArrayList<>();
 		for (TileIndex tile: tiles) {
-			rowIds.add( rowIdFromTileIndex( tile ) );
+			rowIds.add( getRowKey( legacy, tile ) );
 		}        
 		deleteRows(tableName, rowIds, TILE_COLUMN);
 	}
 	
-	private void deleteRows (String tableName, List<String> rows, HBaseColumn... columns) throws IOException {
+	private void deleteRows (String tableName, List<byte[]> rows, HBaseColumn... columns) throws IOException {
 
 		HTableInterface table = getTable(tableName);
-		List<Delete> deletes = new LinkedList<Delete>();
-		for (String rowId: rows) {
-			Delete delete = new Delete(rowId.getBytes());
-			deletes.add(delete);
+		try {
+			List<Delete> deletes = new LinkedList<Delete>();
+			for (byte[] rowId: rows) {
+				Delete delete = new Delete(rowId);
+				deletes.add(delete);
+			}
+			table.delete(deletes);
+		} finally {
+			returnTable(tableName, table);
 		}
-		table.delete(deletes);
-		table.close();
 	}
 	
 	public void dropTable( String tableName ) {
@@ -382,6 +790,77 @@ public class HBasePyramidIO implements PyramidIO {
 			_admin.disableTable( /*TableName.valueOf(*/ tableName /*)*/ );
 			_admin.deleteTable( /*TableName.valueOf(*/ tableName /*)*/ );
 		} catch (Exception e) {}
+		invalidateExistenceIndex( tableName );
+		_legacyRowKeys.remove( tableName );
+		ConcurrentLinkedQueue<HTableInterface> pool = _tablePool.remove( tableName );
+		if (null != pool) {
+			for (HTableInterface table: pool) {
+				try {
+					table.close();
+				} catch (IOException e) {}
+			}
+		}
  	
 	}
+
+
+
+	/*
+	 * Tile existence indices, built by scanning the row keys of a table, and
+	 * stored in its metadata row.
+	 */
+	private class ExistenceIndices extends TileExistenceIndexManager {
+		@Override
+		protected String readMetaData (String tableName) throws IOException {
+			return HBasePyramidIO.this.readMetaData(tableName);
+		}
+
+		@Override
+		protected TileExistenceIndex readStoredIndex (String tableName) throws IOException {
+			List<Map<HBaseColumn, byte[]>> rawData = readRows(tableName, Collections.singletonList(META_DATA_INDEX.getBytes()), EXISTENCE_INDEX_COLUMN);
+			if (rawData.isEmpty() || null == rawData.get(0)) return null;
+			byte[] rawIndex = rawData.get(0).get(EXISTENCE_INDEX_COLUMN);
+			if (null == rawIndex) return null;
+			return TileExistenceIndex.read(new ByteArrayInputStream(rawIndex));
+		}
+
+		@Override
+		protected void storeIndex (String tableName, TileExistenceIndex index) throws IOException {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			index.write(baos);
+			List<Row> rows = new ArrayList<Row>();
+			rows.add(addToPut(null, META_DATA_INDEX.getBytes(), EXISTENCE_INDEX_COLUMN, baos.toByteArray()));
+			try {
+				writeRows(tableName, rows);
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted storing tile existence index", e);
+			}
+		}
+
+		@Override
+		protected void addTiles (String tableName, TileExistenceIndex.Builder builder) throws IOException {
+			HTableInterface table = getTable(tableName);
+			try {
+				Scan scan = new Scan();
+				scan.addFamily(TILE_FAMILY_NAME);
+				// We only need the row keys
+				scan.setFilter(new FilterList(new FirstKeyOnlyFilter(), new KeyOnlyFilter()));
+				scan.setCaching(10000);
+				scan.setCacheBlocks(false);
+				ResultScanner scanner = table.getScanner(scan);
+				try {
+					Result row;
+					while (null != (row = scanner.next())) {
+						byte[] key = row.getRow();
+						TileIndex tile = isBinaryRowKey(key) ? tileIndexFromRowKey(key) : tileIndexFromRowId(new String(key));
+						if (null != tile) builder.add(tile);
+					}
+				} finally {
+					scanner.close();
+				}
+			} finally {
+				returnTable(tableName, table);
+			}
+		}
+	}
 }
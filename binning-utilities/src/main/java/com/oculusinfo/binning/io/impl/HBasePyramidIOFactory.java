@@ -27,6 +27,8 @@ package com.oculusinfo.binning.io.impl;
 import com.oculusinfo.binning.io.PyramidIO;
 import com.oculusinfo.factory.ConfigurableFactory;
 import com.oculusinfo.factory.SharedInstanceFactory;
+import com.oculusinfo.factory.properties.BooleanProperty;
+import com.oculusinfo.factory.properties.IntegerProperty;
 import com.oculusinfo.factory.properties.StringProperty;
 
 import org.slf4j.Logger;
@@ -48,6 +50,12 @@ public class HBasePyramidIOFactory extends SharedInstanceFactory<PyramidIO> {
 	public static StringProperty HBASE_MASTER = new StringProperty("hbase.master",
 		   "Only used if type=\"hbase\".  An HBase configuration parameter, this should match the similar value in hbase-site.xml.  There is no default for this property.",
 		   null);
+	public static IntegerProperty HBASE_READ_THREADS = new IntegerProperty("hbase.read.threads",
+		   "Only used if type=\"hbase\".  The number of threads used to read the regions of a multi-tile request in parallel.",
+		   HBasePyramidIO.DEFAULT_READ_THREADS);
+	public static BooleanProperty HBASE_EXISTENCE_INDEX = new BooleanProperty("hbase.existence.index",
+		   "Only used if type=\"hbase\".  If true, an index of which tiles exist is kept (and stored in each table's metadata row), so that requests for missing tiles don't go to HBase.  Building the index the first time requires a scan of the table's row keys.",
+		   false);
 	
 	public HBasePyramidIOFactory(ConfigurableFactory<?> parent, List<String> path) {
 		super("hbase", PyramidIO.class, parent, path);
@@ -55,6 +63,8 @@ public class HBasePyramidIOFactory extends SharedInstanceFactory<PyramidIO> {
 		addProperty(HBASE_ZOOKEEPER_QUORUM);
 		addProperty(HBASE_ZOKEEPER_PORT);
 		addProperty(HBASE_MASTER);
+		addProperty(HBASE_READ_THREADS);
+		addProperty(HBASE_EXISTENCE_INDEX);
 	}
 
 	@Override
@@ -63,7 +73,10 @@ public class HBasePyramidIOFactory extends SharedInstanceFactory<PyramidIO> {
 			String quorum = getPropertyValue(HBASE_ZOOKEEPER_QUORUM);
 			String port = getPropertyValue(HBASE_ZOKEEPER_PORT);
 			String master = getPropertyValue(HBASE_MASTER);
-			return new HBasePyramidIO(quorum, port, master);
+			int readThreads = getPropertyValue(HBASE_READ_THREADS);
+			HBasePyramidIO io = new HBasePyramidIO(quorum, port, master, readThreads);
+			io.setTileExistenceIndexEnabled(getPropertyValue(HBASE_EXISTENCE_INDEX));
+			return io;
 		}
 		catch (Exception e) {
 			LOGGER.error("Error trying to create HBasePyramidIO", e);
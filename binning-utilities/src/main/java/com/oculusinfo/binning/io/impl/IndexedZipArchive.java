@@ -0,0 +1,435 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.io.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.io.PyramidIO;
+
+
+
+/**
+ * A read-only zip archive of tile pyramids, indexed for fast concurrent tile
+ * lookup.
+ * 
+ * The central directory is read once, when the archive is opened, into flat
+ * primitive tables, with a hash table from tile index to entry for each
+ * pyramid in the archive. Entries are then read with positional reads of the
+ * underlying channel, so any number of threads can read at once without
+ * locking. Stored entries are returned as read; deflated entries are
+ * inflated with a per-thread inflater.
+ * 
+ * Zip64 archives are supported; encrypted entries, and compression methods
+ * other than stored and deflated, are not.
+ */
+class IndexedZipArchive implements Closeable {
+	private static final Charset UTF8                    = Charset.forName("UTF-8");
+
+	private static final int     LOCAL_HEADER_SIGNATURE  = 0x04034b50;
+	private static final int     CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int     END_SIGNATURE           = 0x06054b50;
+	private static final int     ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+	private static final int     ZIP64_END_SIGNATURE     = 0x06064b50;
+	private static final int     LOCAL_HEADER_SIZE       = 30;
+	private static final int     CENTRAL_HEADER_SIZE     = 46;
+	private static final int     END_SIZE                = 22;
+	private static final int     ZIP64_LOCATOR_SIZE      = 20;
+	private static final int     ZIP64_END_SIZE          = 56;
+	private static final int     ZIP64_EXTRA_ID          = 0x0001;
+	private static final long    MAX_INT32               = 0xffffffffL;
+
+	private static final int     STORED                  = 0;
+	private static final int     DEFLATED                = 8;
+
+	// Tiles with coordinates that fit in 29 bits get a packed primitive key
+	private static final int     COORDINATE_BITS         = 29;
+	private static final int     MAX_COORDINATE          = (1 << COORDINATE_BITS) - 1;
+
+	private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue () {
+			return new Inflater(true);
+		}
+	};
+	private static final ThreadLocal<byte[]>   SCRATCH  = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue () {
+			return new byte[1 << 16];
+		}
+	};
+
+
+
+	private final File                   _file;
+	private final FileChannel            _channel;
+	private final String                 _tileSuffix;
+	private final Map<String, TileTable> _tileTables;
+	// Non-tile entries (like metadata), and tiles that don't fit a table key
+	private final Map<String, Integer>   _namedEntries;
+	private final long[]                 _headerOffsets;
+	private final long[]                 _compressedSizes;
+	private final int[]                  _sizes;
+	private final int[]                  _methods;
+	// Distance from local header to data; 0 until first read
+	private final int[]                  _dataDeltas;
+	private int                          _entries;
+
+	IndexedZipArchive (File file, String tileExtension) throws IOException {
+		_file = file;
+		_tileSuffix = "." + tileExtension;
+		_tileTables = new HashMap<>();
+		_namedEntries = new HashMap<>();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		_channel = raf.getChannel();
+		try {
+			// Find the central directory
+			long fileSize = _channel.size();
+			int tailSize = (int) Math.min(fileSize, END_SIZE + 0xffff + ZIP64_LOCATOR_SIZE);
+			ByteBuffer tail = read(fileSize - tailSize, tailSize);
+			int end = -1;
+			for (int i = tailSize - END_SIZE; i >= 0; --i) {
+				if (END_SIGNATURE == tail.getInt(i)) {
+					end = i;
+					break;
+				}
+			}
+			if (end < 0) throw new IOException(file+" is not a zip file");
+
+			long entryCount = tail.getShort(end + 10) & 0xffff;
+			long directorySize = tail.getInt(end + 12) & MAX_INT32;
+			long directoryOffset = tail.getInt(end + 16) & MAX_INT32;
+			if (end >= ZIP64_LOCATOR_SIZE && ZIP64_LOCATOR_SIGNATURE == tail.getInt(end - ZIP64_LOCATOR_SIZE)) {
+				ByteBuffer zip64End = read(tail.getLong(end - ZIP64_LOCATOR_SIZE + 8), ZIP64_END_SIZE);
+				if (ZIP64_END_SIGNATURE != zip64End.getInt(0)) throw new IOException("Bad zip64 end record in "+file);
+				entryCount = zip64End.getLong(32);
+				directorySize = zip64End.getLong(40);
+				directoryOffset = zip64End.getLong(48);
+			}
+			if (entryCount > Integer.MAX_VALUE) throw new IOException("Too many entries in "+file);
+
+			int capacity = (int) entryCount;
+			_headerOffsets = new long[capacity];
+			_compressedSizes = new long[capacity];
+			_sizes = new int[capacity];
+			_methods = new int[capacity];
+			_dataDeltas = new int[capacity];
+			_entries = 0;
+
+			ByteBuffer directory = _channel.map(FileChannel.MapMode.READ_ONLY, directoryOffset, directorySize);
+			directory.order(ByteOrder.LITTLE_ENDIAN);
+			int position = 0;
+			for (long n = 0; n < entryCount; ++n) {
+				position = readCentralHeader(directory, position);
+			}
+		} catch (IOException|RuntimeException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/*
+	 * Read one central directory header into our tables, returning the
+	 * position of the next.
+	 */
+	private int readCentralHeader (ByteBuffer directory, int position) throws IOException {
+		if (CENTRAL_HEADER_SIGNATURE != directory.getInt(position)) throw new IOException("Bad central directory in "+_file);
+		int flags = directory.getShort(position + 8) & 0xffff;
+		int method = directory.getShort(position + 10) & 0xffff;
+		long compressedSize = directory.getInt(position + 20) & MAX_INT32;
+		long size = directory.getInt(position + 24) & MAX_INT32;
+		int nameLength = directory.getShort(position + 28) & 0xffff;
+		int extraLength = directory.getShort(position + 30) & 0xffff;
+		int commentLength = directory.getShort(position + 32) & 0xffff;
+		long headerOffset = directory.getInt(position + 42) & MAX_INT32;
+
+		byte[] rawName = new byte[nameLength];
+		ByteBuffer nameBuffer = directory.duplicate();
+		nameBuffer.position(position + CENTRAL_HEADER_SIZE);
+		nameBuffer.get(rawName);
+		String name = new String(rawName, UTF8);
+
+		// Zip64 sizes and offsets, for those fields that overflowed
+		int extra = position + CENTRAL_HEADER_SIZE + nameLength;
+		int extraEnd = extra + extraLength;
+		while (extra + 4 <= extraEnd) {
+			int id = directory.getShort(extra) & 0xffff;
+			int length = directory.getShort(extra + 2) & 0xffff;
+			if (ZIP64_EXTRA_ID == id) {
+				int field = extra + 4;
+				if (MAX_INT32 == size) { size = directory.getLong(field); field += 8; }
+				if (MAX_INT32 == compressedSize) { compressedSize = directory.getLong(field); field += 8; }
+				if (MAX_INT32 == headerOffset) { headerOffset = directory.getLong(field); }
+			}
+			extra += 4 + length;
+		}
+
+		if (!name.endsWith("/") && 0 == (flags & 1) && size <= Integer.MAX_VALUE) {
+			int entry = _entries++;
+			_headerOffsets[entry] = headerOffset;
+			_compressedSizes[entry] = compressedSize;
+			_sizes[entry] = (int) size;
+			_methods[entry] = method;
+			indexEntry(name, entry);
+		}
+
+		return extraEnd + commentLength;
+	}
+
+	/*
+	 * Record an entry, under its tile index if it's a tile.
+	 */
+	private void indexEntry (String name, int entry) {
+		String tilesFolder = "/" + PyramidIO.TILES_FOLDERNAME + "/";
+		int tilesStart = name.lastIndexOf(tilesFolder);
+		if (tilesStart >= 0 && name.endsWith(_tileSuffix)) {
+			String[] coordinates = name.substring(tilesStart + tilesFolder.length(), name.length() - _tileSuffix.length()).split("/");
+			if (3 == coordinates.length) {
+				try {
+					int level = Integer.parseInt(coordinates[0]);
+					int x = Integer.parseInt(coordinates[1]);
+					int y = Integer.parseInt(coordinates[2]);
+					long key = tileKey(level, x, y);
+					if (key >= 0) {
+						String basePath = name.substring(0, tilesStart);
+						TileTable table = _tileTables.get(basePath);
+						if (null == table) {
+							table = new TileTable();
+							_tileTables.put(basePath, table);
+						}
+						table.put(key, entry);
+						return;
+					}
+				} catch (NumberFormatException e) {
+					// Not a tile after all
+				}
+			}
+		}
+		_namedEntries.put(name, entry);
+	}
+
+	private static long tileKey (int level, int x, int y) {
+		if (level < 0 || level > 31 || x < 0 || x > MAX_COORDINATE || y < 0 || y > MAX_COORDINATE) return -1L;
+		return ((long) level) << (2 * COORDINATE_BITS) | ((long) x) << COORDINATE_BITS | y;
+	}
+
+	/** The number of tiles and other files in this archive */
+	int size () {
+		return _entries;
+	}
+
+	boolean isOpen () {
+		return _channel.isOpen();
+	}
+
+	/**
+	 * Get the contents of a tile.
+	 * 
+	 * @return A stream of the tile's contents, or null if the tile isn't in
+	 *         the archive
+	 */
+	InputStream getTileStream (String basePath, TileIndex tile) throws IOException {
+		int entry = -1;
+		long key = tileKey(tile.getLevel(), tile.getX(), tile.getY());
+		if (key >= 0) {
+			TileTable table = _tileTables.get(basePath);
+			if (null != table) entry = table.get(key);
+		} else {
+			String name = String.format("%s/"+PyramidIO.TILES_FOLDERNAME+"/%d/%d/%d%s", basePath,
+			                            tile.getLevel(), tile.getX(), tile.getY(), _tileSuffix);
+			Integer named = _namedEntries.get(name);
+			if (null != named) entry = named;
+		}
+		if (entry < 0) return null;
+		return new ByteArrayInputStream(readEntry(entry));
+	}
+
+	/**
+	 * Get the contents of a file in the archive that isn't a tile.
+	 * 
+	 * @return A stream of the file's contents, or null if there is no such
+	 *         file
+	 */
+	InputStream getEntryStream (String name) throws IOException {
+		Integer entry = _namedEntries.get(name);
+		if (null == entry) return null;
+		return new ByteArrayInputStream(readEntry(entry));
+	}
+
+	private byte[] readEntry (int entry) throws IOException {
+		int delta = _dataDeltas[entry];
+		if (0 == delta) {
+			// Local headers can have different extra fields than the central
+			// directory, so we have to read it to know where the data starts.
+			// An int write is atomic, so racing threads at worst both read it.
+			ByteBuffer header = read(_headerOffsets[entry], LOCAL_HEADER_SIZE);
+			if (LOCAL_HEADER_SIGNATURE != header.getInt(0)) throw new IOException("Bad local header in "+_file);
+			delta = LOCAL_HEADER_SIZE + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+			_dataDeltas[entry] = delta;
+		}
+		long dataOffset = _headerOffsets[entry] + delta;
+		int size = _sizes[entry];
+		long compressedSize = _compressedSizes[entry];
+
+		switch (_methods[entry]) {
+		case STORED: {
+			byte[] data = new byte[size];
+			readFully(ByteBuffer.wrap(data), dataOffset);
+			return data;
+		}
+		case DEFLATED: {
+			if (compressedSize > Integer.MAX_VALUE) throw new IOException("Entry too large in "+_file);
+			byte[] compressed = SCRATCH.get();
+			if (compressed.length < compressedSize) {
+				compressed = new byte[(int) compressedSize];
+				SCRATCH.set(compressed);
+			}
+			readFully(ByteBuffer.wrap(compressed, 0, (int) compressedSize), dataOffset);
+			return inflate(compressed, (int) compressedSize, size);
+		}
+		default:
+			throw new IOException("Unsupported zip compression method "+_methods[entry]+" in "+_file);
+		}
+	}
+
+	private byte[] inflate (byte[] compressed, int compressedSize, int size) throws IOException {
+		Inflater inflater = INFLATER.get();
+		inflater.reset();
+		inflater.setInput(compressed, 0, compressedSize);
+		byte[] data = new byte[size];
+		int inflated = 0;
+		boolean paddedInput = false;
+		try {
+			while (inflated < size) {
+				int n = inflater.inflate(data, inflated, size - inflated);
+				if (0 == n) {
+					if (inflater.finished() || inflater.needsDictionary()) break;
+					if (inflater.needsInput()) {
+						// Raw inflation may want one byte past the end of the data
+						if (paddedInput) break;
+						inflater.setInput(new byte[1]);
+						paddedInput = true;
+					}
+				}
+				inflated += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt entry in "+_file, e);
+		}
+		if (inflated != size) throw new IOException("Corrupt entry in "+_file);
+		return data;
+	}
+
+	private ByteBuffer read (long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		readFully(buffer, position);
+		buffer.flip();
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+
+	private void readFully (ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = _channel.read(buffer, position);
+			if (n < 0) throw new EOFException("Unexpected end of "+_file);
+			position += n;
+		}
+	}
+
+	@Override
+	public void close () throws IOException {
+		_channel.close();
+	}
+
+
+
+	/*
+	 * Open-addressed hash table from packed tile key to entry number.
+	 */
+	private static class TileTable {
+		private long[] _keys;
+		private int[]  _values;
+		private int    _size;
+
+		TileTable () {
+			_keys = new long[64];
+			_values = new int[64];
+			Arrays.fill(_keys, -1L);
+			_size = 0;
+		}
+
+		private static int slot (long key, int mask) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32)) & mask;
+		}
+
+		void put (long key, int value) {
+			if (2 * (_size + 1) > _keys.length) grow();
+			int mask = _keys.length - 1;
+			int i = slot(key, mask);
+			while (-1L != _keys[i] && key != _keys[i]) i = (i + 1) & mask;
+			if (-1L == _keys[i]) ++_size;
+			_keys[i] = key;
+			_values[i] = value;
+		}
+
+		int get (long key) {
+			int mask = _keys.length - 1;
+			int i = slot(key, mask);
+			while (-1L != _keys[i]) {
+				if (key == _keys[i]) return _values[i];
+				i = (i + 1) & mask;
+			}
+			return -1;
+		}
+
+		private void grow () {
+			long[] oldKeys = _keys;
+			int[] oldValues = _values;
+			_keys = new long[oldKeys.length * 2];
+			_values = new int[oldValues.length * 2];
+			Arrays.fill(_keys, -1L);
+			_size = 0;
+			for (int i = 0; i < oldKeys.length; ++i) {
+				if (-1L != oldKeys[i]) put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+}
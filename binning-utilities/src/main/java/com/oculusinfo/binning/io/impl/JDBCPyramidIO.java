@@ -34,13 +34,22 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import com.oculusinfo.binning.TileData;
 import com.oculusinfo.binning.TileIndex;
 import com.oculusinfo.binning.io.PyramidIO;
+import com.oculusinfo.binning.io.PyramidScanner;
 import com.oculusinfo.binning.io.serialization.TileSerializer;
 
 /**
@@ -49,7 +58,7 @@ import com.oculusinfo.binning.io.serialization.TileSerializer;
  * @author rcameron
  * 
  */
-public class JDBCPyramidIO implements PyramidIO {
+public class JDBCPyramidIO implements PyramidIO, PyramidScanner {
 	private static final String TABLE_METADATA = "metadata";
 	private static final int BATCH_SIZE = 10000;
 	private static final String COL_ZOOM_LVL = "zoom_level";
@@ -59,11 +68,23 @@ public class JDBCPyramidIO implements PyramidIO {
 	private static final String COL_METADATA = "metadata";
 	private static final String COL_PYRAMID_ID = "pyramid_id";
 
+	// The most idle read connections we keep around
+	private static final int MAX_POOLED_CONNECTIONS = 32;
+	// Each tile in an OR'd lookup takes two parameters; SQLite allows 999
+	private static final int MAX_TILES_PER_QUERY = 400;
+
+	private String _dbUrl;
+	// Used for all writes, which are serialized on it
 	private Connection _connection;
+	private ConcurrentLinkedQueue<Connection> _readConnections;
+	private Set<String> _knownTables;
 	
 	public JDBCPyramidIO(String driverClassName, String dbUrl) throws Exception {
 		Class.forName(driverClassName);
+		_dbUrl = dbUrl;
 		_connection = DriverManager.getConnection(dbUrl);
+		_readConnections = new ConcurrentLinkedQueue<>();
+		_knownTables = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 	}
 
 	public void shutdown() {
@@ -72,10 +93,95 @@ public class JDBCPyramidIO implements PyramidIO {
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
+		Connection connection;
+		while (null != (connection = _readConnections.poll())) {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	protected String getDbUrl () {
+		return _dbUrl;
+	}
+
+	/**
+	 * Open a new connection for reading. Reads are done on a pool of these,
+	 * so they can proceed in parallel, independent of writes.
+	 */
+	protected Connection openReadConnection () throws SQLException {
+		return DriverManager.getConnection(_dbUrl);
+	}
+
+	private Connection borrowReadConnection () throws SQLException {
+		Connection connection = _readConnections.poll();
+		if (null == connection) {
+			connection = openReadConnection();
+		}
+		return connection;
+	}
+
+	private void returnReadConnection (Connection connection) {
+		// Slightly racy, but this only bounds how many idle connections we keep
+		if (_readConnections.size() < MAX_POOLED_CONNECTIONS) {
+			_readConnections.offer(connection);
+		} else {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Create an index on the tile coordinates of a pyramid's table, if there
+	 * isn't one already. Tables created by this class already have one, as
+	 * their primary key; this is for tables created elsewhere.
+	 */
+	public void createTileIndex (String pyramidId) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("CREATE INDEX IF NOT EXISTS ");
+		sb.append(toTableName(pyramidId + "_tile_index"));
+		sb.append(" ON ");
+		sb.append(toTableName(pyramidId));
+		sb.append(" (");
+		sb.append(COL_ZOOM_LVL);
+		sb.append(",");
+		sb.append(COL_TILE_COLUMN);
+		sb.append(",");
+		sb.append(COL_TILE_ROW);
+		sb.append(")");
+
+		synchronized (_connection) {
+			Statement stmt = null;
+			try {
+				stmt = _connection.createStatement();
+				stmt.executeUpdate(sb.toString());
+			} catch (SQLException e) {
+				throw new IOException("Error creating tile index.", e);
+			} finally {
+				if (stmt != null) {
+					try {
+						stmt.close();
+					} catch (SQLException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
 	}
 
 	@Override
 	public void initializeForWrite(String pyramidId) throws IOException {
+		synchronized (_connection) {
+			initializeTables(pyramidId);
+		}
+	}
+
+	private void initializeTables(String pyramidId) throws IOException {
 		// Create the table and columns if necessary.
 		Statement stmt = null;
 		try {
@@ -137,23 +243,27 @@ public class JDBCPyramidIO implements PyramidIO {
 	}
 
 	protected boolean tableExists(String pyramidId) throws SQLException {
-		StringBuilder sb = new StringBuilder();
-		sb.append("SELECT name FROM 'sqlite_master' WHERE type='table' AND name=");
-		sb.append(toTableName(pyramidId));
-		
-		Statement stmt = null;
+		// Tables are never dropped, so once we've seen one, we needn't check
+		// again.
+		if (_knownTables.contains(pyramidId)) return true;
+
+		Connection connection = borrowReadConnection();
+		PreparedStatement ps = null;
 		boolean exists = false;
-		
 		try {
-			stmt = _connection.createStatement();
-			stmt.execute(sb.toString());
-			exists = stmt.getResultSet().next();
+			ps = connection.prepareStatement("SELECT name FROM sqlite_master WHERE type='table' AND name=?");
+			ps.setString(1, pyramidId);
+			ResultSet resultSet = ps.executeQuery();
+			exists = resultSet.next();
+			resultSet.close();
 		} finally {
-			if (stmt != null) {
-				stmt.close();
+			if (ps != null) {
+				ps.close();
 			}
+			returnReadConnection(connection);
 		}
-		
+
+		if (exists) _knownTables.add(pyramidId);
 		return exists;
 	}
 
@@ -161,6 +271,14 @@ public class JDBCPyramidIO implements PyramidIO {
 	public <T> void writeTiles(String pyramidId,
 	                           TileSerializer<T> serializer, Iterable<TileData<T>> data)
 		throws IOException {
+		synchronized (_connection) {
+			writeTileRows(pyramidId, serializer, data);
+		}
+	}
+
+	private <T> void writeTileRows(String pyramidId,
+	                               TileSerializer<T> serializer, Iterable<TileData<T>> data)
+		throws IOException {
 		PreparedStatement ps = null;
 
 		try {
@@ -230,6 +348,13 @@ public class JDBCPyramidIO implements PyramidIO {
 	
 	@Override
 	public void writeMetaData(String pyramidId, String metaData)
+		throws IOException {
+		synchronized (_connection) {
+			writeMetaDataRow(pyramidId, metaData);
+		}
+	}
+
+	private void writeMetaDataRow(String pyramidId, String metaData)
 		throws IOException {
 		Statement stmt = null;
 		try {
@@ -285,40 +410,37 @@ public class JDBCPyramidIO implements PyramidIO {
 	public <T> List<TileData<T>> readTiles(String pyramidId,
 	                                       TileSerializer<T> serializer, Iterable<TileIndex> tiles)
 		throws IOException {
-		PreparedStatement ps = null;
+		Connection connection = null;
 		try {
 			if (!tableExists(pyramidId)) {
 				// TODO: Right thing to return when the table doesn't exist?
 				return null;
 			}
 
-			StringBuilder sb = new StringBuilder();
-			sb.append("SELECT ");
-			sb.append(COL_TILE_DATA);
-			sb.append(" FROM ");
-			sb.append(toTableName(pyramidId));
-			sb.append(" WHERE ");
-			sb.append(COL_ZOOM_LVL);
-			sb.append(" = ? AND ");
-			sb.append(COL_TILE_COLUMN);
-			sb.append(" = ? AND ");
-			sb.append(COL_TILE_ROW);
-			sb.append(" = ?");
+			// Group requests by level, so we can make one query per level
+			// (or per chunk of a level) rather than one per tile
+			Map<Integer, List<TileIndex>> tilesByLevel = new HashMap<>();
+			for (TileIndex tile : tiles) {
+				List<TileIndex> levelTiles = tilesByLevel.get(tile.getLevel());
+				if (null == levelTiles) {
+					levelTiles = new ArrayList<>();
+					tilesByLevel.put(tile.getLevel(), levelTiles);
+				}
+				levelTiles.add(tile);
+			}
 
-			ps = _connection.prepareStatement(sb.toString());
+			connection = borrowReadConnection();
+			Map<Integer, Map<Long, byte[]>> tileBytesByLevel = new HashMap<>();
+			for (Map.Entry<Integer, List<TileIndex>> entry: tilesByLevel.entrySet()) {
+				tileBytesByLevel.put(entry.getKey(), readLevel(connection, pyramidId, entry.getKey(), entry.getValue()));
+			}
 
 			List<TileData<T>> results = new LinkedList<TileData<T>>();
 			for (TileIndex tile : tiles) {
-				ps.setInt(1, tile.getLevel());
-				ps.setInt(2, tile.getX());
-				ps.setInt(3, tile.getY());
-
-				ResultSet resultSet = ps.executeQuery();
-				if (!resultSet.next())
+				byte[] tileBytes = tileBytesByLevel.get(tile.getLevel()).get(coordinateKey(tile.getX(), tile.getY()));
+				if (null == tileBytes)
 					continue;
 
-				byte[] tileBytes = resultSet.getBytes(COL_TILE_DATA);
-
 				TileData<T> data = serializer.deserialize(tile,
 				                                          new ByteArrayInputStream(tileBytes));
 				results.add(data);
@@ -328,20 +450,130 @@ public class JDBCPyramidIO implements PyramidIO {
 		} catch (Exception e) {
 			throw new IOException("Error reading tiles.", e);
 		} finally {
-			if (ps != null) {
+			if (connection != null) {
+				returnReadConnection(connection);
+			}
+		}
+	}
+
+	private static long coordinateKey (int x, int y) {
+		return ((long) x) << 32 | (y & 0xffffffffL);
+	}
+
+	/*
+	 * Read the raw data of the given tiles, all of a single level. If the
+	 * tiles mostly fill their bounding box - as they do when they're the
+	 * tiles of a view - we read the whole box in one range query; otherwise,
+	 * we look them up in chunks of OR'ed coordinates.
+	 */
+	private Map<Long, byte[]> readLevel (Connection connection, String pyramidId, int level, List<TileIndex> tiles)
+		throws SQLException {
+		Set<Long> requested = new HashSet<>();
+		int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE;
+		int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+		for (TileIndex tile: tiles) {
+			requested.add(coordinateKey(tile.getX(), tile.getY()));
+			minX = Math.min(minX, tile.getX());
+			maxX = Math.max(maxX, tile.getX());
+			minY = Math.min(minY, tile.getY());
+			maxY = Math.max(maxY, tile.getY());
+		}
+
+		Map<Long, byte[]> results = new HashMap<>();
+		long area = ((long) maxX - minX + 1) * ((long) maxY - minY + 1);
+		if (area <= 2L * requested.size()) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("SELECT ");
+			sb.append(COL_TILE_COLUMN);
+			sb.append(",");
+			sb.append(COL_TILE_ROW);
+			sb.append(",");
+			sb.append(COL_TILE_DATA);
+			sb.append(" FROM ");
+			sb.append(toTableName(pyramidId));
+			sb.append(" WHERE ");
+			sb.append(COL_ZOOM_LVL);
+			sb.append(" = ? AND ");
+			sb.append(COL_TILE_COLUMN);
+			sb.append(" BETWEEN ? AND ? AND ");
+			sb.append(COL_TILE_ROW);
+			sb.append(" BETWEEN ? AND ?");
+
+			PreparedStatement ps = connection.prepareStatement(sb.toString());
+			try {
+				ps.setInt(1, level);
+				ps.setInt(2, minX);
+				ps.setInt(3, maxX);
+				ps.setInt(4, minY);
+				ps.setInt(5, maxY);
+				collectTiles(ps, requested, results);
+			} finally {
+				ps.close();
+			}
+		} else {
+			List<Long> keys = new ArrayList<>(requested);
+			for (int start = 0; start < keys.size(); start += MAX_TILES_PER_QUERY) {
+				List<Long> chunk = keys.subList(start, Math.min(keys.size(), start + MAX_TILES_PER_QUERY));
+
+				StringBuilder sb = new StringBuilder();
+				sb.append("SELECT ");
+				sb.append(COL_TILE_COLUMN);
+				sb.append(",");
+				sb.append(COL_TILE_ROW);
+				sb.append(",");
+				sb.append(COL_TILE_DATA);
+				sb.append(" FROM ");
+				sb.append(toTableName(pyramidId));
+				sb.append(" WHERE ");
+				sb.append(COL_ZOOM_LVL);
+				sb.append(" = ? AND (");
+				for (int i = 0; i < chunk.size(); ++i) {
+					if (i > 0) sb.append(" OR ");
+					sb.append("(");
+					sb.append(COL_TILE_COLUMN);
+					sb.append(" = ? AND ");
+					sb.append(COL_TILE_ROW);
+					sb.append(" = ?)");
+				}
+				sb.append(")");
+
+				PreparedStatement ps = connection.prepareStatement(sb.toString());
 				try {
+					ps.setInt(1, level);
+					for (int i = 0; i < chunk.size(); ++i) {
+						long key = chunk.get(i);
+						ps.setInt(2 + 2 * i, (int) (key >> 32));
+						ps.setInt(3 + 2 * i, (int) key);
+					}
+					collectTiles(ps, requested, results);
+				} finally {
 					ps.close();
-				} catch (SQLException e) {
-					throw new IOException(e);
 				}
 			}
 		}
+		return results;
+	}
+
+	private void collectTiles (PreparedStatement ps, Set<Long> requested, Map<Long, byte[]> results)
+		throws SQLException {
+		ResultSet resultSet = ps.executeQuery();
+		try {
+			while (resultSet.next()) {
+				long key = coordinateKey(resultSet.getInt(1), resultSet.getInt(2));
+				if (requested.contains(key)) {
+					results.put(key, resultSet.getBytes(3));
+				}
+			}
+		} finally {
+			resultSet.close();
+		}
 	}
 
 	@Override
 	public <T> InputStream getTileStream (String pyramidId,
 	                                      TileSerializer<T> serializer,
 	                                      TileIndex tile) throws IOException {
+		Connection connection = null;
 		PreparedStatement ps = null;
 		try {
 			if (!tableExists(pyramidId)) {
@@ -362,7 +594,8 @@ public class JDBCPyramidIO implements PyramidIO {
 			sb.append(COL_TILE_ROW);
 			sb.append(" = ?");
 
-			ps = _connection.prepareStatement(sb.toString());
+			connection = borrowReadConnection();
+			ps = connection.prepareStatement(sb.toString());
 			ps.setInt(1, tile.getLevel());
 			ps.setInt(2, tile.getX());
 			ps.setInt(3, tile.getY());
@@ -382,12 +615,111 @@ public class JDBCPyramidIO implements PyramidIO {
 					throw new IOException(e);
 				}
 			}
+			if (connection != null) {
+				returnReadConnection(connection);
+			}
 		}
 		return null;
 	}
 
+	/**
+	 * List all the tiles stored for a pyramid.
+	 */
+	public List<TileIndex> readTileIndices (String pyramidId) throws IOException {
+		Connection connection = null;
+		Statement stmt = null;
+		try {
+			List<TileIndex> results = new ArrayList<TileIndex>();
+			if (!tableExists(pyramidId)) {
+				return results;
+			}
+
+			StringBuilder sb = new StringBuilder();
+			sb.append("SELECT ");
+			sb.append(COL_ZOOM_LVL);
+			sb.append(",");
+			sb.append(COL_TILE_COLUMN);
+			sb.append(",");
+			sb.append(COL_TILE_ROW);
+			sb.append(" FROM ");
+			sb.append(toTableName(pyramidId));
+
+			connection = borrowReadConnection();
+			stmt = connection.createStatement();
+			ResultSet resultSet = stmt.executeQuery(sb.toString());
+			while (resultSet.next()) {
+				results.add(new TileIndex(resultSet.getInt(1), resultSet.getInt(2), resultSet.getInt(3)));
+			}
+			return results;
+		} catch (SQLException e) {
+			throw new IOException("Error reading tile indices.", e);
+		} finally {
+			if (stmt != null) {
+				try {
+					stmt.close();
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+			}
+			if (connection != null) {
+				returnReadConnection(connection);
+			}
+		}
+	}
+
+	@Override
+	public void scanLevel (String pyramidId, int level, SerializedTileHandler handler) throws IOException {
+		Connection connection = null;
+		PreparedStatement ps = null;
+		try {
+			if (!tableExists(pyramidId)) {
+				return;
+			}
+
+			StringBuilder sb = new StringBuilder();
+			sb.append("SELECT ");
+			sb.append(COL_TILE_COLUMN);
+			sb.append(",");
+			sb.append(COL_TILE_ROW);
+			sb.append(",");
+			sb.append(COL_TILE_DATA);
+			sb.append(" FROM ");
+			sb.append(toTableName(pyramidId));
+			sb.append(" WHERE ");
+			sb.append(COL_ZOOM_LVL);
+			sb.append(" = ?");
+
+			connection = borrowReadConnection();
+			ps = connection.prepareStatement(sb.toString());
+			ps.setInt(1, level);
+			ResultSet resultSet = ps.executeQuery();
+			try {
+				while (resultSet.next()) {
+					handler.handleTile(new TileIndex(level, resultSet.getInt(1), resultSet.getInt(2)),
+					                   resultSet.getBytes(3));
+				}
+			} finally {
+				resultSet.close();
+			}
+		} catch (SQLException e) {
+			throw new IOException("Error scanning tiles.", e);
+		} finally {
+			if (ps != null) {
+				try {
+					ps.close();
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+			}
+			if (connection != null) {
+				returnReadConnection(connection);
+			}
+		}
+	}
+
 	@Override
 	public String readMetaData(String pyramidId) throws IOException {
+		Connection connection = null;
 		Statement stmt = null;
 		try {
 			if (!tableExists(TABLE_METADATA)) {
@@ -405,7 +737,8 @@ public class JDBCPyramidIO implements PyramidIO {
 			sb.append(toTableName(pyramidId));
 			sb.append("'");
 			
-			stmt = _connection.createStatement();
+			connection = borrowReadConnection();
+			stmt = connection.createStatement();
 			ResultSet resultSet = stmt.executeQuery(sb
 			                                        .toString());
 			if (!resultSet.next())
@@ -422,6 +755,9 @@ public class JDBCPyramidIO implements PyramidIO {
 					e.printStackTrace();
 				}
 			}
+			if (connection != null) {
+				returnReadConnection(connection);
+			}
 		}
 	}
 	
@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.io.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.oculusinfo.binning.TileIndex;
+
+
+
+/**
+ * A whole tile pyramid stored in a single, read-only, memory-mapped file.
+ * 
+ * The file holds a fixed-size header, a directory of every tile sorted by
+ * level and then by position along a Hilbert curve, the pyramid's metadata,
+ * and then the raw serialized tiles, back to back. Since neighbouring tiles
+ * are near each other on the Hilbert curve, the tiles of any one view are
+ * mostly contiguous in the file.
+ * 
+ * Tiles are read directly out of the mapped file; looking up and reading a
+ * tile involves no system calls and no copying (beyond whatever the page
+ * cache has to do the first time a page is touched).
+ * 
+ * Files are written by {@link PackedPyramidWriter}.
+ */
+public final class PackedPyramid {
+	static final int     MAGIC           = 0x41505952; // "APYR"
+	static final int     VERSION         = 1;
+	static final int     HEADER_SIZE     = 32;
+	static final int     ENTRY_SIZE      = 24;
+	static final Charset UTF8            = Charset.forName("UTF-8");
+	/**
+	 * Tile data is mapped in segments of this size; the writer pads the data
+	 * so that no tile crosses a segment boundary.
+	 */
+	static final long    SEGMENT_SIZE    = 1L << 30;
+
+
+
+	/**
+	 * Open a packed pyramid file for reading.
+	 */
+	public static PackedPyramid open (File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return new PackedPyramid(file, raf.getChannel());
+		} finally {
+			// Mapped buffers remain valid after their channel is closed
+			raf.close();
+		}
+	}
+
+
+
+	private final File         _file;
+	private final int          _tileCount;
+	private final ByteBuffer   _directory;
+	private final String       _metaData;
+	private final long         _dataOffset;
+	private final ByteBuffer[] _segments;
+
+	private PackedPyramid (File file, FileChannel channel) throws IOException {
+		_file = file;
+
+		long fileSize = channel.size();
+		if (fileSize < HEADER_SIZE) throw new IOException(file+" is not a packed pyramid file");
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+		if (MAGIC != header.getInt(0)) throw new IOException(file+" is not a packed pyramid file");
+		if (VERSION != header.getInt(4)) throw new IOException("Unsupported packed pyramid version "+header.getInt(4)+" in "+file);
+		_tileCount = header.getInt(8);
+		int metaDataLength = header.getInt(12);
+		long directoryOffset = header.getLong(16);
+		_dataOffset = header.getLong(24);
+
+		ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, directoryOffset,
+		                               (long) _tileCount * ENTRY_SIZE + Math.max(0, metaDataLength));
+		index.limit(_tileCount * ENTRY_SIZE);
+		_directory = index.slice();
+		if (metaDataLength < 0) {
+			_metaData = null;
+		} else {
+			byte[] rawMetaData = new byte[metaDataLength];
+			index.limit(index.capacity());
+			index.position(_tileCount * ENTRY_SIZE);
+			index.get(rawMetaData);
+			_metaData = new String(rawMetaData, UTF8);
+		}
+
+		long dataSize = fileSize - _dataOffset;
+		int segments = (int) ((dataSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+		_segments = new ByteBuffer[segments];
+		for (int i = 0; i < segments; ++i) {
+			long start = i * SEGMENT_SIZE;
+			_segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, _dataOffset + start,
+			                           Math.min(SEGMENT_SIZE, dataSize - start));
+		}
+	}
+
+	public File getFile () {
+		return _file;
+	}
+
+	/** The number of tiles in this pyramid */
+	public int size () {
+		return _tileCount;
+	}
+
+	/** The pyramid's metadata, or null if it had none */
+	public String getMetaData () {
+		return _metaData;
+	}
+
+	/**
+	 * List every tile in this pyramid, in file order.
+	 */
+	public List<TileIndex> getTiles () {
+		return getTiles(0, _tileCount);
+	}
+
+	/**
+	 * List every tile in one level of this pyramid, in file order.
+	 */
+	public List<TileIndex> getTiles (int level) {
+		return getTiles(firstEntryAtLevel(level), firstEntryAtLevel(level + 1));
+	}
+
+	private List<TileIndex> getTiles (int start, int end) {
+		List<TileIndex> tiles = new ArrayList<>(end - start);
+		long[] xy = new long[2];
+		for (int i = start; i < end; ++i) {
+			int level = _directory.getInt(i * ENTRY_SIZE);
+			hilbertPosition(level, _directory.getLong(i * ENTRY_SIZE + 8), xy);
+			tiles.add(new TileIndex(level, (int) xy[0], (int) xy[1]));
+		}
+		return tiles;
+	}
+
+	/*
+	 * The first directory entry at or above the given level
+	 */
+	private int firstEntryAtLevel (int level) {
+		int low = 0;
+		int high = _tileCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (_directory.getInt(mid * ENTRY_SIZE) < level) low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Get the serialized contents of a tile.
+	 * 
+	 * @return A read-only view of the tile's bytes in the mapped file, or
+	 *         null if the tile isn't in this pyramid. The buffer is the
+	 *         caller's own; its position and limit may be changed freely.
+	 */
+	public ByteBuffer getTileBuffer (TileIndex tile) {
+		int level = tile.getLevel();
+		long n = 1L << level;
+		if (tile.getX() < 0 || tile.getX() >= n || tile.getY() < 0 || tile.getY() >= n) return null;
+
+		int entry = findEntry(level, hilbertIndex(level, tile.getX(), tile.getY()));
+		if (entry < 0) return null;
+
+		int base = entry * ENTRY_SIZE;
+		int length = _directory.getInt(base + 4);
+		long offset = _directory.getLong(base + 16);
+		ByteBuffer segment = _segments[(int) (offset / SEGMENT_SIZE)].duplicate();
+		int start = (int) (offset % SEGMENT_SIZE);
+		segment.limit(start + length);
+		segment.position(start);
+		return segment.slice();
+	}
+
+	/**
+	 * Get a stream over the serialized contents of a tile, or null if the
+	 * tile isn't in this pyramid.
+	 */
+	public InputStream getTileStream (TileIndex tile) {
+		ByteBuffer buffer = getTileBuffer(tile);
+		if (null == buffer) return null;
+		return new ByteBufferInputStream(buffer);
+	}
+
+	/*
+	 * Binary search of the directory, which is sorted by level, then Hilbert
+	 * index. Only absolute reads are used, so this is safe from many threads
+	 * at once.
+	 */
+	private int findEntry (int level, long hilbertIndex) {
+		int low = 0;
+		int high = _tileCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int midLevel = _directory.getInt(mid * ENTRY_SIZE);
+			int comparison;
+			if (midLevel != level) {
+				comparison = midLevel < level ? -1 : 1;
+			} else {
+				long midIndex = _directory.getLong(mid * ENTRY_SIZE + 8);
+				comparison = midIndex < hilbertIndex ? -1 : (midIndex == hilbertIndex ? 0 : 1);
+			}
+
+			if (comparison < 0) low = mid + 1;
+			else if (comparison > 0) high = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+
+
+
+	/**
+	 * Get the position of a tile along the Hilbert curve covering its level.
+	 */
+	public static long hilbertIndex (int level, long x, long y) {
+		long n = 1L << level;
+		long d = 0;
+		for (long s = n / 2; s > 0; s /= 2) {
+			long rx = (0 != (x & s)) ? 1 : 0;
+			long ry = (0 != (y & s)) ? 1 : 0;
+			d += s * s * ((3 * rx) ^ ry);
+			// Rotate the quadrant so the sub-curve has the standard orientation
+			if (0 == ry) {
+				if (1 == rx) {
+					x = n - 1 - x;
+					y = n - 1 - y;
+				}
+				long t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+	}
+
+	/**
+	 * The inverse of {@link #hilbertIndex(int, long, long)}.
+	 * 
+	 * @param xy An array of length 2 into which the x and y coordinates are
+	 *            written
+	 */
+	public static void hilbertPosition (int level, long d, long[] xy) {
+		long n = 1L << level;
+		long x = 0;
+		long y = 0;
+		for (long s = 1; s < n; s *= 2) {
+			long rx = 1 & (d / 2);
+			long ry = 1 & (d ^ rx);
+			if (0 == ry) {
+				if (1 == rx) {
+					x = s - 1 - x;
+					y = s - 1 - y;
+				}
+				long t = x;
+				x = y;
+				y = t;
+			}
+			x += s * rx;
+			y += s * ry;
+			d /= 4;
+		}
+		xy[0] = x;
+		xy[1] = y;
+	}
+
+
+
+	/*
+	 * A stream over a byte buffer, reading directly from the buffer.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer _buffer;
+		private int              _mark;
+
+		ByteBufferInputStream (ByteBuffer buffer) {
+			_buffer = buffer;
+			_mark = buffer.position();
+		}
+
+		@Override
+		public int read () {
+			if (!_buffer.hasRemaining()) return -1;
+			return _buffer.get() & 0xff;
+		}
+
+		@Override
+		public int read (byte[] b, int off, int len) {
+			if (0 == len) return 0;
+			int remaining = _buffer.remaining();
+			if (0 == remaining) return -1;
+			int n = Math.min(len, remaining);
+			_buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public long skip (long n) {
+			int skipped = (int) Math.max(0, Math.min(n, _buffer.remaining()));
+			_buffer.position(_buffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available () {
+			return _buffer.remaining();
+		}
+
+		@Override
+		public boolean markSupported () {
+			return true;
+		}
+
+		@Override
+		public synchronized void mark (int readLimit) {
+			_mark = _buffer.position();
+		}
+
+		@Override
+		public synchronized void reset () {
+			_buffer.position(_mark);
+		}
+	}
+}
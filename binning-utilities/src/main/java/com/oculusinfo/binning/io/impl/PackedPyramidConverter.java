@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.io.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.io.PyramidIO;
+
+
+
+/**
+ * Converts existing tile pyramids - directories of tile files, zip files, or
+ * SQLite databases - into {@link PackedPyramid} files.
+ * 
+ * Tiles are copied in their serialized form; they are never deserialized, so
+ * no serializer is needed.
+ */
+public class PackedPyramidConverter {
+	/**
+	 * Convert a pyramid stored as a directory of tile files, as written by
+	 * {@link FileSystemPyramidSource}.
+	 * 
+	 * @param rootPath The root path of the file system source
+	 * @param pyramidId The pyramid to convert
+	 * @param extension The extension of the tile files
+	 * @param destination The packed pyramid file to write
+	 */
+	public static void convertFileSystemPyramid (String rootPath, String pyramidId, String extension,
+	                                             File destination) throws IOException {
+		FileSystemPyramidSource source = new FileSystemPyramidSource(rootPath, extension);
+		File tileRoot = new File(source.getPyramidDirectory(pyramidId), PyramidIO.TILES_FOLDERNAME);
+
+		List<TileIndex> tiles = new ArrayList<>();
+		String suffix = "." + extension;
+		File[] levelDirs = tileRoot.listFiles();
+		if (null != levelDirs) {
+			for (File levelDir: levelDirs) {
+				Integer level = parseInt(levelDir.getName());
+				File[] xDirs = levelDir.listFiles();
+				if (null == level || null == xDirs) continue;
+				for (File xDir: xDirs) {
+					Integer x = parseInt(xDir.getName());
+					File[] tileFiles = xDir.listFiles();
+					if (null == x || null == tileFiles) continue;
+					for (File tileFile: tileFiles) {
+						String name = tileFile.getName();
+						if (!name.endsWith(suffix)) continue;
+						Integer y = parseInt(name.substring(0, name.length() - suffix.length()));
+						if (null != y) tiles.add(new TileIndex(level, x, y));
+					}
+				}
+			}
+		}
+
+		convert(new FileBasedPyramidIO(source), pyramidId, tiles, destination);
+	}
+
+	/**
+	 * Convert a pyramid stored in a zip file, as read by
+	 * {@link ZipResourcePyramidSource}.
+	 * 
+	 * @param zipFile The zip file
+	 * @param pyramidId The pyramid within the zip file to convert
+	 * @param extension The extension of the tile files
+	 * @param destination The packed pyramid file to write
+	 */
+	public static void convertZipPyramid (File zipFile, String pyramidId, String extension,
+	                                      File destination) throws IOException {
+		Pattern tilePattern = Pattern.compile(Pattern.quote(pyramidId + "/" + PyramidIO.TILES_FOLDERNAME + "/")
+		                                      + "(\\d+)/(\\d+)/(\\d+)" + Pattern.quote("." + extension));
+		String metaDataName = pyramidId + "/" + PyramidIO.METADATA_FILENAME;
+
+		ZipFile zip = new ZipFile(zipFile);
+		PackedPyramidWriter writer = new PackedPyramidWriter(destination);
+		try {
+			Enumeration<ZipArchiveEntry> entries = zip.getEntries();
+			while (entries.hasMoreElements()) {
+				ZipArchiveEntry entry = entries.nextElement();
+				if (entry.isDirectory()) continue;
+
+				Matcher matcher = tilePattern.matcher(entry.getName());
+				if (matcher.matches()) {
+					TileIndex index = new TileIndex(Integer.parseInt(matcher.group(1)),
+					                                Integer.parseInt(matcher.group(2)),
+					                                Integer.parseInt(matcher.group(3)));
+					InputStream stream = zip.getInputStream(entry);
+					try {
+						writer.addTile(index, stream);
+					} finally {
+						stream.close();
+					}
+				} else if (metaDataName.equals(entry.getName())) {
+					writer.setMetaData(readFully(zip.getInputStream(entry)));
+				}
+			}
+		} finally {
+			writer.close();
+			zip.close();
+		}
+	}
+
+	/**
+	 * Convert a pyramid stored in a SQLite database, as written by
+	 * {@link SQLitePyramidIO}.
+	 * 
+	 * @param dbPath The path of the database file
+	 * @param pyramidId The pyramid to convert
+	 * @param destination The packed pyramid file to write
+	 */
+	public static void convertSQLitePyramid (String dbPath, String pyramidId, File destination) throws IOException {
+		SQLitePyramidIO io;
+		try {
+			io = new SQLitePyramidIO(dbPath);
+		} catch (Exception e) {
+			throw new IOException("Error opening SQLite database "+dbPath, e);
+		}
+		try {
+			convert(io, pyramidId, io.readTileIndices(pyramidId), destination);
+		} finally {
+			io.shutdown();
+		}
+	}
+
+	/**
+	 * Convert the given tiles of any pyramid readable through a PyramidIO.
+	 * 
+	 * @param source The source of the pyramid
+	 * @param pyramidId The pyramid to convert
+	 * @param tiles The tiles to convert; any that don't exist are skipped
+	 * @param destination The packed pyramid file to write
+	 */
+	public static void convert (PyramidIO source, String pyramidId, Iterable<TileIndex> tiles,
+	                            File destination) throws IOException {
+		PackedPyramidWriter writer = new PackedPyramidWriter(destination);
+		try {
+			for (TileIndex tile: tiles) {
+				InputStream stream = source.getTileStream(pyramidId, null, tile);
+				if (null == stream) continue;
+				try {
+					writer.addTile(tile, stream);
+				} finally {
+					stream.close();
+				}
+			}
+			writer.setMetaData(source.readMetaData(pyramidId));
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static Integer parseInt (String value) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static String readFully (InputStream stream) throws IOException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while (-1 != (read = stream.read(buffer))) {
+				bytes.write(buffer, 0, read);
+			}
+			return new String(bytes.toByteArray(), PackedPyramid.UTF8);
+		} finally {
+			stream.close();
+		}
+	}
+
+
+
+	/**
+	 * Convert a pyramid from the command line.
+	 * 
+	 * Usage: PackedPyramidConverter &lt;source&gt; &lt;pyramid id&gt;
+	 * &lt;destination file&gt; [tile extension]
+	 * 
+	 * The source is a zip file if it ends in .zip, a SQLite database if it
+	 * ends in .db or .sqlite, and otherwise the root directory of a file
+	 * system pyramid.
+	 */
+	public static void main (String[] args) throws IOException {
+		if (args.length < 3) {
+			System.err.println("Usage: PackedPyramidConverter <source> <pyramid id> <destination file> [tile extension]");
+			System.exit(1);
+		}
+		String source = args[0];
+		String pyramidId = args[1];
+		File destination = new File(args[2]);
+		String extension = (args.length > 3) ? args[3] : "avro";
+
+		long startTime = System.currentTimeMillis();
+		if (source.endsWith(".zip")) {
+			convertZipPyramid(new File(source), pyramidId, extension, destination);
+		} else if (source.endsWith(".db") || source.endsWith(".sqlite")) {
+			convertSQLitePyramid(source, pyramidId, destination);
+		} else {
+			convertFileSystemPyramid(source, pyramidId, extension, destination);
+		}
+		long endTime = System.currentTimeMillis();
+
+		PackedPyramid result = PackedPyramid.open(destination);
+		System.out.println(String.format("Packed %d tiles into %s in %.3f seconds",
+		                                 result.size(), destination, (endTime - startTime) / 1000.0));
+	}
+}
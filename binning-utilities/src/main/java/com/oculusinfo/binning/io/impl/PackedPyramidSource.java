@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.io.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.io.PyramidScanner;
+
+
+
+/**
+ * Extends the PyramidSource abstract class for pyramids packed into single,
+ * memory-mapped files (see {@link PackedPyramid}). Each pyramid lives in
+ * <code>&lt;root path&gt;/&lt;pyramid id&gt;.pyramid</code>.
+ */
+public class PackedPyramidSource extends PyramidSourceStream implements PyramidScanner {
+	public static final String FILE_EXTENSION = "pyramid";
+
+	private String                                      _rootPath;
+	private ConcurrentHashMap<String, PackedPyramid>    _pyramids;
+
+	public PackedPyramidSource (String rootPath) {
+		if (rootPath == null || rootPath.trim().length() == 0) {
+			rootPath = "./";
+		}
+		_rootPath = (rootPath.trim().endsWith("/"))? rootPath.trim() : rootPath.trim() + "/";
+		_pyramids = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Get the file in which the given pyramid is stored.
+	 */
+	public File getPyramidFile (String basePath) {
+		return new File(_rootPath + basePath + "." + FILE_EXTENSION);
+	}
+
+	/**
+	 * Get the given pyramid, mapping it if this is the first time it's been
+	 * asked for.
+	 * 
+	 * @return The pyramid, or null if there is no such pyramid
+	 */
+	public PackedPyramid getPyramid (String basePath) throws IOException {
+		PackedPyramid pyramid = _pyramids.get(basePath);
+		if (null == pyramid) {
+			File file = getPyramidFile(basePath);
+			if (!file.isFile()) return null;
+			pyramid = PackedPyramid.open(file);
+			PackedPyramid existing = _pyramids.putIfAbsent(basePath, pyramid);
+			if (null != existing) pyramid = existing;
+		}
+		return pyramid;
+	}
+
+	/**
+	 * Forget a mapped pyramid, so that the next read maps its file anew. This
+	 * must be called after the file of a pyramid that has already been read
+	 * is replaced.
+	 */
+	public void reset (String basePath) {
+		_pyramids.remove(basePath);
+	}
+
+	@Override
+	protected InputStream getSourceTileStream (String basePath, TileIndex tile) throws IOException {
+		PackedPyramid pyramid = getPyramid(basePath);
+		if (null == pyramid) return null;
+		return pyramid.getTileStream(tile);
+	}
+
+	@Override
+	protected InputStream getSourceMetaDataStream (String basePath) throws IOException {
+		PackedPyramid pyramid = getPyramid(basePath);
+		if (null == pyramid || null == pyramid.getMetaData()) return null;
+		return new ByteArrayInputStream(pyramid.getMetaData().getBytes(PackedPyramid.UTF8));
+	}
+
+	@Override
+	public void scanLevel (String basePath, int level, SerializedTileHandler handler) throws IOException {
+		PackedPyramid pyramid = getPyramid(basePath);
+		if (null == pyramid) return;
+		for (TileIndex tile: pyramid.getTiles(level)) {
+			ByteBuffer buffer = pyramid.getTileBuffer(tile);
+			byte[] data = new byte[buffer.remaining()];
+			buffer.get(data);
+			handler.handleTile(tile, data);
+		}
+	}
+
+	@Override
+	public String readMetaData (String basePath) throws IOException {
+		PackedPyramid pyramid = getPyramid(basePath);
+		if (null == pyramid) return null;
+		return pyramid.getMetaData();
+	}
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.io.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+
+
+
+/**
+ * Writes a {@link PackedPyramid} file.
+ * 
+ * Tiles may be added in any order; they are spooled to a temporary file as
+ * they arrive, and sorted into their final order when the writer is closed.
+ * The finished file replaces the destination only once it is complete, so
+ * readers never see a partial pyramid. If the same tile is added more than
+ * once, the last copy wins.
+ */
+public class PackedPyramidWriter implements Closeable {
+	private final File         _destination;
+	private final File         _spoolFile;
+	private final OutputStream _spool;
+	private final List<Entry>  _entries;
+	private final byte[]       _copyBuffer;
+	private long               _spoolSize;
+	private String             _metaData;
+	private boolean            _closed;
+
+	public PackedPyramidWriter (File destination) throws IOException {
+		_destination = destination;
+		File parent = destination.getAbsoluteFile().getParentFile();
+		if (!parent.exists()) parent.mkdirs();
+		_spoolFile = new File(parent, destination.getName()+".spool");
+		_spool = new BufferedOutputStream(new FileOutputStream(_spoolFile), 1 << 16);
+		_entries = new ArrayList<>();
+		_copyBuffer = new byte[1 << 16];
+		_spoolSize = 0L;
+		_metaData = null;
+		_closed = false;
+	}
+
+	/**
+	 * Add an already-serialized tile.
+	 */
+	public void addTile (TileIndex index, byte[] data) throws IOException {
+		addTile(index, data, 0, data.length);
+	}
+
+	/**
+	 * Add an already-serialized tile.
+	 */
+	public void addTile (TileIndex index, byte[] data, int offset, int length) throws IOException {
+		checkOpen();
+		if (length > PackedPyramid.SEGMENT_SIZE) throw new IOException("Tile "+index+" is too large to pack");
+		_spool.write(data, offset, length);
+		addEntry(index, length);
+	}
+
+	/**
+	 * Add an already-serialized tile, read from the given stream until it is
+	 * exhausted. The stream is not closed.
+	 */
+	public void addTile (TileIndex index, InputStream data) throws IOException {
+		checkOpen();
+		long length = 0;
+		int read;
+		while (-1 != (read = data.read(_copyBuffer))) {
+			_spool.write(_copyBuffer, 0, read);
+			length += read;
+		}
+		if (length > PackedPyramid.SEGMENT_SIZE) {
+			_spoolSize += length;
+			throw new IOException("Tile "+index+" is too large to pack");
+		}
+		addEntry(index, (int) length);
+	}
+
+	/**
+	 * Serialize and add a tile.
+	 */
+	public <T> void addTile (TileData<T> tile, TileSerializer<T> serializer) throws IOException {
+		checkOpen();
+		CountingOutputStream counter = new CountingOutputStream(_spool);
+		serializer.serialize(tile, counter);
+		if (counter._count > PackedPyramid.SEGMENT_SIZE) {
+			_spoolSize += counter._count;
+			throw new IOException("Tile "+tile.getDefinition()+" is too large to pack");
+		}
+		addEntry(tile.getDefinition(), (int) counter._count);
+	}
+
+	public void setMetaData (String metaData) {
+		_metaData = metaData;
+	}
+
+	private void checkOpen () throws IOException {
+		if (_closed) throw new IOException("Packed pyramid writer for "+_destination+" is already closed");
+	}
+
+	private void addEntry (TileIndex index, int length) {
+		int level = index.getLevel();
+		_entries.add(new Entry(level, PackedPyramid.hilbertIndex(level, index.getX(), index.getY()), _spoolSize, length));
+		_spoolSize += length;
+	}
+
+	/**
+	 * Write out the finished pyramid, and clean up.
+	 */
+	@Override
+	public void close () throws IOException {
+		if (_closed) return;
+		_closed = true;
+
+		File tempFile = new File(_destination.getAbsoluteFile().getParentFile(), _destination.getName()+".tmp");
+		try {
+			_spool.close();
+			writePyramid(tempFile);
+			Files.move(tempFile.toPath(), _destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			_spoolFile.delete();
+			tempFile.delete();
+		}
+	}
+
+	private void writePyramid (File target) throws IOException {
+		// Sort into file order, keeping only the last copy of each tile
+		Collections.sort(_entries);
+		List<Entry> entries = new ArrayList<>(_entries.size());
+		for (int i = 0; i < _entries.size(); ++i) {
+			Entry entry = _entries.get(i);
+			if (i + 1 < _entries.size() && 0 == entry.compareTile(_entries.get(i + 1))) continue;
+			entries.add(entry);
+		}
+
+		byte[] rawMetaData = (null == _metaData) ? null : _metaData.getBytes(PackedPyramid.UTF8);
+		int metaDataLength = (null == rawMetaData) ? -1 : rawMetaData.length;
+		long directoryOffset = PackedPyramid.HEADER_SIZE;
+		long dataOffset = directoryOffset + (long) entries.size() * PackedPyramid.ENTRY_SIZE + Math.max(0, metaDataLength);
+
+		// Lay out the tile data, padding so no tile crosses a mapped segment
+		long position = 0;
+		for (Entry entry: entries) {
+			long segmentEnd = (position / PackedPyramid.SEGMENT_SIZE + 1) * PackedPyramid.SEGMENT_SIZE;
+			if (position + entry._length > segmentEnd) position = segmentEnd;
+			entry._fileOffset = position;
+			position += entry._length;
+		}
+
+		RandomAccessFile spoolFile = new RandomAccessFile(_spoolFile, "r");
+		FileOutputStream output = new FileOutputStream(target);
+		try {
+			FileChannel spool = spoolFile.getChannel();
+			FileChannel channel = output.getChannel();
+
+			ByteBuffer header = ByteBuffer.allocate(PackedPyramid.HEADER_SIZE);
+			header.putInt(PackedPyramid.MAGIC);
+			header.putInt(PackedPyramid.VERSION);
+			header.putInt(entries.size());
+			header.putInt(metaDataLength);
+			header.putLong(directoryOffset);
+			header.putLong(dataOffset);
+			header.flip();
+			writeFully(channel, header);
+
+			ByteBuffer directory = ByteBuffer.allocate(PackedPyramid.ENTRY_SIZE * 4096);
+			for (Entry entry: entries) {
+				if (!directory.hasRemaining()) {
+					directory.flip();
+					writeFully(channel, directory);
+					directory.clear();
+				}
+				directory.putInt(entry._level);
+				directory.putInt(entry._length);
+				directory.putLong(entry._hilbertIndex);
+				directory.putLong(entry._fileOffset);
+			}
+			directory.flip();
+			writeFully(channel, directory);
+
+			if (null != rawMetaData) {
+				writeFully(channel, ByteBuffer.wrap(rawMetaData));
+			}
+
+			for (Entry entry: entries) {
+				long tilePosition = dataOffset + entry._fileOffset;
+				if (channel.size() < tilePosition) {
+					// Extend the file over the padding, since transferFrom won't
+					writeFully(channel, ByteBuffer.allocate(1), tilePosition - 1);
+				}
+				long transferred = 0;
+				while (transferred < entry._length) {
+					spool.position(entry._spoolOffset + transferred);
+					long n = channel.transferFrom(spool, tilePosition + transferred, entry._length - transferred);
+					if (n <= 0) throw new IOException("Error copying tile data into "+_destination);
+					transferred += n;
+				}
+			}
+			channel.force(false);
+		} finally {
+			output.close();
+			spoolFile.close();
+		}
+	}
+
+	private static void writeFully (FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private static void writeFully (FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+
+
+	private static class Entry implements Comparable<Entry> {
+		final int  _level;
+		final long _hilbertIndex;
+		final long _spoolOffset;
+		final int  _length;
+		long       _fileOffset;
+
+		Entry (int level, long hilbertIndex, long spoolOffset, int length) {
+			_level = level;
+			_hilbertIndex = hilbertIndex;
+			_spoolOffset = spoolOffset;
+			_length = length;
+		}
+
+		int compareTile (Entry that) {
+			if (_level != that._level) return _level < that._level ? -1 : 1;
+			if (_hilbertIndex != that._hilbertIndex) return _hilbertIndex < that._hilbertIndex ? -1 : 1;
+			return 0;
+		}
+
+		@Override
+		public int compareTo (Entry that) {
+			int comparison = compareTile(that);
+			if (0 != comparison) return comparison;
+			// Same tile; later additions sort last
+			return _spoolOffset < that._spoolOffset ? -1 : (_spoolOffset == that._spoolOffset ? 0 : 1);
+		}
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		private final OutputStream _base;
+		private long               _count;
+
+		CountingOutputStream (OutputStream base) {
+			_base = base;
+			_count = 0L;
+		}
+
+		@Override
+		public void write (int b) throws IOException {
+			_base.write(b);
+			++_count;
+		}
+
+		@Override
+		public void write (byte[] b, int off, int len) throws IOException {
+			_base.write(b, off, len);
+			_count += len;
+		}
+
+		@Override
+		public void flush () throws IOException {
+			_base.flush();
+		}
+
+		@Override
+		public void close () throws IOException {
+			// Leave the spool open; serializers often close their output
+			_base.flush();
+		}
+	}
+}
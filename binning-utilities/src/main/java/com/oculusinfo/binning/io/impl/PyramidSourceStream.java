@@ -97,6 +97,7 @@ public abstract class PyramidSourceStream implements PyramidSource {
 
 	public String readMetaData (String basePath) throws IOException {
 		InputStream stream = getSourceMetaDataStream(basePath);
+		if (null == stream) return null;
 		BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
 		String rawMetaData = "";
 		String line;
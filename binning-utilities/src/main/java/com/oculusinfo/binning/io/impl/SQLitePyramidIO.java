@@ -24,9 +24,20 @@
  */
 package com.oculusinfo.binning.io.impl;
 
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.sqlite.SQLiteConfig;
+
 /**
  * A SQLite-based JDBC PyramidIO.
  * 
+ * The database is switched into write-ahead-logging mode, so that readers
+ * don't block on writers, nor writers on readers; reads are done on pooled,
+ * read-only connections, so that any number of threads may read at once.
+ * 
  * @author rcameron
  *
  */
@@ -34,5 +45,29 @@ public class SQLitePyramidIO extends JDBCPyramidIO {
 
 	public SQLitePyramidIO(String dbPath) throws Exception {
 		super("org.sqlite.JDBC", "jdbc:sqlite:" + dbPath);
+		useWriteAheadLog();
+	}
+
+	// WAL mode is persistent, so this only really matters the first time a
+	// database is opened
+	private void useWriteAheadLog () throws SQLException {
+		Connection connection = DriverManager.getConnection(getDbUrl());
+		try {
+			Statement stmt = connection.createStatement();
+			try {
+				stmt.execute("PRAGMA journal_mode=WAL");
+			} finally {
+				stmt.close();
+			}
+		} finally {
+			connection.close();
+		}
+	}
+
+	@Override
+	protected Connection openReadConnection () throws SQLException {
+		SQLiteConfig config = new SQLiteConfig();
+		config.setReadOnly(true);
+		return DriverManager.getConnection(getDbUrl(), config.toProperties());
 	}
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.io.impl;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.oculusinfo.binning.io.TileExistenceIndex;
+
+
+
+/**
+ * Keeps the tile existence indices of a pyramid IO's pyramids.
+ * 
+ * Indices are loaded lazily, in the background: the first request for a
+ * pyramid's index starts loading it, and until it's ready, there is no index,
+ * and every tile must be read. An index is loaded from where it was last
+ * stored if that copy is still current, and otherwise built by listing the
+ * pyramid's tiles, then stored for next time.
+ * 
+ * Whether an index is current is judged by its stamp, which comes from the
+ * pyramid's metadata; since writing a tile set always ends with writing
+ * metadata, a rewritten pyramid gets a new stamp. Indices in use are checked
+ * against the metadata every so often, so that changes made by other
+ * processes are noticed.
+ * 
+ * Subclasses provide access to the underlying store.
+ */
+public abstract class TileExistenceIndexManager {
+	private static final Logger LOGGER = LoggerFactory.getLogger(TileExistenceIndexManager.class);
+	/** By default, indices in use are checked against their pyramids' metadata once every 30 seconds. */
+	public static final long DEFAULT_REVALIDATION_MILLIS = 30000L;
+
+	private ConcurrentHashMap<String, Entry> _entries;
+	private long                             _revalidationMillis;
+	private ThreadPoolExecutor               _executor;
+
+	public TileExistenceIndexManager () {
+		this(DEFAULT_REVALIDATION_MILLIS);
+	}
+
+	public TileExistenceIndexManager (long revalidationMillis) {
+		_entries = new ConcurrentHashMap<>();
+		_revalidationMillis = revalidationMillis;
+		_executor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+		                                   new ThreadFactory() {
+			                                   @Override
+			                                   public Thread newThread (Runnable runnable) {
+				                                   Thread thread = new Thread(runnable, "tile-existence-index");
+				                                   thread.setDaemon(true);
+				                                   return thread;
+			                                   }
+		                                   });
+		_executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Read the metadata of a pyramid, from which its current stamp is taken.
+	 */
+	abstract protected String readMetaData (String pyramidId) throws IOException;
+
+	/**
+	 * Read the last index stored for a pyramid.
+	 * 
+	 * @return The stored index, or null if there is none
+	 */
+	abstract protected TileExistenceIndex readStoredIndex (String pyramidId) throws IOException;
+
+	/**
+	 * Store a pyramid's index, replacing any older one.
+	 */
+	abstract protected void storeIndex (String pyramidId, TileExistenceIndex index) throws IOException;
+
+	/**
+	 * List all existing tiles of a pyramid into a builder.
+	 */
+	abstract protected void addTiles (String pyramidId, TileExistenceIndex.Builder builder) throws IOException;
+
+
+
+	/**
+	 * Get the index of a pyramid, starting to load it if necessary.
+	 * 
+	 * @return The index, or null if it isn't ready yet.
+	 */
+	public TileExistenceIndex getIndex (String pyramidId) {
+		Entry entry = getEntry(pyramidId);
+		synchronized (entry) {
+			if (null == entry._loading) {
+				if (null == entry._index ||
+				    System.currentTimeMillis() - entry._checked > _revalidationMillis) {
+					startLoading(pyramidId, entry);
+				}
+			}
+			return entry._index;
+		}
+	}
+
+	/**
+	 * Get the index of a pyramid, waiting for it to be loaded if necessary.
+	 */
+	public TileExistenceIndex loadIndex (String pyramidId) throws IOException {
+		Entry entry = getEntry(pyramidId);
+		Future<?> loading;
+		synchronized (entry) {
+			if (null != entry._index && System.currentTimeMillis() - entry._checked <= _revalidationMillis) {
+				return entry._index;
+			}
+			if (null == entry._loading) startLoading(pyramidId, entry);
+			loading = entry._loading;
+		}
+		try {
+			loading.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted loading tile existence index for "+pyramidId, e);
+		} catch (ExecutionException e) {
+			throw new IOException("Error loading tile existence index for "+pyramidId, e.getCause());
+		}
+		synchronized (entry) {
+			return entry._index;
+		}
+	}
+
+	/**
+	 * Forget the index of a pyramid, because its tiles are changing. It will
+	 * be rebuilt, rather than loaded from storage, when next needed.
+	 */
+	public void invalidate (String pyramidId) {
+		Entry entry = getEntry(pyramidId);
+		synchronized (entry) {
+			entry._index = null;
+			entry._generation++;
+			// The stored index doesn't know about the change either
+			entry._storedIsStale = true;
+		}
+	}
+
+	/**
+	 * Stop loading indices.
+	 */
+	public void shutdown () {
+		_executor.shutdownNow();
+	}
+
+
+
+	private Entry getEntry (String pyramidId) {
+		Entry entry = _entries.get(pyramidId);
+		if (null == entry) {
+			entry = new Entry();
+			Entry existing = _entries.putIfAbsent(pyramidId, entry);
+			if (null != existing) entry = existing;
+		}
+		return entry;
+	}
+
+	// Must be called while synchronized on the entry
+	private void startLoading (final String pyramidId, final Entry entry) {
+		final int generation = entry._generation;
+		final TileExistenceIndex current = entry._index;
+		final boolean useStored = !entry._storedIsStale;
+		entry._loading = _executor.submit(new Runnable() {
+			@Override
+			public void run () {
+				TileExistenceIndex index = null;
+				try {
+					index = load(pyramidId, current, useStored);
+				} catch (IOException|RuntimeException e) {
+					LOGGER.warn("Couldn't load tile existence index for "+pyramidId, e);
+				} finally {
+					synchronized (entry) {
+						if (generation == entry._generation) {
+							entry._index = index;
+							entry._checked = System.currentTimeMillis();
+							if (null != index) entry._storedIsStale = false;
+						}
+						entry._loading = null;
+					}
+				}
+			}
+		});
+	}
+
+	private TileExistenceIndex load (String pyramidId, TileExistenceIndex current, boolean useStored) throws IOException {
+		long stamp = TileExistenceIndex.getStamp(readMetaData(pyramidId));
+		if (null != current && stamp == current.getStamp()) return current;
+
+		if (useStored) {
+			TileExistenceIndex stored = null;
+			try {
+				stored = readStoredIndex(pyramidId);
+			} catch (IOException e) {
+				LOGGER.warn("Couldn't read stored tile existence index for "+pyramidId+"; rebuilding it", e);
+			}
+			if (null != stored && stamp == stored.getStamp()) return stored;
+		}
+
+		long start = System.currentTimeMillis();
+		TileExistenceIndex.Builder builder = new TileExistenceIndex.Builder(stamp);
+		addTiles(pyramidId, builder);
+		TileExistenceIndex index = builder.build();
+		LOGGER.info("Built tile existence index for {} in {}ms ({} bytes)",
+		            pyramidId, System.currentTimeMillis() - start, index.getSizeInBytes());
+
+		try {
+			storeIndex(pyramidId, index);
+		} catch (IOException|RuntimeException e) {
+			LOGGER.warn("Couldn't store tile existence index for "+pyramidId, e);
+		}
+		return index;
+	}
+
+	private static class Entry {
+		TileExistenceIndex _index      = null;
+		// When the index was last checked against the pyramid's metadata
+		long               _checked    = 0L;
+		// Incremented on invalidation, so loads begun before are discarded
+		int                _generation = 0;
+		// Set on invalidation, until a new index is built and stored
+		boolean            _storedIsStale = false;
+		Future<?>          _loading    = null;
+	}
+}
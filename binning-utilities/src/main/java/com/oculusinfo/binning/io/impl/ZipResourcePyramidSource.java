@@ -24,80 +24,142 @@
  */
 package com.oculusinfo.binning.io.impl;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
 import com.oculusinfo.binning.TileIndex;
 import com.oculusinfo.binning.io.PyramidIO;
 import com.oculusinfo.binning.io.PyramidIOFactory;
 import com.oculusinfo.factory.util.Pair;
 
-import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
-import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 
 /**
  * Extends the PyramidSource abstract class for zip based tiles.
- *  
+ * 
+ * The archive is indexed when first opened (see {@link IndexedZipArchive}),
+ * after which tiles can be read from any number of threads at once without
+ * contention.
  */
 public class ZipResourcePyramidSource extends PyramidSourceStream {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ZipResourcePyramidSource.class);
 
-	private final Logger LOGGER = LoggerFactory.getLogger(getClass());
-
-	private ZipFile      _tileSetArchive;
-	private String       _tileExtension;
+	/** The most zip sources kept open at once */
+	public static final int MAX_CACHED_SOURCES = 32;
 
 	// We meed a global cache of zip stream sources - zip files are very slow to
 	// read, so the source is slow to initialize, so creating a new one each
-	// time we run isn't feasible.
-	private static Map<Pair<String, String>, ZipResourcePyramidSource> _zipfileCache = new HashMap<>();
-	
-	static ZipResourcePyramidSource getZipSource (String rootpath, String extension) {
+	// time we run isn't feasible. Sources that fall out of the cache close
+	// their archives, but reopen them if they are used again.
+	private static final Cache<Pair<String, String>, ZipResourcePyramidSource> _zipfileCache =
+		CacheBuilder.newBuilder()
+		.maximumSize(MAX_CACHED_SOURCES)
+		.removalListener(new RemovalListener<Pair<String, String>, ZipResourcePyramidSource>() {
+			@Override
+			public void onRemoval (RemovalNotification<Pair<String, String>, ZipResourcePyramidSource> notification) {
+				notification.getValue().close();
+			}
+		})
+		.build();
+
+	static ZipResourcePyramidSource getZipSource (final String rootpath, final String extension) {
 		Pair<String, String> key = new Pair<>(rootpath, extension);
-		if (!_zipfileCache.containsKey(key)) {
-			synchronized (_zipfileCache) {
-				if (!_zipfileCache.containsKey(key)) {
-					if (rootpath.startsWith("file://")) {
-						rootpath = rootpath.substring(7);
-					} else if (rootpath.startsWith("res://")) {
-						rootpath = rootpath.substring(6);
-						URL zipFile = PyramidIOFactory.class.getResource(rootpath);
-						rootpath = zipFile.getFile();
+		try {
+			return _zipfileCache.get(key, new Callable<ZipResourcePyramidSource>() {
+				@Override
+				public ZipResourcePyramidSource call () {
+					String path = rootpath;
+					if (path.startsWith("file://")) {
+						path = path.substring(7);
+					} else if (path.startsWith("res://")) {
+						path = path.substring(6);
+						URL zipFile = PyramidIOFactory.class.getResource(path);
+						path = zipFile.getFile();
 					}
-
-					ZipResourcePyramidSource source = new ZipResourcePyramidSource(rootpath, extension);
-					_zipfileCache.put(key, source);
+					return new ZipResourcePyramidSource(path, extension);
 				}
-			}
+			});
+		} catch (ExecutionException e) {
+			throw new IllegalArgumentException("Error opening zip source "+rootpath, e.getCause());
 		}
-		return _zipfileCache.get(key);
 	}
-	
+
+
+
+	private final String                _zipFilePath;
+	private final String                _tileExtension;
+	private volatile IndexedZipArchive  _tileSetArchive;
+
 	public ZipResourcePyramidSource (String zipFilePath, String tileExtension) {
+		_zipFilePath = zipFilePath;
+		_tileExtension = tileExtension;
 		try {
-			_tileSetArchive = new ZipFile(zipFilePath);
-			_tileExtension = tileExtension;
+			_tileSetArchive = new IndexedZipArchive(new File(zipFilePath), tileExtension);
 		} catch (IOException e) {
 			LOGGER.warn("Could not create zip file for " + zipFilePath, e);
 		}
 	}
-	
+
+	/*
+	 * Get our archive, reopening it if it has been closed.
+	 */
+	private IndexedZipArchive getArchive () throws IOException {
+		IndexedZipArchive archive = _tileSetArchive;
+		if (null == archive || !archive.isOpen()) {
+			synchronized (this) {
+				archive = _tileSetArchive;
+				if (null == archive || !archive.isOpen()) {
+					archive = new IndexedZipArchive(new File(_zipFilePath), _tileExtension);
+					_tileSetArchive = archive;
+				}
+			}
+		}
+		return archive;
+	}
+
+	/**
+	 * Close the underlying archive. The source remains usable; the archive
+	 * will be reopened if it is needed again.
+	 */
+	public void close () {
+		IndexedZipArchive archive = _tileSetArchive;
+		if (null != archive) {
+			try {
+				archive.close();
+			} catch (IOException e) {
+				LOGGER.warn("Error closing zip file " + _zipFilePath, e);
+			}
+		}
+	}
+
 	@Override
 	protected InputStream getSourceTileStream (String basePath, TileIndex tile) throws IOException {
-		String tileLocation = String.format("%s/"+PyramidIO.TILES_FOLDERNAME+"/%d/%d/%d." + _tileExtension, basePath, tile.getLevel(), tile.getX(), tile.getY());
-		ZipArchiveEntry entry = _tileSetArchive.getEntry(tileLocation);
-		return _tileSetArchive.getInputStream(entry);
+		try {
+			return getArchive().getTileStream(basePath, tile);
+		} catch (ClosedChannelException e) {
+			// Closed out from under us; try once more with a fresh archive
+			return getArchive().getTileStream(basePath, tile);
+		}
 	}
 
 	@Override
 	protected InputStream getSourceMetaDataStream (String basePath) throws IOException {
 		String location = basePath+"/"+PyramidIO.METADATA_FILENAME;
-		ZipArchiveEntry entry = _tileSetArchive.getEntry(location);
-		return _tileSetArchive.getInputStream(entry);
+		try {
+			return getArchive().getEntryStream(location);
+		} catch (ClosedChannelException e) {
+			return getArchive().getEntryStream(location);
+		}
 	}
 }
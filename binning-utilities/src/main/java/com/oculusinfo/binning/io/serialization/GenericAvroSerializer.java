@@ -47,6 +47,7 @@ import org.apache.avro.io.DatumReader;
 import org.apache.avro.io.DatumWriter;
 
 import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.binning.impl.PrimitiveSparseTileData;
 import com.oculusinfo.binning.impl.SparseTileData;
 import com.oculusinfo.binning.util.TypeDescriptor;
 
@@ -72,6 +73,13 @@ abstract public class GenericAvroSerializer<T> implements TileSerializer<T> {
 		return codec.toString();
 	}
 
+	/**
+	 * Get the compression codec with which tiles are written
+	 */
+	protected CodecFactory getCompressionCodec () {
+		return descriptionToCodec(_compressionCodec);
+	}
+
 
 
 	private transient ThreadLocal<Map<StorageType, Schema>> _tileSchema;
@@ -148,6 +156,28 @@ abstract public class GenericAvroSerializer<T> implements TileSerializer<T> {
 		return metaData;
 	}
 
+	/**
+	 * Create the dense tile into which deserialized data is placed.  Subclasses that know more about their bin type
+	 * may override this to store the data in a more compact form.
+	 *
+	 * @param index The index of the tile being deserialized
+	 * @param data The deserialized bin values, row by row
+	 */
+	protected TileData<T> createDenseTile (TileIndex index, List<T> data) {
+		return new DenseTileData<T>(index, data);
+	}
+
+	/**
+	 * Create the empty sparse tile into which deserialized data is placed.  Subclasses that know more about their bin
+	 * type may override this to store the data in a more compact form.
+	 *
+	 * @param index The index of the tile being deserialized
+	 * @param defaultValue The value of bins not listed in the serialized tile
+	 */
+	protected TileData<T> createSparseTile (TileIndex index, T defaultValue) {
+		return new SparseTileData<T>(index, defaultValue);
+	}
+
 	@Override
 	public TileData<T> deserialize(TileIndex index, InputStream stream) throws IOException {
 
@@ -157,105 +187,134 @@ abstract public class GenericAvroSerializer<T> implements TileSerializer<T> {
 		try {
         	
 			GenericRecord r = dataFileReader.next();
+			return recordToTile(r);
+		} finally {
+			dataFileReader.close();
+			stream.close();
+		}
+	}
 
-			int level = (Integer) r.get("level");
-			int xIndex = (Integer) r.get("xIndex");
-			int yIndex = (Integer) r.get("yIndex");
-			int xBins = (Integer) r.get("xBinCount");
-			int yBins = (Integer) r.get("yBinCount");
-			Map<?, ?> meta = (Map<?, ?>) r.get("meta");
-			TileIndex newTileIndex = new TileIndex(level, xIndex, yIndex, xBins, yBins);
-
-			// Warning suppressed because Array.newInstance definitionally returns
-			// something of the correct type, or throws an exception
-			@SuppressWarnings("unchecked")
-			GenericData.Array<GenericRecord> bins = (GenericData.Array<GenericRecord>) r.get("values");
-
-			// See if this is a sparse or dense array.
-			StorageType storage = StorageType.Dense;
-			if (r.getSchema().getName().equals("sparseTile")) {
-				storage = StorageType.Sparse;
-			}
-			TileData<T> newTile = null;
-
-			switch (storage) {
-			case Dense: {
-				List<T> data = new ArrayList<T>(xBins * yBins);
-				int i = 0;
-				for (GenericRecord bin : bins) {
-					data.add(getValue(bin));
-					++i;
-					if (i >= xBins * yBins) break;
-				}
+	/**
+	 * Convert a generic tile record, as read from a serialized tile, into a tile.
+	 *
+	 * @param r The tile record
+	 * @return The tile represented by the record
+	 */
+	protected TileData<T> recordToTile (GenericRecord r) throws IOException {
+		int level = (Integer) r.get("level");
+		int xIndex = (Integer) r.get("xIndex");
+		int yIndex = (Integer) r.get("yIndex");
+		int xBins = (Integer) r.get("xBinCount");
+		int yBins = (Integer) r.get("yBinCount");
+		Map<?, ?> meta = (Map<?, ?>) r.get("meta");
+		TileIndex newTileIndex = new TileIndex(level, xIndex, yIndex, xBins, yBins);
+
+		// Warning suppressed because Array.newInstance definitionally returns
+		// something of the correct type, or throws an exception
+		@SuppressWarnings("unchecked")
+		GenericData.Array<GenericRecord> bins = (GenericData.Array<GenericRecord>) r.get("values");
+
+		// See if this is a sparse or dense array.
+		StorageType storage = StorageType.Dense;
+		if (r.getSchema().getName().equals("sparseTile")) {
+			storage = StorageType.Sparse;
+		}
+		TileData<T> newTile = null;
 
-				newTile = new DenseTileData<T>(newTileIndex, data);
-				break;
+		switch (storage) {
+		case Dense: {
+			List<T> data = new ArrayList<T>(xBins * yBins);
+			int i = 0;
+			for (GenericRecord bin : bins) {
+				data.add(getValue(bin));
+				++i;
+				if (i >= xBins * yBins) break;
 			}
-			case Sparse: {
-				Map<Integer, Map<Integer, T>> data = new HashMap<>();
-				for (GenericRecord bin : bins) {
-					int x = (Integer) (bin.get("xIndex"));
-					int y = (Integer) (bin.get("yIndex"));
-					T value = getValue((GenericRecord) bin.get("value"));
-					if (!data.containsKey(x)) data.put(x, new HashMap<Integer, T>());
-					data.get(x).put(y, value);
-				}
-				T defaultValue = getValue((GenericRecord) r.get("default"));
 
-				newTile = new SparseTileData<T>(newTileIndex, data, defaultValue);
-				break;
-			}
-			default: return null;
+			newTile = createDenseTile(newTileIndex, data);
+			break;
+		}
+		case Sparse: {
+			T defaultValue = getValue((GenericRecord) r.get("default"));
+			newTile = createSparseTile(newTileIndex, defaultValue);
+			for (GenericRecord bin : bins) {
+				int x = (Integer) (bin.get("xIndex"));
+				int y = (Integer) (bin.get("yIndex"));
+				T value = getValue((GenericRecord) bin.get("value"));
+				newTile.setBin(x, y, value);
 			}
+			break;
+		}
+		default: return null;
+		}
 
-			// Add in metaData
-			if (null != meta) {
-				for (Object key : meta.keySet()) {
-					if (null != key) {
-						Object value = meta.get(key);
-						if (null != value) {
-							newTile.setMetaData(key.toString(), value.toString());
-						}
+		// Add in metaData
+		if (null != meta) {
+			for (Object key : meta.keySet()) {
+				if (null != key) {
+					Object value = meta.get(key);
+					if (null != value) {
+						newTile.setMetaData(key.toString(), value.toString());
 					}
 				}
 			}
-			return newTile;
-		} finally {
-			dataFileReader.close();
-			stream.close();
 		}
+		return newTile;
 	}
 
 	@Override
 	public void serialize (TileData<T> tile, OutputStream stream) throws IOException {
 		if (tile instanceof SparseTileData<?>) {
 			serializeSparse((SparseTileData<T>) tile, stream);
+		} else if (tile instanceof PrimitiveSparseTileData<?>) {
+			serializePrimitiveSparse((PrimitiveSparseTileData<?>) tile, stream);
 		} else {
 			serializeDense(tile, stream);
 		}
 	}
 
 	private void serializeSparse (SparseTileData<T> tile, OutputStream stream) throws IOException {
-		Schema recordSchema = getRecordSchema();
-		Schema tileSchema = getTileSchema(StorageType.Sparse);
-		Schema binSchema = tileSchema.getField("values").schema().getElementType();
-
 		List<GenericRecord> bins = new ArrayList<GenericRecord>();
 
 		Iterator<Pair<BinIndex, T>> i = tile.getData();
 		while (i.hasNext()) {
 			Pair<BinIndex, T> next = i.next();
 			BinIndex index = next.getFirst();
-			T value = next.getSecond();
-			GenericRecord valueRecord = new GenericData.Record(recordSchema);
-			setValue(valueRecord, value);
-			GenericRecord binRecord = new GenericData.Record(binSchema);
-			binRecord.put("xIndex", index.getX());
-			binRecord.put("yIndex", index.getY());
-			binRecord.put("value", valueRecord);
-			bins.add(binRecord);
+			bins.add(createSparseBinRecord(index.getX(), index.getY(), next.getSecond()));
 		}
 
+		writeSparseTile(tile, bins, tile.getDefaultBinValue(), stream);
+	}
+
+	// Warning suppressed because the caller has checked this serializer is
+	// being used with the right bin type, and it fails anyway if it isn't.
+	@SuppressWarnings("unchecked")
+	private void serializePrimitiveSparse (PrimitiveSparseTileData<?> tile, OutputStream stream) throws IOException {
+		List<GenericRecord> bins = new ArrayList<GenericRecord>(tile.size());
+
+		PrimitiveSparseTileData<?>.BinCursor cursor = tile.getCursor();
+		while (cursor.next()) {
+			bins.add(createSparseBinRecord(cursor.getX(), cursor.getY(), (T) cursor.getBin()));
+		}
+
+		writeSparseTile((TileData<T>) tile, bins, (T) tile.getDefaultBinValue(), stream);
+	}
+
+	private GenericRecord createSparseBinRecord (int x, int y, T value) throws IOException {
+		Schema binSchema = getTileSchema(StorageType.Sparse).getField("values").schema().getElementType();
+		GenericRecord valueRecord = new GenericData.Record(getRecordSchema());
+		setValue(valueRecord, value);
+		GenericRecord binRecord = new GenericData.Record(binSchema);
+		binRecord.put("xIndex", x);
+		binRecord.put("yIndex", y);
+		binRecord.put("value", valueRecord);
+		return binRecord;
+	}
+
+	private void writeSparseTile (TileData<T> tile, List<GenericRecord> bins, T defaultValue, OutputStream stream) throws IOException {
+		Schema recordSchema = getRecordSchema();
+		Schema tileSchema = getTileSchema(StorageType.Sparse);
+
 		GenericRecord tileRecord = new GenericData.Record(tileSchema);
 		TileIndex idx = tile.getDefinition();
 		tileRecord.put("level", idx.getLevel());
@@ -267,7 +326,7 @@ abstract public class GenericAvroSerializer<T> implements TileSerializer<T> {
 		tileRecord.put("meta", getTileMetaData(tile));
 
 		GenericRecord defaultValueRecord = new GenericData.Record(recordSchema);
-		setValue(defaultValueRecord, tile.getDefaultBinValue());
+		setValue(defaultValueRecord, defaultValue);
 		tileRecord.put("default", defaultValueRecord);
 
 		writeRecord(tileRecord, tileSchema, stream);
@@ -304,7 +363,7 @@ abstract public class GenericAvroSerializer<T> implements TileSerializer<T> {
 		DatumWriter<GenericRecord> datumWriter = new GenericDatumWriter<GenericRecord>(schema);
 		DataFileWriter<GenericRecord> dataFileWriter = new DataFileWriter<GenericRecord>(datumWriter);
 		try {
-			dataFileWriter.setCodec(descriptionToCodec(_compressionCodec));
+			dataFileWriter.setCodec(getCompressionCodec());
 			dataFileWriter.create(schema, stream);
 			dataFileWriter.append(record);
 			dataFileWriter.close();
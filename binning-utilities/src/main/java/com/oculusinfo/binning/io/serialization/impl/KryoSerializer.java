@@ -17,6 +17,12 @@ import com.esotericsoftware.kryo.io.Output;
 import com.oculusinfo.binning.TileData;
 import com.oculusinfo.binning.TileIndex;
 import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.binning.impl.DoubleDenseTileData;
+import com.oculusinfo.binning.impl.DoubleSparseTileData;
+import com.oculusinfo.binning.impl.IntDenseTileData;
+import com.oculusinfo.binning.impl.IntSparseTileData;
+import com.oculusinfo.binning.impl.LongDenseTileData;
+import com.oculusinfo.binning.impl.LongSparseTileData;
 import com.oculusinfo.binning.impl.SparseTileData;
 import com.oculusinfo.binning.io.serialization.TileSerializer;
 import com.oculusinfo.binning.util.TypeDescriptor;
@@ -164,6 +170,19 @@ public class KryoSerializer<T> implements TileSerializer<T> {
 			for (Class<?> ctr: _classesToRegister) {
 				kryo.register(ctr);
 			}
+
+			// Primitive tile types.  These must be registered after everything
+			// else so as not to change the registration IDs of the classes
+			// above, which would make previously written tiles unreadable.
+			kryo.register(DoubleDenseTileData.class);
+			kryo.register(LongDenseTileData.class);
+			kryo.register(IntDenseTileData.class);
+			kryo.register(double[].class);
+			kryo.register(long[].class);
+			kryo.register(int[].class);
+			kryo.register(DoubleSparseTileData.class);
+			kryo.register(LongSparseTileData.class);
+			kryo.register(IntSparseTileData.class);
 			return kryo;
 		}
 	}
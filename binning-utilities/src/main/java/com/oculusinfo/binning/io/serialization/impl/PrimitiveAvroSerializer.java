@@ -25,16 +25,38 @@
 package com.oculusinfo.binning.io.serialization.impl;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.apache.avro.Schema;
 import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumReader;
 import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.io.Encoder;
 
+import com.oculusinfo.binning.PrimitiveTileData;
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileData.StorageType;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.impl.DoubleDenseTileData;
+import com.oculusinfo.binning.impl.IntDenseTileData;
+import com.oculusinfo.binning.impl.LongDenseTileData;
+import com.oculusinfo.binning.impl.PrimitiveDenseTileData;
+import com.oculusinfo.binning.impl.PrimitiveSparseTileData;
+import com.oculusinfo.binning.impl.SparseTileData;
 import com.oculusinfo.binning.io.serialization.GenericAvroSerializer;
 import com.oculusinfo.binning.util.TypeDescriptor;
 
@@ -47,6 +69,11 @@ import com.oculusinfo.binning.util.TypeDescriptor;
  * allow use of the much simpler String instead of Utf8, but the others stand as
  * is.  Attempting to create a version with any other class will result in a
  * run-time error.
+ *
+ * Tiles of doubles, longs, and ints are read and written directly between the
+ * avro encoder or decoder and a primitive array, without building an
+ * intermediate avro record per bin.  The encoded form is exactly that written
+ * through generic records, so tiles written either way may be read either way.
  */
 public class PrimitiveAvroSerializer<T> extends GenericAvroSerializer<T> {
 	private static final long serialVersionUID = 4949141562108321166L;
@@ -104,16 +131,32 @@ public class PrimitiveAvroSerializer<T> extends GenericAvroSerializer<T> {
 
 
 
-	private Class<? extends T>          _type;
-	private transient Schema            _schema = null;
+	// Bin types that we read and write directly, bypassing generic records
+	private static enum FastPathType {DOUBLE, LONG, INT};
+	private static FastPathType getFastPathType (Class<?> type) {
+		if (Double.class.equals(type)) return FastPathType.DOUBLE;
+		if (Long.class.equals(type)) return FastPathType.LONG;
+		if (Integer.class.equals(type)) return FastPathType.INT;
+		return null;
+	}
+
+
+
+	private Class<? extends T>                      _type;
+	private transient Schema                        _schema = null;
 	// A bit of a hack to handle string tiles as strings rather than Utf8s
-	private boolean                     _toString;
+	private boolean                                 _toString;
+	private FastPathType                            _fastPathType;
+	// Per-thread readers and writers for our fast path
+	private transient ThreadLocal<FastPathWriter>   _fastPathWriter;
+	private transient ThreadLocal<FastPathReader>   _fastPathReader;
 
 	public PrimitiveAvroSerializer (Class<? extends T> type, CodecFactory compressionCodec) {
 		super(compressionCodec, getPrimitiveTypeDescriptor(type));
 
 		_type = type;
 		_toString = (String.class.equals(type));
+		_fastPathType = getFastPathType(type);
 	}
 
 	@Override
@@ -150,4 +193,393 @@ public class PrimitiveAvroSerializer<T> extends GenericAvroSerializer<T> {
 		if (null == value) throw new IOException("Null value for bin");
 		bin.put("value", value);
 	}
+
+	// Numeric tiles are read into primitive arrays rather than collections of
+	// boxed values, to keep the size of cached tiles down.
+	@Override
+	protected TileData<T> createDenseTile (TileIndex index, List<T> data) {
+		TileData<T> tile = PrimitiveDenseTileData.create(index, _type);
+		if (null == tile) {
+			return super.createDenseTile(index, data);
+		}
+
+		int xBins = index.getXBins();
+		int yBins = index.getYBins();
+		for (int y = 0; y < yBins; ++y) {
+			for (int x = 0; x < xBins; ++x) {
+				tile.setBin(x, y, data.get(x + y * xBins));
+			}
+		}
+		return tile;
+	}
+
+	@Override
+	protected TileData<T> createSparseTile (TileIndex index, T defaultValue) {
+		TileData<T> tile = PrimitiveSparseTileData.createWithDefault(index, defaultValue);
+		if (null == tile) {
+			return super.createSparseTile(index, defaultValue);
+		}
+		return tile;
+	}
+
+
+
+	/**
+	 * Determines whether tiles are read and written directly, rather than
+	 * through generic avro records.
+	 */
+	protected boolean useFastPath () {
+		return null != _fastPathType;
+	}
+
+	private FastPathWriter getFastPathWriter () {
+		if (null == _fastPathWriter) {
+			_fastPathWriter = new ThreadLocal<FastPathWriter>() {
+				@Override
+				protected FastPathWriter initialValue () {
+					return new FastPathWriter();
+				}
+			};
+		}
+		return _fastPathWriter.get();
+	}
+
+	private FastPathReader getFastPathReader () {
+		if (null == _fastPathReader) {
+			_fastPathReader = new ThreadLocal<FastPathReader>() {
+				@Override
+				protected FastPathReader initialValue () {
+					return new FastPathReader();
+				}
+			};
+		}
+		return _fastPathReader.get();
+	}
+
+	@Override
+	public TileData<T> deserialize (TileIndex index, InputStream stream) throws IOException {
+		if (!useFastPath()) return super.deserialize(index, stream);
+
+		DataFileStream<TileData<T>> dataFileReader = new DataFileStream<TileData<T>>(stream, getFastPathReader());
+		try {
+			return dataFileReader.next();
+		} finally {
+			dataFileReader.close();
+			stream.close();
+		}
+	}
+
+	@Override
+	public void serialize (TileData<T> tile, OutputStream stream) throws IOException {
+		// Boxed sparse tiles have no primitive store to read from, so just go
+		// the generic route
+		if (!useFastPath() || tile instanceof SparseTileData) {
+			super.serialize(tile, stream);
+			return;
+		}
+
+		StorageType storage = (tile instanceof PrimitiveSparseTileData) ? StorageType.Sparse : StorageType.Dense;
+		Schema schema = getTileSchema(storage);
+		DataFileWriter<TileData<T>> dataFileWriter = new DataFileWriter<TileData<T>>(getFastPathWriter());
+		try {
+			dataFileWriter.setCodec(getCompressionCodec());
+			dataFileWriter.create(schema, stream);
+			dataFileWriter.append(tile);
+		} finally {
+			dataFileWriter.close();
+			stream.close();
+		}
+	}
+
+	// Write a single bin value, exactly as the generic datum writer would
+	// write a recordType record holding it.
+	private void writeValue (Encoder out, Object value) throws IOException {
+		if (null == value) throw new IOException("Null value for bin");
+		switch (_fastPathType) {
+		case DOUBLE: out.writeDouble((Double) value); break;
+		case LONG: out.writeLong((Long) value); break;
+		case INT: out.writeInt((Integer) value); break;
+		}
+	}
+
+	// Read a single bin value written by writeValue
+	@SuppressWarnings("unchecked")
+	private T readValue (Decoder in) throws IOException {
+		switch (_fastPathType) {
+		case DOUBLE: return (T) Double.valueOf(in.readDouble());
+		case LONG: return (T) Long.valueOf(in.readLong());
+		case INT: return (T) Integer.valueOf(in.readInt());
+		default: return null;
+		}
+	}
+
+
+
+	/*
+	 * Writes tiles field by field, in the order given by the dense and sparse
+	 * tile schemas, straight from the tile's data.
+	 */
+	private class FastPathWriter implements DatumWriter<TileData<T>> {
+		@Override
+		public void setSchema (Schema schema) {
+			// The storage type of the tile tells us which schema is in use.
+		}
+
+		@Override
+		public void write (TileData<T> tile, Encoder out) throws IOException {
+			TileIndex index = tile.getDefinition();
+			out.writeInt(index.getLevel());
+			out.writeInt(index.getX());
+			out.writeInt(index.getY());
+			out.writeInt(index.getXBins());
+			out.writeInt(index.getYBins());
+
+			if (tile instanceof PrimitiveSparseTileData) {
+				writeSparseValues((PrimitiveSparseTileData<?>) tile, out);
+			} else {
+				writeDenseValues(tile, out);
+				// Dense tiles have a null default
+				out.writeIndex(1);
+				out.writeNull();
+			}
+
+			Map<String, String> metaData = getTileMetaData(tile);
+			if (null == metaData) {
+				out.writeIndex(1);
+				out.writeNull();
+			} else {
+				out.writeIndex(0);
+				out.writeMapStart();
+				out.setItemCount(metaData.size());
+				for (Map.Entry<String, String> entry: metaData.entrySet()) {
+					out.startItem();
+					out.writeString(entry.getKey());
+					out.writeString(entry.getValue());
+				}
+				out.writeMapEnd();
+			}
+		}
+
+		private void writeDenseValues (TileData<T> tile, Encoder out) throws IOException {
+			TileIndex index = tile.getDefinition();
+			int xBins = index.getXBins();
+			int yBins = index.getYBins();
+
+			out.writeArrayStart();
+			out.setItemCount(xBins * yBins);
+			if (FastPathType.DOUBLE == _fastPathType && tile instanceof DoubleDenseTileData) {
+				for (double value: ((DoubleDenseTileData) tile).getData()) {
+					out.startItem();
+					out.writeDouble(value);
+				}
+			} else if (FastPathType.LONG == _fastPathType && tile instanceof LongDenseTileData) {
+				for (long value: ((LongDenseTileData) tile).getData()) {
+					out.startItem();
+					out.writeLong(value);
+				}
+			} else if (FastPathType.INT == _fastPathType && tile instanceof IntDenseTileData) {
+				for (int value: ((IntDenseTileData) tile).getData()) {
+					out.startItem();
+					out.writeInt(value);
+				}
+			} else {
+				for (int y = 0; y < yBins; ++y) {
+					for (int x = 0; x < xBins; ++x) {
+						out.startItem();
+						writeValue(out, tile.getBin(x, y));
+					}
+				}
+			}
+			out.writeArrayEnd();
+		}
+
+		private void writeSparseValues (PrimitiveSparseTileData<?> tile, Encoder out) throws IOException {
+			out.writeArrayStart();
+			out.setItemCount(tile.size());
+			PrimitiveSparseTileData<?>.BinCursor cursor = tile.getCursor();
+			while (cursor.next()) {
+				out.startItem();
+				out.writeInt(cursor.getX());
+				out.writeInt(cursor.getY());
+				if (FastPathType.DOUBLE == _fastPathType) {
+					out.writeDouble(cursor.getBinDouble());
+				} else {
+					writeValue(out, cursor.getBin());
+				}
+			}
+			out.writeArrayEnd();
+
+			// Sparse tiles always have a default
+			out.writeIndex(0);
+			writeValue(out, tile.getDefaultBinValue());
+		}
+	}
+
+
+
+	/*
+	 * Reads tiles written in our standard dense or sparse schema straight
+	 * into primitive tiles.  Tiles written with any other schema are read
+	 * generically.
+	 */
+	private class FastPathReader implements DatumReader<TileData<T>> {
+		// The storage type of the tile being read, or null if it was written
+		// with a schema other than ours.
+		private StorageType                       _storage;
+		private GenericDatumReader<GenericRecord> _genericReader;
+		// Scratch space for sparse bins, which have to be held until the
+		// tile's default value is known.  Reused from tile to tile.
+		private int[]                             _sparseX = new int[16];
+		private int[]                             _sparseY = new int[16];
+		private double[]                          _sparseValues = new double[16];
+
+		@Override
+		public void setSchema (Schema schema) {
+			try {
+				if (schema.equals(getTileSchema(StorageType.Dense))) {
+					_storage = StorageType.Dense;
+				} else if (schema.equals(getTileSchema(StorageType.Sparse))) {
+					_storage = StorageType.Sparse;
+				} else {
+					_storage = null;
+					_genericReader = new GenericDatumReader<GenericRecord>(schema);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("Error reading tile schema", e);
+			}
+		}
+
+		@Override
+		public TileData<T> read (TileData<T> reuse, Decoder in) throws IOException {
+			if (null == _storage) {
+				return recordToTile(_genericReader.read(null, in));
+			}
+
+			int level = in.readInt();
+			int xIndex = in.readInt();
+			int yIndex = in.readInt();
+			int xBins = in.readInt();
+			int yBins = in.readInt();
+			TileIndex index = new TileIndex(level, xIndex, yIndex, xBins, yBins);
+
+			TileData<T> tile;
+			if (StorageType.Sparse == _storage) {
+				tile = readSparseTile(index, in);
+			} else {
+				tile = readDenseTile(index, in);
+				// Dense tiles don't use their default value
+				if (0 == in.readIndex()) readValue(in);
+				else in.readNull();
+			}
+
+			if (0 == in.readIndex()) {
+				for (long n = in.readMapStart(); n > 0; n = in.mapNext()) {
+					for (long i = 0; i < n; ++i) {
+						String key = in.readString(null).toString();
+						String value = in.readString(null).toString();
+						tile.setMetaData(key, value);
+					}
+				}
+			} else {
+				in.readNull();
+			}
+			return tile;
+		}
+
+		@SuppressWarnings("unchecked")
+		private TileData<T> readDenseTile (TileIndex index, Decoder in) throws IOException {
+			int size = index.getXBins() * index.getYBins();
+			int read = 0;
+
+			TileData<?> tile;
+			switch (_fastPathType) {
+			case DOUBLE: {
+				double[] data = new double[size];
+				for (long n = in.readArrayStart(); n > 0; n = in.arrayNext()) {
+					for (long i = 0; i < n; ++i) {
+						double value = in.readDouble();
+						if (read < size) data[read] = value;
+						++read;
+					}
+				}
+				tile = new DoubleDenseTileData(index, data);
+				break;
+			}
+			case LONG: {
+				long[] data = new long[size];
+				for (long n = in.readArrayStart(); n > 0; n = in.arrayNext()) {
+					for (long i = 0; i < n; ++i) {
+						long value = in.readLong();
+						if (read < size) data[read] = value;
+						++read;
+					}
+				}
+				tile = new LongDenseTileData(index, data);
+				break;
+			}
+			case INT:
+			default: {
+				int[] data = new int[size];
+				for (long n = in.readArrayStart(); n > 0; n = in.arrayNext()) {
+					for (long i = 0; i < n; ++i) {
+						int value = in.readInt();
+						if (read < size) data[read] = value;
+						++read;
+					}
+				}
+				tile = new IntDenseTileData(index, data);
+				break;
+			}
+			}
+
+			if (read < size) {
+				throw new IOException("Data was of the wrong length.  Should have been "+size+", was "+read);
+			}
+			return (TileData<T>) tile;
+		}
+
+		private TileData<T> readSparseTile (TileIndex index, Decoder in) throws IOException {
+			int read = 0;
+			// Longs are the only type that can't be held exactly in a double;
+			// those we store directly into the tile once it exists.
+			List<T> longValues = null;
+			for (long n = in.readArrayStart(); n > 0; n = in.arrayNext()) {
+				for (long i = 0; i < n; ++i) {
+					ensureSparseCapacity(read + 1);
+					_sparseX[read] = in.readInt();
+					_sparseY[read] = in.readInt();
+					if (FastPathType.LONG == _fastPathType) {
+						if (null == longValues) longValues = new ArrayList<T>();
+						longValues.add(readValue(in));
+					} else {
+						_sparseValues[read] = (FastPathType.DOUBLE == _fastPathType) ? in.readDouble() : in.readInt();
+					}
+					++read;
+				}
+			}
+
+			T defaultValue = null;
+			if (0 == in.readIndex()) defaultValue = readValue(in);
+			else in.readNull();
+
+			TileData<T> tile = createSparseTile(index, defaultValue);
+			for (int i = 0; i < read; ++i) {
+				if (null != longValues) {
+					tile.setBin(_sparseX[i], _sparseY[i], longValues.get(i));
+				} else {
+					((PrimitiveTileData<?>) tile).setBinDouble(_sparseX[i], _sparseY[i], _sparseValues[i]);
+				}
+			}
+			return tile;
+		}
+
+		private void ensureSparseCapacity (int capacity) {
+			if (capacity > _sparseX.length) {
+				int newCapacity = Math.max(capacity, 2 * _sparseX.length);
+				_sparseX = Arrays.copyOf(_sparseX, newCapacity);
+				_sparseY = Arrays.copyOf(_sparseY, newCapacity);
+				_sparseValues = Arrays.copyOf(_sparseValues, newCapacity);
+			}
+		}
+	}
 }
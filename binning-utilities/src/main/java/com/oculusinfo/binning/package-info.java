@@ -84,6 +84,8 @@
  * which tile and/or bin is meant. </li>
  * <li> {@link com.oculusinfo.binning.TileData}, {@link com.oculusinfo.binning.impl.DenseTileData}, and
  * {@link com.oculusinfo.binning.impl.SparseTileData} which store the data comprising a tile </li>
+ * <li> {@link com.oculusinfo.binning.PrimitiveTileData} and its implementations, such as
+ * {@link com.oculusinfo.binning.impl.DoubleDenseTileData}, which store numeric tiles without boxing </li>
  * <li> {@link com.oculusinfo.binning.TilePyramid}, which indicates the 
  * mapping, or projection, from the raw data into tile coordinates, </li>
  * <li> {@link com.oculusinfo.binning.PyramidComparator}, which can be used 
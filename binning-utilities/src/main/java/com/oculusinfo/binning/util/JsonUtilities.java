@@ -108,6 +108,49 @@ public class JsonUtilities {
 		}
 	}
 
+	/**
+	 * Write a JSON object as a string in a canonical form, with the keys of
+	 * every object in sorted order, so that objects with the same contents
+	 * always produce the same string.
+	 */
+	public static String toCanonicalString (JSONObject source) {
+		StringBuilder result = new StringBuilder();
+		try {
+			appendCanonical(source, result);
+		} catch (JSONException e) {
+			LOGGER.error("Weird JSON exception writing object", e);
+		}
+		return result.toString();
+	}
+
+	private static void appendCanonical (Object value, StringBuilder result) throws JSONException {
+		if (value instanceof JSONObject) {
+			JSONObject object = (JSONObject) value;
+			String[] keys = JSONObject.getNames(object);
+			result.append("{");
+			if (null != keys) {
+				Arrays.sort(keys);
+				for (int i=0; i<keys.length; ++i) {
+					if (i > 0) result.append(",");
+					result.append(JSONObject.quote(keys[i]));
+					result.append(":");
+					appendCanonical(object.get(keys[i]), result);
+				}
+			}
+			result.append("}");
+		} else if (value instanceof JSONArray) {
+			JSONArray array = (JSONArray) value;
+			result.append("[");
+			for (int i=0; i<array.length(); ++i) {
+				if (i > 0) result.append(",");
+				appendCanonical(array.opt(i), result);
+			}
+			result.append("]");
+		} else {
+			result.append(JSONObject.valueToString(value));
+		}
+	}
+
 	/**
 	 * Overlays one JSON object, in place, over another, deeply.
 	 *
@@ -132,6 +132,41 @@ public class PyramidComparatorTests {
 			}
 		}
 	}
+	@Test
+	public void testTileKeys () {
+		// Within a level, keys follow the Morton curve, as do comparisons
+		for (int x1 = 0; x1 < 8; ++x1) {
+			for (int y1 = 0; y1 < 8; ++y1) {
+				TileIndex index1 = new TileIndex(3, x1, y1);
+				long key1 = PyramidComparator.getTileIndexKey(index1);
+
+				for (int x2 = 0; x2 < 8; ++x2) {
+					for (int y2 = 0; y2 < 8; ++y2) {
+						TileIndex index2 = new TileIndex(3, x2, y2);
+						long key2 = PyramidComparator.getTileIndexKey(index2);
+
+						String message = String.format("Tile %s didn't compare properly to tile %s",
+						                               index1.toString(), index2.toString());
+						Assert.assertEquals(message,
+						                    signum(Integer.compare(_order.get(y1).get(x1), _order.get(y2).get(x2))),
+						                    signum(Long.compare(key1, key2)));
+						Assert.assertEquals(message,
+						                    signum(_comparator.compareIndex(index1, index2)),
+						                    signum(Long.compare(key1, key2)));
+					}
+				}
+			}
+		}
+
+		// Across levels, every tile of a lower level comes first
+		for (int level = 0; level < 30; ++level) {
+			int max = (1 << level) - 1;
+			long lastOfLevel = PyramidComparator.getTileIndexKey(new TileIndex(level, max, max));
+			long firstOfNext = PyramidComparator.getTileIndexKey(new TileIndex(level+1, 0, 0));
+			Assert.assertTrue(lastOfLevel < firstOfNext);
+		}
+	}
+
 	@Test
 	public void testTileComparisons () {
 		for (int L1 = 0; L1 < 5; ++L1) {
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.apache.avro.file.CodecFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.oculusinfo.binning.PrimitiveTileData;
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+import com.oculusinfo.binning.io.serialization.impl.KryoSerializer;
+import com.oculusinfo.binning.io.serialization.impl.PrimitiveAvroSerializer;
+import com.oculusinfo.binning.util.TypeDescriptor;
+
+public class PrimitiveDenseTileDataTests {
+	private static final double EPSILON = 1E-12;
+
+	@Test
+	public void testBinOrdering () {
+		TileIndex index = new TileIndex(0, 0, 0, 4, 4);
+		double[] data = new double[16];
+		for (int i=0; i<16; ++i) data[i] = i;
+		DoubleDenseTileData tile = new DoubleDenseTileData(index, data);
+
+		// Same layout as DenseTileData - row by row
+		Assert.assertEquals(1.0, tile.getBin(1, 0), EPSILON);
+		Assert.assertEquals(4.0, tile.getBin(0, 1), EPSILON);
+		Assert.assertEquals(15.0, tile.getBinDouble(3, 3), EPSILON);
+		Assert.assertEquals(DenseTileData.getData(tile), DenseTileData.getData(new DenseTileData<Double>(index, DenseTileData.getData(tile))));
+	}
+
+	@Test
+	public void testBoxedAndUnboxedAccess () {
+		TileIndex index = new TileIndex(0, 0, 0, 4, 4);
+		DoubleDenseTileData doubles = new DoubleDenseTileData(index, 1.5);
+		LongDenseTileData longs = new LongDenseTileData(index, 3L);
+		IntDenseTileData ints = new IntDenseTileData(index);
+
+		Assert.assertEquals(1.5, doubles.getBin(2, 2), EPSILON);
+		Assert.assertEquals(3L, longs.getBin(2, 2).longValue());
+		Assert.assertEquals(0, ints.getBin(2, 2).intValue());
+
+		doubles.setBin(1, 2, 4.25);
+		longs.setBinDouble(1, 2, 7.9);
+		ints.setBinDouble(1, 2, -2.0);
+
+		Assert.assertEquals(4.25, doubles.getBinDouble(1, 2), EPSILON);
+		Assert.assertEquals(7L, longs.getBin(1, 2).longValue());
+		Assert.assertEquals(-2.0, ints.getBinDouble(1, 2), EPSILON);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOutOfBounds () {
+		new DoubleDenseTileData(new TileIndex(0, 0, 0, 4, 4)).getBinDouble(4, 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNullBin () {
+		new LongDenseTileData(new TileIndex(0, 0, 0, 4, 4)).setBin(0, 0, null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadDataLength () {
+		new IntDenseTileData(new TileIndex(0, 0, 0, 4, 4), new int[15]);
+	}
+
+	@Test
+	public void testFactory () {
+		TileIndex index = new TileIndex(0, 0, 0, 4, 4);
+		Assert.assertTrue(PrimitiveDenseTileData.create(index, Double.class) instanceof DoubleDenseTileData);
+		Assert.assertTrue(PrimitiveDenseTileData.create(index, Long.class) instanceof LongDenseTileData);
+		Assert.assertTrue(PrimitiveDenseTileData.create(index, Integer.class) instanceof IntDenseTileData);
+		Assert.assertNull(PrimitiveDenseTileData.create(index, String.class));
+
+		TileData<Double> withDefault = PrimitiveDenseTileData.createWithDefault(index, 2.0);
+		Assert.assertTrue(withDefault instanceof DoubleDenseTileData);
+		Assert.assertEquals(2.0, withDefault.getBin(3, 3), EPSILON);
+		Assert.assertNull(PrimitiveDenseTileData.createWithDefault(index, "abc"));
+	}
+
+	@Test
+	public void testAvroRoundTrip () throws Exception {
+		TileIndex index = new TileIndex(2, 1, 3, 4, 4);
+		DoubleDenseTileData tile = new DoubleDenseTileData(index);
+		for (int x=0; x<4; ++x) for (int y=0; y<4; ++y) tile.setBinDouble(x, y, x * 10 + y);
+		tile.setMetaData("a", "b");
+
+		TileData<Double> result = roundTrip(tile, new PrimitiveAvroSerializer<>(Double.class, CodecFactory.nullCodec()));
+		Assert.assertTrue(result instanceof PrimitiveTileData);
+		Assert.assertEquals("b", result.getMetaData("a"));
+		for (int x=0; x<4; ++x) for (int y=0; y<4; ++y)
+			Assert.assertEquals(tile.getBinDouble(x, y), result.getBin(x, y), EPSILON);
+	}
+
+	@Test
+	public void testKryoRoundTrip () throws Exception {
+		TileIndex index = new TileIndex(2, 1, 3, 4, 4);
+		LongDenseTileData tile = new LongDenseTileData(index);
+		for (int x=0; x<4; ++x) for (int y=0; y<4; ++y) tile.setBin(x, y, (long) (x * 10 + y));
+
+		TileData<Long> result = roundTrip(tile, new KryoSerializer<Long>(new TypeDescriptor(Long.class)));
+		Assert.assertTrue(result instanceof LongDenseTileData);
+		for (int x=0; x<4; ++x) for (int y=0; y<4; ++y)
+			Assert.assertEquals(tile.getBin(x, y), result.getBin(x, y));
+	}
+
+	private <T> TileData<T> roundTrip (TileData<T> tile, TileSerializer<T> serializer) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		serializer.serialize(tile, baos);
+		baos.flush();
+		baos.close();
+		return serializer.deserialize(tile.getDefinition(), new ByteArrayInputStream(baos.toByteArray()));
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.avro.file.CodecFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.oculusinfo.binning.BinIndex;
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+import com.oculusinfo.binning.io.serialization.impl.PrimitiveAvroSerializer;
+
+public class PrimitiveSparseTileDataTests {
+	private static final double EPSILON = 1E-12;
+
+	@Test
+	public void testDefaultValue () {
+		IntSparseTileData tile = new IntSparseTileData(new TileIndex(0, 0, 0, 4, 4), 27);
+		for (int x = 0; x < 4; ++x) {
+			for (int y = 0; y < 4; ++y) {
+				Assert.assertEquals(27, tile.getBin(x, y).intValue());
+			}
+		}
+		Assert.assertEquals(27, tile.getDefaultBinValue().intValue());
+		Assert.assertEquals(0, tile.size());
+		Assert.assertFalse(tile.getCursor().next());
+	}
+
+	@Test
+	public void testCursor () {
+		DoubleSparseTileData tile = new DoubleSparseTileData(new TileIndex(0, 0, 0), Double.NaN);
+		Map<BinIndex, Double> expected = new HashMap<>();
+		// Enough bins to force several resizes of the underlying table
+		for (int i = 0; i < 1000; ++i) {
+			int x = (i * 37) % 256;
+			int y = (i * 101) % 256;
+			tile.setBinDouble(x, y, i);
+			expected.put(new BinIndex(x, y), (double) i);
+		}
+		// Overwriting shouldn't add new bins
+		tile.setBin(0, 0, -1.0);
+		expected.put(new BinIndex(0, 0), -1.0);
+		Assert.assertEquals(expected.size(), tile.size());
+
+		PrimitiveSparseTileData<Double>.BinCursor cursor = tile.getCursor();
+		int n = 0;
+		while (cursor.next()) {
+			BinIndex bin = new BinIndex(cursor.getX(), cursor.getY());
+			Assert.assertEquals(expected.get(bin), cursor.getBinDouble(), EPSILON);
+			Assert.assertEquals(expected.get(bin), cursor.getBin());
+			++n;
+		}
+		Assert.assertEquals(expected.size(), n);
+
+		Assert.assertEquals(-1.0, tile.getBin(0, 0), EPSILON);
+		Assert.assertTrue(Double.isNaN(tile.getBinDouble(1, 0)));
+	}
+
+	@Test
+	public void testLongPrecision () {
+		LongSparseTileData tile = new LongSparseTileData(new TileIndex(0, 0, 0, 4, 4), 0L);
+		tile.setBin(3, 2, Long.MAX_VALUE);
+		Assert.assertEquals(Long.MAX_VALUE, tile.getBin(3, 2).longValue());
+		Assert.assertEquals(0L, tile.getBin(2, 3).longValue());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOutOfBounds () {
+		new IntSparseTileData(new TileIndex(0, 0, 0, 4, 4), 0).setBin(0, 4, 1);
+	}
+
+	@Test
+	public void testFactory () {
+		TileIndex index = new TileIndex(0, 0, 0, 4, 4);
+		Assert.assertTrue(PrimitiveSparseTileData.createWithDefault(index, 0.0) instanceof DoubleSparseTileData);
+		Assert.assertTrue(PrimitiveSparseTileData.createWithDefault(index, 0L) instanceof LongSparseTileData);
+		Assert.assertTrue(PrimitiveSparseTileData.createWithDefault(index, 0) instanceof IntSparseTileData);
+		Assert.assertNull(PrimitiveSparseTileData.createWithDefault(index, "abc"));
+		Assert.assertNull(PrimitiveSparseTileData.createWithDefault(index, null));
+	}
+
+	@Test
+	public void testAvroRoundTrip () throws Exception {
+		TileIndex index = new TileIndex(4, 3, 2, 8, 8);
+		IntSparseTileData tile = new IntSparseTileData(index, -1);
+		tile.setBin(1, 2, 3);
+		tile.setBin(7, 7, 4);
+		tile.setBin(0, 5, 5);
+		tile.setMetaData("a", "b");
+
+		TileSerializer<Integer> serializer = new PrimitiveAvroSerializer<>(Integer.class, CodecFactory.nullCodec());
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		serializer.serialize(tile, baos);
+		baos.flush();
+		baos.close();
+		TileData<Integer> result = serializer.deserialize(index, new ByteArrayInputStream(baos.toByteArray()));
+
+		Assert.assertTrue(result instanceof IntSparseTileData);
+		Assert.assertEquals(3, ((IntSparseTileData) result).size());
+		Assert.assertEquals("b", result.getMetaData("a"));
+		for (int x = 0; x < 8; ++x) {
+			for (int y = 0; y < 8; ++y) {
+				Assert.assertEquals(tile.getBin(x, y), result.getBin(x, y));
+			}
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.oculusinfo.binning.TileIndex;
+
+public class TileExistenceIndexTest {
+	// A sparse pyramid: a random tenth of the tiles of levels 0 through 12
+	private static Set<TileIndex> sparseTiles () {
+		Random random = new Random(32452843);
+		Set<TileIndex> tiles = new HashSet<>();
+		for (int level = 0; level <= 12; ++level) {
+			int size = 1 << level;
+			int count = Math.max(1, Math.min(20000, size * size / 10));
+			for (int i = 0; i < count; ++i) {
+				tiles.add(new TileIndex(level, random.nextInt(size), random.nextInt(size)));
+			}
+		}
+		return tiles;
+	}
+
+	private static TileExistenceIndex buildIndex (Set<TileIndex> tiles) {
+		TileExistenceIndex.Builder builder = new TileExistenceIndex.Builder(TileExistenceIndex.getStamp("metadata"));
+		for (TileIndex tile: tiles) builder.add(tile);
+		return builder.build();
+	}
+
+	@Test
+	public void testNoFalseNegatives () {
+		Set<TileIndex> tiles = sparseTiles();
+		TileExistenceIndex index = buildIndex(tiles);
+		for (TileIndex tile: tiles) {
+			Assert.assertTrue(tile.toString(), index.mightExist(tile));
+		}
+	}
+
+	@Test
+	public void testShallowLevelsAreExact () {
+		Set<TileIndex> tiles = sparseTiles();
+		TileExistenceIndex index = buildIndex(tiles);
+		for (int level = 0; level < TileExistenceIndex.DEFAULT_BITMAP_LEVELS; ++level) {
+			int size = 1 << level;
+			for (int x = 0; x < size; ++x) {
+				for (int y = 0; y < size; ++y) {
+					TileIndex tile = new TileIndex(level, x, y);
+					Assert.assertEquals(tile.toString(), tiles.contains(tile), index.mightExist(tile));
+				}
+			}
+		}
+		// Out of bounds tiles never exist
+		Assert.assertFalse(index.mightExist(new TileIndex(2, 4, 0)));
+		Assert.assertFalse(index.mightExist(new TileIndex(12, -1, 0)));
+	}
+
+	@Test
+	public void testFalsePositiveRate () {
+		Set<TileIndex> tiles = sparseTiles();
+		TileExistenceIndex index = buildIndex(tiles);
+
+		Random random = new Random(49979687);
+		List<TileIndex> missing = new ArrayList<>();
+		while (missing.size() < 100000) {
+			int level = 9 + random.nextInt(4);
+			TileIndex tile = new TileIndex(level, random.nextInt(1 << level), random.nextInt(1 << level));
+			if (!tiles.contains(tile)) missing.add(tile);
+		}
+
+		List<TileIndex> passed = index.filter(missing);
+		index.recordFalsePositives(passed.size());
+		Assert.assertEquals(missing.size() - passed.size(), index.getReadsSaved());
+		Assert.assertEquals(passed.size(), index.getFalsePositives());
+
+		double expected = index.getExpectedFalsePositiveRate();
+		Assert.assertTrue("expected rate "+expected, expected > 0.002 && expected < 0.02);
+		// Blocking costs a little accuracy
+		double observed = index.getFalsePositiveRate();
+		Assert.assertTrue("observed rate "+observed+", expected "+expected, observed < 2 * expected);
+	}
+
+	@Test
+	public void testRoundTrip () throws IOException {
+		Set<TileIndex> tiles = sparseTiles();
+		TileExistenceIndex index = buildIndex(tiles);
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		index.write(baos);
+		TileExistenceIndex read = TileExistenceIndex.read(new ByteArrayInputStream(baos.toByteArray()));
+
+		Assert.assertEquals(index.getStamp(), read.getStamp());
+		Assert.assertEquals(index.getSizeInBytes(), read.getSizeInBytes());
+		Assert.assertEquals(index.getExpectedFalsePositiveRate(), read.getExpectedFalsePositiveRate(), 1E-12);
+		Random random = new Random(86028121);
+		for (int i = 0; i < 100000; ++i) {
+			int level = random.nextInt(13);
+			TileIndex tile = new TileIndex(level, random.nextInt(1 << level), random.nextInt(1 << level));
+			Assert.assertEquals(index.mightExist(tile), read.mightExist(tile));
+		}
+	}
+
+	@Test
+	public void testStamp () {
+		Assert.assertEquals(TileExistenceIndex.getStamp("{\"a\":1}"), TileExistenceIndex.getStamp("{\"a\":1}"));
+		Assert.assertFalse(TileExistenceIndex.getStamp("{\"a\":1}") == TileExistenceIndex.getStamp("{\"a\":2}"));
+	}
+}
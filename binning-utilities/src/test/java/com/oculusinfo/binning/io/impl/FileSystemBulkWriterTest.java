@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.io.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.binning.io.PyramidIO;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+
+public class FileSystemBulkWriterTest {
+	private static final String PYRAMID = "bulk";
+
+	private File _root;
+
+	@Before
+	public void setup () throws IOException {
+		_root = File.createTempFile("bulk-writer-test", "");
+		_root.delete();
+		_root.mkdirs();
+	}
+
+	@After
+	public void cleanup () {
+		try {
+			FileUtils.deleteDirectory(_root);
+		} catch (IOException e) {
+			// swallow exception
+		}
+	}
+
+	private static List<TileData<Integer>> levelTiles (int level) {
+		List<TileData<Integer>> tiles = new ArrayList<>();
+		for (int x = 0; x < (1 << level); ++x) {
+			for (int y = 0; y < (1 << level); ++y) {
+				TileData<Integer> tile = new DenseTileData<>(new TileIndex(level, x, y, 1, 1));
+				tile.setBin(0, 0, level * 10000 + x * 100 + y);
+				tiles.add(tile);
+			}
+		}
+		return tiles;
+	}
+
+	@Test
+	public void testParallelWrite () throws IOException {
+		FileSystemPyramidSource source = new FileSystemPyramidSource(_root.getPath(), "avro");
+		TileSerializer<Integer> serializer = new IntegerTileSerializer();
+		FileSystemBulkWriter writer = new FileSystemBulkWriter(source, PYRAMID, 4);
+		try {
+			for (int level = 0; level < 6; ++level) {
+				writer.writeTiles(serializer, levelTiles(level));
+			}
+			Assert.assertEquals(1 + 4 + 16 + 64 + 256 + 1024, writer.getTilesWritten());
+			Assert.assertTrue(writer.getTilesPerSecond() > 0.0);
+		} finally {
+			writer.close();
+		}
+
+		FileBasedPyramidIO io = new FileBasedPyramidIO(source);
+		for (int level = 0; level < 6; ++level) {
+			List<TileData<Integer>> expected = levelTiles(level);
+			List<TileIndex> indices = new ArrayList<>();
+			for (TileData<Integer> tile: expected) indices.add(tile.getDefinition());
+			List<TileData<Integer>> actual = io.readTiles(PYRAMID, serializer, indices);
+			Assert.assertEquals(expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); ++i) {
+				Assert.assertEquals(expected.get(i).getBin(0, 0), actual.get(i).getBin(0, 0));
+			}
+		}
+
+		// No temporary files should be left behind
+		for (File file: FileUtils.listFiles(new File(_root, PYRAMID+"/"+PyramidIO.TILES_FOLDERNAME), null, true)) {
+			Assert.assertTrue(file.getName(), file.getName().endsWith(".avro"));
+		}
+	}
+
+	@Test
+	public void testManifest () throws IOException {
+		FileSystemPyramidSource source = new FileSystemPyramidSource(_root.getPath(), "avro");
+		FileSystemBulkWriter writer = new FileSystemBulkWriter(source, PYRAMID, 2);
+		try {
+			writer.writeTiles(new IntegerTileSerializer(), levelTiles(1));
+			writer.completeLevel(1);
+			writer.completeLevel(3);
+			Assert.assertTrue(writer.isLevelComplete(1));
+			Assert.assertFalse(writer.isLevelComplete(2));
+		} finally {
+			writer.close();
+		}
+
+		// A new writer, as if the export was restarted, should see the same
+		FileSystemBulkWriter resumed = new FileSystemBulkWriter(source, PYRAMID, 2);
+		try {
+			Assert.assertTrue(resumed.isLevelComplete(1));
+			Assert.assertFalse(resumed.isLevelComplete(2));
+			Assert.assertTrue(resumed.isLevelComplete(3));
+
+			resumed.resetManifest();
+			Assert.assertFalse(resumed.isLevelComplete(1));
+		} finally {
+			resumed.close();
+		}
+		Assert.assertFalse(new FileSystemBulkWriter(source, PYRAMID, 1).isLevelComplete(3));
+	}
+
+	@Test
+	public void testFailuresAreReported () throws IOException {
+		FileSystemPyramidSource source = new FileSystemPyramidSource(_root.getPath(), "avro");
+		FileSystemBulkWriter writer = new FileSystemBulkWriter(source, PYRAMID, 2);
+		try {
+			writer.writeTiles(new IntegerTileSerializer() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				public void serialize (TileData<Integer> data, OutputStream output) throws IOException {
+					throw new IOException("Test failure");
+				}
+			}, levelTiles(2));
+			Assert.fail("Serialization failure not reported");
+		} catch (IOException e) {
+			Assert.assertEquals("Test failure", e.getMessage());
+		} finally {
+			writer.close();
+		}
+
+		// Nothing, not even partial files, should have been written
+		File tiles = new File(_root, PYRAMID+"/"+PyramidIO.TILES_FOLDERNAME);
+		Assert.assertTrue(!tiles.exists() || FileUtils.listFiles(tiles, null, true).isEmpty());
+	}
+}
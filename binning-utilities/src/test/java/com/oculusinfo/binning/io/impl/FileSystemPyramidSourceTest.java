@@ -28,6 +28,7 @@ import com.oculusinfo.binning.TileData;
 import com.oculusinfo.binning.TileIndex;
 import com.oculusinfo.binning.impl.DenseTileData;
 import com.oculusinfo.binning.io.PyramidIO;
+import com.oculusinfo.binning.io.TileExistenceIndex;
 import com.oculusinfo.binning.io.serialization.TileSerializer;
 import com.oculusinfo.binning.io.serialization.impl.PrimitiveAvroSerializer;
 
@@ -89,6 +90,68 @@ public class FileSystemPyramidSourceTest {
 		}
 	}
 
+	@Test
+	public void existenceIndexTest () throws IOException {
+		FileSystemPyramidSource source = new FileSystemPyramidSource(SOURCE_DIR, SOURCE_EXT);
+		source.setTileExistenceIndexEnabled(true);
+		FileBasedPyramidIO io = new FileBasedPyramidIO(source);
+		TileSerializer<Integer> serializer = new IntegerTileSerializer();
+
+		// Every other tile of level 3
+		ArrayList<TileData<Integer>> writeTiles = new ArrayList<>();
+		List<TileIndex> allTiles = new ArrayList<>();
+		for (int x = 0; x < 8; ++x) {
+			for (int y = 0; y < 8; ++y) {
+				TileIndex index = new TileIndex(3, x, y, 1, 1);
+				allTiles.add(index);
+				if (0 == (x + y) % 2) {
+					TileData<Integer> tile = new DenseTileData<>(index);
+					tile.setBin(0, 0, x * 8 + y);
+					writeTiles.add(tile);
+				}
+			}
+		}
+		writeAvroTiles(io, serializer, SOURCE_LAYER, writeTiles);
+		io.writeMetaData(SOURCE_LAYER, "{\"version\": 1}");
+
+		TileExistenceIndex index = source.getExistenceIndices().loadIndex(SOURCE_LAYER);
+		Assert.assertNotNull(index);
+		Assert.assertSame(index, io.getTileExistenceIndex(SOURCE_LAYER));
+		Assert.assertTrue(new File(SOURCE_DIR + SOURCE_LAYER, FileSystemPyramidSource.EXISTENCE_INDEX_FILENAME).isFile());
+
+		List<TileData<Integer>> readTiles = io.readTiles(SOURCE_LAYER, serializer, allTiles);
+		Assert.assertEquals(32, readTiles.size());
+		Assert.assertEquals(32, index.getReadsSaved());
+		Assert.assertEquals(0, index.getFalsePositives());
+		Assert.assertNull(io.getTileStream(SOURCE_LAYER, serializer, new TileIndex(3, 0, 1)));
+		Assert.assertEquals(33, index.getReadsSaved());
+
+		// Writing invalidates the index, so new tiles are seen at once
+		TileData<Integer> added = new DenseTileData<>(new TileIndex(3, 0, 1, 1, 1));
+		added.setBin(0, 0, 1);
+		writeTiles.clear();
+		writeTiles.add(added);
+		writeAvroTiles(io, serializer, SOURCE_LAYER, writeTiles);
+		Assert.assertNotNull(io.getTileStream(SOURCE_LAYER, serializer, new TileIndex(3, 0, 1)));
+		Assert.assertTrue(source.getExistenceIndices().loadIndex(SOURCE_LAYER).mightExist(new TileIndex(3, 0, 1)));
+
+		// A new source should use the stored index as long as the metadata is
+		// unchanged - even if tiles are removed behind its back - and rebuild
+		// it once the metadata changes
+		new File(SOURCE_DIR + SOURCE_LAYER + "/" + PyramidIO.TILES_FOLDERNAME + "/3/0/0." + SOURCE_EXT).delete();
+		FileSystemPyramidSource reopened = new FileSystemPyramidSource(SOURCE_DIR, SOURCE_EXT);
+		reopened.setTileExistenceIndexEnabled(true);
+		Assert.assertTrue(reopened.getExistenceIndices().loadIndex(SOURCE_LAYER).mightExist(new TileIndex(3, 0, 0)));
+		reopened.setTileExistenceIndexEnabled(false);
+
+		io.writeMetaData(SOURCE_LAYER, "{\"version\": 2}");
+		reopened.setTileExistenceIndexEnabled(true);
+		TileExistenceIndex rebuilt = reopened.getExistenceIndices().loadIndex(SOURCE_LAYER);
+		Assert.assertFalse(rebuilt.mightExist(new TileIndex(3, 0, 0)));
+		Assert.assertTrue(rebuilt.mightExist(new TileIndex(3, 0, 1)));
+		Assert.assertFalse(rebuilt.getStamp() == index.getStamp());
+	}
+
 	@After
 	public void removeWrittenFile() {
 		try {
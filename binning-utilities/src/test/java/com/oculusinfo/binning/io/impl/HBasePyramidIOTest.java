@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.io.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.io.PyramidScanner;
+import com.oculusinfo.binning.io.TileExistenceIndex;
+
+public class HBasePyramidIOTest {
+	private static final String TABLE = "test-table";
+
+	private static List<byte[]> level4Splits () {
+		return Arrays.asList(HBasePyramidIO.rowKeyFromTileIndex(new TileIndex(4, 4, 4)),
+		                     HBasePyramidIO.rowKeyFromTileIndex(new TileIndex(4, 8, 8)),
+		                     HBasePyramidIO.rowKeyFromTileIndex(new TileIndex(4, 12, 12)));
+	}
+
+	private static List<TileIndex> level4Tiles () {
+		List<TileIndex> tiles = new ArrayList<>();
+		for (int x = 0; x < 16; ++x) {
+			for (int y = 0; y < 16; ++y) {
+				tiles.add(new TileIndex(4, x, y));
+			}
+		}
+		return tiles;
+	}
+
+	private static int valueOf (TileIndex index) {
+		return index.getX() * 100 + index.getY();
+	}
+
+	@Test
+	public void testRowKeyRoundTrip () {
+		for (int level = 0; level < 32; level += 3) {
+			int max = (1 << level) - 1;
+			for (TileIndex index: new TileIndex[] {new TileIndex(level, 0, 0), new TileIndex(level, max, 0),
+			                                       new TileIndex(level, 0, max), new TileIndex(level, max, max),
+			                                       new TileIndex(level, max / 3, max / 7)}) {
+				byte[] key = HBasePyramidIO.rowKeyFromTileIndex(index);
+				Assert.assertTrue(HBasePyramidIO.isBinaryRowKey(key));
+				Assert.assertEquals(index, HBasePyramidIO.tileIndexFromRowKey(key));
+			}
+		}
+	}
+
+	@Test
+	public void testLegacyRowKeys () {
+		TileIndex index = new TileIndex(12, 1234, 3012);
+		byte[] key = HBasePyramidIO.rowIdFromTileIndex(index).getBytes();
+		Assert.assertFalse(HBasePyramidIO.isBinaryRowKey(key));
+		Assert.assertEquals(index, HBasePyramidIO.tileIndexFromRowKey(key));
+	}
+
+	@Test
+	public void testRowKeyOrdering () {
+		// Keys should sort by level, then along a Z-order curve within the level
+		List<TileIndex> expected = Arrays.asList(new TileIndex(0, 0, 0),
+		                                         new TileIndex(1, 0, 0), new TileIndex(1, 1, 0),
+		                                         new TileIndex(1, 0, 1), new TileIndex(1, 1, 1),
+		                                         new TileIndex(2, 0, 0), new TileIndex(2, 1, 0),
+		                                         new TileIndex(2, 0, 1), new TileIndex(2, 1, 1),
+		                                         new TileIndex(2, 2, 0));
+		HBaseStandIn standIn = new HBaseStandIn(TABLE, Collections.<byte[]>emptyList(), 0L);
+		List<TileIndex> shuffled = new ArrayList<>(expected);
+		Collections.shuffle(shuffled);
+		for (TileIndex index: shuffled) {
+			standIn.putTile(index, 0, false);
+		}
+		Assert.assertEquals(expected, standIn.getTileOrder());
+	}
+
+	@Test
+	public void testParallelRegionRead () throws IOException {
+		HBaseStandIn standIn = new HBaseStandIn(TABLE, level4Splits(), 20L);
+		List<TileIndex> tiles = level4Tiles();
+		for (TileIndex index: tiles) {
+			standIn.putTile(index, valueOf(index), false);
+		}
+
+		HBasePyramidIO io = standIn.createPyramidIO(4);
+		try {
+			List<TileIndex> request = new ArrayList<>(tiles);
+			Collections.shuffle(request);
+			// Ask for one tile that isn't there
+			request.add(new TileIndex(5, 0, 0));
+			List<TileData<Integer>> result = io.readTiles(TABLE, new IntegerTileSerializer(), request);
+
+			Assert.assertEquals(tiles.size(), result.size());
+			for (int i = 0; i < tiles.size(); ++i) {
+				TileIndex index = request.get(i);
+				Assert.assertEquals(index.getX(), result.get(i).getDefinition().getX());
+				Assert.assertEquals(index.getY(), result.get(i).getDefinition().getY());
+				Assert.assertEquals(valueOf(index), result.get(i).getBin(0, 0).intValue());
+			}
+			// All four regions should have been read at once
+			Assert.assertEquals(4, standIn.getMaxConcurrentGets());
+		} finally {
+			io.close();
+		}
+	}
+
+	@Test
+	public void testLegacyTableRead () throws IOException {
+		HBaseStandIn standIn = new HBaseStandIn(TABLE, Collections.<byte[]>emptyList(), 0L);
+		List<TileIndex> tiles = level4Tiles();
+		for (TileIndex index: tiles) {
+			standIn.putTile(index, valueOf(index), true);
+		}
+
+		HBasePyramidIO io = standIn.createPyramidIO(4);
+		try {
+			Assert.assertTrue(io.usesLegacyRowKeys(TABLE));
+			List<TileData<Integer>> result = io.readTiles(TABLE, new IntegerTileSerializer(), tiles);
+			Assert.assertEquals(tiles.size(), result.size());
+			for (int i = 0; i < tiles.size(); ++i) {
+				Assert.assertEquals(valueOf(tiles.get(i)), result.get(i).getBin(0, 0).intValue());
+			}
+		} finally {
+			io.close();
+		}
+	}
+
+	@Test
+	public void testTablesArePooled () throws Exception {
+		HBaseStandIn standIn = new HBaseStandIn(TABLE, level4Splits(), 1L);
+		for (TileIndex index: level4Tiles()) {
+			standIn.putTile(index, valueOf(index), false);
+		}
+
+		final HBasePyramidIO io = standIn.createPyramidIO(4);
+		ExecutorService readers = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Void>> futures = new ArrayList<>();
+			for (int i = 0; i < 50; ++i) {
+				futures.add(readers.submit(new Callable<Void>() {
+					@Override
+					public Void call () throws Exception {
+						List<TileIndex> request = level4Tiles();
+						Collections.shuffle(request);
+						List<TileData<Integer>> result = io.readTiles(TABLE, new IntegerTileSerializer(), request.subList(0, 10));
+						Assert.assertEquals(10, result.size());
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future: futures) future.get();
+
+			// Each read uses up to four handles at once, and no more than
+			// four reads run at once, so without pooling we'd open hundreds.
+			Assert.assertTrue(standIn.getTablesOpened() <= 17);
+		} finally {
+			readers.shutdown();
+			io.close();
+		}
+	}
+
+	@Test
+	public void testExistenceIndexSkipsMissingTiles () throws IOException {
+		HBaseStandIn standIn = new HBaseStandIn(TABLE, level4Splits(), 0L);
+		List<TileIndex> tiles = level4Tiles();
+		for (TileIndex index: tiles) {
+			if (0 == (index.getX() + index.getY()) % 2) {
+				standIn.putTile(index, valueOf(index), false);
+			}
+		}
+
+		HBasePyramidIO io = standIn.createPyramidIO(4);
+		try {
+			io.setTileExistenceIndexEnabled(true);
+			TileExistenceIndex index = io.getExistenceIndices().loadIndex(TABLE);
+			Assert.assertSame(index, io.getTileExistenceIndex(TABLE));
+
+			int rowsBefore = standIn.getRowsRead();
+			List<TileData<Integer>> result = io.readTiles(TABLE, new IntegerTileSerializer(), tiles);
+			Assert.assertEquals(128, result.size());
+			Assert.assertEquals(128, standIn.getRowsRead() - rowsBefore);
+			Assert.assertEquals(128, index.getReadsSaved());
+			Assert.assertEquals(0, index.getFalsePositives());
+
+			Assert.assertNull(io.getTileStream(TABLE, new IntegerTileSerializer(), new TileIndex(4, 0, 1)));
+			Assert.assertEquals(128, standIn.getRowsRead() - rowsBefore);
+
+			// Writing tiles invalidates the index
+			try {
+				io.writeTiles(TABLE, new IntegerTileSerializer(), Collections.<TileData<Integer>>emptyList());
+			} catch (UnsupportedOperationException e) {
+				// The stand-in can't take writes
+			}
+			Assert.assertNull(io.getTileExistenceIndex(TABLE));
+		} finally {
+			io.close();
+		}
+	}
+
+	private static List<TileIndex> scanLevel4 (boolean legacyKeys) throws IOException {
+		HBaseStandIn standIn = new HBaseStandIn(TABLE, level4Splits(), 0L);
+		for (TileIndex index: level4Tiles()) {
+			standIn.putTile(index, valueOf(index), legacyKeys);
+		}
+		// Neighbouring levels, which the scan should not touch
+		standIn.putTile(new TileIndex(3, 7, 7), 0, legacyKeys);
+		standIn.putTile(new TileIndex(5, 0, 0), 0, legacyKeys);
+		standIn.put("metadata".getBytes(), new byte[0]);
+
+		final List<TileIndex> scanned = new ArrayList<>();
+		HBasePyramidIO io = standIn.createPyramidIO(4);
+		try {
+			io.scanLevel(TABLE, 4, new PyramidScanner.SerializedTileHandler() {
+				@Override
+				public void handleTile (TileIndex index, byte[] data) throws IOException {
+					Assert.assertEquals(valueOf(index), ByteBuffer.wrap(data).getInt());
+					scanned.add(index);
+				}
+			});
+		} finally {
+			io.close();
+		}
+		return scanned;
+	}
+
+	@Test
+	public void testScanLevel () throws IOException {
+		for (boolean legacyKeys: new boolean[] {false, true}) {
+			List<TileIndex> scanned = scanLevel4(legacyKeys);
+			Assert.assertEquals(256, scanned.size());
+			Assert.assertEquals(new HashSet<>(level4Tiles()), new HashSet<>(scanned));
+		}
+	}
+}
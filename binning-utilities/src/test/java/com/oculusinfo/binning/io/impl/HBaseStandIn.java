@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.io.impl;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HConnection;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+
+import com.oculusinfo.binning.TileIndex;
+
+/**
+ * An in-process stand-in for an HBase cluster, holding a single table of
+ * tiles split into regions, with a fixed simulated latency per batch get.
+ * Only the parts of the client API that HBasePyramidIO reads through are
+ * implemented.
+ */
+public class HBaseStandIn {
+	private static final Comparator<byte[]> KEY_ORDER = new Comparator<byte[]>() {
+		@Override
+		public int compare (byte[] a, byte[] b) {
+			for (int i = 0; i < Math.min(a.length, b.length); ++i) {
+				int diff = (a[i] & 0xff) - (b[i] & 0xff);
+				if (0 != diff) return diff;
+			}
+			return a.length - b.length;
+		}
+	};
+
+	private final String                               _tableName;
+	private final ConcurrentSkipListMap<byte[], byte[]> _rows;
+	private final List<byte[]>                         _splits;
+	private final long                                 _latencyMillis;
+	private final AtomicInteger                        _tablesOpened;
+	private final AtomicInteger                        _activeGets;
+	private final AtomicInteger                        _maxActiveGets;
+	private final AtomicInteger                        _rowsRead;
+
+	/**
+	 * @param tableName The name of the one table
+	 * @param splits The start keys of all regions but the first, in order
+	 * @param latencyMillis The time each batch get takes
+	 */
+	public HBaseStandIn (String tableName, List<byte[]> splits, long latencyMillis) {
+		_tableName = tableName;
+		_rows = new ConcurrentSkipListMap<>(KEY_ORDER);
+		_splits = splits;
+		_latencyMillis = latencyMillis;
+		_tablesOpened = new AtomicInteger(0);
+		_activeGets = new AtomicInteger(0);
+		_maxActiveGets = new AtomicInteger(0);
+		_rowsRead = new AtomicInteger(0);
+	}
+
+	public void put (byte[] row, byte[] value) {
+		_rows.put(row, value);
+	}
+
+	/**
+	 * Store a single-bin tile, as written by {@link IntegerTileSerializer},
+	 * under either the binary or the legacy string row key.
+	 */
+	public void putTile (TileIndex index, int value, boolean legacyKey) {
+		byte[] row = legacyKey ? HBasePyramidIO.rowIdFromTileIndex(index).getBytes() : HBasePyramidIO.rowKeyFromTileIndex(index);
+		put(row, ByteBuffer.allocate(4).putInt(value).array());
+	}
+
+	/** The tiles stored, in row key order */
+	public List<TileIndex> getTileOrder () {
+		List<TileIndex> tiles = new ArrayList<>();
+		for (byte[] row: _rows.keySet()) {
+			tiles.add(HBasePyramidIO.tileIndexFromRowKey(row));
+		}
+		return tiles;
+	}
+
+	/** The number of table handles opened through the connection */
+	public int getTablesOpened () {
+		return _tablesOpened.get();
+	}
+
+	/** The largest number of batch gets that were ever running at once */
+	public int getMaxConcurrentGets () {
+		return _maxActiveGets.get();
+	}
+
+	/** The number of rows asked for by gets */
+	public int getRowsRead () {
+		return _rowsRead.get();
+	}
+
+	public HBasePyramidIO createPyramidIO (int readThreads) {
+		Configuration config = HBaseConfiguration.create();
+		return new HBasePyramidIO(config, null, createConnection(), readThreads);
+	}
+
+	private int getRegion (byte[] row) {
+		int region = 0;
+		while (region < _splits.size() && KEY_ORDER.compare(_splits.get(region), row) <= 0) {
+			++region;
+		}
+		return region;
+	}
+
+	private HConnection createConnection () {
+		return (HConnection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {HConnection.class}, new InvocationHandler() {
+			@Override
+			public Object invoke (Object proxy, Method method, Object[] args) throws Throwable {
+				switch (method.getName()) {
+				case "getTable":
+					checkTable(args[0]);
+					_tablesOpened.incrementAndGet();
+					return createTable();
+				case "locateRegion":
+					int region = getRegion((byte[]) args[1]);
+					byte[] start = (0 == region) ? new byte[0] : _splits.get(region - 1);
+					byte[] end = (_splits.size() == region) ? new byte[0] : _splits.get(region);
+					return new HRegionLocation(new HRegionInfo(TableName.valueOf(_tableName), start, end),
+					                           ServerName.valueOf("localhost", 60020 + region, 0L));
+				case "close":
+					return null;
+				default:
+					return handleObjectMethod(proxy, method, args);
+				}
+			}
+		});
+	}
+
+	private HTableInterface createTable () {
+		return (HTableInterface) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {HTableInterface.class}, new InvocationHandler() {
+			@Override
+			public Object invoke (Object proxy, Method method, Object[] args) throws Throwable {
+				switch (method.getName()) {
+				case "get":
+					if (args[0] instanceof List) {
+						@SuppressWarnings("unchecked")
+						List<Get> gets = (List<Get>) args[0];
+						return get(gets);
+					}
+					throw new UnsupportedOperationException("Single get");
+				case "getScanner":
+					return createScanner((Scan) args[0]);
+				case "close":
+					return null;
+				default:
+					return handleObjectMethod(proxy, method, args);
+				}
+			}
+		});
+	}
+
+	private Result[] get (List<Get> gets) throws InterruptedException {
+		_rowsRead.addAndGet(gets.size());
+		int active = _activeGets.incrementAndGet();
+		int max;
+		while (active > (max = _maxActiveGets.get()) && !_maxActiveGets.compareAndSet(max, active));
+		try {
+			Thread.sleep(_latencyMillis);
+			Result[] results = new Result[gets.size()];
+			for (int i = 0; i < results.length; ++i) {
+				byte[] row = gets.get(i).getRow();
+				results[i] = createResult(row, _rows.get(row));
+			}
+			return results;
+		} finally {
+			_activeGets.decrementAndGet();
+		}
+	}
+
+	private ResultScanner createScanner (Scan scan) {
+		// Empty start and stop rows mean the start and end of the table
+		NavigableMap<byte[], byte[]> rows = _rows;
+		if (scan.getStartRow().length > 0) rows = rows.tailMap(scan.getStartRow(), true);
+		if (scan.getStopRow().length > 0) rows = rows.headMap(scan.getStopRow(), false);
+		final Iterator<Map.Entry<byte[], byte[]>> entries = rows.entrySet().iterator();
+		return (ResultScanner) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {ResultScanner.class}, new InvocationHandler() {
+			@Override
+			public Object invoke (Object proxy, Method method, Object[] args) throws Throwable {
+				switch (method.getName()) {
+				case "next":
+					if (!entries.hasNext()) return null;
+					Map.Entry<byte[], byte[]> entry = entries.next();
+					return createResult(entry.getKey(), entry.getValue());
+				case "close":
+					return null;
+				default:
+					return handleObjectMethod(proxy, method, args);
+				}
+			}
+		});
+	}
+
+	private static Result createResult (byte[] row, byte[] value) {
+		List<Cell> cells = new ArrayList<>();
+		if (null != value) {
+			cells.add(new KeyValue(row, HBasePyramidIO.TILE_COLUMN.getFamily(),
+			                       HBasePyramidIO.TILE_COLUMN.getQualifier(), value));
+		}
+		return Result.create(cells);
+	}
+
+	private void checkTable (Object tableName) throws IOException {
+		if (!_tableName.equals(tableName)) throw new IOException("No such table "+tableName);
+	}
+
+	private static Object handleObjectMethod (Object proxy, Method method, Object[] args) {
+		switch (method.getName()) {
+		case "hashCode":
+			return System.identityHashCode(proxy);
+		case "equals":
+			return proxy == args[0];
+		case "toString":
+			return "HBase stand-in proxy";
+		default:
+			throw new UnsupportedOperationException(method.getName());
+		}
+	}
+}
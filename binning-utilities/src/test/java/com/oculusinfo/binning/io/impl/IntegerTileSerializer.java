@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.io.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+import com.oculusinfo.binning.util.TypeDescriptor;
+
+/**
+ * A trivial serializer for tiles of a single integer bin, so tests of the
+ * pyramid IOs themselves don't depend on any particular serialization
+ * library.
+ */
+public class IntegerTileSerializer implements TileSerializer<Integer> {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	public TypeDescriptor getBinTypeDescription () {
+		return new TypeDescriptor(Integer.class);
+	}
+
+	@Override
+	public TileData<Integer> deserialize (TileIndex index, InputStream rawData) throws IOException {
+		TileData<Integer> tile = new DenseTileData<Integer>(new TileIndex(index.getLevel(), index.getX(), index.getY(), 1, 1));
+		tile.setBin(0, 0, new DataInputStream(rawData).readInt());
+		return tile;
+	}
+
+	@Override
+	public void serialize (TileData<Integer> data, OutputStream output) throws IOException {
+		new DataOutputStream(output).writeInt(data.getBin(0, 0));
+	}
+}
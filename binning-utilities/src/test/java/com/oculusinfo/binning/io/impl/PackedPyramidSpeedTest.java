@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.io.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.io.PyramidIO;
+
+/*
+ * Compare tile read latency of a packed pyramid with the same pyramid stored
+ * as individual files.
+ */
+@Ignore
+public class PackedPyramidSpeedTest {
+	private static final int    MAX_LEVEL  = 7;
+	private static final int    TILE_SIZE  = 4096;
+	private static final int    ITERATIONS = 100000;
+	private static final String PYRAMID    = "speed";
+
+	private File            _root;
+	private List<TileIndex> _tiles;
+
+	@Before
+	public void setup () throws IOException {
+		_root = File.createTempFile("packed-pyramid-speed", "");
+		_root.delete();
+		_root.mkdirs();
+
+		Random random = new Random(15485863);
+		byte[] data = new byte[TILE_SIZE];
+		_tiles = new ArrayList<>();
+		PackedPyramidWriter writer = new PackedPyramidWriter(new PackedPyramidSource(_root.getPath()).getPyramidFile(PYRAMID));
+		for (int level = 0; level <= MAX_LEVEL; ++level) {
+			for (int x = 0; x < (1 << level); ++x) {
+				for (int y = 0; y < (1 << level); ++y) {
+					TileIndex index = new TileIndex(level, x, y);
+					random.nextBytes(data);
+					_tiles.add(index);
+					writer.addTile(index, data);
+
+					File tileFile = new File(String.format("%s/%s/%s/%d/%d/%d.avro", _root, PYRAMID, PyramidIO.TILES_FOLDERNAME, level, x, y));
+					tileFile.getParentFile().mkdirs();
+					FileOutputStream output = new FileOutputStream(tileFile);
+					output.write(data);
+					output.close();
+				}
+			}
+		}
+		writer.close();
+	}
+
+	@After
+	public void cleanup () throws IOException {
+		FileUtils.deleteDirectory(_root);
+	}
+
+	private void timeReads (String name, PyramidIO io) throws IOException {
+		Random random = new Random(32452843);
+		byte[] buffer = new byte[TILE_SIZE];
+		long bytes = 0;
+		long startTime = System.nanoTime();
+		for (int n = 0; n < ITERATIONS; ++n) {
+			TileIndex index = _tiles.get(random.nextInt(_tiles.size()));
+			InputStream stream = io.getTileStream(PYRAMID, null, index);
+			int read;
+			while (-1 != (read = stream.read(buffer))) bytes += read;
+			stream.close();
+		}
+		long endTime = System.nanoTime();
+
+		double seconds = (endTime - startTime) / 1E9;
+		System.out.println(String.format("%s: %d tiles, %d bytes | Total time: %.3f seconds | Average time: %.2f microseconds",
+		                                 name, ITERATIONS, bytes, seconds, seconds * 1E6 / ITERATIONS));
+	}
+
+	@Test
+	public void testReadLatency () throws IOException {
+		PyramidIO files = new FileBasedPyramidIO(new FileSystemPyramidSource(_root.getPath(), "avro"));
+		PyramidIO packed = new FileBasedPyramidIO(new PackedPyramidSource(_root.getPath()));
+
+		// Once each to warm up, then for real
+		timeReads("File system (warm-up)", files);
+		timeReads("Packed (warm-up)", packed);
+		timeReads("File system", files);
+		timeReads("Packed", packed);
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.io.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.io.PyramidIO;
+
+public class PackedPyramidTest {
+	private File _root;
+
+	@Before
+	public void setup () throws IOException {
+		_root = File.createTempFile("packed-pyramid-test", "");
+		_root.delete();
+		_root.mkdirs();
+	}
+
+	@After
+	public void cleanup () {
+		try {
+			FileUtils.deleteDirectory(_root);
+		} catch (IOException e) {
+			// swallow exception
+		}
+	}
+
+	private static byte[] tileBytes (TileIndex index) {
+		// Vary the length, so offsets are actually checked
+		int length = 1 + (index.getX() * 7 + index.getY() * 13 + index.getLevel()) % 50;
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; ++i) {
+			data[i] = (byte) (index.getX() + index.getY() * 3 + i);
+		}
+		return data;
+	}
+
+	private static byte[] readFully (InputStream stream) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		int b;
+		while (-1 != (b = stream.read())) bytes.write(b);
+		stream.close();
+		return bytes.toByteArray();
+	}
+
+	private static List<TileIndex> pyramidTiles (int maxLevel) {
+		List<TileIndex> tiles = new ArrayList<>();
+		for (int level = 0; level <= maxLevel; ++level) {
+			for (int x = 0; x < (1 << level); ++x) {
+				for (int y = 0; y < (1 << level); ++y) {
+					tiles.add(new TileIndex(level, x, y));
+				}
+			}
+		}
+		return tiles;
+	}
+
+	@Test
+	public void testHilbertCurve () {
+		long[] xy = new long[2];
+		for (int level = 0; level < 6; ++level) {
+			int n = 1 << level;
+			Set<Long> seen = new HashSet<>();
+			long lastX = -1, lastY = -1;
+			for (long d = 0; d < (long) n * n; ++d) {
+				PackedPyramid.hilbertPosition(level, d, xy);
+				Assert.assertEquals(d, PackedPyramid.hilbertIndex(level, xy[0], xy[1]));
+				Assert.assertTrue(seen.add(xy[0] * n + xy[1]));
+				// Each step along the curve moves to an adjacent tile
+				if (d > 0) Assert.assertEquals(1, Math.abs(xy[0] - lastX) + Math.abs(xy[1] - lastY));
+				lastX = xy[0];
+				lastY = xy[1];
+			}
+		}
+
+		// And at the deepest levels, without overflow
+		PackedPyramid.hilbertPosition(31, PackedPyramid.hilbertIndex(31, 2000000000L, 123456789L), xy);
+		Assert.assertEquals(2000000000L, xy[0]);
+		Assert.assertEquals(123456789L, xy[1]);
+	}
+
+	@Test
+	public void testWriteAndRead () throws IOException {
+		List<TileIndex> tiles = pyramidTiles(4);
+		List<TileIndex> shuffled = new ArrayList<>(tiles);
+		Collections.shuffle(shuffled, new Random(15485863));
+
+		File file = new File(_root, "test.pyramid");
+		PackedPyramidWriter writer = new PackedPyramidWriter(file);
+		// Write one tile with bad data first, to make sure it gets replaced
+		writer.addTile(new TileIndex(3, 2, 1), new byte[] {1, 2, 3});
+		for (TileIndex index: shuffled) {
+			writer.addTile(index, tileBytes(index));
+		}
+		writer.setMetaData("{\"name\": \"test\"}");
+		writer.close();
+		Assert.assertFalse(new File(_root, "test.pyramid.spool").exists());
+
+		PackedPyramid pyramid = PackedPyramid.open(file);
+		Assert.assertEquals(tiles.size(), pyramid.size());
+		Assert.assertEquals("{\"name\": \"test\"}", pyramid.getMetaData());
+		for (TileIndex index: shuffled) {
+			Assert.assertArrayEquals(tileBytes(index), readFully(pyramid.getTileStream(index)));
+			ByteBuffer buffer = pyramid.getTileBuffer(index);
+			Assert.assertEquals(tileBytes(index).length, buffer.remaining());
+		}
+		Assert.assertNull(pyramid.getTileStream(new TileIndex(5, 0, 0)));
+		Assert.assertNull(pyramid.getTileStream(new TileIndex(2, 7, 7)));
+
+		// Tiles should be listed by level, then along the Hilbert curve
+		List<TileIndex> listed = pyramid.getTiles();
+		Assert.assertEquals(new HashSet<>(tiles), new HashSet<>(listed));
+		for (int i = 1; i < listed.size(); ++i) {
+			TileIndex a = listed.get(i - 1);
+			TileIndex b = listed.get(i);
+			if (a.getLevel() == b.getLevel()) {
+				Assert.assertEquals(1, Math.abs(a.getX() - b.getX()) + Math.abs(a.getY() - b.getY()));
+			} else {
+				Assert.assertEquals(a.getLevel() + 1, b.getLevel());
+			}
+		}
+		Assert.assertEquals(listed.subList(5, 21), pyramid.getTiles(2));
+		Assert.assertTrue(pyramid.getTiles(5).isEmpty());
+	}
+
+	@Test
+	public void testConvertFileSystemPyramid () throws IOException {
+		String fsRoot = new File(_root, "fs").getPath();
+		List<TileIndex> tiles = pyramidTiles(3);
+		for (TileIndex index: tiles) {
+			File tileFile = new File(String.format("%s/test/%s/%d/%d/%d.avro", fsRoot, PyramidIO.TILES_FOLDERNAME,
+			                                       index.getLevel(), index.getX(), index.getY()));
+			tileFile.getParentFile().mkdirs();
+			FileOutputStream output = new FileOutputStream(tileFile);
+			output.write(tileBytes(index));
+			output.close();
+		}
+		FileOutputStream output = new FileOutputStream(new File(fsRoot, "test/"+PyramidIO.METADATA_FILENAME));
+		output.write("{\"name\": \"fs\"}".getBytes());
+		output.close();
+
+		PackedPyramidSource source = new PackedPyramidSource(new File(_root, "packed").getPath());
+		PackedPyramidConverter.convertFileSystemPyramid(fsRoot, "test", "avro", source.getPyramidFile("test"));
+
+		FileBasedPyramidIO io = new FileBasedPyramidIO(source);
+		Assert.assertEquals("{\"name\": \"fs\"}", io.readMetaData("test"));
+		for (TileIndex index: tiles) {
+			Assert.assertArrayEquals(tileBytes(index), readFully(io.getTileStream("test", null, index)));
+		}
+		Assert.assertNull(io.getTileStream("test", null, new TileIndex(4, 0, 0)));
+		Assert.assertNull(io.getTileStream("other", null, new TileIndex(0, 0, 0)));
+	}
+}
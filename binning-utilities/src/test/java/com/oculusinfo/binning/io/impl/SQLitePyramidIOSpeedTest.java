@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.binning.io.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.impl.DenseTileData;
+
+/*
+ * Measure tile read throughput of SQLitePyramidIO against a local database,
+ * for increasing numbers of concurrent readers, each asking for a viewport's
+ * worth of tiles at a time.
+ * 
+ * Like SQLitePyramidIOTest, this needs SQLite on the machine, so is ignored by
+ * default.
+ */
+@Ignore
+public class SQLitePyramidIOSpeedTest {
+	private static final String DB_FILE     = "speed-test.db";
+	private static final String PYRAMID_ID  = "speedTest";
+	private static final int    LEVEL       = 7;
+	private static final int    VIEWPORT    = 4;
+	private static final int    REQUESTS    = 2000;
+
+	private SQLitePyramidIO _io;
+
+	@Before
+	public void setUp () throws Exception {
+		_io = new SQLitePyramidIO(DB_FILE);
+		_io.initializeForWrite(PYRAMID_ID);
+
+		int size = 1 << LEVEL;
+		List<TileData<Integer>> tiles = new ArrayList<>();
+		for (int x = 0; x < size; ++x) {
+			for (int y = 0; y < size; ++y) {
+				TileData<Integer> tile = new DenseTileData<Integer>(new TileIndex(LEVEL, x, y, 4, 4), x + y);
+				tiles.add(tile);
+			}
+		}
+		_io.writeTiles(PYRAMID_ID, new IntegerTileSerializer(), tiles);
+	}
+
+	@After
+	public void tearDown () {
+		_io.shutdown();
+		for (String suffix: new String[] {"", "-wal", "-shm"}) {
+			new File(DB_FILE + suffix).delete();
+		}
+	}
+
+	private void timeReaders (int readers) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(readers);
+		try {
+			List<Callable<Integer>> reads = new ArrayList<>();
+			Random random = new Random(15485863);
+			for (int n = 0; n < REQUESTS; ++n) {
+				int x0 = random.nextInt((1 << LEVEL) - VIEWPORT);
+				int y0 = random.nextInt((1 << LEVEL) - VIEWPORT);
+				final List<TileIndex> viewport = new ArrayList<>();
+				for (int x = x0; x < x0 + VIEWPORT; ++x) {
+					for (int y = y0; y < y0 + VIEWPORT; ++y) {
+						viewport.add(new TileIndex(LEVEL, x, y, 4, 4));
+					}
+				}
+				reads.add(new Callable<Integer>() {
+					@Override
+					public Integer call () throws Exception {
+						List<TileData<Integer>> tiles = _io.readTiles(PYRAMID_ID, new IntegerTileSerializer(), viewport);
+						return tiles.size();
+					}
+				});
+			}
+
+			long startTime = System.currentTimeMillis();
+			int tilesRead = 0;
+			for (Future<Integer> result: pool.invokeAll(reads)) {
+				tilesRead += result.get();
+			}
+			long endTime = System.currentTimeMillis();
+
+			double seconds = (endTime - startTime) / 1000.0;
+			System.out.println(String.format("%d readers: %d tiles in %.3f seconds | %.1f tiles/sec",
+			                                 readers, tilesRead, seconds, tilesRead / seconds));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testConcurrentReaders () throws Exception {
+		for (int readers = 1; readers <= 32; readers *= 2) {
+			timeReaders(readers);
+		}
+	}
+}
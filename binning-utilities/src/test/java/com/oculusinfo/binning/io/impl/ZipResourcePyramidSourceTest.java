@@ -30,9 +30,20 @@ import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import static org.junit.Assert.fail;
 
@@ -91,6 +102,100 @@ public class ZipResourcePyramidSourceTest {
 		
 	}
 
+	private static byte[] tileBytes (int z, int x, int y) {
+		byte[] data = new byte[1000 + 10 * (x + y)];
+		for (int i = 0; i < data.length; ++i) {
+			data[i] = (byte) ((i % 17) * (z + 1) + x);
+		}
+		return data;
+	}
+
+	private static byte[] readFully (InputStream stream) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[256];
+		int read;
+		while (-1 != (read = stream.read(buffer))) bytes.write(buffer, 0, read);
+		stream.close();
+		return bytes.toByteArray();
+	}
+
+	// Write a pyramid with alternately stored and deflated tiles
+	private File writeContentArchive () throws IOException {
+		File archive = File.createTempFile("content.", ".zip", null);
+		archive.deleteOnExit();
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(archive));
+		for (int z = 0; z < 4; ++z) {
+			for (int x = 0; x < (1 << z); ++x) {
+				for (int y = 0; y < (1 << z); ++y) {
+					byte[] data = tileBytes(z, x, y);
+					ZipEntry entry = new ZipEntry("test/tiles/" + z + "/" + x + "/" + y + ".avro");
+					if (0 == (x + y) % 2) {
+						CRC32 crc = new CRC32();
+						crc.update(data);
+						entry.setMethod(ZipEntry.STORED);
+						entry.setSize(data.length);
+						entry.setCompressedSize(data.length);
+						entry.setCrc(crc.getValue());
+					} else {
+						entry.setMethod(ZipEntry.DEFLATED);
+					}
+					zos.putNextEntry(entry);
+					zos.write(data);
+					zos.closeEntry();
+				}
+			}
+		}
+		zos.putNextEntry(new ZipEntry("test/metadata.json"));
+		zos.write("{\"name\": \"test\"}".getBytes());
+		zos.closeEntry();
+		zos.close();
+		return archive;
+	}
+
+	@Test
+	public void testStoredAndDeflatedContents () throws Exception {
+		final ZipResourcePyramidSource src = new ZipResourcePyramidSource(writeContentArchive().getAbsolutePath(), "avro");
+		Assert.assertEquals("{\"name\": \"test\"}", src.readMetaData("test"));
+		Assert.assertNull(src.getSourceTileStream("test", new TileIndex(4, 0, 0)));
+		Assert.assertNull(src.getSourceTileStream("other", new TileIndex(0, 0, 0)));
+		Assert.assertNull(src.readMetaData("other"));
+
+		// Read every tile from several threads at once
+		ExecutorService readers = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Void>> results = new ArrayList<>();
+			for (int n = 0; n < 8; ++n) {
+				results.add(readers.submit(new Callable<Void>() {
+					@Override
+					public Void call () throws Exception {
+						for (int z = 0; z < 4; ++z) {
+							for (int x = 0; x < (1 << z); ++x) {
+								for (int y = 0; y < (1 << z); ++y) {
+									InputStream is = src.getSourceTileStream("test", new TileIndex(z, x, y));
+									Assert.assertArrayEquals(tileBytes(z, x, y), readFully(is));
+								}
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result: results) result.get();
+		} finally {
+			readers.shutdown();
+		}
+	}
+
+	@Test
+	public void testReopenAfterClose () throws IOException {
+		ZipResourcePyramidSource src = ZipResourcePyramidSource.getZipSource(writeContentArchive().getAbsolutePath(), "avro");
+		Assert.assertArrayEquals(tileBytes(1, 1, 0), readFully(src.getSourceTileStream("test", new TileIndex(1, 1, 0))));
+
+		// As if evicted from the source cache
+		src.close();
+		Assert.assertArrayEquals(tileBytes(1, 1, 0), readFully(src.getSourceTileStream("test", new TileIndex(1, 1, 0))));
+	}
+
 	private File getDummyFile() throws IOException{
 		return File.createTempFile("dummy", null);
 	}
@@ -39,6 +39,7 @@ import org.junit.Test;
 import com.oculusinfo.binning.TileData;
 import com.oculusinfo.binning.TileIndex;
 import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.binning.impl.DoubleDenseTileData;
 import com.oculusinfo.binning.io.serialization.impl.GenericJavaSerializer;
 import com.oculusinfo.binning.io.serialization.impl.KryoSerializer;
 import com.oculusinfo.binning.io.serialization.impl.PrimitiveArrayAvroSerializer;
@@ -51,6 +52,7 @@ import com.oculusinfo.binning.util.TypeDescriptor;
 public class SerializationSpeedTests {
 	private static final String LEGACY = "Legacy";
 	private static final String AVRO = "Avro";
+	private static final String GENERIC_AVRO = "Generic Avro";
 	private static final String JAVA = "Java";
 	private static final String KRYO = "Kryo";
 	private static final String VECTOR_DATA = "vector";
@@ -60,6 +62,7 @@ public class SerializationSpeedTests {
 	private static final int ITERATIONS = 20;	
 
 	private TileData<Double>       _scalarData;
+	private TileData<Double>       _primitiveScalarData;
 	private TileData<List<Double>> _vectorData;
 
 	@Before
@@ -72,6 +75,12 @@ public class SerializationSpeedTests {
 				_scalarData.setBin(x, y, random.nextDouble());
 			}
 		}
+		_primitiveScalarData = new DoubleDenseTileData(_scalarData.getDefinition());
+		for (int x=0; x < BIN_SIZE; ++x) {
+			for (int y=0; y < BIN_SIZE; ++y) {
+				_primitiveScalarData.setBin(x, y, _scalarData.getBin(x, y));
+			}
+		}
 
 		// Random vector data for more complex types.
 		_vectorData = new DenseTileData<>(new TileIndex(0, 0, 0, 256, 256));
@@ -134,6 +143,28 @@ public class SerializationSpeedTests {
 		deserialize(AVRO, SCALAR_DATA, _scalarData, new PrimitiveAvroSerializer<>(Double.class, CodecFactory.bzip2Codec()));
 	}
 
+	// Compare avro serialization of primitive tiles with and without the
+	// primitive serializer's record-free fast path
+	@Test
+	public void testAvroPrimitiveTileSerialization () throws Exception {
+		serialize(AVRO, SCALAR_DATA, _primitiveScalarData, new PrimitiveAvroSerializer<>(Double.class, CodecFactory.nullCodec()));
+	}
+
+	@Test
+	public void testAvroPrimitiveTileDeSerialization () throws Exception {
+		deserialize(AVRO, SCALAR_DATA, _primitiveScalarData, new PrimitiveAvroSerializer<>(Double.class, CodecFactory.nullCodec()));
+	}
+
+	@Test
+	public void testGenericAvroPrimitiveTileSerialization () throws Exception {
+		serialize(GENERIC_AVRO, SCALAR_DATA, _primitiveScalarData, new GenericPathAvroSerializer(Double.class, CodecFactory.nullCodec()));
+	}
+
+	@Test
+	public void testGenericAvroPrimitiveTileDeSerialization () throws Exception {
+		deserialize(GENERIC_AVRO, SCALAR_DATA, _primitiveScalarData, new GenericPathAvroSerializer(Double.class, CodecFactory.nullCodec()));
+	}
+
 	@Test
 	public void testAvroVectorTileSerialization () throws Exception {
 		serialize(AVRO, VECTOR_DATA, _vectorData, new PrimitiveArrayAvroSerializer<>(Double.class, CodecFactory.bzip2Codec()));
@@ -205,4 +236,20 @@ public class SerializationSpeedTests {
 		System.out.println("Total time: "+((endTime-startTime)/1000.0)+" seconds");
 		System.out.println("Average time: "+(((endTime-startTime)/1000.0)/ITERATIONS)+" seconds");
 	}
+
+
+
+	// A primitive serializer that always goes through generic records
+	private static class GenericPathAvroSerializer extends PrimitiveAvroSerializer<Double> {
+		private static final long serialVersionUID = 1L;
+
+		GenericPathAvroSerializer (Class<? extends Double> type, CodecFactory compressionCodec) {
+			super(type, compressionCodec);
+		}
+
+		@Override
+		protected boolean useFastPath () {
+			return false;
+		}
+	}
 }
@@ -38,6 +38,10 @@ import org.junit.Test;
 import com.oculusinfo.binning.TileData;
 import com.oculusinfo.binning.TileIndex;
 import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.binning.impl.DoubleDenseTileData;
+import com.oculusinfo.binning.impl.LongSparseTileData;
+import com.oculusinfo.binning.impl.PrimitiveDenseTileData;
+import com.oculusinfo.binning.impl.PrimitiveSparseTileData;
 import com.oculusinfo.binning.impl.SparseTileData;
 import com.oculusinfo.binning.io.serialization.TileSerializer;
 
@@ -168,4 +172,99 @@ public class PrimitiveAvroSerializerTest {
 		Assert.assertTrue(denseSize < sparseSize * 10);
 		Assert.assertTrue(sparseSize < denseSize * 10);
 	}
+
+
+	// A serializer that never uses the primitive fast path, to check
+	// compatibility against.
+	private static class GenericPathSerializer<T> extends PrimitiveAvroSerializer<T> {
+		private static final long serialVersionUID = 1L;
+
+		GenericPathSerializer (Class<? extends T> type) {
+			super(type, CodecFactory.nullCodec());
+		}
+
+		@Override
+		protected boolean useFastPath () {
+			return false;
+		}
+	}
+
+	private <T> TileData<T> copy (TileData<T> input, TileSerializer<T> writer, TileSerializer<T> reader) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		writer.serialize(input, baos);
+		baos.flush();
+		baos.close();
+
+		return reader.deserialize(input.getDefinition(), new ByteArrayInputStream(baos.toByteArray()));
+	}
+
+	private <T> void assertTilesEqual (TileData<T> expected, TileData<T> actual) {
+		TileIndex index = expected.getDefinition();
+		Assert.assertEquals(index, actual.getDefinition());
+		for (int x=0; x<index.getXBins(); ++x) {
+			for (int y=0; y<index.getYBins(); ++y) {
+				Assert.assertEquals(expected.getBin(x, y), actual.getBin(x, y));
+			}
+		}
+		if (null == expected.getMetaDataProperties()) {
+			Assert.assertNull(actual.getMetaDataProperties());
+		} else {
+			Assert.assertEquals(expected.getMetaDataProperties().size(), actual.getMetaDataProperties().size());
+			for (String property: expected.getMetaDataProperties()) {
+				Assert.assertEquals(expected.getMetaData(property), actual.getMetaData(property));
+			}
+		}
+	}
+
+	// Test that tiles written via the fast path can be read via generic
+	// records, and vice versa
+	@Test
+	public void testFastPathDenseCompatibility () throws IOException {
+		TileData<Double> input = new DoubleDenseTileData(new TileIndex(3, 2, 1, 16, 16));
+		for (int x=0; x<16; ++x) {
+			for (int y=0; y<16; ++y) {
+				input.setBin(x, y, x * 1.5 - y * 0.25);
+			}
+		}
+		input.setMetaData("a", "b");
+		input.setMetaData("c", "d");
+
+		TileSerializer<Double> fast = new PrimitiveAvroSerializer<>(Double.class, CodecFactory.nullCodec());
+		TileSerializer<Double> generic = new GenericPathSerializer<>(Double.class);
+
+		TileData<Double> fastToGeneric = copy(input, fast, generic);
+		assertTilesEqual(input, fastToGeneric);
+
+		TileData<Double> genericToFast = copy(input, generic, fast);
+		assertTilesEqual(input, genericToFast);
+		Assert.assertTrue(genericToFast instanceof PrimitiveDenseTileData);
+
+		// And a boxed tile, through the fast path
+		TileData<Double> boxed = new DenseTileData<>(input.getDefinition(), 0.0);
+		for (int x=0; x<16; ++x) {
+			for (int y=0; y<16; ++y) {
+				boxed.setBin(x, y, input.getBin(x, y));
+			}
+		}
+		assertTilesEqual(boxed, copy(boxed, fast, fast));
+	}
+
+	@Test
+	public void testFastPathSparseCompatibility () throws IOException {
+		TileIndex index = new TileIndex(4, 3, 2, 64, 64);
+		TileData<Long> input = new LongSparseTileData(index, -1L);
+		for (int i=0; i<200; ++i) {
+			input.setBin((i * 7) % 64, (i * 13) % 64, Long.MAX_VALUE - i);
+		}
+
+		TileSerializer<Long> fast = new PrimitiveAvroSerializer<>(Long.class, CodecFactory.nullCodec());
+		TileSerializer<Long> generic = new GenericPathSerializer<>(Long.class);
+
+		assertTilesEqual(input, copy(input, fast, generic));
+
+		TileData<Long> genericToFast = copy(input, generic, fast);
+		assertTilesEqual(input, genericToFast);
+		Assert.assertTrue(genericToFast instanceof PrimitiveSparseTileData);
+		Assert.assertEquals(-1L, ((PrimitiveSparseTileData<Long>) genericToFast).getDefaultBinValue().longValue());
+	}
 }
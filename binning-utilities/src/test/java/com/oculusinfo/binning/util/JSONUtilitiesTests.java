@@ -78,6 +78,18 @@ public class JSONUtilitiesTests {
 		Assert.assertEquals(source.getJSONArray(4).toString(), clone.getJSONArray(4).toString());
 	}
 
+	@Test
+	public void testCanonicalString () throws JSONException {
+		JSONObject a = new JSONObject("{b: {y: 2, x: 1}, a: 'a', c: [3, {q: 1, p: 2}]}");
+		JSONObject b = new JSONObject("{c: [3, {p: 2, q: 1}], a: 'a', b: {x: 1, y: 2}}");
+		String canonical = JsonUtilities.toCanonicalString(a);
+		Assert.assertEquals("{\"a\":\"a\",\"b\":{\"x\":1,\"y\":2},\"c\":[3,{\"p\":2,\"q\":1}]}", canonical);
+		Assert.assertEquals(canonical, JsonUtilities.toCanonicalString(b));
+
+		JSONObject c = new JSONObject("{b: {y: 2, x: 1}, a: 'a', c: [{q: 1, p: 2}, 3]}");
+		Assert.assertFalse(canonical.equals(JsonUtilities.toCanonicalString(c)));
+	}
+
 	@Test
 	public void testOverlaying () throws JSONException {
 		JSONObject base = new JSONObject("{a: 'a', a1: 'a1', b: 1, b1: 2, c: 1.1, c1: 2.2, d: {a: 'aa', a1: 'aa1'}, e: ['a', 'a1', 1, 2, 1.1, 2.2, {b: 'bb', b1: 'bb1'}]}");
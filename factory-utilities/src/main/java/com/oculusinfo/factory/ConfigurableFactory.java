@@ -236,11 +236,20 @@ abstract public class ConfigurableFactory<T> {
 	 * @return String representing the hexcode SHA-256 hash of the configuration state
 	 */
 	public String generateSHA256() {
+		return generateSHA256( getFactoryString() );
+	}
+
+	/**
+	 * Return a SHA-256 hexcode of an arbitrary string, in the same form as that
+	 * used for configuration states.
+	 * @param value The string to hash
+	 * @return String representing the hexcode SHA-256 hash of the given string
+	 */
+	public static String generateSHA256( String value ) {
 		try {
-			String propertyString = getFactoryString();
 			// generate SHA-256 from the string
 			MessageDigest md = MessageDigest.getInstance( "SHA-256" );
-			md.update( propertyString.getBytes( "UTF-8" ) );
+			md.update( value.getBytes( "UTF-8" ) );
 			byte[] digest = md.digest();
 			// convert SHA-256 bytes to hex string
 			return Hex.encodeHexString( digest );
@@ -33,12 +33,24 @@ import com.google.inject.Inject;
 import com.oculusinfo.binning.io.PyramidIO;
 import com.oculusinfo.binning.io.PyramidIOFactory;
 import com.oculusinfo.factory.ConfigurableFactory;
+import com.oculusinfo.factory.properties.IntegerProperty;
 import com.oculusinfo.sparktile.spark.SparkContextProvider;
+import com.oculusinfo.tile.rest.tile.caching.CoalescingPyramidIO;
 import com.oculusinfo.tilegen.binning.OnDemandAccumulatorPyramidIO;
 
 public class OnDemandTilePyramidIOFactory extends ConfigurableFactory<PyramidIO> {
 	private static final Logger LOGGER = LoggerFactory.getLogger(OnDemandTilePyramidIOFactory.class);
 
+	public static final IntegerProperty COALESCE_WINDOW = new IntegerProperty("coalesceWindow",
+		"The time, in milliseconds, to wait for more tile requests before computing tiles, so that the tiles of a whole view are computed in one job.",
+		(int) CoalescingPyramidIO.DEFAULT_WINDOW);
+	public static final IntegerProperty MAX_BATCH_SIZE = new IntegerProperty("maxBatchSize",
+		"The maximum number of tiles to compute in one job.",
+		CoalescingPyramidIO.DEFAULT_MAX_BATCH_SIZE);
+	public static final IntegerProperty RESULT_CACHE_SIZE = new IntegerProperty("resultCacheSize",
+		"The maximum size, in megabytes, of the cache of computed tiles.",
+		(int) (CoalescingPyramidIO.DEFAULT_RESULT_CACHE_SIZE / (1024L * 1024L)));
+
 	@Inject
 	private SparkContextProvider _contextProvider;
 
@@ -50,13 +62,20 @@ public class OnDemandTilePyramidIOFactory extends ConfigurableFactory<PyramidIO>
         super(name, PyramidIO.class, parent, path);
         _contextProvider = contextProvider;
         addProperty(PyramidIOFactory.INITIALIZATION_DATA);
+        addProperty(COALESCE_WINDOW);
+        addProperty(MAX_BATCH_SIZE);
+        addProperty(RESULT_CACHE_SIZE);
     }
 
 	@Override
 	protected PyramidIO create () {
 		try {
 			JSONObject config = getPropertyValue(PyramidIOFactory.INITIALIZATION_DATA);
-			return new OnDemandAccumulatorPyramidIO(_contextProvider.getSQLContext(config));
+			PyramidIO base = new OnDemandAccumulatorPyramidIO(_contextProvider.getSQLContext(config));
+			return new CoalescingPyramidIO(base,
+			                               getPropertyValue(COALESCE_WINDOW),
+			                               getPropertyValue(MAX_BATCH_SIZE),
+			                               getPropertyValue(RESULT_CACHE_SIZE) * 1024L * 1024L);
 		}
 		catch (Exception e) {
 			LOGGER.error("Error trying to create FileBasedPyramidIO", e);
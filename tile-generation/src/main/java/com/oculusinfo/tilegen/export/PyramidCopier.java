@@ -0,0 +1,514 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tilegen.export;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.io.PyramidIO;
+import com.oculusinfo.binning.io.PyramidScanner;
+import com.oculusinfo.binning.io.TileExistenceIndex;
+import com.oculusinfo.binning.io.TileExistenceIndexProvider;
+import com.oculusinfo.binning.io.impl.FileBasedPyramidIO;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+import com.oculusinfo.binning.util.TypeDescriptor;
+
+
+
+/**
+ * Copies tile pyramids from any PyramidIO to any other.
+ * 
+ * Each level is copied through a three-stage pipeline - read, re-serialize,
+ * write - with the stages joined by bounded queues, so that reading from the
+ * source, converting tiles, and writing to the target all happen at once,
+ * each on as many threads as it needs, without any stage getting too far
+ * ahead of the others.
+ * 
+ * If the source can scan its levels (see {@link PyramidScanner}), only tiles
+ * that actually exist are read, as they are stored. Otherwise, every possible
+ * tile of each level is asked for, in blocks, by the read threads (skipping
+ * those known not to exist, if the source has a {@link TileExistenceIndex}).
+ * 
+ * When the source and target serializers are the same, scanned tiles are
+ * written exactly as they were read, without ever being deserialized.
+ */
+public class PyramidCopier {
+	public static final int DEFAULT_READ_THREADS      = 4;
+	public static final int DEFAULT_TRANSFORM_THREADS = 2;
+	public static final int DEFAULT_WRITE_THREADS     = 4;
+	public static final int DEFAULT_QUEUE_SIZE        = 1000;
+	public static final int DEFAULT_BATCH_SIZE        = 100;
+
+	// How often stages blocked on a queue check whether the copy has failed
+	private static final long POLL_MILLIS = 100L;
+	// Marks the end of the tiles on a queue
+	private static final CopiedTile END = new CopiedTile(null, null, null);
+
+
+
+	private final PyramidIO  _from;
+	private final PyramidIO  _to;
+	private final int        _readThreads;
+	private final int        _transformThreads;
+	private final int        _writeThreads;
+	private final int        _queueSize;
+	private final int        _batchSize;
+	private final AtomicLong _tilesCopied;
+	private final AtomicLong _bytesCopied;
+	private final long       _startTime;
+
+	public PyramidCopier (PyramidIO from, PyramidIO to) {
+		this(from, to, DEFAULT_READ_THREADS, DEFAULT_TRANSFORM_THREADS, DEFAULT_WRITE_THREADS,
+		     DEFAULT_QUEUE_SIZE, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param from The pyramid IO from which to read tiles
+	 * @param to The pyramid IO to which to write them
+	 * @param readThreads The number of threads reading from the source, when
+	 *            it can't be scanned. A scan is always a single stream.
+	 * @param transformThreads The number of threads re-serializing tiles,
+	 *            when the serializers differ
+	 * @param writeThreads The number of threads writing to the target
+	 * @param queueSize The most tiles held between any two stages
+	 * @param batchSize The number of tiles asked for, or written, at once
+	 */
+	public PyramidCopier (PyramidIO from, PyramidIO to, int readThreads, int transformThreads,
+	                      int writeThreads, int queueSize, int batchSize) {
+		_from = from;
+		_to = to;
+		_readThreads = Math.max(1, readThreads);
+		_transformThreads = Math.max(1, transformThreads);
+		_writeThreads = Math.max(1, writeThreads);
+		_queueSize = Math.max(1, queueSize);
+		_batchSize = Math.max(1, batchSize);
+		_tilesCopied = new AtomicLong(0L);
+		_bytesCopied = new AtomicLong(0L);
+		_startTime = System.currentTimeMillis();
+	}
+
+	/** The number of tiles copied so far, over all levels */
+	public long getTilesCopied () {
+		return _tilesCopied.get();
+	}
+
+	/** The number of (serialized) bytes written so far, over all levels */
+	public long getBytesCopied () {
+		return _bytesCopied.get();
+	}
+
+	/** The average copy rate since this copier was created */
+	public double getTilesPerSecond () {
+		long elapsed = Math.max(1L, System.currentTimeMillis() - _startTime);
+		return _tilesCopied.get() * 1000.0 / elapsed;
+	}
+
+	/**
+	 * Determine if the source can be scanned, rather than having to have
+	 * every possible tile asked for.
+	 */
+	public boolean canScanSource () {
+		return null != getScanner(_from);
+	}
+
+	/**
+	 * Copy the metadata and the given levels of a pyramid.
+	 * 
+	 * @return The number of tiles copied
+	 */
+	public <S, T> long copyPyramid (String fromId, TileSerializer<S> fromSerializer,
+	                                String toId, TileSerializer<T> toSerializer,
+	                                int minLevel, int maxLevel) throws IOException {
+		_to.initializeForWrite(toId);
+		String metaData = _from.readMetaData(fromId);
+		if (null != metaData) _to.writeMetaData(toId, metaData);
+
+		long copied = 0L;
+		for (int level = minLevel; level <= maxLevel; ++level) {
+			copied += copyLevel(fromId, fromSerializer, toId, toSerializer, level);
+		}
+		return copied;
+	}
+
+	/**
+	 * Copy one level of a pyramid. The target must already be initialized
+	 * for writing.
+	 * 
+	 * @return The number of tiles copied
+	 */
+	public <S, T> long copyLevel (final String fromId, final TileSerializer<S> fromSerializer,
+	                              final String toId, final TileSerializer<T> toSerializer,
+	                              final int level) throws IOException {
+		final PyramidScanner scanner = getScanner(_from);
+		// Tiles can only pass straight through if we have them as stored
+		final boolean passThrough = null != scanner && serializersMatch(fromSerializer, toSerializer);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final AtomicLong levelCopied = new AtomicLong(0L);
+
+		final BlockingQueue<CopiedTile> readQueue = new ArrayBlockingQueue<>(_queueSize);
+		final BlockingQueue<CopiedTile> writeQueue = passThrough ? readQueue : new ArrayBlockingQueue<CopiedTile>(_queueSize);
+
+		List<Callable<Void>> readers = new ArrayList<>();
+		if (null != scanner) {
+			readers.add(new Callable<Void>() {
+				@Override
+				public Void call () throws Exception {
+					scanner.scanLevel(fromId, level, new PyramidScanner.SerializedTileHandler() {
+						@Override
+						public void handleTile (TileIndex index, byte[] data) throws IOException {
+							put(readQueue, new CopiedTile(index, data, null), failure);
+						}
+					});
+					return null;
+				}
+			});
+		} else {
+			final TileExistenceIndex existence = (_from instanceof TileExistenceIndexProvider)
+				? ((TileExistenceIndexProvider) _from).getTileExistenceIndex(fromId) : null;
+			final long levelSize = 1L << level;
+			final long blocks = (levelSize * levelSize + _batchSize - 1) / _batchSize;
+			final AtomicLong nextBlock = new AtomicLong(0L);
+			for (int i = 0; i < _readThreads; ++i) {
+				readers.add(new Callable<Void>() {
+					@Override
+					public Void call () throws Exception {
+						long block;
+						while ((block = nextBlock.getAndIncrement()) < blocks) {
+							List<TileIndex> indices = new ArrayList<>(_batchSize);
+							long end = Math.min(levelSize * levelSize, (block + 1) * _batchSize);
+							for (long n = block * _batchSize; n < end; ++n) {
+								TileIndex index = new TileIndex(level, (int) (n / levelSize), (int) (n % levelSize));
+								if (null == existence || existence.mightExist(index)) indices.add(index);
+							}
+							if (indices.isEmpty()) continue;
+							for (TileData<S> tile: _from.readTiles(fromId, fromSerializer, indices)) {
+								put(readQueue, new CopiedTile(tile.getDefinition(), null, tile), failure);
+							}
+						}
+						return null;
+					}
+				});
+			}
+		}
+
+		List<Callable<Void>> transformers = new ArrayList<>();
+		if (!passThrough) {
+			for (int i = 0; i < _transformThreads; ++i) {
+				transformers.add(new Callable<Void>() {
+					@Override
+					public Void call () throws Exception {
+						CopiedTile tile;
+						while (END != (tile = take(readQueue, failure))) {
+							put(writeQueue, transform(tile, fromSerializer, toSerializer), failure);
+						}
+						return null;
+					}
+				});
+			}
+		}
+
+		final PassThroughSerializer writeSerializer = new PassThroughSerializer(toSerializer.getBinTypeDescription());
+		List<Callable<Void>> writers = new ArrayList<>();
+		for (int i = 0; i < _writeThreads; ++i) {
+			writers.add(new Callable<Void>() {
+				@Override
+				public Void call () throws Exception {
+					List<TileData<Object>> batch = new ArrayList<>(_batchSize);
+					boolean done = false;
+					while (!done) {
+						CopiedTile tile = take(writeQueue, failure);
+						if (END == tile) {
+							done = true;
+						} else {
+							batch.add(tile);
+							// Top up the batch with whatever else is ready
+							while (batch.size() < _batchSize && null != (tile = writeQueue.poll())) {
+								if (END == tile) {
+									done = true;
+									break;
+								}
+								batch.add(tile);
+							}
+						}
+						if (!batch.isEmpty()) {
+							_to.writeTiles(toId, writeSerializer, batch);
+							long bytes = 0L;
+							for (TileData<Object> written: batch) bytes += ((CopiedTile) written).getData().length;
+							_bytesCopied.addAndGet(bytes);
+							_tilesCopied.addAndGet(batch.size());
+							levelCopied.addAndGet(batch.size());
+							batch.clear();
+						}
+					}
+					return null;
+				}
+			});
+		}
+
+		ExecutorService threads = Executors.newFixedThreadPool(readers.size() + transformers.size() + writers.size());
+		try {
+			List<Future<Void>> writing = submitAll(threads, writers, failure);
+			List<Future<Void>> transforming = submitAll(threads, transformers, failure);
+			List<Future<Void>> reading = submitAll(threads, readers, failure);
+
+			// Shut the pipeline down stage by stage, so every tile read is written
+			awaitAll(reading, failure);
+			endQueue(readQueue, passThrough ? writers.size() : transformers.size(), failure);
+			if (!passThrough) {
+				awaitAll(transforming, failure);
+				endQueue(writeQueue, writers.size(), failure);
+			}
+			awaitAll(writing, failure);
+		} catch (PipelineFailedException e) {
+			// The real cause is recorded in failure
+		} finally {
+			threads.shutdownNow();
+		}
+
+		Throwable cause = failure.get();
+		if (null != cause) {
+			if (cause instanceof IOException) throw (IOException) cause;
+			throw new IOException("Error copying level "+level+" of "+fromId, cause);
+		}
+		return levelCopied.get();
+	}
+
+
+
+	/*
+	 * Find the scanner that can list a pyramid IO's tiles, if there is one.
+	 */
+	private static PyramidScanner getScanner (PyramidIO io) {
+		if (io instanceof PyramidScanner) return (PyramidScanner) io;
+		if (io instanceof FileBasedPyramidIO && ((FileBasedPyramidIO) io).getSource() instanceof PyramidScanner) {
+			return (PyramidScanner) ((FileBasedPyramidIO) io).getSource();
+		}
+		return null;
+	}
+
+	private static boolean serializersMatch (TileSerializer<?> from, TileSerializer<?> to) {
+		return from == to || from.equals(to);
+	}
+
+	/*
+	 * Get a tile into the target's serialization.
+	 */
+	private static <S, T> CopiedTile transform (CopiedTile tile, TileSerializer<S> fromSerializer,
+	                                            TileSerializer<T> toSerializer) throws IOException {
+		TileData<?> data = tile.getTile();
+		if (null == data) {
+			if (serializersMatch(fromSerializer, toSerializer)) return tile;
+			data = fromSerializer.deserialize(tile.getDefinition(), new ByteArrayInputStream(tile.getData()));
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		@SuppressWarnings("unchecked")
+		TileData<T> typedData = (TileData<T>) data;
+		toSerializer.serialize(typedData, output);
+		return new CopiedTile(tile.getDefinition(), output.toByteArray(), null);
+	}
+
+	private static List<Future<Void>> submitAll (ExecutorService threads, List<Callable<Void>> tasks,
+	                                             final AtomicReference<Throwable> failure) {
+		List<Future<Void>> futures = new ArrayList<>();
+		for (final Callable<Void> task: tasks) {
+			futures.add(threads.submit(new Callable<Void>() {
+				@Override
+				public Void call () throws Exception {
+					try {
+						return task.call();
+					} catch (PipelineFailedException e) {
+						// Some other stage failed first
+						return null;
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+						return null;
+					}
+				}
+			}));
+		}
+		return futures;
+	}
+
+	private static void awaitAll (List<Future<Void>> futures, AtomicReference<Throwable> failure) {
+		for (Future<Void> future: futures) {
+			try {
+				future.get();
+			} catch (InterruptedException | ExecutionException e) {
+				failure.compareAndSet(null, e);
+			}
+		}
+		if (null != failure.get()) throw new PipelineFailedException();
+	}
+
+	private static void endQueue (BlockingQueue<CopiedTile> queue, int consumers,
+	                              AtomicReference<Throwable> failure) {
+		for (int i = 0; i < consumers; ++i) put(queue, END, failure);
+	}
+
+	/*
+	 * Queue a tile, giving up if any stage of the copy fails while we're
+	 * waiting for room.
+	 */
+	private static void put (BlockingQueue<CopiedTile> queue, CopiedTile tile, AtomicReference<Throwable> failure) {
+		try {
+			while (!queue.offer(tile, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+				if (null != failure.get()) throw new PipelineFailedException();
+			}
+		} catch (InterruptedException e) {
+			failure.compareAndSet(null, e);
+			throw new PipelineFailedException();
+		}
+	}
+
+	/*
+	 * Take the next tile from a queue, giving up if any stage of the copy
+	 * fails while we're waiting for one.
+	 */
+	private static CopiedTile take (BlockingQueue<CopiedTile> queue, AtomicReference<Throwable> failure) {
+		try {
+			CopiedTile tile;
+			while (null == (tile = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS))) {
+				if (null != failure.get()) throw new PipelineFailedException();
+			}
+			return tile;
+		} catch (InterruptedException e) {
+			failure.compareAndSet(null, e);
+			throw new PipelineFailedException();
+		}
+	}
+
+
+
+	/*
+	 * Thrown to unwind a stage once some other stage has failed.
+	 */
+	private static class PipelineFailedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/*
+	 * A tile on its way through the pipeline: either serialized, or (when
+	 * read from a source that can't be scanned) deserialized. Only the index
+	 * of a tile is available through the TileData interface; this lets the
+	 * serialized form be handed straight to the target's writeTiles.
+	 */
+	private static class CopiedTile implements TileData<Object> {
+		private static final long serialVersionUID = 1L;
+
+		private final TileIndex   _index;
+		private final byte[]      _data;
+		private final TileData<?> _tile;
+
+		CopiedTile (TileIndex index, byte[] data, TileData<?> tile) {
+			_index = index;
+			_data = data;
+			_tile = tile;
+		}
+
+		byte[] getData () {
+			return _data;
+		}
+
+		TileData<?> getTile () {
+			return _tile;
+		}
+
+		@Override
+		public TileIndex getDefinition () {
+			return _index;
+		}
+
+		@Override
+		public void setBin (int x, int y, Object value) {
+			throw new UnsupportedOperationException("Copied tiles are read-only");
+		}
+
+		@Override
+		public Object getBin (int x, int y) {
+			throw new UnsupportedOperationException("Copied tiles hold only serialized data");
+		}
+
+		@Override
+		public Collection<String> getMetaDataProperties () {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public String getMetaData (String property) {
+			return null;
+		}
+
+		@Override
+		public void setMetaData (String property, Object value) {
+			throw new UnsupportedOperationException("Copied tiles are read-only");
+		}
+	}
+
+	/*
+	 * Writes copied tiles' serialized data exactly as is.
+	 */
+	private static class PassThroughSerializer implements TileSerializer<Object> {
+		private static final long serialVersionUID = 1L;
+
+		private final TypeDescriptor _binType;
+
+		PassThroughSerializer (TypeDescriptor binType) {
+			_binType = binType;
+		}
+
+		@Override
+		public TypeDescriptor getBinTypeDescription () {
+			return _binType;
+		}
+
+		@Override
+		public TileData<Object> deserialize (TileIndex index, InputStream rawData) throws IOException {
+			throw new UnsupportedOperationException("Only used to write copied tiles");
+		}
+
+		@Override
+		public void serialize (TileData<Object> data, OutputStream output) throws IOException {
+			output.write(((CopiedTile) data).getData());
+		}
+	}
+}
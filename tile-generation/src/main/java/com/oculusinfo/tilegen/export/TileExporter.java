@@ -36,6 +36,7 @@ import com.oculusinfo.binning.TileIndex;
 import com.oculusinfo.binning.io.serialization.impl.PrimitiveAvroSerializer;
 import com.oculusinfo.binning.io.PyramidIO;
 import com.oculusinfo.binning.io.impl.FileBasedPyramidIO;
+import com.oculusinfo.binning.io.impl.FileSystemBulkWriter;
 import com.oculusinfo.binning.io.impl.FileSystemPyramidSource;
 import com.oculusinfo.binning.io.impl.HBasePyramidIO;
 import com.oculusinfo.binning.io.serialization.TileSerializer;
@@ -59,6 +60,18 @@ import com.oculusinfo.binning.io.serialization.TileSerializer;
 * 
 * -maxlevel -- Max aperture-tiles zoom level to export from hbase table.
 *
+* -threads -- Number of threads with which to write tiles.  Default = 4
+*
+* -scan -- Copy only the tiles that exist, by scanning each level of the table,
+*          rather than asking for every possible tile.  Reading and writing
+*          are pipelined, and tiles are written exactly as stored.
+*
+* -queuesize -- With -scan, the most tiles held in memory between reading and
+*               writing.  Default = 1000
+*
+* Levels are recorded as they are completed, so if an export is interrupted,
+* running it again will skip those levels already exported.
+*
 *
 **/
 
@@ -68,12 +81,21 @@ import com.oculusinfo.binning.io.serialization.TileSerializer;
 public class TileExporter {
 
     private PyramidIO _from;
+    private FileSystemPyramidSource _toSource;
     private PyramidIO _to;
+    private int _writeThreads;
 
     public TileExporter (String zookeeperQuorum, String zookeeperPort, String hbaseMaster,
                           String rootPath, String extension) throws IOException {
+        this(zookeeperQuorum, zookeeperPort, hbaseMaster, rootPath, extension, 4);
+    }
+
+    public TileExporter (String zookeeperQuorum, String zookeeperPort, String hbaseMaster,
+                          String rootPath, String extension, int writeThreads) throws IOException {
         _from = new HBasePyramidIO(zookeeperQuorum, zookeeperPort, hbaseMaster);
-        _to = new FileBasedPyramidIO(new FileSystemPyramidSource(rootPath, extension));
+        _toSource = new FileSystemPyramidSource(rootPath, extension);
+        _to = new FileBasedPyramidIO(_toSource);
+        _writeThreads = writeThreads;
     }
 
     public <T> void copyPyramid (String pyramidId, int minLevel, int maxLevel, TileSerializer<T> serializer, int blockSize) throws IOException {
@@ -83,12 +105,69 @@ public class TileExporter {
 
         System.out.println("Writing metadata");
         _to.writeMetaData(pyramidId, _from.readMetaData(pyramidId));
-        for (int level = minLevel; level <= maxLevel; ++level) {
-        	System.out.println("Copying level " + level);
-            copyLevel(pyramidId, level, serializer, blockSize);
+        FileSystemBulkWriter writer = new FileSystemBulkWriter(_toSource, pyramidId, _writeThreads);
+        try {
+            for (int level = minLevel; level <= maxLevel; ++level) {
+                if (writer.isLevelComplete(level)) {
+                    System.out.println("Skipping level " + level + ", already exported");
+                    continue;
+                }
+                System.out.println("Copying level " + level);
+                copyLevel(pyramidId, level, serializer, blockSize, writer);
+                writer.completeLevel(level);
+                System.out.println(String.format("Wrote %d tiles so far, at %.1f tiles/sec",
+                                                 writer.getTilesWritten(), writer.getTilesPerSecond()));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Copy a pyramid by scanning each level of the source table, so only tiles
+     * that exist are read, and passing their raw bytes straight through to
+     * the target.
+     */
+    public <T> void scanPyramid (String pyramidId, int minLevel, int maxLevel, TileSerializer<T> serializer,
+                                 int queueSize, int blockSize) throws IOException {
+        _from.initializeForRead(pyramidId, 256, 256, null);
+        _to.initializeForWrite(pyramidId);
+
+        System.out.println("Writing metadata");
+        _to.writeMetaData(pyramidId, _from.readMetaData(pyramidId));
+        PyramidCopier copier = new PyramidCopier(_from, _to, PyramidCopier.DEFAULT_READ_THREADS,
+                                                 PyramidCopier.DEFAULT_TRANSFORM_THREADS, _writeThreads,
+                                                 queueSize, blockSize);
+        // Only used for its manifest of completed levels
+        FileSystemBulkWriter manifest = new FileSystemBulkWriter(_toSource, pyramidId, 1);
+        try {
+            for (int level = minLevel; level <= maxLevel; ++level) {
+                if (manifest.isLevelComplete(level)) {
+                    System.out.println("Skipping level " + level + ", already exported");
+                    continue;
+                }
+                System.out.println("Scanning level " + level);
+                long copied = copier.copyLevel(pyramidId, serializer, pyramidId, serializer, level);
+                manifest.completeLevel(level);
+                System.out.println(String.format("Copied %d tiles from level %d; %d tiles so far, at %.1f tiles/sec",
+                                                 copied, level, copier.getTilesCopied(), copier.getTilesPerSecond()));
+            }
+        } finally {
+            manifest.close();
         }
     }
+
     public <T> void copyLevel (String pyramidId, int level, TileSerializer<T> serializer, int blockSize) throws IOException {
+        FileSystemBulkWriter writer = new FileSystemBulkWriter(_toSource, pyramidId, _writeThreads);
+        try {
+            copyLevel(pyramidId, level, serializer, blockSize, writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private <T> void copyLevel (String pyramidId, int level, TileSerializer<T> serializer, int blockSize,
+                                FileSystemBulkWriter writer) throws IOException {
 
         int N = 1 << level;
 
@@ -98,15 +177,16 @@ public class TileExporter {
                 boolean last = (x == N-1 && y == N-1);
                 indices.add(new TileIndex(level, x, y));
                 if (indices.size() >= blockSize || last) {
-                    retrieveAndCopy(pyramidId, serializer, indices);
+                    retrieveAndCopy(pyramidId, serializer, indices, writer);
                     indices.clear();
                 }
             }
         }
     }
 
-    private <T> void retrieveAndCopy (String pyramidId, TileSerializer<T> serializer, Iterable<TileIndex> indices) throws IOException {
-        _to.writeTiles(pyramidId, serializer, _from.readTiles(pyramidId, serializer, indices));
+    private <T> void retrieveAndCopy (String pyramidId, TileSerializer<T> serializer, Iterable<TileIndex> indices,
+                                      FileSystemBulkWriter writer) throws IOException {
+        writer.writeTiles(serializer, _from.readTiles(pyramidId, serializer, indices));
     }
 
     public static void main(String [] args) {
@@ -119,6 +199,9 @@ public class TileExporter {
         String pyramidId = "";
         int minLevel = 0;
         int maxLevel = 0;
+        int threads = 4;
+        boolean scan = false;
+        int queueSize = PyramidCopier.DEFAULT_QUEUE_SIZE;
         
         String extension = "avro";
         //------
@@ -188,6 +271,15 @@ public class TileExporter {
             else {
             	throw new IOException("-maxlevel command line parameter not found!");
             }                      
+            if (argMap.containsKey("threads")) {
+            	threads = Integer.parseInt(argMap.get("threads"));
+            }
+            if (argMap.containsKey("scan")) {
+            	scan = true;
+            }
+            if (argMap.containsKey("queuesize")) {
+            	queueSize = Integer.parseInt(argMap.get("queuesize"));
+            }
             if ((minLevel < 0) || (maxLevel < 0) || (minLevel > maxLevel)) {
             	throw new IOException("minlevel and maxlevel parameters must be >=0 and minlevel <= maxlevel!");
             }
@@ -203,8 +295,12 @@ public class TileExporter {
 
             int blockSize = 100;
             TileSerializer<Double> serializer = new PrimitiveAvroSerializer<Double>(Double.class, CodecFactory.bzip2Codec());
-            TileExporter extractor = new TileExporter(zookeeperQuorum, zookeeperPort, hbaseMaster, rootPath, extension);
-            extractor.copyPyramid(pyramidId, minLevel, maxLevel, serializer, blockSize);
+            TileExporter extractor = new TileExporter(zookeeperQuorum, zookeeperPort, hbaseMaster, rootPath, extension, threads);
+            if (scan) {
+                extractor.scanPyramid(pyramidId, minLevel, maxLevel, serializer, queueSize, blockSize);
+            } else {
+                extractor.copyPyramid(pyramidId, minLevel, maxLevel, serializer, blockSize);
+            }
             
             System.out.println("Done!");
             System.out.println("------------------------");
@@ -29,13 +29,22 @@ import com.esotericsoftware.kryo.Kryo;
 import com.oculusinfo.binning.*;
 import com.oculusinfo.binning.impl.AOITilePyramid;
 import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.binning.impl.DoubleDenseTileData;
+import com.oculusinfo.binning.impl.DoubleSparseTileData;
+import com.oculusinfo.binning.impl.IntDenseTileData;
+import com.oculusinfo.binning.impl.IntSparseTileData;
+import com.oculusinfo.binning.impl.LongDenseTileData;
+import com.oculusinfo.binning.impl.LongSparseTileData;
 import com.oculusinfo.binning.impl.SparseTileData;
 import com.oculusinfo.binning.impl.WebMercatorTilePyramid;
 import com.oculusinfo.factory.util.Pair;
 import com.oculusinfo.tilegen.spark.DoubleMaxAccumulatorParam;
 import com.oculusinfo.tilegen.spark.DoubleMinAccumulatorParam;
 import com.oculusinfo.tilegen.spark.MinMaxAccumulableParam;
+import com.oculusinfo.tilegen.tiling.HBaseBulkLoadTileIO;
 import com.oculusinfo.tilegen.tiling.HBaseTileIO;
+import com.oculusinfo.tilegen.tiling.PartialTile;
+import com.oculusinfo.tilegen.tiling.PartialTileSerializer;
 import com.oculusinfo.tilegen.tiling.TileIO;
 import com.oculusinfo.tilegen.util.PropertiesWrapper;
 import com.oculusinfo.tilegen.util.Rectangle;
@@ -101,6 +110,8 @@ public class TileRegistrator implements KryoRegistrator {
 		// com.oculusinfo.tilegen.tiling
 		kryo.register(TileIO.class);
 		kryo.register(HBaseTileIO.class);
+		kryo.register(HBaseBulkLoadTileIO.class);
+		kryo.register(PartialTile.class, new PartialTileSerializer());
 
 		// com.oculusinfo.tilegen.util
 		kryo.register(PropertiesWrapper.class);
@@ -116,6 +127,12 @@ public class TileRegistrator implements KryoRegistrator {
 		kryo.register(DenseTileData[].class);
 		kryo.register(SparseTileData.class);
 		kryo.register(SparseTileData[].class);
+		kryo.register(DoubleDenseTileData.class);
+		kryo.register(LongDenseTileData.class);
+		kryo.register(IntDenseTileData.class);
+		kryo.register(DoubleSparseTileData.class);
+		kryo.register(LongSparseTileData.class);
+		kryo.register(IntSparseTileData.class);
 		kryo.register(java.util.ArrayList.class);
 		kryo.register(TileIndex.class);
 
@@ -59,6 +59,7 @@ import com.oculusinfo.binning.TileData.StorageType
 import com.oculusinfo.binning.impl.DenseTileData
 import com.oculusinfo.binning.impl.SparseTileData
 import com.oculusinfo.binning.io.PyramidIO
+import com.oculusinfo.binning.io.ReleasablePyramidIO
 import com.oculusinfo.binning.io.serialization.TileSerializer
 import com.oculusinfo.binning.metadata.PyramidMetaData
 import com.oculusinfo.tilegen.datasets.{CSVDataSource, CSVReader, TilingTask}
@@ -70,10 +71,19 @@ import com.oculusinfo.tilegen.tiling.analytics.{TileAnalytic, AnalysisDescriptio
 
 /**
  * This class reads and caches a data set for live queries of its tiles
+ *
+ * Normally, each request scans the whole data set.  If given an index level
+ * (oculus.binning.ondemand.index.level), the data is instead partitioned and
+ * indexed by location once, when first read (see SpatialPartitionIndex), and
+ * each request only reads the partitions, and the points, that could fall in
+ * the requested tiles.  Indexed data is cached until its task is removed or
+ * replaced (see removeTask).
  */
-class OnDemandAccumulatorPyramidIO (sqlc: SQLContext) extends PyramidIO with Logging {
+class OnDemandAccumulatorPyramidIO (sqlc: SQLContext) extends PyramidIO with ReleasablePyramidIO with Logging {
 	private val sc = sqlc.sparkContext
 	private val tasks = MutableMap[String, TilingTask[_, _, _, _]]()
+	private val indices = MutableMap[String, SpatialPartitionIndex[_]]()
+	private val cachedTables = MutableMap[String, String]()
 	private val metaData = MutableMap[String, PyramidMetaData]()
 	private val accStore = new AccumulatorStore
 
@@ -119,12 +129,33 @@ class OnDemandAccumulatorPyramidIO (sqlc: SQLContext) extends PyramidIO with Log
 					// Register it as a table
 					val table = TilingTask.rectifyTableName("table "+pyramidId)
 					reader.asSchemaRDD.registerTempTable(table)
-					if (cache) sqlc.cacheTable(table)
+					if (cache) {
+						sqlc.cacheTable(table)
+						cachedTables(pyramidId) = table
+					}
 
 					// Create our tiling task
 					val newTask = TilingTask(sqlc, table, dataDescription)
 					newTask.getTileAnalytics.map(_.addGlobalAccumulator(sc))
 					newTask.getDataAnalytics.map(_.addGlobalAccumulator(sc))
+
+					// Index the data by location, if requested
+					val indexLevel = wrappedDesc.getIntOption(
+						"oculus.binning.ondemand.index.level",
+						"If given, the data is range partitioned by the Z-order of the "+
+							"tiles of this level in which each point falls, and indexed, so "+
+							"that requests only read the data that could fall in the tiles "+
+							"requested.  Levels near that of the most commonly requested "+
+							"tiles work best.",
+						None)
+					val indexPartitions = wrappedDesc.getIntOption(
+						"oculus.binning.ondemand.index.partitions",
+						"The number of partitions into which to split indexed data.  "+
+							"Defaults to the number of partitions of the data itself.",
+						None)
+					indexLevel.foreach(level =>
+						indices(pyramidId) = createIndex(newTask, level, indexPartitions)
+					)
 					tasks(pyramidId) = newTask
 				}
 			}
@@ -135,19 +166,68 @@ class OnDemandAccumulatorPyramidIO (sqlc: SQLContext) extends PyramidIO with Log
 	 * Direct programatic initialization.
 	 *
 	 * Temporary route until we get full pipeline configuration
+	 *
+	 * Initializing a pyramid with a different task than the one it already
+	 * has replaces the old task, and releases its index.
+	 *
+	 * @param indexLevel If given, the level of the cells by which to partition
+	 *                   and index the data by location
+	 * @param indexPartitions The number of partitions into which to split
+	 *                        indexed data, if not the number of partitions of
+	 *                        the data itself
 	 */
-	def initializeDirectly (pyramidId: String, task: TilingTask[_, _, _, _]): Unit ={
-		if (!tasks.contains(pyramidId)) {
+	def initializeDirectly (pyramidId: String, task: TilingTask[_, _, _, _],
+	                        indexLevel: Option[Int] = None,
+	                        indexPartitions: Option[Int] = None): Unit ={
+		if (!tasks.get(pyramidId).exists(_ eq task)) {
 			tasks.synchronized {
-				if (!tasks.contains(pyramidId)) {
+				if (!tasks.get(pyramidId).exists(_ eq task)) {
+					removeTask(pyramidId)
 					task.getTileAnalytics.map(_.addGlobalAccumulator(sc))
 					task.getDataAnalytics.map(_.addGlobalAccumulator(sc))
+					indexLevel.foreach(level =>
+						indices(pyramidId) = createIndex(task, level, indexPartitions)
+					)
 					tasks(pyramidId) = task
 				}
 			}
 		}
 	}
 
+	/**
+	 * Forget the task of a pyramid, releasing any cached index of its data,
+	 * and any data cached when it was initialized for reading.
+	 */
+	def removeTask (pyramidId: String): Unit = tasks.synchronized {
+		tasks.remove(pyramidId)
+		metaData.remove(pyramidId)
+		indices.remove(pyramidId).foreach(_.unpersist())
+		cachedTables.remove(pyramidId).foreach(table => sqlc.uncacheTable(table))
+	}
+
+	def releasePyramid (pyramidId: String): Unit = removeTask(pyramidId)
+
+	// Partition, index, and cache the data of a task by location
+	private def createIndex[PT, DT] (task: TilingTask[PT, DT, _, _], level: Int, partitions: Option[Int]):
+			SpatialPartitionIndex[(PT, Option[DT])] =
+	{
+		implicit val binTag = task.binTypeTag
+		implicit val dataAnalysisTag = task.dataAnalysisTypeTag
+		val indexScheme = task.getIndexScheme
+		val identity: RDD[(Seq[Any], PT, Option[DT])] => RDD[(Seq[Any], PT, Option[DT])] =
+			rdd => rdd
+		val points = task.transformRDD(identity).flatMap{case (index, value, analyticValue) =>
+			Try(indexScheme.toCartesian(index)).toOption.map{case (x, y) => (x, y, (value, analyticValue))}
+		}
+
+		val startTime = System.currentTimeMillis()
+		val index = SpatialPartitionIndex(points, task.getTilePyramid, level,
+		                                  partitions.getOrElse(points.partitions.length))
+		info("Indexed data for "+task.getName+" into "+index.numPartitions+" partitions in "+
+			     (System.currentTimeMillis() - startTime)+"ms")
+		index
+	}
+
 	def readTiles[BT] (pyramidId: String,
 	                   serializer: TileSerializer[BT],
 	                   javaTiles: JavaIterable[TileIndex]): JavaList[TileData[BT]] = {
@@ -209,39 +289,48 @@ class OnDemandAccumulatorPyramidIO (sqlc: SQLContext) extends PyramidIO with Log
 		)
 		val unitBin = new BinIndex(0, 0)
 
-		// Run over data set, looking for points in those tiles at those levels
+		// Get the points that could be in those tiles - from the index, if we have
+		// one, or the whole data set, if we don't
 		val indexScheme = task.getIndexScheme
 		val pyramid = task.getTilePyramid
-		val identity: RDD[(Seq[Any], PT, Option[DT])] => RDD[(Seq[Any], PT, Option[DT])] =
-			rdd => rdd
 		val tileType = task.getTileType
-		task.transformRDD(identity).foreach{case (index, value, analyticValue) =>
+		val points: RDD[(Double, Double, (PT, Option[DT]))] = indices.get(pyramidId) match {
+			case Some(index) =>
+				index.asInstanceOf[SpatialPartitionIndex[(PT, Option[DT])]].getPoints(tiles)
+			case None =>
+				val identity: RDD[(Seq[Any], PT, Option[DT])] => RDD[(Seq[Any], PT, Option[DT])] =
+					rdd => rdd
+				task.transformRDD(identity).flatMap{case (index, value, analyticValue) =>
+					Try(indexScheme.toCartesian(index)).toOption.map{case (x, y) => (x, y, (value, analyticValue))}
+				}
+		}
+
+		// Run over those points, looking for ones in those tiles at those levels
+		points.foreach{case (x, y, (value, analyticValue)) =>
 			{
-				Try(indexScheme.toCartesian(index)).foreach{case (x, y) =>
-					tileData.foreach{case (level, tileInfos) =>
-						{
-							val tile = pyramid.rootToTile(x, y, level, xBins, yBins)
-							if (tileInfos.contains(tile)) {
-								val bin = pyramid.rootToBin(x, y, tile)
-								// update bin value
-								// Can't recover from an accumulator aggregation exception (we
-								// don't know what it has added in, and what it hasn't), so just
-								// move on if we get one.
-								Try(tileInfos(tile).accumulable += (bin, value))
-								// update data analytic value
-								dataAnalytics.foreach(da =>
-									{
-										analyticValue.foreach(dataAnalyticValue =>
-											{
-												val daAccumulable = dataAnalyticAccumulators.get.apply(tile).accumulable
-												// Similarly to bin accumulators, data analytic accumulators really can't
-												// recover from an exception, so just wrap it and move on.
-												Try(daAccumulable += (unitBin, dataAnalyticValue))
-											}
-										)
-									}
-								)
-							}
+				tileData.foreach{case (level, tileInfos) =>
+					{
+						val tile = pyramid.rootToTile(x, y, level, xBins, yBins)
+						if (tileInfos.contains(tile)) {
+							val bin = pyramid.rootToBin(x, y, tile)
+							// update bin value
+							// Can't recover from an accumulator aggregation exception (we
+							// don't know what it has added in, and what it hasn't), so just
+							// move on if we get one.
+							Try(tileInfos(tile).accumulable += (bin, value))
+							// update data analytic value
+							dataAnalytics.foreach(da =>
+								{
+									analyticValue.foreach(dataAnalyticValue =>
+										{
+											val daAccumulable = dataAnalyticAccumulators.get.apply(tile).accumulable
+											// Similarly to bin accumulators, data analytic accumulators really can't
+											// recover from an exception, so just wrap it and move on.
+											Try(daAccumulable += (unitBin, dataAnalyticValue))
+										}
+									)
+								}
+							)
 						}
 					}
 				}
@@ -232,6 +232,8 @@ class OnDemandBinningPyramidIO (sqlc: SQLContext) extends PyramidIO {
 
 				val binner = new RDDBinner
 				binner.debug = true
+				binner.consolidationStrategy = task.getConsolidationStrategy
+				binner.skewSampleFraction = task.getSkewSampleFraction
 
 				val results: Array[TileData[BT]] = task.transformRDD[TileData[BT]](
 					rdd => {
@@ -244,6 +246,7 @@ class OnDemandBinningPyramidIO (sqlc: SQLContext) extends PyramidIO {
 						                                             task.getTileType)
 					}
 				).collect
+				binner.unpersistIntermediates()
 
 				// Update metadata for these levels
 				val taskMetaData = getMetaData(pyramidId).get
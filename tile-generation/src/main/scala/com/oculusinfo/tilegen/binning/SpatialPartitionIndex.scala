@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2014 Oculus Info Inc.
+ * http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.oculusinfo.tilegen.binning
+
+
+
+import scala.reflect.ClassTag
+
+import org.apache.spark.SparkContext._
+import org.apache.spark.rdd.{PartitionPruningRDD, RDD}
+import org.apache.spark.storage.StorageLevel
+
+import com.oculusinfo.binning.{PyramidComparator, TileIndex, TilePyramid}
+import com.oculusinfo.tilegen.tiling.ZOrderTilePartitioner
+
+
+
+/**
+ * The points of one partition of a spatially indexed data set, in parallel
+ * arrays, sorted by key - the Z-order key (see
+ * PyramidComparator.getTileIndexKey) of the tile of level
+ * SpatialPartitionIndex.KeyLevel in which each point falls.  The points in
+ * any one tile of that level or above are therefore a contiguous run.
+ */
+class SpatialPointBlock[T] (val keys: Array[Long],
+                            val xs: Array[Double],
+                            val ys: Array[Double],
+                            val values: Array[T])
+		extends Serializable
+{
+	def size: Int = keys.length
+
+	/** All points with keys from minKey to maxKey, inclusive */
+	def range (minKey: Long, maxKey: Long): Iterator[(Double, Double, T)] = {
+		val start = firstNotBelow(minKey)
+		val end = firstNotBelow(maxKey + 1)
+		Range(start, end).iterator.map(i => (xs(i), ys(i), values(i)))
+	}
+
+	// The index of the first key not less than the given key
+	private def firstNotBelow (key: Long): Int = {
+		var low = 0
+		var high = keys.length
+		while (low < high) {
+			val middle = (low + high) >>> 1
+			if (keys(middle) < key) low = middle + 1
+			else high = middle
+		}
+		low
+	}
+}
+
+
+
+/**
+ * A data set of points, partitioned and indexed by location, so that only
+ * the data that could fall in a given set of tiles need be read to create
+ * those tiles.
+ *
+ * Points are range partitioned by the Z-order of the coarse cells - tiles of
+ * a chosen partition level - in which they fall, so each partition covers a
+ * compact area, and sorted within each partition by a much finer Z-order
+ * key.  The range of keys in each partition is kept on the driver, so a
+ * request for tiles only runs on partitions whose keys overlap those of the
+ * tiles, and only reads the runs of points within those tiles.
+ *
+ * @param blocks The points of each partition
+ * @param keyRanges The lowest and highest key in each partition, or None if
+ *                  the partition is empty
+ */
+class SpatialPartitionIndex[T] private (blocks: RDD[SpatialPointBlock[T]],
+                                        keyRanges: Array[Option[(Long, Long)]])
+{
+	import SpatialPartitionIndex._
+
+	/** The number of partitions into which the data is split */
+	def numPartitions: Int = keyRanges.length
+
+	/** The partitions that could hold points in any of the given tiles */
+	def getPartitions (tiles: Iterable[TileIndex]): Seq[Int] = {
+		val tileRanges = mergeRanges(tiles.map(getKeyRange))
+		Range(0, keyRanges.length).filter(partition =>
+			keyRanges(partition).exists{case (minKey, maxKey) =>
+				tileRanges.exists{case (tileMin, tileMax) => tileMin <= maxKey && minKey <= tileMax}
+			}
+		)
+	}
+
+	/**
+	 * Get the points that could fall in any of the given tiles, each once.
+	 * Only partitions that could hold such points are read.  For tiles of
+	 * levels below KeyLevel, the points are exactly those in the tiles; for
+	 * deeper tiles, they are those in the enclosing tile of KeyLevel.
+	 */
+	def getPoints (tiles: Iterable[TileIndex]): RDD[(Double, Double, T)] = {
+		val partitions = getPartitions(tiles).toSet
+		val tileRanges = mergeRanges(tiles.map(getKeyRange))
+		PartitionPruningRDD.create(blocks, partitions.contains).flatMap(block =>
+			tileRanges.iterator.flatMap{case (minKey, maxKey) => block.range(minKey, maxKey)}
+		)
+	}
+
+	/** Release the cached points */
+	def unpersist (): Unit = blocks.unpersist(false)
+}
+
+
+
+object SpatialPartitionIndex {
+	/**
+	 * The level of the tiles by which points are sorted within each
+	 * partition.  Tiles of this level are far smaller than any tile likely to
+	 * be requested, but their keys still fit easily in a Long.
+	 */
+	val KeyLevel = 24
+
+	/**
+	 * Get the key of the tile of KeyLevel in which a point falls, if the
+	 * point falls within the pyramid at all
+	 */
+	def getKey (pyramid: TilePyramid, x: Double, y: Double): Option[Long] = {
+		val tile = pyramid.rootToTile(x, y, KeyLevel, 1, 1)
+		val tiles = 1 << KeyLevel
+		if (tile.getX() < 0 || tile.getY() < 0 || tile.getX() >= tiles || tile.getY() >= tiles) None
+		else Some(PyramidComparator.getTileIndexKey(tile))
+	}
+
+	/**
+	 * Get the range of keys of points that could fall within a tile.  Tiles
+	 * above KeyLevel cover a contiguous range of tiles of KeyLevel in
+	 * Z-order; tiles below it fall within a single one.
+	 */
+	def getKeyRange (tile: TileIndex): (Long, Long) = {
+		val level = tile.getLevel()
+		if (level >= KeyLevel) {
+			val shift = level - KeyLevel
+			val key = PyramidComparator.getTileIndexKey(
+				new TileIndex(KeyLevel, tile.getX() >> shift, tile.getY() >> shift, 1, 1))
+			(key, key)
+		} else {
+			val shift = KeyLevel - level
+			val minKey = PyramidComparator.getTileIndexKey(
+				new TileIndex(KeyLevel, tile.getX() << shift, tile.getY() << shift, 1, 1))
+			(minKey, minKey + (1L << (2 * shift)) - 1)
+		}
+	}
+
+	// Sort ranges, and merge any that overlap, so no point is read twice
+	private def mergeRanges (ranges: Iterable[(Long, Long)]): Seq[(Long, Long)] =
+		ranges.toSeq.sortBy(_._1).foldLeft(List[(Long, Long)]()){(merged, range) =>
+			merged match {
+				case (lastMin, lastMax) :: rest if range._1 <= lastMax + 1 =>
+					(lastMin, lastMax max range._2) :: rest
+				case _ => range :: merged
+			}
+		}.reverse
+
+	/**
+	 * Partition, sort, and cache a data set of points by location.  This runs
+	 * two jobs - one to sample the data to find even partitions, and one to
+	 * partition and cache it.
+	 *
+	 * @param points The points to index, as x, y, and value, in the root
+	 *               coordinates of the pyramid
+	 * @param pyramid The pyramid into which points will be tiled
+	 * @param partitionLevel The level of the cells by whose Z-order points
+	 *                       are range partitioned
+	 * @param partitions The number of partitions into which to split the points
+	 */
+	def apply[T: ClassTag] (points: RDD[(Double, Double, T)], pyramid: TilePyramid,
+	                        partitionLevel: Int, partitions: Int): SpatialPartitionIndex[T] =
+	{
+		// Points outside the pyramid can never be in a tile, so they are dropped
+		val keyed = points.flatMap{case (x, y, value) =>
+			getKey(pyramid, x, y).map(key =>
+				(pyramid.rootToTile(x, y, partitionLevel, 1, 1), (key, x, y, value))
+			)
+		}
+
+		val partitioner = ZOrderTilePartitioner.fromSample(keyed.map(_._1), partitions)
+		val blocks = keyed.partitionBy(partitioner).mapPartitions(iter =>
+			{
+				val sorted = iter.map(_._2).toArray.sortBy(_._1)
+				Iterator(new SpatialPointBlock[T](sorted.map(_._1), sorted.map(_._2),
+				                                  sorted.map(_._3), sorted.map(_._4)))
+			}
+		)
+		blocks.persist(StorageLevel.MEMORY_ONLY)
+
+		// There is exactly one block per partition, so these come back in partition order
+		val keyRanges = blocks.map(block =>
+			if (0 == block.size) None
+			else Some((block.keys(0), block.keys(block.size - 1)))
+		).collect()
+
+		new SpatialPartitionIndex[T](blocks, keyRanges)
+	}
+}
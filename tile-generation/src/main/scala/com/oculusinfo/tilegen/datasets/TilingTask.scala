@@ -208,6 +208,12 @@ abstract class TilingTask[PT: ClassTag, DT: ClassTag, AT: ClassTag, BT]
 	/** Get the type of tile storage to create when this task creates tiles */
 	def getTileType = config.tileType
 
+	/** Get the way in which binned data is consolidated into tiles by this task */
+	def getConsolidationStrategy = config.consolidationStrategy
+
+	/** Get the fraction of data sampled to plan skew-aware consolidation, if any */
+	def getSkewSampleFraction = config.skewSampleFraction
+
 	/** Get the scheme used to determine axis values for our tiles */
 	def getIndexScheme = indexer.indexScheme
 
@@ -249,6 +255,8 @@ abstract class TilingTask[PT: ClassTag, DT: ClassTag, AT: ClassTag, BT]
 	def doTiling (tileIO: TileIO): Unit = {
 		val binner = new RDDBinner
 		binner.debug = true
+		binner.consolidationStrategy = getConsolidationStrategy
+		binner.skewSampleFraction = getSkewSampleFraction
 		val sc = sqlc.sparkContext
 
 		tileAnalytics.map(_.addGlobalAccumulator(sc))
@@ -266,6 +274,7 @@ abstract class TilingTask[PT: ClassTag, DT: ClassTag, AT: ClassTag, BT]
 
 					tileIO.writeTileSet(getTilePyramid, getName, tiles, getTileSerializer,
 					                    tileAnalytics, dataAnalytics, getName, getDescription)
+					binner.unpersistIntermediates()
 				}
 
 			process(procFcn, None)
@@ -33,7 +33,8 @@ import com.oculusinfo.binning.TileData.StorageType
 import scala.collection.JavaConverters._
 
 import com.oculusinfo.factory.{ConfigurationProperty, ConfigurableFactory}
-import com.oculusinfo.factory.properties.{ListProperty, IntegerProperty, BooleanProperty, StringProperty}
+import com.oculusinfo.factory.properties.{ListProperty, IntegerProperty, BooleanProperty, StringProperty, DoubleProperty}
+import com.oculusinfo.tilegen.tiling.ConsolidationStrategy
 import com.oculusinfo.tilegen.util.OptionsFactoryMixin
 
 
@@ -48,6 +49,10 @@ import com.oculusinfo.tilegen.util.OptionsFactoryMixin
  * @param tileWidth The number of bins into which each tile created is divided horizontally
  * @param tileHeight The number of bins into which each tile created is divided vertically
  * @param consolidationPartitions The number of partitions into which to consolidate data when performign reduce operations
+ * @param tileType The type of tile storage to use, or None to choose per tile
+ * @param consolidationStrategy How binned data is consolidated into tiles
+ * @param skewSampleFraction The fraction of data to sample to plan skew-aware consolidation, or None to hash
+ *                           partition tiles
  */
 case class TilingTaskParameters (name: String,
                                  description: String,
@@ -56,7 +61,9 @@ case class TilingTaskParameters (name: String,
                                  tileWidth: Int,
                                  tileHeight: Int,
                                  consolidationPartitions: Option[Int],
-                                 tileType: Option[StorageType])
+                                 tileType: Option[StorageType],
+                                 consolidationStrategy: ConsolidationStrategy.Value = ConsolidationStrategy.ByBin,
+                                 skewSampleFraction: Option[Double] = None)
 {
 }
 
@@ -71,6 +78,8 @@ object TilingTaskParametersFactory {
 	val TILE_HEIGHT_PROPERTY = new IntegerProperty("tileHeight", "The height of created tiles, in bins", 256)
 	val PARTITIONS_PROPERTY = new IntegerProperty("consolidationPartitions", "The number of partitions into which to consolidate data when performign reduce operations", 0)
 	val TILE_TYPE_PROPERTY = new StringProperty("tileType", "The type of tile storage to use when creating tiles.  If unspecified, a heuristic will be used that is ideal for tiles whose bin values are the size of doubles.  If tiles have bins significantly larger than doubles, sparse is recommended.", "unspecified", Array("unspecified", "dense", "sparse"))
+	val CONSOLIDATION_PROPERTY = new StringProperty("consolidation", "How binned data is consolidated into tiles.  \"bin\" reduces values bin by bin, then groups bins into tiles; \"tile\" builds partial tiles in each partition and merges them in a single shuffle, which moves much less data when tiles are well filled.", "bin", Array("bin", "tile"))
+	val SKEW_SAMPLE_PROPERTY = new DoubleProperty("skewSampleFraction", "If greater than 0, the fraction of the data to sample to find tiles with much more data than others; such tiles are split across several partitions when consolidating, and lighter tiles packed together.  If 0, tiles are simply hash partitioned.", 0.0)
 }
 class TilingTaskParametersFactory (parent: ConfigurableFactory[_], path: JavaList[String])
 		extends ConfigurableFactory[TilingTaskParameters](classOf[TilingTaskParameters], parent, path, true)
@@ -85,6 +94,8 @@ class TilingTaskParametersFactory (parent: ConfigurableFactory[_], path: JavaLis
 	addProperty(TILE_HEIGHT_PROPERTY)
 	addProperty(PARTITIONS_PROPERTY)
 	addProperty(TILE_TYPE_PROPERTY)
+	addProperty(CONSOLIDATION_PROPERTY)
+	addProperty(SKEW_SAMPLE_PROPERTY)
 
 	private def parseLevels (levelsDescriptions: Seq[String]): Seq[Seq[Int]] = {
 		levelsDescriptions.map(levelSet =>
@@ -106,6 +117,10 @@ class TilingTaskParametersFactory (parent: ConfigurableFactory[_], path: JavaLis
 			case Some("sparse") => Some(StorageType.Sparse)
 			case _ => None
 		}
+		val consolidationStrategy = getPropertyValue(CONSOLIDATION_PROPERTY).toLowerCase match {
+			case "tile" => ConsolidationStrategy.ByTile
+			case _ => ConsolidationStrategy.ByBin
+		}
 		new TilingTaskParameters(getPropertyValue(NAME_PROPERTY),
 		                         getPropertyValue(DESC_PROPERTY),
 		                         optionalGet(PREFIX_PROPERTY),
@@ -113,6 +128,8 @@ class TilingTaskParametersFactory (parent: ConfigurableFactory[_], path: JavaLis
 		                         getPropertyValue(TILE_WIDTH_PROPERTY),
 		                         getPropertyValue(TILE_HEIGHT_PROPERTY),
 		                         optionalGet(PARTITIONS_PROPERTY).map(_.intValue()),
-		                         tileType)
+		                         tileType,
+		                         consolidationStrategy,
+		                         optionalGet(SKEW_SAMPLE_PROPERTY).map(_.doubleValue()).filter(_ > 0.0))
 	}
 }
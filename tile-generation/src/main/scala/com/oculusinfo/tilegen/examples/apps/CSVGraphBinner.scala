@@ -166,6 +166,7 @@ object CSVGraphBinner {
 			val lineDrawer = new EndPointsToLine(lenThres, task.getNumXBins, task.getNumYBins)
 			
 			binner.debug = true
+			binner.skewSampleFraction = task.getSkewSampleFraction
 			task.getLevels.map(levels =>
 				{
 					// Add level accumulators for all analytics for these levels (for now at least)
@@ -224,6 +225,7 @@ object CSVGraphBinner {
 						                    dataAnalytics,
 						                    task.getName,
 						                    task.getDescription)
+						binner.unpersistIntermediates()
 					}
 					task.process(procFcn, None)
 				}
@@ -232,6 +234,7 @@ object CSVGraphBinner {
 		else  {//if (_graphDataType == "nodes")
 			val binner = new RDDBinner
 			binner.debug = true
+			binner.skewSampleFraction = task.getSkewSampleFraction
 			task.getLevels.map(levels =>
 				{
 					// Add level accumulators for all analytics for these levels (for now at least)
@@ -264,6 +267,7 @@ object CSVGraphBinner {
 						                    dataAnalytics,
 						                    task.getName,
 						                    task.getDescription)
+						binner.unpersistIntermediates()
 					}
 					task.process(procFcn, None)
 				}
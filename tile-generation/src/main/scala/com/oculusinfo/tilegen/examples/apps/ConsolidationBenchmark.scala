@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tilegen.examples.apps
+
+
+
+import java.lang.{Double => JavaDouble}
+import java.util.concurrent.atomic.AtomicLong
+
+import scala.util.Try
+import scala.util.control.Breaks
+
+import org.apache.spark.scheduler.{SparkListener, SparkListenerTaskEnd}
+import org.apache.spark.storage.StorageLevel
+
+import com.oculusinfo.binning.TileData
+import com.oculusinfo.binning.impl.AOITilePyramid
+import com.oculusinfo.tilegen.examples.datagen.Complex
+import com.oculusinfo.tilegen.tiling.{CartesianIndexScheme, ConsolidationStrategy, RDDBinner}
+import com.oculusinfo.tilegen.tiling.analytics.{AnalysisDescription, NumericSumBinningAnalytic}
+import com.oculusinfo.tilegen.util.{ArgumentParser, MissingArgumentException}
+
+
+
+/**
+ * Compares the ways RDDBinner can consolidate binned data into tiles, by
+ * binning a generated Julia set into several levels with each, and reporting
+ * the time taken and the bytes shuffled by each.
+ *
+ * Run it with, for instance, -spark.master local[4]
+ */
+object ConsolidationBenchmark {
+	def main (args: Array[String]): Unit = {
+		val argParser = new ArgumentParser(args)
+		try {
+			val sc = argParser.getSparkConnector().createContext(Some("Consolidation benchmark"))
+
+			val samples = argParser.getLong("samples", "The number of points to generate", Some(1000000L))
+			val partitions = argParser.getInt("partitions", "The number of partitions into which to generate them",
+			                                  Some(8))
+			val levels = argParser.getInt("levels", "The number of levels to tile, starting from 0", Some(6))
+			val bins = argParser.getInt("bins", "The number of bins along each axis of each tile", Some(256))
+			val runs = argParser.getInt("runs", "The number of times to run each strategy", Some(3))
+
+			// Count the bytes written by every shuffle
+			val shuffleBytes = new AtomicLong(0L)
+			sc.addSparkListener(new SparkListener {
+				override def onTaskEnd (taskEnd: SparkListenerTaskEnd): Unit = {
+					val metrics = taskEnd.taskMetrics
+					if (null != metrics)
+						metrics.shuffleWriteMetrics.foreach(m => shuffleBytes.addAndGet(m.shuffleBytesWritten))
+				}
+			})
+
+			// Points of the Julia set for c = -0.8 + 0.156i, valued by how
+			// long they take to escape
+			val C = new Complex(-0.8, 0.156)
+			val data = sc.parallelize(Range(0, partitions), partitions).flatMap(p =>
+				Range(0, (samples / partitions).toInt).iterator.map(n =>
+					{
+						val start = new Complex(math.random * 4.0 - 2.0, math.random * 4.0 - 2.0)
+						var Z = start
+						var iterations = 0
+						val loop = new Breaks
+						loop.breakable {
+							for (i <- 0 until 100) {
+								Z = Z.square + C
+								if (math.abs(Z.real) < 2.0) iterations = iterations + 1
+								else loop.break
+							}
+						}
+						((start.real, start.imaginary), iterations.toDouble)
+					}
+				)
+			).persist(StorageLevel.MEMORY_ONLY)
+			data.count
+
+			val pyramid = new AOITilePyramid(-2.0, -2.0, 2.0, 2.0)
+			val binAnalytic = new NumericSumBinningAnalytic[Double, JavaDouble]()
+			val tileAnalytics: Option[AnalysisDescription[TileData[JavaDouble], Double]] = None
+			val dataAnalytics: Option[AnalysisDescription[((Double, Double), Double), Double]] = None
+			val coordFcn: (((Double, Double), Double)) => Try[(Double, Double)] = record => Try(record._1)
+			val valueFcn: (((Double, Double), Double)) => Try[Double] = record => Try(record._2)
+
+			for (run <- 1 to runs; strategy <- ConsolidationStrategy.values) {
+				val binner = new RDDBinner
+				binner.debug = false
+				binner.consolidationStrategy = strategy
+
+				val bareData = binner.transformData(data, coordFcn, valueFcn, dataAnalytics)
+				val tiles = binner.processDataByLevel(bareData, new CartesianIndexScheme, binAnalytic,
+				                                      tileAnalytics, dataAnalytics, pyramid, Range(0, levels),
+				                                      bins, bins)
+
+				// Let the previous run's task events drain first
+				Thread.sleep(1000)
+				shuffleBytes.set(0L)
+				val startTime = System.currentTimeMillis()
+				val numTiles = tiles.count
+				val endTime = System.currentTimeMillis()
+				Thread.sleep(1000)
+
+				println("Run %d, %s: %d tiles in %.3f seconds, %.1f MB shuffled".format(
+					        run, strategy, numTiles, (endTime - startTime) / 1000.0,
+					        shuffleBytes.get / (1024.0 * 1024.0)))
+			}
+
+			sc.stop()
+		} catch {
+			case e: MissingArgumentException => {
+				println("ConsolidationBenchmark - compare ways of consolidating bins into tiles")
+				println("Argument exception: "+e.getMessage())
+				argParser.usage
+			}
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tilegen.examples.apps
+
+
+
+import java.util.Properties
+
+import scala.collection.JavaConverters._
+import scala.util.Random
+
+import org.apache.spark.sql.SQLContext
+
+import com.oculusinfo.binning.TileIndex
+import com.oculusinfo.tilegen.binning.OnDemandAccumulatorPyramidIO
+import com.oculusinfo.tilegen.datasets.TilingTask
+import com.oculusinfo.tilegen.util.{ArgumentParser, MissingArgumentException}
+
+
+
+/** A generated point, for the on-demand index benchmark */
+case class BenchmarkPoint (x: Double, y: Double)
+
+/**
+ * Compares the time taken to serve deep-zoom tile requests on demand with
+ * and without a spatial index (see SpatialPartitionIndex), on a generated
+ * data set of clustered points.
+ *
+ * Run it with, for instance, -spark.master local[4]
+ */
+object OnDemandIndexBenchmark {
+	def main (args: Array[String]): Unit = {
+		val argParser = new ArgumentParser(args)
+		try {
+			val sc = argParser.getSparkConnector().createContext(Some("On-demand index benchmark"))
+			val sqlc = new SQLContext(sc)
+			import sqlc.createSchemaRDD
+
+			val samples = argParser.getLong("samples", "The number of points to generate", Some(10000000L))
+			val partitions = argParser.getInt("partitions", "The number of partitions into which to generate them",
+			                                  Some(16))
+			val clusters = argParser.getInt("clusters", "The number of clusters of points", Some(100))
+			val level = argParser.getInt("level", "The level of the tiles to request", Some(14))
+			val indexLevel = argParser.getInt("indexLevel", "The level of the cells by which to index the data",
+			                                  Some(8))
+			val requests = argParser.getInt("requests", "The number of views to request in each mode", Some(10))
+
+			// Gaussian clusters of points, in the unit square
+			val random = new Random(0)
+			val centers = Array.fill(clusters)((random.nextDouble(), random.nextDouble()))
+			val pointsPerPartition = (samples / partitions).toInt
+			val data = sc.parallelize(Range(0, partitions), partitions).flatMap(p =>
+				{
+					val random = new Random(p)
+					Iterator.fill(pointsPerPartition){
+						val (cx, cy) = centers(random.nextInt(centers.length))
+						BenchmarkPoint(math.min(math.max(cx + random.nextGaussian() * 0.01, 0.0), 0.999999),
+						               math.min(math.max(cy + random.nextGaussian() * 0.01, 0.0), 0.999999))
+					}
+				}
+			)
+			data.registerTempTable("points")
+			sqlc.cacheTable("points")
+			sqlc.sql("SELECT COUNT(*) FROM points").collect()
+
+			val props = new Properties()
+			props.setProperty("oculus.binning.source.type", "schema")
+			props.setProperty("oculus.binning.table", "points")
+			props.setProperty("oculus.binning.projection.autobounds", "false")
+			props.setProperty("oculus.binning.projection.type", "EPSG:4326")
+			props.setProperty("oculus.binning.projection.minX", "0.0")
+			props.setProperty("oculus.binning.projection.maxX", "1.0")
+			props.setProperty("oculus.binning.projection.minY", "0.0")
+			props.setProperty("oculus.binning.projection.maxY", "1.0")
+			props.setProperty("oculus.binning.index.type", "cartesian")
+			props.setProperty("oculus.binning.index.field.0", "x")
+			props.setProperty("oculus.binning.index.field.1", "y")
+			props.setProperty("oculus.binning.levels.0", level.toString)
+
+			val scanIO = new OnDemandAccumulatorPyramidIO(sqlc)
+			scanIO.initializeDirectly("scan", TilingTask(sqlc, "points", props))
+
+			val indexedIO = new OnDemandAccumulatorPyramidIO(sqlc)
+			val indexStart = System.currentTimeMillis()
+			indexedIO.initializeDirectly("indexed", TilingTask(sqlc, "points", props), Some(indexLevel), Some(partitions))
+			println("Indexed %d points in %.3f seconds".format(samples, (System.currentTimeMillis() - indexStart) / 1000.0))
+
+			// Views of 2x2 tiles, each at the center of a cluster
+			val tilesPerAxis = 1 << level
+			val views = Range(0, requests).map(n =>
+				{
+					val (cx, cy) = centers(n % centers.length)
+					val x = math.min((cx * tilesPerAxis).toInt, tilesPerAxis - 2)
+					val y = math.min((cy * tilesPerAxis).toInt, tilesPerAxis - 2)
+					for (dx <- 0 to 1; dy <- 0 to 1) yield new TileIndex(level, x + dx, y + dy)
+				}
+			)
+
+			List(("scan", scanIO), ("indexed", indexedIO)).foreach{case (pyramidId, pyramidIO) =>
+				val times = views.map(view =>
+					{
+						val startTime = System.currentTimeMillis()
+						pyramidIO.readTiles(pyramidId, null, view.asJava)
+						System.currentTimeMillis() - startTime
+					}
+				)
+				println("%s: mean %.3f seconds, max %.3f seconds per view of 4 tiles at level %d".format(
+					        pyramidId, times.sum / (1000.0 * times.size), times.max / 1000.0, level))
+			}
+
+			indexedIO.removeTask("indexed")
+			scanIO.removeTask("scan")
+			sc.stop()
+		} catch {
+			case e: MissingArgumentException => {
+				println("OnDemandIndexBenchmark - compare on-demand tiling with and without a spatial index")
+				println("Argument exception: "+e.getMessage())
+				argParser.usage
+			}
+		}
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.oculusinfo.tilegen.tiling
+
+
+
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.Path
+import org.apache.hadoop.hbase.KeyValue
+import org.apache.hadoop.hbase.client.HTable
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable
+import org.apache.hadoop.hbase.mapreduce.HFileOutputFormat
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles
+import org.apache.hadoop.hbase.util.Bytes
+import org.apache.hadoop.mapreduce.Job
+
+import org.apache.spark.SparkContext._
+import org.apache.spark.rdd.RDD
+import org.apache.spark.storage.StorageLevel
+
+import com.oculusinfo.binning.io.impl.HBasePyramidIO
+
+
+
+object HBaseBulkLoadTileIO {
+	/** HBase's own row order - unsigned, lexicographic comparison of the key bytes */
+	val RowKeyOrdering: Ordering[Array[Byte]] = new Ordering[Array[Byte]] {
+		def compare (a: Array[Byte], b: Array[Byte]): Int = Bytes.compareTo(a, b)
+	}
+
+	/**
+	 * Sort serialized tiles by row key, into the given number of partitions.
+	 * The partitions cover contiguous, roughly equally-populated ranges of
+	 * keys, chosen by sampling the keys - so they follow the actual
+	 * distribution of tiles over levels and positions.
+	 */
+	def sortRows (rows: RDD[(Array[Byte], Array[Byte])], partitions: Int): RDD[(Array[Byte], Array[Byte])] = {
+		implicit val ordering = RowKeyOrdering
+		rows.sortByKey(true, partitions)
+	}
+
+	/**
+	 * Get the keys at which to split a new table so that each of its regions
+	 * holds exactly one partition of sorted rows - the first key of each
+	 * non-empty partition after the first.
+	 */
+	def getSplitKeys (sortedRows: RDD[(Array[Byte], Array[Byte])]): Array[Array[Byte]] =
+		sortedRows.mapPartitions(iter =>
+			if (iter.hasNext) Iterator(iter.next()._1) else Iterator.empty
+		).collect().drop(1)
+
+	/**
+	 * Write sorted rows as HFiles of tile data, one set of files per
+	 * partition, under the given directory.
+	 */
+	def writeHFiles (sortedRows: RDD[(Array[Byte], Array[Byte])], location: String,
+	                 configuration: Configuration): Unit = {
+		import com.oculusinfo.binning.io.impl.HBasePyramidIO._
+
+		sortedRows.map(row =>
+			{
+				val key = new ImmutableBytesWritable(row._1)
+				val cell = new KeyValue(row._1, TILE_COLUMN.getFamily(), TILE_COLUMN.getQualifier(), row._2)
+				(key, cell)
+			}
+		).saveAsNewAPIHadoopFile(location, classOf[ImmutableBytesWritable], classOf[KeyValue],
+		                         classOf[HFileOutputFormat], configuration)
+	}
+}
+
+/**
+ * Write tiles to HBase by bulk load, rather than through region servers.
+ * 
+ * Writing many tiles as individual Puts makes region servers do a great
+ * deal of work - write-ahead logging, memstore flushes, compactions, and
+ * region splits - much of which is wasted when a whole pyramid is written at
+ * once.  Instead, this sorts the serialized tiles by row key, writes them
+ * straight into HFiles (HBase's own storage format) under a staging
+ * directory, and then hands the files to HBase, which just moves them into
+ * place.
+ * 
+ * If the table doesn't exist yet, it is created pre-split, with one region
+ * per partition of sorted tiles, so each HFile fits exactly in one region.
+ * Into an existing table, HFiles that span regions are split as they are
+ * loaded.
+ * 
+ * @param stagingLocation A directory, on the file system used by HBase, in
+ *                        which to write HFiles before they are loaded.  The
+ *                        HBase user must be able to move files out of it.
+ * @param regions The number of partitions into which to sort tiles - and
+ *                hence the number of regions of a new table.  If None, the
+ *                number of partitions of the tile data is used.
+ */
+class HBaseBulkLoadTileIO (zookeeperQuorum: String,
+                           zookeeperPort: String,
+                           hbaseMaster: String,
+                           stagingLocation: String,
+                           regions: Option[Int] = None)
+		extends HBaseTileIO(zookeeperQuorum, zookeeperPort, hbaseMaster)
+{
+	import HBaseBulkLoadTileIO._
+
+	// A new table is created once we know where to split it
+	override protected def prepareTable (pyramidIO: HBasePyramidIO, baseLocation: String): Boolean =
+		if (pyramidIO.tableExists(baseLocation)) super.prepareTable(pyramidIO, baseLocation)
+		else false
+
+	override protected def writeRows (pyramidIO: HBasePyramidIO, baseLocation: String,
+	                                  rows: RDD[(Array[Byte], Array[Byte])]): Unit = {
+		// Rows are used by both the sort's sampling pass and the sort itself,
+		// and sorted rows both to split the table and to write it; keep both
+		// so tiles are only created (and counted) once.
+		rows.persist(StorageLevel.MEMORY_AND_DISK_SER)
+		val sortedRows = sortRows(rows, regions.getOrElse(rows.partitions.length))
+		sortedRows.persist(StorageLevel.MEMORY_AND_DISK_SER)
+
+		val configuration = pyramidIO.getConfiguration()
+		val stagingPath = new Path(stagingLocation, baseLocation+"-"+System.currentTimeMillis())
+		val fileSystem = stagingPath.getFileSystem(configuration)
+		try {
+			if (!pyramidIO.tableExists(baseLocation)) {
+				val splitKeys = getSplitKeys(sortedRows)
+				println("Creating table "+baseLocation+" with "+(splitKeys.length+1)+" regions")
+				pyramidIO.initializeForWrite(baseLocation, splitKeys)
+			}
+
+			val table = new HTable(configuration, baseLocation)
+			try {
+				// Picks up the compression, block size, and bloom filter
+				// settings of the table's column families
+				val job = Job.getInstance(configuration)
+				HFileOutputFormat.configureIncrementalLoad(job, table)
+
+				println("Writing HFiles to "+stagingPath)
+				writeHFiles(sortedRows, stagingPath.toString, job.getConfiguration)
+
+				println("Loading HFiles into "+baseLocation)
+				new LoadIncrementalHFiles(configuration).doBulkLoad(stagingPath, table)
+			} finally {
+				table.close()
+			}
+		} finally {
+			fileSystem.delete(stagingPath, true)
+			sortedRows.unpersist(false)
+			rows.unpersist(false)
+		}
+	}
+}
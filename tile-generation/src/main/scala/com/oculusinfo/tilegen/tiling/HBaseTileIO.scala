@@ -48,6 +48,7 @@ import org.apache.spark.SparkContext
 import org.apache.spark.SparkContext._
 import org.apache.spark.rdd.RDD
 import org.apache.spark.rdd.NewHadoopRDD
+import org.apache.spark.storage.StorageLevel
 
 import com.oculusinfo.binning.TileIndex
 import com.oculusinfo.binning.TilePyramid
@@ -74,10 +75,17 @@ import com.oculusinfo.tilegen.util.ArgumentParser
  * 
  * In the case of HBase, this requires overriding small portions of several 
  * basic TileIO methods - which essentially requires us to simply rewrite them.
+ * 
+ * @param sortTiles If true, tiles are range partitioned and sorted in row key
+ *                  order before they are written, so each task writes one
+ *                  contiguous run of rows - usually into a single region -
+ *                  rather than scattering writes across the table.  This
+ *                  only applies to tables with binary row keys.
  */
 class HBaseTileIO (zookeeperQuorum: String,
                    zookeeperPort: String,
-                   hbaseMaster: String) extends TileIO {
+                   hbaseMaster: String,
+                   sortTiles: Boolean = false) extends TileIO {
 	// We are going to need access to HBasePyramidIO constants and static
 	// methods, for column names, and row ID formation and parsing.
 	import com.oculusinfo.binning.io.impl.HBasePyramidIO._
@@ -123,13 +131,13 @@ class HBaseTileIO (zookeeperQuorum: String,
 			                                  classOf[Result])
 			val tiles = hBaseRDD.map(_._2).flatMap(result =>
                 {
-                    val key = new String(result.getRow())
-                    if ("metadata" == key) None
+                    val key = result.getRow()
+                    if (!isBinaryRowKey(key) && "metadata" == new String(key)) None
                     else {
                         val value = result.getValue(TILE_COLUMN.getFamily(),
                                                     TILE_COLUMN.getQualifier())
                         Some(serializer.deserialize(
-                            tileIndexFromRowId(key),
+                            tileIndexFromRowKey(key),
                             new ByteArrayInputStream(value)
                         ))
                     }
@@ -161,11 +169,18 @@ class HBaseTileIO (zookeeperQuorum: String,
 	                                       description: String = "unknown"): Unit = {
 		val pyramidIO = getPyramidIO
 
-		// We need some TableOutputFormat constants in here.
-		import org.apache.hadoop.hbase.mapred.TableOutputFormat._
+		// Do any needed table initialization, and keep writing in whatever
+		// row key format the table already uses
+		val legacyRowKeys = prepareTable(pyramidIO, baseLocation)
 
-		// Do any needed table initialization
-		pyramidIO.initializeForWrite(baseLocation)
+		// Binary row keys are in Z-order, so sorting tiles in Z-order puts
+		// them in row key order.  Sorting reads the tiles twice, so they are
+		// kept until written.
+		val sort = sortTiles && !legacyRowKeys
+		if (sort) data.persist(StorageLevel.MEMORY_AND_DISK)
+		val tiles =
+			if (sort) ZOrderTilePartitioner.sortTiles(data, data.partitions.length)
+			else data
 
 		// Record and report the total number of tiles we write, because it's
 		// basically free and easy
@@ -177,11 +192,11 @@ class HBaseTileIO (zookeeperQuorum: String,
 		val ybins = data.context.accumulator(0)(new IntMaxAccumulatorParam)
 
 
-		// Turn each tile into a table row, noting mins, maxes, and counts as
-		// we go.  Note that none of the min/max/count accumulation is actually
-		// done until the file is writting - this just sets it up, it doesn't
-		// run it
-		val HBaseTiles = data.mapPartitions(iter =>
+		// Turn each tile into a table row key and value, noting mins, maxes,
+		// and counts as we go.  Note that none of the min/max/count
+		// accumulation is actually done until the file is writting - this
+		// just sets it up, it doesn't run it
+		val rows = tiles.mapPartitions(iter =>
 			{
 				iter.map(tile =>
 					{
@@ -194,35 +209,29 @@ class HBaseTileIO (zookeeperQuorum: String,
 						xbins += index.getXBins
 						ybins += index.getYBins
 
-						// Create a Put (a table write object) that will write this tile
 						val baos = new ByteArrayOutputStream()
 						serializer.serialize(tile, baos);
 						baos.close
 						baos.flush
 
-						val put = new Put(rowIdFromTileIndex(index).getBytes())
-						put.add(TILE_COLUMN.getFamily(),
-						        TILE_COLUMN.getQualifier(),
-						        baos.toByteArray())
+						val rowKey =
+							if (legacyRowKeys) rowIdFromTileIndex(index).getBytes()
+							else rowKeyFromTileIndex(index)
 
-						(new ImmutableBytesWritable, put)
+						(rowKey, baos.toByteArray())
 					}
 				)
 			}
 		)
 
-
-		// Configure our write job
-		val configuration = pyramidIO.getConfiguration()
-
-		val jobConfig = new JobConf(configuration, this.getClass)
-		jobConfig.setOutputFormat(classOf[TableOutputFormat])
-		jobConfig.set(TableOutputFormat.OUTPUT_TABLE, baseLocation)
-
 		// Write tiles.
 		// This also populates the count, min, and max accumulators set up
 		// above.
-		HBaseTiles.saveAsHadoopDataset(jobConfig)
+		try {
+			writeRows(pyramidIO, baseLocation, rows)
+		} finally {
+			if (sort) data.unpersist(false)
+		}
 		println("Input tiles: "+tileCount)
 		println("Input levels: "+levelSet.value)
 		println("X bins: "+xbins.value)
@@ -243,6 +252,45 @@ class HBaseTileIO (zookeeperQuorum: String,
 		writeMetaData(baseLocation, metaData)
 
 	}
+
+	/**
+	 * Make sure the table to which we're about to write exists.
+	 * 
+	 * @return Whether the table uses the older, string row key format
+	 */
+	protected def prepareTable (pyramidIO: HBasePyramidIO, baseLocation: String): Boolean = {
+		pyramidIO.initializeForWrite(baseLocation)
+		pyramidIO.usesLegacyRowKeys(baseLocation)
+	}
+
+	/**
+	 * Write serialized tiles into their table, by row key.
+	 * 
+	 * Note that this uses the old Hadoop API
+	 */
+	protected def writeRows (pyramidIO: HBasePyramidIO, baseLocation: String,
+	                         rows: RDD[(Array[Byte], Array[Byte])]): Unit = {
+		// We need some TableOutputFormat constants in here.
+		import org.apache.hadoop.hbase.mapred.TableOutputFormat._
+
+		// Create a Put (a table write object) for each tile
+		val puts = rows.map(row =>
+			{
+				val put = new Put(row._1)
+				put.add(TILE_COLUMN.getFamily(), TILE_COLUMN.getQualifier(), row._2)
+				(new ImmutableBytesWritable, put)
+			}
+		)
+
+		// Configure our write job
+		val configuration = pyramidIO.getConfiguration()
+
+		val jobConfig = new JobConf(configuration, this.getClass)
+		jobConfig.setOutputFormat(classOf[TableOutputFormat])
+		jobConfig.set(TableOutputFormat.OUTPUT_TABLE, baseLocation)
+
+		puts.saveAsHadoopDataset(jobConfig)
+	}
 }
 
 
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tilegen.tiling
+
+
+
+import java.util.BitSet
+
+import scala.collection.mutable.{HashMap => MutableHashMap}
+import scala.reflect.ClassTag
+
+import com.esotericsoftware.kryo.{Kryo, Serializer => KryoSerializer}
+import com.esotericsoftware.kryo.io.{Input, Output}
+
+
+
+/**
+ * A compact, mutable buffer of the bins of one tile, used to build up the
+ * part of a tile found in one partition, and to merge those parts together,
+ * when consolidating binned data a tile at a time.
+ *
+ * Bins are addressed by their offset (y * xBins + x) within the tile.  While
+ * few bins are filled, they are kept as parallel arrays of offsets and
+ * values; once more than a quarter of the tile is filled, values are kept in
+ * a tile-sized array instead.  Either way, values of primitive bin types are
+ * kept in primitive arrays.
+ *
+ * @tparam PT The processing bin type
+ */
+class PartialTile[PT] (val xBins: Int, val yBins: Int)(implicit val binTag: ClassTag[PT])
+		extends Serializable
+{
+	// The number of filled bins
+	private var count = 0
+	// Offsets of filled bins, while sparse; null once dense
+	private var offsets: Array[Int] = new Array[Int](PartialTile.InitialCapacity)
+	// Values of filled bins: parallel to offsets while sparse, by offset once dense
+	private var values: Array[PT] = binTag.newArray(PartialTile.InitialCapacity)
+	// Which bins are filled, once dense; null while sparse
+	private var filled: BitSet = null
+	// Where each offset is in the sparse arrays; rebuilt when needed
+	@transient private var positions: MutableHashMap[Int, Int] = null
+
+	/** The number of bins with values */
+	def size: Int = count
+
+	/** True if values are kept in a tile-sized array */
+	def isDense: Boolean = null != filled
+
+	/**
+	 * Add a value into a bin, aggregating it with any value already there
+	 */
+	def add (offset: Int, value: PT, aggregate: (PT, PT) => PT): Unit = {
+		if (isDense) {
+			if (filled.get(offset)) {
+				values(offset) = aggregate(values(offset), value)
+			} else {
+				values(offset) = value
+				filled.set(offset)
+				count += 1
+			}
+		} else {
+			val index = getPositions
+			val position = index.getOrElse(offset, -1)
+			if (position >= 0) {
+				values(position) = aggregate(values(position), value)
+			} else if (count >= xBins * yBins / PartialTile.DenseFraction) {
+				toDense()
+				add(offset, value, aggregate)
+			} else {
+				if (count == offsets.length) grow()
+				offsets(count) = offset
+				values(count) = value
+				index(offset) = count
+				count += 1
+			}
+		}
+	}
+
+	/**
+	 * Merge two partial tiles of the same tile.  The larger of the two is
+	 * changed to hold the result, and is returned.
+	 */
+	def merge (that: PartialTile[PT], aggregate: (PT, PT) => PT): PartialTile[PT] = {
+		if (that.size > size) {
+			that.merge(this, aggregate)
+		} else {
+			that.foreach((offset, value) => add(offset, value, aggregate))
+			this
+		}
+	}
+
+	/**
+	 * Apply a function to each filled bin, given its offset and value
+	 */
+	def foreach (fcn: (Int, PT) => Unit): Unit = {
+		if (isDense) {
+			var offset = filled.nextSetBit(0)
+			while (offset >= 0) {
+				fcn(offset, values(offset))
+				offset = filled.nextSetBit(offset + 1)
+			}
+		} else {
+			var i = 0
+			while (i < count) {
+				fcn(offsets(i), values(i))
+				i += 1
+			}
+		}
+	}
+
+	private def getPositions: MutableHashMap[Int, Int] = {
+		if (null == positions) {
+			positions = new MutableHashMap[Int, Int]()
+			for (i <- 0 until count) positions(offsets(i)) = i
+		}
+		positions
+	}
+
+	private def grow (): Unit = {
+		val capacity = math.min(offsets.length * 2, xBins * yBins)
+		val newOffsets = new Array[Int](capacity)
+		val newValues = binTag.newArray(capacity)
+		System.arraycopy(offsets, 0, newOffsets, 0, count)
+		Array.copy(values, 0, newValues, 0, count)
+		offsets = newOffsets
+		values = newValues
+	}
+
+	private def toDense (): Unit = {
+		val size = xBins * yBins
+		val denseValues = binTag.newArray(size)
+		val denseFilled = new BitSet(size)
+		for (i <- 0 until count) {
+			denseValues(offsets(i)) = values(i)
+			denseFilled.set(offsets(i))
+		}
+		values = denseValues
+		filled = denseFilled
+		offsets = null
+		positions = null
+	}
+
+	private[tiling] def write (kryo: Kryo, output: Output): Unit = {
+		output.writeInt(xBins, true)
+		output.writeInt(yBins, true)
+		output.writeString(binTag.runtimeClass.getName)
+		output.writeInt(count, true)
+		foreach((offset, value) =>
+			{
+				output.writeInt(offset, true)
+				kryo.writeClassAndObject(output, value)
+			}
+		)
+	}
+}
+
+object PartialTile {
+	// The starting size of the sparse arrays
+	private val InitialCapacity = 16
+	// Partial tiles turn dense once more than 1/DenseFraction of their bins
+	// are filled
+	private val DenseFraction = 4
+
+	private val primitiveTags: Map[String, ClassTag[_]] = Map(
+		"boolean" -> ClassTag.Boolean,
+		"byte" -> ClassTag.Byte,
+		"char" -> ClassTag.Char,
+		"short" -> ClassTag.Short,
+		"int" -> ClassTag.Int,
+		"long" -> ClassTag.Long,
+		"float" -> ClassTag.Float,
+		"double" -> ClassTag.Double
+	)
+
+	private[tiling] def read (kryo: Kryo, input: Input): PartialTile[Any] = {
+		val xBins = input.readInt(true)
+		val yBins = input.readInt(true)
+		val binClassName = input.readString()
+		val binTag = primitiveTags.getOrElse(binClassName,
+		                                     ClassTag[Any](Class.forName(binClassName, true, kryo.getClassLoader)))
+		val tile = new PartialTile[Any](xBins, yBins)(binTag.asInstanceOf[ClassTag[Any]])
+		val count = input.readInt(true)
+		val replace: (Any, Any) => Any = (a, b) => b
+		for (i <- 0 until count) {
+			val offset = input.readInt(true)
+			tile.add(offset, kryo.readClassAndObject(input), replace)
+		}
+		tile
+	}
+}
+
+/**
+ * Kryo serialization for partial tiles, which writes only their filled bins
+ */
+class PartialTileSerializer extends KryoSerializer[PartialTile[_]] {
+	override def write (kryo: Kryo, output: Output, tile: PartialTile[_]): Unit =
+		tile.write(kryo, output)
+
+	override def read (kryo: Kryo, input: Input, tileClass: Class[PartialTile[_]]): PartialTile[_] =
+		PartialTile.read(kryo, input)
+}
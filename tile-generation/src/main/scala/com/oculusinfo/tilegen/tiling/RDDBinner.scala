@@ -30,7 +30,7 @@ package com.oculusinfo.tilegen.tiling
 import com.oculusinfo.binning.TileData.StorageType
 
 
-import scala.collection.mutable.{Map => MutableMap}
+import scala.collection.mutable.{ArrayBuffer, Map => MutableMap}
 import scala.reflect.ClassTag
 import scala.util.Try
 
@@ -45,12 +45,29 @@ import org.apache.spark.storage.StorageLevel
 
 import com.oculusinfo.binning._
 import com.oculusinfo.binning.impl.DenseTileData
+import com.oculusinfo.binning.impl.PrimitiveDenseTileData
+import com.oculusinfo.binning.impl.PrimitiveSparseTileData
 import com.oculusinfo.binning.impl.SparseTileData
 import com.oculusinfo.binning.io.serialization.TileSerializer
 
 import com.oculusinfo.tilegen.tiling.analytics.{TileAnalytic, AnalysisDescription, BinningAnalytic}
 
 
+/**
+ * The ways in which binned data can be consolidated into tiles.
+ *
+ * ByBin reduces values bin by bin across partitions, then groups the reduced
+ * bins by tile - two shuffles, each of one record per filled bin.
+ *
+ * ByTile gathers the bins of each tile found in each partition into a compact
+ * partial tile, and merges the partial tiles with a single combineByKey - one
+ * shuffle, of at most one record per tile per partition.  This moves much
+ * less data when tiles have many filled bins, as on lower levels.
+ */
+object ConsolidationStrategy extends Enumeration {
+	val ByBin, ByTile = Value
+}
+
 /**
  * This class is the basis of all (or, at least, nearly all) of the
  * other binning classes.  This takes an RDD of data and transforms it
@@ -58,6 +75,27 @@ import com.oculusinfo.tilegen.tiling.analytics.{TileAnalytic, AnalysisDescriptio
  */
 class RDDBinner {
 	var debug: Boolean = true
+	/** How binned data is consolidated into tiles */
+	var consolidationStrategy: ConsolidationStrategy.Value = ConsolidationStrategy.ByBin
+	/**
+	 * If set, the fraction of the data to sample to plan a
+	 * SkewAwareTilePartitioner for consolidation, so that the few, very full
+	 * tiles of low levels don't hold up the rest.  If None, tiles are simply
+	 * hash partitioned.
+	 */
+	var skewSampleFraction: Option[Double] = None
+	// Partitioners that may have persisted data while consolidating
+	private val plannedPartitioners = ArrayBuffer[SkewAwareTilePartitioner]()
+
+	/**
+	 * Release any data kept while consolidating tiles with a skew-aware
+	 * partitioner.  Call once the tiles from processData or
+	 * processDataByLevel have been written.
+	 */
+	def unpersistIntermediates (): Unit = plannedPartitioners.synchronized {
+		plannedPartitioners.foreach(_.unpersist())
+		plannedPartitioners.clear()
+	}
 
 	/**
 	 * Transform an arbitrary dataset into one that can be used for binning.
@@ -173,6 +211,7 @@ class RDDBinner {
 				tileIO.writeTileSet(tileScheme, writeLocation, tiles,
 				                    serializer, tileAnalytics, dataAnalytics,
 				                    name, description)
+				unpersistIntermediates()
 				if (debug) {
 					val levelEndTime = System.currentTimeMillis()
 					println("Finished binning levels ["+levels.mkString(", ")+"] of data set "
@@ -287,6 +326,12 @@ class RDDBinner {
 		 consolidationPartitions: Option[Int] = None,
 		 tileType: Option[StorageType] = None): RDD[TileData[BT]] =
 	{
+		val partitioner = planPartitioner(data, indexToTiles, getNumSplits(consolidationPartitions, data))
+
+		if (ConsolidationStrategy.ByTile == consolidationStrategy)
+			return processDataByTile(data, binAnalytic, tileAnalytics, dataAnalytics,
+			                         indexToTiles, consolidationPartitions, partitioner, tileType)
+
 		// Determine metadata
 		val metaData = processMetaData(data, indexToTiles, dataAnalytics)
 
@@ -317,7 +362,118 @@ class RDDBinner {
 
 		// Now, combine by-partition bins into global bins, and turn them into tiles.
 		consolidate(partitionBins, binAnalytic, tileAnalytics, dataAnalytics,
-		            metaData, consolidationPartitions, tileType)
+		            metaData, consolidationPartitions, partitioner, tileType)
+	}
+
+	/**
+	 * Plan a skew-aware partitioner for consolidating the given data, if
+	 * we've been asked to use one.
+	 */
+	private def planPartitioner[IT: ClassTag, PT, DT]
+		(data: RDD[(IT, PT, Option[DT])],
+		 indexToTiles: IT => TraversableOnce[(TileIndex, BinIndex)],
+		 partitions: Int): Option[SkewAwareTilePartitioner] = {
+		// Defined out here so the sampling job doesn't drag the binner along with it
+		val tilesOf: ((IT, PT, Option[DT])) => TraversableOnce[TileIndex] =
+			record => indexToTiles(record._1).map(_._1)
+		skewSampleFraction.map{fraction =>
+			val partitioner = SkewAwareTilePartitioner.fromSample(data, tilesOf, partitions, fraction)
+			if (debug) {
+				println("Skew-aware consolidation: "+partitioner)
+				partitioner.getSplitTiles.groupBy(_._1.getLevel()).toSeq.sortBy(_._1).foreach{case (level, tiles) =>
+					println("\tLevel "+level+": split "+tiles.size+" tiles into "+tiles.values.sum+" slices")
+				}
+			}
+			plannedPartitioners.synchronized(plannedPartitioners += partitioner)
+			partitioner
+		}
+	}
+
+	/**
+	 * Process a simplified input dataset into tiles a tile at a time - see
+	 * ConsolidationStrategy.ByTile.  Parameters are as for processData.
+	 */
+	private def processDataByTile[IT: ClassTag, PT: ClassTag, AT: ClassTag, DT: ClassTag, BT]
+		(data: RDD[(IT, PT, Option[DT])],
+		 binAnalytic: BinningAnalytic[PT, BT],
+		 tileAnalytics: Option[AnalysisDescription[TileData[BT], AT]],
+		 dataAnalytics: Option[AnalysisDescription[_, DT]],
+		 indexToTiles: IT => TraversableOnce[(TileIndex, BinIndex)],
+		 consolidationPartitions: Option[Int],
+		 partitioner: Option[SkewAwareTilePartitioner],
+		 tileType: Option[StorageType]): RDD[TileData[BT]] =
+	{
+		type TilePart = (Option[PartialTile[PT]], Option[DT])
+
+		// Determine metadata
+		val metaData = processMetaData(data, indexToTiles, dataAnalytics)
+
+		// Gather the bins of each tile (or, with a skew-aware partitioner, of
+		// each slice of each tile) in each partition into a partial tile
+		val partialTiles: RDD[((TileIndex, Int), TilePart)] = data.mapPartitions(iter =>
+			{
+				val aggregate: (PT, PT) => PT = binAnalytic.aggregate(_, _)
+				val partitionResults = MutableMap[(TileIndex, Int), PartialTile[PT]]()
+
+				iter.foreach(record =>
+					indexToTiles(record._1).foreach{case (tile, bin) =>
+						val xBins = tile.getXBins()
+						val slice = partitioner.map(_.getSlice(tile, bin)).getOrElse(0)
+						val partial = partitionResults.getOrElseUpdate(
+							(tile, slice), new PartialTile[PT](xBins, tile.getYBins()))
+						partial.add(bin.getY()*xBins + bin.getX(), record._2, aggregate)
+					}
+				)
+
+				partitionResults.iterator.map{case (key, partial) =>
+					(key, (Some(partial), None): TilePart)
+				}
+			}
+		)
+
+		// Add in the metadata, if any
+		val allParts: RDD[((TileIndex, Int), TilePart)] = metaData match {
+			case Some(tileMetaData) =>
+				partialTiles union tileMetaData.map{case (index, value) => ((index, 0), (None, Some(value)): TilePart)}
+			case None => partialTiles
+		}
+
+		// Merge all the parts of each tile in one shuffle.  Each partition
+		// has at most one part per tile already, so there is nothing to gain
+		// from combining on the map side.
+		val mergeParts: (TilePart, TilePart) => TilePart = (a, b) =>
+			{
+				val partial = (a._1, b._1) match {
+					case (Some(pa), Some(pb)) => Some(pa.merge(pb, binAnalytic.aggregate(_, _)))
+					case (pa, pb) => pa.orElse(pb)
+				}
+				val analyticValue = (a._2, b._2) match {
+					case (Some(va), Some(vb)) => dataAnalytics.map(_.analytic.aggregate(va, vb))
+					case (va, vb) => va.orElse(vb)
+				}
+				(partial, analyticValue)
+			}
+		val mergedSlices = allParts.combineByKey[TilePart](
+			(part: TilePart) => part, mergeParts, mergeParts,
+			partitioner.getOrElse(new HashPartitioner(getNumSplits(consolidationPartitions, data))),
+			false)
+
+		// Slices of a split tile hold disjoint bins, so merging them is cheap
+		val merged: RDD[(TileIndex, TilePart)] = partitioner match {
+			case Some(p) => p.mergeSlices(mergedSlices, mergeParts)
+			case None => mergedSlices.map{case ((index, slice), part) => (index, part)}
+		}
+
+		merged.map{case (index, (partial, analyticValue)) =>
+			val xBins = index.getXBins()
+			RDDBinner.createTile[PT, AT, DT, BT](
+				index,
+				partial.map(_.size).getOrElse(0),
+				tile => partial.foreach(_.foreach((offset, value) =>
+					                                  tile.setBin(offset % xBins, offset / xBins, binAnalytic.finish(value)))),
+				analyticValue,
+				binAnalytic, tileAnalytics, dataAnalytics, tileType)
+		}
 	}
 
 	/**
@@ -373,6 +529,7 @@ class RDDBinner {
 		 dataAnalytics: Option[AnalysisDescription[_, DT]],
 		 tileMetaData: Option[RDD[(TileIndex, DT)]],
 		 consolidationPartitions: Option[Int],
+		 partitioner: Option[SkewAwareTilePartitioner],
 		 tileType: Option[StorageType]): RDD[TileData[BT]] =
 	{
 		// We need to consolidate both metadata and binning data, so our result
@@ -385,84 +542,58 @@ class RDDBinner {
 		// create the tile, too.
 		//
 		// First the binning data half
-		val reduced: RDD[(TileIndex, (Option[(BinIndex, PT)],
-		                              Option[DT]))] = {
-			val env = SparkEnv.get
-			val conf = SparkEnv.get.conf
-
-			data.reduceByKey(binAnalytic.aggregate(_, _),
-			                 getNumSplits(consolidationPartitions, data))
-				.map(p => (p._1._1, (Some((p._1._2, p._2)), None)))
-		}
-		// Now the metadata half (in a way that should take no work if there is no metadata)
-		val metaData: Option[RDD[(TileIndex, (Option[(BinIndex, PT)],
-		                                      Option[DT]))]] =
-			tileMetaData.map(
-				_.map{case (index, metaData) => (index, (None, Some(metaData))) }
-			)
-
-		// Get the combination of the two sets, again in a way that does
-		// no extra work if there is no metadata
-		val toTile =
-			(if (metaData.isDefined)
-				 // Just take the simple union
-			    (reduced union metaData.get)
-			 else reduced
-			).groupByKey(getNumSplits(consolidationPartitions, reduced))
+		val reducedBins = data.reduceByKey(binAnalytic.aggregate(_, _),
+		                                   getNumSplits(consolidationPartitions, data))
+
+		val toTile: RDD[(TileIndex, Iterable[(Option[(BinIndex, PT)], Option[DT])])] =
+			partitioner match {
+				// A skew-aware partitioner groups the bins of each slice of
+				// each tile, and merges the slices of split tiles afterwards
+				case Some(p) => p.groupBinsByTile(reducedBins, tileMetaData)
+
+				case None => {
+					val reduced: RDD[(TileIndex, (Option[(BinIndex, PT)],
+					                              Option[DT]))] =
+						reducedBins.map(p => (p._1._1, (Some((p._1._2, p._2)), None)))
+
+					// Now the metadata half (in a way that should take no work if there is no metadata)
+					val metaData: Option[RDD[(TileIndex, (Option[(BinIndex, PT)],
+					                                      Option[DT]))]] =
+						tileMetaData.map(
+							_.map{case (index, metaData) => (index, (None, Some(metaData))) }
+						)
+
+					// Get the combination of the two sets, again in a way that does
+					// no extra work if there is no metadata
+					(if (metaData.isDefined)
+						 // Just take the simple union
+						 (reduced union metaData.get)
+					 else reduced
+					).groupByKey(getNumSplits(consolidationPartitions, reduced))
+				}
+			}
 
 
 		toTile.map(t =>
 			{
 				val index = t._1
 				val tileData = t._2
-				val xLimit = index.getXBins()
-				val yLimit = index.getYBins()
 
 				val definedTileData = tileData.filter(_._1.isDefined)
 
-				// Create our tile
-				// Use the type passed in; if no type is passed in, use dense if more than half full.
-				val typeToUse = tileType.getOrElse(
-					if (definedTileData.size > xLimit*yLimit/2) StorageType.Dense
-					else StorageType.Sparse
-				)
-				val defaultBinValue =
-					binAnalytic.finish(binAnalytic.defaultProcessedValue)
-				val tile: TileData[BT] = typeToUse match {
-					case StorageType.Dense => new DenseTileData[BT](index, defaultBinValue)
-					case StorageType.Sparse => new SparseTileData[BT](index, defaultBinValue)
-				}
-
-				// Put the proper value into each bin
-				definedTileData.foreach(p =>
-					{
-						val bin = p._1.get._1
-						val value = p._1.get._2
-						tile.setBin(bin.getX(), bin.getY(), binAnalytic.finish(value))
-					}
-				)
-
-				// Add in any pre-calculated metadata
-				tileData.filter(_._2.isDefined).foreach(p =>
-					{
-						val analyticValue = p._2.get
-						dataAnalytics.map(da => AnalysisDescription.record(analyticValue, da, tile))
-					}
-				)
-
-				// Calculate and add in an tile-level metadata we've been told to calculate
-				tileAnalytics.map(ta =>
-					{
-						// Figure out the value for this tile
-						val analyticValue = ta.convert(tile)
-						// Add it into any appropriate accumulators
-						ta.accumulate(tile.getDefinition(), analyticValue)
-						// And store it in the tile's metadata
-						AnalysisDescription.record(analyticValue, ta, tile)
-					}
-				)
-
-				tile
+				RDDBinner.createTile[PT, AT, DT, BT](
+					index,
+					definedTileData.size,
+					tile => definedTileData.foreach(p =>
+						{
+							// Put the proper value into each bin
+							val bin = p._1.get._1
+							val value = p._1.get._2
+							tile.setBin(bin.getX(), bin.getY(), binAnalytic.finish(value))
+						}
+					),
+					tileData.flatMap(_._2),
+					binAnalytic, tileAnalytics, dataAnalytics, tileType)
 			}
 		)
 	}
@@ -479,3 +610,75 @@ class RDDBinner {
 	def getNumSplits[T: ClassTag] (requestedPartitions: Option[Int], dataSet: RDD[T]): Int =
 		requestedPartitions.getOrElse(dataSet.partitions.size)
 }
+
+
+
+object RDDBinner {
+	/**
+	 * Create a finished tile, and record its analytics.
+	 *
+	 * @param index The index of the tile
+	 * @param filledBins The number of bins of the tile that have values, used
+	 *                   to choose between dense and sparse storage if tileType
+	 *                   is None
+	 * @param setBins A function to fill in the bins of the new tile
+	 * @param dataAnalyticValues Pre-calculated data analytic values for the tile
+	 */
+	private[tiling] def createTile[PT, AT, DT, BT]
+		(index: TileIndex,
+		 filledBins: Int,
+		 setBins: TileData[BT] => Unit,
+		 dataAnalyticValues: Iterable[DT],
+		 binAnalytic: BinningAnalytic[PT, BT],
+		 tileAnalytics: Option[AnalysisDescription[TileData[BT], AT]],
+		 dataAnalytics: Option[AnalysisDescription[_, DT]],
+		 tileType: Option[StorageType]): TileData[BT] =
+	{
+		val xLimit = index.getXBins()
+		val yLimit = index.getYBins()
+
+		// Create our tile
+		// Use the type passed in; if no type is passed in, use dense if more than half full.
+		val typeToUse = tileType.getOrElse(
+			if (filledBins > xLimit*yLimit/2) StorageType.Dense
+			else StorageType.Sparse
+		)
+		val defaultBinValue =
+			binAnalytic.finish(binAnalytic.defaultProcessedValue)
+		// Numeric tiles are stored as primitives where possible
+		val tile: TileData[BT] = typeToUse match {
+			case StorageType.Dense => {
+				val primitiveTile = PrimitiveDenseTileData.createWithDefault[BT](index, defaultBinValue)
+				if (null == primitiveTile) new DenseTileData[BT](index, defaultBinValue)
+				else primitiveTile
+			}
+			case StorageType.Sparse => {
+				val primitiveTile = PrimitiveSparseTileData.createWithDefault[BT](index, defaultBinValue)
+				if (null == primitiveTile) new SparseTileData[BT](index, defaultBinValue)
+				else primitiveTile
+			}
+		}
+
+		// Put the proper value into each bin
+		setBins(tile)
+
+		// Add in any pre-calculated metadata
+		dataAnalyticValues.foreach(analyticValue =>
+			dataAnalytics.map(da => AnalysisDescription.record(analyticValue, da, tile))
+		)
+
+		// Calculate and add in an tile-level metadata we've been told to calculate
+		tileAnalytics.map(ta =>
+			{
+				// Figure out the value for this tile
+				val analyticValue = ta.convert(tile)
+				// Add it into any appropriate accumulators
+				ta.accumulate(tile.getDefinition(), analyticValue)
+				// And store it in the tile's metadata
+				AnalysisDescription.record(analyticValue, ta, tile)
+			}
+		)
+
+		tile
+	}
+}
@@ -29,7 +29,7 @@ package com.oculusinfo.tilegen.tiling
 import com.oculusinfo.binning.TileData.StorageType
 
 import scala.collection.TraversableOnce
-import scala.collection.mutable.{Map => MutableMap}
+import scala.collection.mutable.{ArrayBuffer, Map => MutableMap}
 import scala.reflect.ClassTag
 import scala.util.Try
 
@@ -123,6 +123,25 @@ class RDDLineBinner(minBins: Int = 2,
                     maxBins: Int = 1024,		// 1<<10 = 1024  256*4 = 4 tile widths
                     bDrawLineEnds: Boolean = false) {
 	var debug: Boolean = true
+	/**
+	 * If set, the fraction of the data to sample to plan a
+	 * SkewAwareTilePartitioner for point-based consolidation, so that the
+	 * few, very full tiles of low levels don't hold up the rest.  If None,
+	 * tiles are simply hash partitioned.
+	 */
+	var skewSampleFraction: Option[Double] = None
+	// Partitioners that may have persisted data while consolidating
+	private val plannedPartitioners = ArrayBuffer[SkewAwareTilePartitioner]()
+
+	/**
+	 * Release any data kept while consolidating tiles with a skew-aware
+	 * partitioner.  Call once the tiles from processData or
+	 * processDataByLevel have been written.
+	 */
+	def unpersistIntermediates (): Unit = plannedPartitioners.synchronized {
+		plannedPartitioners.foreach(_.unpersist())
+		plannedPartitioners.clear()
+	}
 
 	def transformData[RT: ClassTag, IT: ClassTag, PT: ClassTag, DT: ClassTag]
 		(data: RDD[RT],
@@ -212,6 +231,7 @@ class RDDLineBinner(minBins: Int = 2,
 				tileIO.writeTileSet(tileScheme, writeLocation, tiles,
 				                    serializer, tileAnalytics, dataAnalytics,
 				                    name, description)
+				unpersistIntermediates()
 				if (debug) {
 					val levelEndTime = System.currentTimeMillis()
 					println("Finished binning levels ["+levels.mkString(", ")+"] of data set "
@@ -440,8 +460,18 @@ class RDDLineBinner(minBins: Int = 2,
 
 		// Now, combine by-partition bins into global bins, and turn them into tiles.
 		if (usePointBinner) {
+			// Defined out here so the sampling job doesn't drag the binner along with it
+			val tilesOf: ((IT, PT, Option[DT])) => TraversableOnce[TileIndex] =
+				record => indexToUniversalBins(record._1).filter(_._1 != null).map(_._3)
+			val partitioner = skewSampleFraction.map{fraction =>
+				val partitioner = SkewAwareTilePartitioner.fromSample(
+					data, tilesOf, RDDLineBinner.getNumSplits(consolidationPartitions, partitionBins), fraction)
+				if (debug) println("Skew-aware consolidation: "+partitioner)
+				plannedPartitioners.synchronized(plannedPartitioners += partitioner)
+				partitioner
+			}
 			consolidateByPoints(partitionBins, binAnalytic, tileAnalytics, dataAnalytics,
-			                    metaData, consolidationPartitions, tileType,
+			                    metaData, consolidationPartitions, partitioner, tileType,
 			                    xBins, yBins, uniBinToTileBin, calcLinePixels)
 		} else {
 			consolidateByTiles(partitionBins, binAnalytic, tileAnalytics, dataAnalytics,
@@ -505,6 +535,7 @@ class RDDLineBinner(minBins: Int = 2,
 		 dataAnalytics: Option[AnalysisDescription[_, DT]],
 		 tileMetaData: Option[RDD[(TileIndex, DT)]],
 		 consolidationPartitions: Option[Int],
+		 partitioner: Option[SkewAwareTilePartitioner],
 		 tileType: Option[StorageType],
 		 xBins: Int = 256,
 		 yBins: Int = 256,
@@ -545,29 +576,38 @@ class RDDLineBinner(minBins: Int = 2,
 
 		//     Rest of process is same as regular RDDBinner (reduceByKey, convert
 		//     to (tile,(bin,value)), groupByKey, and create tiled results)
-		val reduced: RDD[(TileIndex, (Option[(BinIndex, PT)],
-		                              Option[DT]))] =
-			expanded.reduceByKey(binAnalytic.aggregate(_, _),
-			                     RDDLineBinner.getNumSplits(consolidationPartitions, expanded)
-			).map(p => (p._1._1, (Some((p._1._2, p._2)), None)))
-
-		// Now the metadata half (in a way that should take no work if there is no metadata)
-		val metaData: Option[RDD[(TileIndex, (Option[(BinIndex, PT)],
-		                                      Option[DT]))]] =
-			tileMetaData.map(
-				_.map{case (index, metaData) => (index, (None, Some(metaData))) }
-			)
-
-		// Get the combination of the two sets, again in a way that does
-		// no extra work if there is no metadata
-		val toTile =
-			if (metaData.isDefined) reduced union metaData.get
-			else reduced
+		val reducedBins = expanded.reduceByKey(binAnalytic.aggregate(_, _),
+		                                       RDDLineBinner.getNumSplits(consolidationPartitions, expanded))
+
+		val grouped: RDD[(TileIndex, Iterable[(Option[(BinIndex, PT)], Option[DT])])] =
+			partitioner match {
+				// A skew-aware partitioner groups the bins of each slice of
+				// each tile, and merges the slices of split tiles afterwards
+				case Some(p) => p.groupBinsByTile(reducedBins, tileMetaData)
+
+				case None => {
+					val reduced: RDD[(TileIndex, (Option[(BinIndex, PT)],
+					                              Option[DT]))] =
+						reducedBins.map(p => (p._1._1, (Some((p._1._2, p._2)), None)))
+
+					// Now the metadata half (in a way that should take no work if there is no metadata)
+					val metaData: Option[RDD[(TileIndex, (Option[(BinIndex, PT)],
+					                                      Option[DT]))]] =
+						tileMetaData.map(
+							_.map{case (index, metaData) => (index, (None, Some(metaData))) }
+						)
 
+					// Get the combination of the two sets, again in a way that does
+					// no extra work if there is no metadata
+					val toTile =
+						if (metaData.isDefined) reduced union metaData.get
+						else reduced
 
+					toTile.groupByKey(RDDLineBinner.getNumSplits(consolidationPartitions, toTile))
+				}
+			}
 
-		toTile
-			.groupByKey(RDDLineBinner.getNumSplits(consolidationPartitions, toTile))
+		grouped
 			.map(t =>
 			{
 				val index = t._1
@@ -51,6 +51,7 @@ import org.apache.hadoop.io.SequenceFile
 import org.apache.spark.SparkContext
 import org.apache.spark.SparkContext._
 import org.apache.spark.rdd.RDD
+import org.apache.spark.storage.StorageLevel
 
 import com.oculusinfo.binning.TileIndex
 import com.oculusinfo.binning.TilePyramid
@@ -89,8 +90,11 @@ import com.oculusinfo.tilegen.util.MissingArgumentException
  * 
  * @param connection The connection location at which to find HDFS 
  * (typcially "hdfs://hostname:port")
+ * @param sortTiles If true, tiles are range partitioned and sorted in
+ * Z-order (see PyramidComparator.getTileIndexKey) before they are written,
+ * so each file holds a contiguous, sorted run of tiles
  */
-class SequenceFileTileIO (connection: String) extends TileIO {
+class SequenceFileTileIO (connection: String, sortTiles: Boolean = false) extends TileIO {
 	import SequenceFileTileIO._
 
 
@@ -175,7 +179,12 @@ class SequenceFileTileIO (connection: String) extends TileIO {
 		// we go.  Note that none of the min/max/count accumulation is actually
 		// done until the file is writting - this just sets it up, it doesn't
 		// run it
-		val tileSequence: RDD[(String, Array[Byte])] = data.mapPartitions(iter =>
+		// Sorting reads the tiles twice, so they are kept until written.
+		if (sortTiles) data.persist(StorageLevel.MEMORY_AND_DISK)
+		val tiles =
+			if (sortTiles) ZOrderTilePartitioner.sortTiles(data, data.partitions.length)
+			else data
+		val tileSequence: RDD[(String, Array[Byte])] = tiles.mapPartitions(iter =>
 			{
 				iter.map(tile =>
 					{
@@ -208,7 +217,11 @@ class SequenceFileTileIO (connection: String) extends TileIO {
 		val block = maxBlock+1
 		val blockLocation = getBlockLocation(block, baseLocation)
 		println("Saving block "+block+" to "+blockLocation)
-		tileSequence.saveAsSequenceFile(blockLocation)
+		try {
+			tileSequence.saveAsSequenceFile(blockLocation)
+		} finally {
+			if (sortTiles) data.unpersist(false)
+		}
 
 
 
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tilegen.tiling
+
+
+
+import scala.collection.mutable.{ArrayBuffer, Map => MutableMap, PriorityQueue}
+import scala.reflect.ClassTag
+
+import org.apache.spark.Partitioner
+import org.apache.spark.SparkContext._
+import org.apache.spark.rdd.RDD
+import org.apache.spark.storage.StorageLevel
+
+import com.oculusinfo.binning.{BinIndex, TileIndex}
+
+
+
+/**
+ * A partitioner for consolidating binned data into tiles that copes with
+ * tiles holding very different amounts of data.
+ *
+ * On low levels, a handful of tiles get nearly every data point, so sending
+ * each tile to a single reducer leaves a few reducers doing nearly all the
+ * work while the rest sit idle.  This partitioner is planned from a sample of
+ * the data: each tile estimated to hold more than a partition's fair share
+ * is split into slices - ranges of bin rows - that go to different
+ * partitions, and the remaining tiles are packed together so that every
+ * partition gets about the same load.  Since each slice is fully reduced on
+ * its own, bringing the slices of a split tile back together (see
+ * mergeSlices) is a cheap final step.
+ *
+ * Keys are (TileIndex, slice) pairs; a bare TileIndex is treated as slice 0.
+ * Keys not covered by the plan are hash partitioned.
+ *
+ * Merging slices keeps the sliced data persisted; call unpersist once the
+ * merged tiles have been used.
+ *
+ * @param partitions The number of partitions
+ * @param slices The number of slices into which each split tile is split;
+ *               tiles not listed here are not split
+ * @param assignments The partition of each planned (tile, slice) pair
+ */
+class SkewAwareTilePartitioner (partitions: Int,
+                                private val slices: Map[TileIndex, Int],
+                                private val assignments: Map[(TileIndex, Int), Int])
+		extends Partitioner
+{
+	// Data persisted by mergeSlices, only ever used on the driver
+	@transient private lazy val persisted = ArrayBuffer[RDD[_]]()
+
+	def numPartitions: Int = partitions
+
+	/** The number of slices into which a tile is split */
+	def getSlices (tile: TileIndex): Int = slices.getOrElse(tile, 1)
+
+	/** Whether a tile is split over more than one slice */
+	def isSplit (tile: TileIndex): Boolean = slices.contains(tile)
+
+	/** The tiles which are split, with the number of slices of each */
+	def getSplitTiles: Map[TileIndex, Int] = slices
+
+	/** The slice of its tile into which a bin falls */
+	def getSlice (tile: TileIndex, bin: BinIndex): Int = {
+		val n = getSlices(tile)
+		if (n <= 1) 0
+		else bin.getY() * n / tile.getYBins()
+	}
+
+	def getPartition (key: Any): Int = key match {
+		case (tile: TileIndex, slice: Int) => partitionOf(tile, slice)
+		case tile: TileIndex => partitionOf(tile, 0)
+	}
+
+	private def partitionOf (tile: TileIndex, slice: Int): Int =
+		assignments.getOrElse((tile, slice), SkewAwareTilePartitioner.hashPartition(tile, slice, partitions))
+
+	/**
+	 * Group reduced bins, and any per-tile metadata, by tile, giving each
+	 * slice of a split tile its own reducer.
+	 *
+	 * @param bins Fully reduced bin values, keyed by tile and bin
+	 * @param metaData Per-tile metadata, if any
+	 * @return The bins and metadata of each tile, in the form the binners'
+	 *         groupByKey would give them
+	 */
+	def groupBinsByTile[PT: ClassTag, DT: ClassTag] (bins: RDD[((TileIndex, BinIndex), PT)],
+	                                                metaData: Option[RDD[(TileIndex, DT)]]):
+			RDD[(TileIndex, Iterable[(Option[(BinIndex, PT)], Option[DT])])] =
+	{
+		type BinPart = (Option[(BinIndex, PT)], Option[DT])
+
+		val partitioner = this
+		val slicedBins: RDD[((TileIndex, Int), BinPart)] = bins.map{case ((tile, bin), value) =>
+			((tile, partitioner.getSlice(tile, bin)), (Some((bin, value)), None): BinPart)
+		}
+		val sliced = metaData match {
+			case Some(tileMetaData) =>
+				slicedBins union tileMetaData.map{case (tile, value) => ((tile, 0), (None, Some(value)): BinPart)}
+			case None => slicedBins
+		}
+
+		mergeSlices[Iterable[BinPart]](sliced.groupByKey(partitioner), _ ++ _)
+	}
+
+	/**
+	 * Bring together the slices of each split tile.  Unsplit tiles stay in
+	 * the partitions in which they already are; only the slices of split
+	 * tiles are shuffled again.
+	 *
+	 * @param sliced Consolidated values, keyed by tile and slice, partitioned
+	 *               by this partitioner
+	 * @param merge A function to combine the values of two slices of a tile
+	 */
+	def mergeSlices[V: ClassTag] (sliced: RDD[((TileIndex, Int), V)], merge: (V, V) => V): RDD[(TileIndex, V)] = {
+		if (slices.isEmpty) {
+			sliced.map{case ((tile, slice), value) => (tile, value)}
+		} else {
+			// Both halves read the sliced data; keep it so it isn't consolidated twice
+			sliced.persist(StorageLevel.MEMORY_AND_DISK)
+			persisted.synchronized(persisted += sliced)
+
+			val partitioner = this
+			val whole = sliced.filter(p => !partitioner.isSplit(p._1._1))
+				.map{case ((tile, slice), value) => (tile, value)}
+			val merged = sliced.filter(p => partitioner.isSplit(p._1._1))
+				.map{case ((tile, slice), value) => (tile, value)}
+				.reduceByKey(merge, 1 max (slices.size min partitions))
+
+			whole union merged
+		}
+	}
+
+	/**
+	 * Release the data persisted by mergeSlices.  Should be called once the
+	 * merged tiles have been written.
+	 */
+	def unpersist (): Unit = persisted.synchronized {
+		persisted.foreach(_.unpersist(false))
+		persisted.clear()
+	}
+
+	override def equals (other: Any): Boolean = other match {
+		case that: SkewAwareTilePartitioner =>
+			that.numPartitions == numPartitions &&
+				that.slices == slices &&
+				that.assignments == assignments
+		case _ => false
+	}
+
+	override def hashCode: Int = partitions + 31 * (slices.hashCode + 31 * assignments.hashCode)
+
+	override def toString: String =
+		"SkewAwareTilePartitioner("+partitions+" partitions, "+slices.size+" split tiles, "+
+			assignments.size+" planned slices)"
+}
+
+
+
+object SkewAwareTilePartitioner {
+	/** The default fraction of data sampled when planning a partitioner */
+	val DefaultSampleFraction = 0.01
+	/** The default maximum number of slices into which to split one tile */
+	val DefaultMaxSlices = 32
+	// At most this many of the heaviest tiles or slices are given explicit
+	// partitions, so the plan stays small enough to ship with every task.
+	// Lighter tiles are hashed, which spreads them evenly enough.
+	private[tiling] val MaxPlannedSlices = 10000
+
+	private[tiling] def hashPartition (tile: TileIndex, slice: Int, partitions: Int): Int = {
+		val raw = (tile.hashCode() * 31 + slice) % partitions
+		if (raw < 0) raw + partitions else raw
+	}
+
+	/**
+	 * Plan a partitioner from a sample of the data to be tiled.
+	 *
+	 * @param data The data to be tiled
+	 * @param tilesOf A function giving the tiles into which a record of data falls
+	 * @param partitions The number of partitions to use
+	 * @param sampleFraction The fraction of the data to sample
+	 * @param maxSlices The most slices into which to split one tile
+	 */
+	def fromSample[T] (data: RDD[T],
+	                   tilesOf: T => TraversableOnce[TileIndex],
+	                   partitions: Int,
+	                   sampleFraction: Double = DefaultSampleFraction,
+	                   maxSlices: Int = DefaultMaxSlices): SkewAwareTilePartitioner =
+	{
+		val counts = data.sample(false, sampleFraction)
+			.flatMap(tilesOf).map(tile => (tile, 1L))
+			.reduceByKey(_ + _)
+			.collect()
+
+		plan(counts.map{case (tile, count) => (tile, count / sampleFraction)}.toMap, partitions, maxSlices)
+	}
+
+	/**
+	 * Plan a partitioner from known or estimated tile weights.
+	 *
+	 * Tiles heavier than a partition's fair share are split into slices of
+	 * bin rows.  The heaviest tiles and slices are then placed, heaviest
+	 * first, on whichever partition is least loaded, counting the load of
+	 * the lighter, hashed tiles.
+	 *
+	 * @param weights The estimated amount of data in each tile
+	 * @param partitions The number of partitions to use
+	 * @param maxSlices The most slices into which to split one tile
+	 */
+	def plan (weights: Map[TileIndex, Double], partitions: Int, maxSlices: Int = DefaultMaxSlices):
+			SkewAwareTilePartitioner =
+	{
+		val target = weights.values.sum / partitions
+		val sliceLimit = maxSlices min partitions
+
+		val slices: Map[TileIndex, Int] =
+			if (target <= 0.0) Map()
+			else weights.flatMap{case (tile, weight) =>
+				val n = math.ceil(weight / target).toInt min sliceLimit min tile.getYBins()
+				if (n > 1) Some(tile -> n) else None
+			}
+
+		val pieces = weights.toSeq.flatMap{case (tile, weight) =>
+			val n = slices.getOrElse(tile, 1)
+			(0 until n).map(slice => ((tile, slice), weight / n))
+		}.sortBy(-_._2)
+		val (planned, hashed) = pieces.splitAt(MaxPlannedSlices)
+
+		val loads = new Array[Double](partitions)
+		hashed.foreach{case ((tile, slice), weight) =>
+			loads(hashPartition(tile, slice, partitions)) += weight
+		}
+
+		// Least loaded partition first
+		val queue = PriorityQueue[(Double, Int)]()(Ordering.by[(Double, Int), Double](-_._1))
+		queue ++= loads.zipWithIndex
+
+		val assignments = MutableMap[(TileIndex, Int), Int]()
+		planned.foreach{case (piece, weight) =>
+			val (load, partition) = queue.dequeue()
+			assignments(piece) = partition
+			queue.enqueue((load + weight, partition))
+		}
+
+		new SkewAwareTilePartitioner(partitions, slices, assignments.toMap)
+	}
+}
@@ -77,19 +77,58 @@ object TileIO {
 	def fromArguments (argParser: KeyValueArgumentSource): TileIO = {
 		argParser.getString(Array("io", "oculus.tileio.type"),
 		                    "TileIO type - where to put tiles.  Legal values are "+
-			                    "hbase, sqlite, or file (DEFAULT).",
+			                    "hbase, sequencefile, sqlite, or file (DEFAULT).",
 		                    Some("file")
 		) match {
-			case "hbase" => new HBaseTileIO(
-				argParser.getString(Array("zookeeperquorum", "hbase.zookeeper.quorum"),
-				                    "The name of the zookeeper quorum machine",
+			case "hbase" => {
+				val zookeeperQuorum =
+					argParser.getString(Array("zookeeperquorum", "hbase.zookeeper.quorum"),
+					                    "The name of the zookeeper quorum machine",
+					                    None)
+				val zookeeperPort =
+					argParser.getString(Array("zookeeperport", "hbase.zookeeper.port"),
+					                    "The port on which zookeeper is listening",
+					                    Some("2181"))
+				val hbaseMaster =
+					argParser.getString(Array("hbasemaster", "hbase.master"),
+					                    "The master machine for hbase",
+					                    None)
+				argParser.getStringOption("hbase.bulkload.path",
+				                          "A directory, on the file system used by hbase, in "+
+					                          "which to stage HFiles.  If given, tiles are "+
+					                          "written by bulk load, rather than by individual "+
+					                          "puts.",
+				                          None) match {
+					case Some(stagingLocation) =>
+						new HBaseBulkLoadTileIO(zookeeperQuorum, zookeeperPort, hbaseMaster, stagingLocation,
+						                        argParser.getIntOption("hbase.bulkload.regions",
+						                                               "The number of regions into which "+
+							                                               "to split a new table, when "+
+							                                               "bulk loading.  Default is the "+
+							                                               "number of partitions of tile "+
+							                                               "data.",
+						                                               None))
+					case None =>
+						new HBaseTileIO(zookeeperQuorum, zookeeperPort, hbaseMaster,
+						                argParser.getBoolean("hbase.sort",
+						                                     "If true, tiles are sorted into row "+
+							                                     "key order before they are written, so "+
+							                                     "each task writes a contiguous range of "+
+							                                     "rows.  Default is false.",
+						                                     Some(false)))
+				}
+			}
+			case "sequencefile" => new SequenceFileTileIO(
+				argParser.getString("sequencefile.connection",
+				                    "The connection location of the file system in which "+
+					                    "to write sequence files (typically "+
+					                    "\"hdfs://hostname:port\")",
 				                    None),
-				argParser.getString(Array("zookeeperport", "hbase.zookeeper.port"),
-				                    "The port on which zookeeper is listening",
-				                    Some("2181")),
-				argParser.getString(Array("hbasemaster", "hbase.master"),
-				                    "The master machine for hbase",
-				                    None)
+				argParser.getBoolean("sequencefile.sort",
+				                     "If true, tiles are sorted into Z-order before they "+
+					                     "are written, so each file holds a contiguous, "+
+					                     "sorted run of tiles.  Default is false.",
+				                     Some(false))
 			)
 			case "sqlite" => new SqliteTileIO(
 				argParser.getString(Array("sqlitepath", "oculus.tileio.sqlite.path"),
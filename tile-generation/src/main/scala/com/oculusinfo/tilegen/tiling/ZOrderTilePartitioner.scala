@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tilegen.tiling
+
+
+
+import java.util.Arrays
+
+import scala.util.Random
+
+import org.apache.spark.Partitioner
+import org.apache.spark.SparkContext._
+import org.apache.spark.rdd.RDD
+
+import com.oculusinfo.binning.{PyramidComparator, TileData, TileIndex}
+
+
+
+/**
+ * A range partitioner over tiles in Z-order - the order of
+ * PyramidComparator.getTileIndexKey, which is also the order in which HBase
+ * stores tiles under binary row keys.  Each partition holds a contiguous
+ * range of tiles in that order, so writing a sorted partition touches only
+ * one stretch of storage.
+ *
+ * Keys are TileIndices, or their Z-order keys.
+ *
+ * @param boundaries The key of the first tile in each partition after the
+ *                   first, in ascending order
+ */
+class ZOrderTilePartitioner (private val boundaries: Array[Long]) extends Partitioner {
+	def numPartitions: Int = boundaries.length + 1
+
+	def getPartition (key: Any): Int = {
+		val tileKey = key match {
+			case tile: TileIndex => PyramidComparator.getTileIndexKey(tile)
+			case zOrderKey: Long => zOrderKey
+		}
+		val position = Arrays.binarySearch(boundaries, tileKey)
+		if (position >= 0) position + 1
+		else -position - 1
+	}
+
+	override def equals (other: Any): Boolean = other match {
+		case that: ZOrderTilePartitioner => Arrays.equals(that.boundaries, boundaries)
+		case _ => false
+	}
+
+	override def hashCode: Int = Arrays.hashCode(boundaries)
+
+	override def toString: String = "ZOrderTilePartitioner("+numPartitions+" partitions)"
+}
+
+
+
+object ZOrderTilePartitioner {
+	/** The default number of tiles sampled per output partition to find partition boundaries */
+	val DefaultSamplesPerPartition = 20
+
+	/**
+	 * Plan a partitioner from a sample of tiles, so that each partition gets
+	 * about the same number of tiles.
+	 *
+	 * Each input partition is sampled evenly, and the samples of each are
+	 * weighted by the size of the partition from which they come, so that a
+	 * single pass over the tiles suffices.
+	 *
+	 * @param tiles The tiles to be partitioned
+	 * @param partitions The number of partitions to use
+	 * @param samplesPerPartition The number of tiles to sample per output partition
+	 */
+	def fromSample (tiles: RDD[TileIndex], partitions: Int,
+	                samplesPerPartition: Int = DefaultSamplesPerPartition): ZOrderTilePartitioner =
+	{
+		if (partitions <= 1) {
+			new ZOrderTilePartitioner(Array[Long]())
+		} else {
+			val inputPartitions = tiles.partitions.length max 1
+			val samplesPerInput = math.ceil(samplesPerPartition.toDouble * partitions / inputPartitions).toInt
+
+			// Reservoir sample the keys of each input partition
+			val samples = tiles.mapPartitionsWithIndex((index, iter) =>
+				{
+					val random = new Random(index)
+					val reservoir = new Array[Long](samplesPerInput)
+					var count = 0L
+					iter.foreach(tile =>
+						{
+							val key = PyramidComparator.getTileIndexKey(tile)
+							if (count < samplesPerInput) {
+								reservoir(count.toInt) = key
+							} else {
+								val replace = (random.nextDouble * (count + 1)).toLong
+								if (replace < samplesPerInput) reservoir(replace.toInt) = key
+							}
+							count += 1
+						}
+					)
+					Iterator((count, reservoir.take((count min samplesPerInput).toInt)))
+				}
+			).collect()
+
+			// Each sampled key stands for count/samples tiles
+			val weighted = samples.flatMap{case (count, keys) =>
+				val weight = count.toDouble / (keys.length max 1)
+				keys.map(key => (key, weight))
+			}.sortBy(_._1)
+
+			new ZOrderTilePartitioner(getBoundaries(weighted, partitions))
+		}
+	}
+
+	/**
+	 * Find partition boundaries from weighted, sorted keys, so that each
+	 * partition holds about the same total weight.  Partitions only ever
+	 * start at a new key, so there may be fewer boundaries than requested.
+	 */
+	private[tiling] def getBoundaries (weightedKeys: Seq[(Long, Double)], partitions: Int): Array[Long] = {
+		val step = weightedKeys.map(_._2).sum / partitions
+		val boundaries = scala.collection.mutable.ArrayBuffer[Long]()
+		var cumulative = 0.0
+		var target = step
+		weightedKeys.foreach{case (key, weight) =>
+			if (cumulative >= target && boundaries.length < partitions - 1 &&
+				    (boundaries.isEmpty || key > boundaries.last)) {
+				boundaries += key
+				target += step
+			}
+			cumulative += weight
+		}
+		boundaries.toArray
+	}
+
+	/**
+	 * Partition tiles into contiguous ranges of Z-order, and sort each
+	 * partition, so that each partition of output is a sorted run of tiles
+	 * in the order in which they are stored.  Sorting is done by the
+	 * shuffle, which spills to disk as needed, so partitions needn't fit in
+	 * memory.
+	 *
+	 * The tiles are used twice - once to sample boundaries, and once to
+	 * partition them - so callers should persist them first, to keep them
+	 * from being created twice, and unpersist them once the sorted tiles
+	 * have been written.
+	 *
+	 * @param tiles The tiles to sort
+	 * @param partitions The number of partitions into which to sort them
+	 */
+	def sortTiles[BT] (tiles: RDD[TileData[BT]], partitions: Int): RDD[TileData[BT]] = {
+		val partitioner = fromSample(tiles.map(_.getDefinition()), partitions)
+
+		tiles.map(tile => (PyramidComparator.getTileIndexKey(tile.getDefinition()), tile))
+			.repartitionAndSortWithinPartitions(partitioner)
+			.map(_._2)
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tilegen.export;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.binning.io.PyramidIO;
+import com.oculusinfo.binning.io.impl.FileBasedPyramidIO;
+import com.oculusinfo.binning.io.impl.FileSystemPyramidSource;
+import com.oculusinfo.binning.io.impl.IntegerTileSerializer;
+import com.oculusinfo.binning.io.impl.PyramidSource;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+import com.oculusinfo.binning.util.TypeDescriptor;
+
+public class PyramidCopierTest {
+	private static final String PYRAMID = "copy";
+
+	private File _root;
+	private FileSystemPyramidSource _fromSource;
+	private FileSystemPyramidSource _toSource;
+
+	@Before
+	public void setup () throws IOException {
+		_root = File.createTempFile("pyramid-copier-test", "");
+		_root.delete();
+		_root.mkdirs();
+		_fromSource = new FileSystemPyramidSource(new File(_root, "from").getPath(), "bin");
+		_toSource = new FileSystemPyramidSource(new File(_root, "to").getPath(), "bin");
+
+		// Every third tile of levels 0 through 4
+		List<TileData<Integer>> tiles = new ArrayList<>();
+		for (int level = 0; level <= 4; ++level) {
+			for (int x = 0; x < (1 << level); ++x) {
+				for (int y = 0; y < (1 << level); ++y) {
+					if (0 != (x + y) % 3) continue;
+					TileData<Integer> tile = new DenseTileData<>(new TileIndex(level, x, y, 1, 1));
+					tile.setBin(0, 0, valueOf(tile.getDefinition()));
+					tiles.add(tile);
+				}
+			}
+		}
+		PyramidIO from = new FileBasedPyramidIO(_fromSource);
+		from.initializeForWrite(PYRAMID);
+		from.writeTiles(PYRAMID, new IntegerTileSerializer(), tiles);
+		from.writeMetaData(PYRAMID, "{\"name\": \"copy\"}");
+	}
+
+	@After
+	public void cleanup () {
+		try {
+			FileUtils.deleteDirectory(_root);
+		} catch (IOException e) {
+			// swallow exception
+		}
+	}
+
+	private static int valueOf (TileIndex index) {
+		return index.getLevel() * 10000 + index.getX() * 100 + index.getY();
+	}
+
+	private static int expectedTiles (int level) {
+		int count = 0;
+		for (int x = 0; x < (1 << level); ++x) {
+			for (int y = 0; y < (1 << level); ++y) {
+				if (0 == (x + y) % 3) ++count;
+			}
+		}
+		return count;
+	}
+
+	private void assertCopied (int minLevel, int maxLevel, TileSerializer<Integer> serializer) throws IOException {
+		PyramidIO to = new FileBasedPyramidIO(_toSource);
+		Assert.assertEquals("{\"name\": \"copy\"}", to.readMetaData(PYRAMID));
+		for (int level = minLevel; level <= maxLevel; ++level) {
+			for (int x = 0; x < (1 << level); ++x) {
+				for (int y = 0; y < (1 << level); ++y) {
+					TileIndex index = new TileIndex(level, x, y);
+					File tileFile = new File(_toSource.getPyramidDirectory(PYRAMID),
+					                         PyramidIO.TILES_FOLDERNAME + "/" + level + "/" + x + "/" + y + ".bin");
+					if (0 == (x + y) % 3) {
+						InputStream stream = to.getTileStream(PYRAMID, serializer, index);
+						Assert.assertNotNull(stream);
+						Assert.assertEquals(valueOf(index), serializer.deserialize(index, stream).getBin(0, 0).intValue());
+						stream.close();
+					} else {
+						Assert.assertFalse(tileFile.exists());
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testScannedPassThroughCopy () throws IOException {
+		TileSerializer<Integer> serializer = new IntegerTileSerializer();
+		PyramidCopier copier = new PyramidCopier(new FileBasedPyramidIO(_fromSource), new FileBasedPyramidIO(_toSource),
+		                                         1, 1, 3, 7, 5);
+		Assert.assertTrue(copier.canScanSource());
+		long copied = copier.copyPyramid(PYRAMID, serializer, PYRAMID, serializer, 0, 4);
+
+		int expected = 0;
+		for (int level = 0; level <= 4; ++level) expected += expectedTiles(level);
+		Assert.assertEquals(expected, copied);
+		Assert.assertEquals(expected, copier.getTilesCopied());
+		Assert.assertEquals(expected * 4, copier.getBytesCopied());
+		assertCopied(0, 4, serializer);
+
+		// Passed through untouched
+		File tile = new File(PyramidIO.TILES_FOLDERNAME + "/4/5/7.bin");
+		Assert.assertArrayEquals(Files.readAllBytes(new File(_fromSource.getPyramidDirectory(PYRAMID), tile.getPath()).toPath()),
+		                         Files.readAllBytes(new File(_toSource.getPyramidDirectory(PYRAMID), tile.getPath()).toPath()));
+	}
+
+	@Test
+	public void testReserializingCopy () throws IOException {
+		PyramidCopier copier = new PyramidCopier(new FileBasedPyramidIO(_fromSource), new FileBasedPyramidIO(_toSource),
+		                                         1, 3, 2, 4, 3);
+		copier.copyPyramid(PYRAMID, new IntegerTileSerializer(), PYRAMID, new TextTileSerializer(), 2, 4);
+		assertCopied(2, 4, new TextTileSerializer());
+		Assert.assertFalse(new File(_toSource.getPyramidDirectory(PYRAMID), PyramidIO.TILES_FOLDERNAME + "/1").exists());
+	}
+
+	@Test
+	public void testUnscannableSourceCopy () throws IOException {
+		final TileSerializer<Integer> serializer = new IntegerTileSerializer();
+		PyramidCopier copier = new PyramidCopier(new FileBasedPyramidIO(new UnscannableSource(_fromSource)),
+		                                         new FileBasedPyramidIO(_toSource), 3, 2, 2, 10, 6);
+		Assert.assertFalse(copier.canScanSource());
+		long copied = copier.copyPyramid(PYRAMID, serializer, PYRAMID, serializer, 3, 4);
+		Assert.assertEquals(expectedTiles(3) + expectedTiles(4), copied);
+		assertCopied(3, 4, serializer);
+	}
+
+	@Test
+	public void testWriteFailureStopsCopy () throws IOException {
+		FileSystemPyramidSource failing = new FileSystemPyramidSource(new File(_root, "to").getPath(), "bin") {
+			@Override
+			public <T> void writeTiles (String basePath, TileSerializer<T> serializer,
+			                            Iterable<TileData<T>> data) throws IOException {
+				throw new IOException("Disk full");
+			}
+		};
+		TileSerializer<Integer> serializer = new IntegerTileSerializer();
+		// A tiny queue, so the reader is blocked when the writers fail
+		PyramidCopier copier = new PyramidCopier(new FileBasedPyramidIO(_fromSource), new FileBasedPyramidIO(failing),
+		                                         1, 1, 2, 1, 1);
+		try {
+			copier.copyLevel(PYRAMID, serializer, PYRAMID, serializer, 4);
+			Assert.fail("Write failure should stop the copy");
+		} catch (IOException e) {
+			Assert.assertEquals("Disk full", e.getMessage());
+		}
+		Assert.assertEquals(0, copier.getTilesCopied());
+	}
+
+
+
+	/*
+	 * Writes tiles as text, so a copy between serializers changes every byte
+	 */
+	private static class TextTileSerializer implements TileSerializer<Integer> {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public TypeDescriptor getBinTypeDescription () {
+			return new TypeDescriptor(Integer.class);
+		}
+
+		@Override
+		public TileData<Integer> deserialize (TileIndex index, InputStream rawData) throws IOException {
+			TileData<Integer> tile = new DenseTileData<Integer>(new TileIndex(index.getLevel(), index.getX(), index.getY(), 1, 1));
+			tile.setBin(0, 0, Integer.parseInt(new DataInputStream(rawData).readUTF()));
+			return tile;
+		}
+
+		@Override
+		public void serialize (TileData<Integer> data, OutputStream output) throws IOException {
+			new DataOutputStream(output).writeUTF(data.getBin(0, 0).toString());
+		}
+	}
+
+	/*
+	 * Hides the scanning abilities of a source
+	 */
+	private static class UnscannableSource implements PyramidSource {
+		private final PyramidSource _base;
+
+		UnscannableSource (PyramidSource base) {
+			_base = base;
+		}
+
+		@Override
+		public void initializeForWrite (String basePath) throws IOException {
+			_base.initializeForWrite(basePath);
+		}
+
+		@Override
+		public <T> void writeTiles (String basePath, TileSerializer<T> serializer,
+		                            Iterable<TileData<T>> data) throws IOException {
+			_base.writeTiles(basePath, serializer, data);
+		}
+
+		@Override
+		public void writeMetaData (String basePath, String metaData) throws IOException {
+			_base.writeMetaData(basePath, metaData);
+		}
+
+		@Override
+		public void initializeForRead (String pyramidId, int width, int height, Properties dataDescription) {
+			_base.initializeForRead(pyramidId, width, height, dataDescription);
+		}
+
+		@Override
+		public <T> List<TileData<T>> readTiles (String basePath, TileSerializer<T> serializer,
+		                                        Iterable<TileIndex> tiles) throws IOException {
+			return _base.readTiles(basePath, serializer, tiles);
+		}
+
+		@Override
+		public <T> InputStream getTileStream (String basePath, TileSerializer<T> serializer,
+		                                      TileIndex tile) throws IOException {
+			return _base.getTileStream(basePath, serializer, tile);
+		}
+
+		@Override
+		public String readMetaData (String basePath) throws IOException {
+			return _base.readMetaData(basePath);
+		}
+
+		@Override
+		public void removeTiles (String id, Iterable<TileIndex> tiles) throws IOException {
+			_base.removeTiles(id, tiles);
+		}
+	}
+}
@@ -38,8 +38,6 @@ import org.apache.spark.SparkContext
 import org.apache.spark.SharedSparkContext
 import com.oculusinfo.binning.TileData
 import com.oculusinfo.binning.TileIndex
-import com.oculusinfo.binning.impl.DenseTileData
-import com.oculusinfo.binning.impl.SparseTileData
 import com.oculusinfo.tilegen.datasets.CSVReader
 import com.oculusinfo.tilegen.util.PropertiesWrapper
 
@@ -124,13 +122,13 @@ class OnDemandTileDensityTestSuite extends FunSuite with SharedSparkContext with
 		val tile111 = pyramidIoA.readTiles(pyramidId2, null, List(new TileIndex(1, 1, 1, 4, 4)).asJava).get(0)
 
 		// Exactly half-full tile - should be sparse
-		assert(tile100.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile100))
 		// One more than half-full tile - should be dense
-		assert(tile110.isInstanceOf[DenseTileData[_]])
+		assert(isDense(tile110))
 		// Full tile - should be dense
-		assert(tile101.isInstanceOf[DenseTileData[_]])
+		assert(isDense(tile101))
 		// Nearly empty tile - should be sparse
-		assert(tile111.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile111))
 	}
 
 	test("choice of sparse or dense tiles - accumulator, dense") {
@@ -148,13 +146,13 @@ class OnDemandTileDensityTestSuite extends FunSuite with SharedSparkContext with
 		val tile111 = pyramidIoA.readTiles(pyramidId2, null, List(new TileIndex(1, 1, 1, 4, 4)).asJava).get(0)
 
 		// Exactly half-full tile
-		assert(tile100.isInstanceOf[DenseTileData[_]])
+		assert(isDense(tile100))
 		// One more than half-full tile
-		assert(tile110.isInstanceOf[DenseTileData[_]])
+		assert(isDense(tile110))
 		// Full tile - should be dense
-		assert(tile101.isInstanceOf[DenseTileData[_]])
+		assert(isDense(tile101))
 		// Nearly empty tile
-		assert(tile111.isInstanceOf[DenseTileData[_]])
+		assert(isDense(tile111))
 	}
 
 	test("choice of sparse or dense tiles - accumulator, sparse") {
@@ -170,13 +168,13 @@ class OnDemandTileDensityTestSuite extends FunSuite with SharedSparkContext with
 		val tile111 = pyramidIoA.readTiles(pyramidId2, null, List(new TileIndex(1, 1, 1, 4, 4)).asJava).get(0)
 
 		// Exactly half-full tile
-		assert(tile100.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile100))
 		// One more than half-full tile
-		assert(tile110.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile110))
 		// Full tile - should be dense
-		assert(tile101.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile101))
 		// Nearly empty tile
-		assert(tile111.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile111))
 	}
 
 	test("choice of sparse or dense tiles - traditional binning, heuristic") {
@@ -190,13 +188,13 @@ class OnDemandTileDensityTestSuite extends FunSuite with SharedSparkContext with
 		val tile111 = pyramidIoB.readTiles(pyramidId2, null, List(new TileIndex(1, 1, 1, 4, 4)).asJava).get(0)
 
 		// Exactly half-full tile - should be sparse
-		assert(tile100.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile100))
 		// One more than half-full tile - should be dense
-		assert(tile110.isInstanceOf[DenseTileData[_]])
+		assert(isDense(tile110))
 		// Full tile - should be dense
-		assert(tile101.isInstanceOf[DenseTileData[_]])
+		assert(isDense(tile101))
 		// Nearly empty tile - should be sparse
-		assert(tile111.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile111))
 	}
 
 	test("choice of sparse or dense tiles - traditional binning, dense") {
@@ -214,13 +212,13 @@ class OnDemandTileDensityTestSuite extends FunSuite with SharedSparkContext with
 		val tile111 = pyramidIoB.readTiles(pyramidId2, null, List(new TileIndex(1, 1, 1, 4, 4)).asJava).get(0)
 
 		// Exactly half-full tile
-		assert(tile100.isInstanceOf[DenseTileData[_]])
+		assert(isDense(tile100))
 		// One more than half-full tile
-		assert(tile110.isInstanceOf[DenseTileData[_]])
+		assert(isDense(tile110))
 		// Full tile - should be dense
-		assert(tile101.isInstanceOf[DenseTileData[_]])
+		assert(isDense(tile101))
 		// Nearly empty tile
-		assert(tile111.isInstanceOf[DenseTileData[_]])
+		assert(isDense(tile111))
 	}
 
 	test("choice of sparse or dense tiles - traditional binning, sparse") {
@@ -236,12 +234,12 @@ class OnDemandTileDensityTestSuite extends FunSuite with SharedSparkContext with
 		val tile111 = pyramidIoB.readTiles(pyramidId2, null, List(new TileIndex(1, 1, 1, 4, 4)).asJava).get(0)
 
 		// Exactly half-full tile
-		assert(tile100.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile100))
 		// One more than half-full tile
-		assert(tile110.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile110))
 		// Full tile - should be dense
-		assert(tile101.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile101))
 		// Nearly empty tile
-		assert(tile111.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile111))
 	}
 }
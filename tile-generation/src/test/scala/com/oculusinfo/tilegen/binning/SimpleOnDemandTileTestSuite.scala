@@ -40,7 +40,6 @@ import org.apache.spark.SharedSparkContext
 
 import com.oculusinfo.binning.TileData
 import com.oculusinfo.binning.TileIndex
-import com.oculusinfo.binning.impl.SparseTileData
 import com.oculusinfo.tilegen.datasets.TileAssertions
 
 
@@ -134,7 +133,7 @@ class SimpleOnDemandTileTestSuite extends FunSuite with SharedSparkContext with
 		                                0.0, 0.0, 2.0, 0.0,
 		                                0.0, 0.0, 0.0, 2.0),  tile000)
 		// Tile should definitely be sparse - it's only 1/4 full
-		assert(tile000.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile000))
 
 		val tile101: TileData[_] =
 			pyramidIoA.readTiles(pyramidId, null,
@@ -146,7 +145,7 @@ class SimpleOnDemandTileTestSuite extends FunSuite with SharedSparkContext with
 		                                0.0, 0.0, 1.0, 0.0,
 		                                0.0, 0.0, 0.0, 1.0), tile101)
 		// Tile should definitely be sparse - it's only 1/4 full
-		assert(tile101.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile101))
 
 		val tile110: TileData[_] =
 			pyramidIoA.readTiles(pyramidId, null,
@@ -158,7 +157,7 @@ class SimpleOnDemandTileTestSuite extends FunSuite with SharedSparkContext with
 		                                0.0, 0.0, 1.0, 0.0,
 		                                0.0, 0.0, 0.0, 1.0), tile110)
 		// Tile should definitely be sparse - it's only 1/4 full
-		assert(tile110.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile110))
 	}
 
 
@@ -186,7 +185,7 @@ class SimpleOnDemandTileTestSuite extends FunSuite with SharedSparkContext with
 		                                0.0, 0.0, 2.0, 0.0,
 		                                0.0, 0.0, 0.0, 2.0), tile000)
 		// Tile should definitely be sparse - it's only 1/4 full
-		assert(tile000.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile000))
 
 		val tile101: TileData[_] =
 			pyramidIoB.readTiles(pyramidId, null,
@@ -198,7 +197,7 @@ class SimpleOnDemandTileTestSuite extends FunSuite with SharedSparkContext with
 		                                0.0, 0.0, 1.0, 0.0,
 		                                0.0, 0.0, 0.0, 1.0), tile101)
 		// Tile should definitely be sparse - it's only 1/4 full
-		assert(tile101.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile101))
 
 		val tile110: TileData[_] =
 			pyramidIoB.readTiles(pyramidId, null,
@@ -210,7 +209,7 @@ class SimpleOnDemandTileTestSuite extends FunSuite with SharedSparkContext with
 		                                0.0, 0.0, 1.0, 0.0,
 		                                0.0, 0.0, 0.0, 1.0), tile110)
 		// Tile should definitely be sparse - it's only 1/4 full
-		assert(tile110.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile110))
 	}
 
 
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tilegen.binning
+
+
+
+import java.util.Properties
+
+import scala.collection.JavaConverters._
+import scala.util.Random
+
+import org.scalatest.FunSuite
+
+import org.apache.spark.SharedSparkContext
+
+import com.oculusinfo.binning.{PyramidComparator, TileData, TileIndex}
+import com.oculusinfo.binning.impl.AOITilePyramid
+import com.oculusinfo.tilegen.datasets.TilingTask
+
+
+
+class SpatialPartitionIndexTestSuite extends FunSuite with SharedSparkContext {
+	import SpatialPartitionIndex.{KeyLevel, getKeyRange}
+
+	test("Tile key ranges") {
+		def key (tile: TileIndex): Long = PyramidComparator.getTileIndexKey(tile)
+
+		// A tile of the key level is a single key
+		val keyTile = new TileIndex(KeyLevel, 123, 456, 1, 1)
+		assert((key(keyTile), key(keyTile)) === getKeyRange(keyTile))
+
+		// Deeper tiles use the key of the key-level tile that holds them
+		assert((key(keyTile), key(keyTile)) === getKeyRange(new TileIndex(KeyLevel + 2, 123*4 + 3, 456*4 + 1, 1, 1)))
+
+		// Shallower tiles span the keys of all their key-level descendants
+		val tile = new TileIndex(KeyLevel - 2, 30, 114, 1, 1)
+		val (minKey, maxKey) = getKeyRange(tile)
+		assert(16L - 1 === maxKey - minKey)
+		for (x <- 120 until 124; y <- 456 until 460) {
+			val k = key(new TileIndex(KeyLevel, x, y, 1, 1))
+			assert(minKey <= k && k <= maxKey)
+		}
+	}
+
+	test("Indexed points match those of the requested tiles, from fewer partitions") {
+		val random = new Random(13)
+		val pyramid = new AOITilePyramid(0.0, 0.0, 1.0, 1.0)
+		val points = (0 until 10000).map(n => (random.nextDouble(), random.nextDouble(), n))
+		val index = SpatialPartitionIndex(sc.parallelize(points, 4), pyramid, 4, 16)
+
+		try {
+			assert(16 === index.numPartitions)
+
+			val tiles = List(new TileIndex(6, 10, 20), new TileIndex(6, 11, 20), new TileIndex(3, 5, 1))
+			val expected = points.filter{case (x, y, n) =>
+				tiles.exists(tile => tile == pyramid.rootToTile(x, y, tile.getLevel(), tile.getXBins(), tile.getYBins()))
+			}.map(_._3).sorted
+			assert(expected.nonEmpty)
+			assert(expected.toList === index.getPoints(tiles).map(_._3).collect.toList.sorted)
+			assert(index.getPartitions(tiles).size < 16)
+
+			// The whole pyramid must read everything
+			assert(16 === index.getPartitions(List(new TileIndex(0, 0, 0))).size)
+			assert(10000 === index.getPoints(List(new TileIndex(0, 0, 0))).count)
+		} finally {
+			index.unpersist()
+		}
+	}
+
+	test("Indexed on-demand tiling matches unindexed on-demand tiling") {
+		val random = new Random(17)
+		val data = sqlc.jsonRDD(sc.parallelize((0 until 1000).map(n =>
+			                                       "{\"x\": %f, \"y\": %f}".format(random.nextDouble()*8.0, random.nextDouble()*8.0)
+		                                       ), 4))
+		data.registerTempTable("spatialIndexTest")
+
+		val props = new Properties()
+		props.setProperty("oculus.binning.source.type", "schema")
+		props.setProperty("oculus.binning.table", "spatialIndexTest")
+		props.setProperty("oculus.binning.projection.autobounds", "false")
+		props.setProperty("oculus.binning.projection.type", "EPSG:4326")
+		props.setProperty("oculus.binning.projection.minX", "0.0")
+		props.setProperty("oculus.binning.projection.maxX", "7.9999")
+		props.setProperty("oculus.binning.projection.minY", "0.0")
+		props.setProperty("oculus.binning.projection.maxY", "7.9999")
+		props.setProperty("oculus.binning.index.type", "cartesian")
+		props.setProperty("oculus.binning.index.field.0", "x")
+		props.setProperty("oculus.binning.index.field.1", "y")
+		props.setProperty("oculus.binning.levels.0", "0,1,2,3,4")
+
+		val scanIO = new OnDemandAccumulatorPyramidIO(sqlc)
+		scanIO.initializeDirectly("scan", TilingTask(sqlc, "spatialIndexTest", props))
+		val indexedIO = new OnDemandAccumulatorPyramidIO(sqlc)
+		indexedIO.initializeDirectly("indexed", TilingTask(sqlc, "spatialIndexTest", props), Some(2), Some(8))
+
+		def binValues (tiles: Seq[TileData[_]]): Map[TileIndex, Seq[Any]] =
+			tiles.map(tile =>
+				(tile.getDefinition(),
+				 for (x <- 0 until tile.getDefinition().getXBins(); y <- 0 until tile.getDefinition().getYBins())
+				 yield tile.getBin(x, y))
+			).toMap
+
+		val requests = List(List(new TileIndex(0, 0, 0, 4, 4)),
+		                    List(new TileIndex(2, 1, 2, 4, 4), new TileIndex(2, 2, 2, 4, 4)),
+		                    List(new TileIndex(4, 7, 9, 4, 4), new TileIndex(3, 0, 7, 4, 4)))
+		requests.foreach{request =>
+			val scanned = binValues(scanIO.readTiles("scan", null, request.asJava).asScala)
+			val indexed = binValues(indexedIO.readTiles("indexed", null, request.asJava).asScala)
+			assert(scanned.nonEmpty)
+			assert(scanned === indexed)
+		}
+
+		// Removing the task releases its index
+		val persisted = sc.getPersistentRDDs.size
+		indexedIO.removeTask("indexed")
+		assert(persisted - 1 === sc.getPersistentRDDs.size)
+		assert(null == indexedIO.readTiles("indexed", null, requests.head.asJava))
+	}
+
+	test("Re-initializing an indexed pyramid releases its old index") {
+		val data = sqlc.jsonRDD(sc.parallelize((0 until 100).map(n =>
+			                                       "{\"x\": %f, \"y\": %f}".format((n % 10) * 0.8, (n / 10) * 0.8)
+		                                       ), 2))
+		data.registerTempTable("spatialIndexReinitTest")
+
+		val props = new Properties()
+		props.setProperty("oculus.binning.source.type", "schema")
+		props.setProperty("oculus.binning.table", "spatialIndexReinitTest")
+		props.setProperty("oculus.binning.projection.autobounds", "false")
+		props.setProperty("oculus.binning.projection.type", "EPSG:4326")
+		props.setProperty("oculus.binning.projection.minX", "0.0")
+		props.setProperty("oculus.binning.projection.maxX", "7.9999")
+		props.setProperty("oculus.binning.projection.minY", "0.0")
+		props.setProperty("oculus.binning.projection.maxY", "7.9999")
+		props.setProperty("oculus.binning.index.type", "cartesian")
+		props.setProperty("oculus.binning.index.field.0", "x")
+		props.setProperty("oculus.binning.index.field.1", "y")
+		props.setProperty("oculus.binning.levels.0", "0,1,2")
+
+		val pyramidIO = new OnDemandAccumulatorPyramidIO(sqlc)
+		val persisted = sc.getPersistentRDDs.size
+		pyramidIO.initializeDirectly("reinit", TilingTask(sqlc, "spatialIndexReinitTest", props), Some(1), Some(2))
+		assert(persisted + 1 === sc.getPersistentRDDs.size)
+		pyramidIO.initializeDirectly("reinit", TilingTask(sqlc, "spatialIndexReinitTest", props), Some(1), Some(2))
+		assert(persisted + 1 === sc.getPersistentRDDs.size)
+		pyramidIO.removeTask("reinit")
+		assert(persisted === sc.getPersistentRDDs.size)
+	}
+}
@@ -7,6 +7,10 @@ import java.util.{List => JavaList}
 import org.scalatest.Assertions
 
 import com.oculusinfo.binning.TileData
+import com.oculusinfo.binning.impl.DenseTileData
+import com.oculusinfo.binning.impl.PrimitiveDenseTileData
+import com.oculusinfo.binning.impl.PrimitiveSparseTileData
+import com.oculusinfo.binning.impl.SparseTileData
 
 
 
@@ -30,6 +34,18 @@ trait TileAssertions extends Assertions {
 		}
 	}
 
+	/**
+	 * Test if a tile uses dense storage, whether boxed or primitive
+	 */
+	protected def isDense (tile: TileData[_]): Boolean =
+		tile.isInstanceOf[DenseTileData[_]] || tile.isInstanceOf[PrimitiveDenseTileData[_]]
+
+	/**
+	 * Test if a tile uses sparse storage, whether boxed or primitive
+	 */
+	protected def isSparse (tile: TileData[_]): Boolean =
+		tile.isInstanceOf[SparseTileData[_]] || tile.isInstanceOf[PrimitiveSparseTileData[_]]
+
 	protected def assertListTileContents[T] (expected: List[List[T]], tile: TileData[_]): Unit = {
 		val index = tile.getDefinition
 		val xBins = index.getXBins
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.oculusinfo.tilegen.tiling
+
+
+
+import java.io.File
+
+import org.apache.commons.io.FileUtils
+import org.apache.hadoop.hbase.HBaseConfiguration
+import org.apache.hadoop.hbase.util.Bytes
+
+import org.scalatest.FunSuite
+
+import org.apache.spark.SharedSparkContext
+
+import com.oculusinfo.binning.TileIndex
+import com.oculusinfo.binning.io.impl.HBasePyramidIO
+
+
+
+class HBaseBulkLoadTileIOTestSuite extends FunSuite with SharedSparkContext {
+	import HBaseBulkLoadTileIO._
+
+	// Every tile of levels 0 through 5, in no particular order
+	def tileRows = {
+		val tiles =
+			for (level <- 0 to 5; x <- 0 until (1 << level); y <- 0 until (1 << level)) yield
+				new TileIndex(level, x, y)
+		sc.parallelize(scala.util.Random.shuffle(tiles), 7).map(index =>
+			(HBasePyramidIO.rowKeyFromTileIndex(index), index.toString.getBytes)
+		)
+	}
+
+	test("Rows are sorted in HBase order, across partitions") {
+		val sorted = sortRows(tileRows, 4)
+		val partitions = sorted.glom().collect()
+		assert(4 === partitions.length)
+
+		val keys = partitions.flatten.map(_._1)
+		assert(1365 === keys.length)
+		keys.sliding(2).foreach(pair => assert(Bytes.compareTo(pair(0), pair(1)) < 0))
+
+		// Partitions should follow the distribution of tiles - level 5 alone
+		// holds three quarters of them, so it should be split up
+		partitions.foreach(partition => assert(partition.nonEmpty && partition.length < 1024))
+
+		// And each row should still have its own data
+		partitions.flatten.foreach(row =>
+			assert(HBasePyramidIO.tileIndexFromRowKey(row._1).toString === new String(row._2))
+		)
+	}
+
+	test("Split keys are the first key of each partition after the first") {
+		val sorted = sortRows(tileRows, 4)
+		val splitKeys = getSplitKeys(sorted)
+		val firstKeys = sorted.glom().collect().filter(_.nonEmpty).map(_.head._1)
+		assert(firstKeys.length - 1 === splitKeys.length)
+		firstKeys.drop(1).zip(splitKeys).foreach(pair => assert(Bytes.equals(pair._1, pair._2)))
+	}
+
+	test("Write HFiles to the local file system") {
+		val root = File.createTempFile("hfile-test", "")
+		root.delete()
+		try {
+			val location = new File(root, "hfiles")
+			writeHFiles(sortRows(tileRows, 3), location.toURI.toString, HBaseConfiguration.create())
+
+			// HFiles go in a directory named for their column family
+			val familyDir = new File(location, new String(HBasePyramidIO.TILE_COLUMN.getFamily()))
+			assert(familyDir.isDirectory)
+			val hfiles = familyDir.listFiles().filter(file => !file.getName.startsWith(".") && file.length > 0)
+			assert(3 === hfiles.length)
+		} finally {
+			FileUtils.deleteDirectory(root)
+		}
+	}
+}
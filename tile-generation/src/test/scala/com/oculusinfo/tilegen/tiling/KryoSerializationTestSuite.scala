@@ -47,8 +47,6 @@ import com.oculusinfo.tilegen.binning.OnDemandBinningPyramidIO
 import com.oculusinfo.tilegen.datasets.TileAssertions
 import com.oculusinfo.binning.TileData
 import com.oculusinfo.binning.TileIndex
-import com.oculusinfo.binning.impl.DenseTileData
-import com.oculusinfo.binning.impl.SparseTileData
 import com.oculusinfo.binning.io.serialization.impl.KryoSerializer
 import com.oculusinfo.binning.util.TypeDescriptor
 
@@ -143,25 +141,25 @@ class KryoSerializationTestSuite extends FunSuite with SharedSparkContext with B
 		val tile111 = throughKryo(pyramidIo.readTiles(pyramidId, null, List(new TileIndex(1, 1, 1, 4, 4)).asJava).get(0))
 
 		// Exactly half-full tile - should be sparse
-		assert(tile100.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile100))
 		assertTileContents(List(1.0, 0.0, 1.0, 0.0,
 		                        0.0, 1.0, 0.0, 1.0,
 		                        1.0, 0.0, 1.0, 0.0,
 		                        0.0, 1.0, 0.0, 1.0), tile100)
 		// One more than half-full tile - should be dense
-		assert(tile110.isInstanceOf[DenseTileData[_]])
+		assert(isDense(tile110))
 		assertTileContents(List(1.0, 0.0, 1.0, 0.0,
 		                        0.0, 1.0, 0.0, 1.0,
 		                        1.0, 0.0, 1.0, 0.0,
 		                        1.0, 1.0, 0.0, 1.0), tile110)
 		// Full tile - should be dense
-		assert(tile101.isInstanceOf[DenseTileData[_]])
+		assert(isDense(tile101))
 		assertTileContents(List(1.0, 1.0, 1.0, 1.0,
 		                        1.0, 1.0, 1.0, 1.0,
 		                        1.0, 1.0, 1.0, 1.0,
 		                        1.0, 1.0, 1.0, 1.0), tile101)
 		// Nearly empty tile - should be sparse
-		assert(tile111.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile111))
 		assertTileContents(List(0.0, 0.0, 0.0, 0.0,
 		                        0.0, 0.0, 0.0, 0.0,
 		                        0.0, 0.0, 0.0, 0.0,
@@ -195,26 +193,26 @@ class KryoSerializationTestSuite extends FunSuite with SharedSparkContext with B
 		val tile111 = throughKryoSeries(pyramidIo.readTiles(id, null, List(new TileIndex(1, 1, 1, 4, 4)).asJava).get(0))
 
 		// Exactly half-full tile - should be sparse
-		assert(tile100.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile100))
 		val empty = List[Double]()
 		assertListTileContents(List[List[Double]](List(3.0, 0.0), empty, List(5.0, 6.0), empty,
 		                                          empty, List(3.0, 2.0), empty, List(5.0, 6.0),
 		                                          List(1.0, 0.0), empty, List(3.0, 2.0), empty,
 		                                          empty, List(1.0, 0.0), empty, List(3.0, 0.0)), tile100)
 		// One more than half-full tile - should be dense
-		assert(tile110.isInstanceOf[DenseTileData[_]])
+		assert(isDense(tile110))
 		assertListTileContents(List(List(7.0, 12.0), empty, List(9.0, 18.0), empty,
 		                            empty, List(7.0, 10.0), empty, List(9.0, 14.0),
 		                            List(5.0, 4.0), empty, List(7.0, 6.0), empty,
 		                            List(4.0, 0.0), List(5.0, 0.0), empty, List(7.0, 0.0)), tile110)
 		// Full tile - should be dense
-		assert(tile101.isInstanceOf[DenseTileData[_]])
+		assert(isDense(tile101))
 		assertListTileContents(List(List(7.0, 0.0), List(8.0, 7.0), List(9.0, 14.0), List(10.0, 21.0),
 		                            List(6.0, 0.0), List(7.0, 6.0), List(8.0, 12.0), List(9.0, 18.0),
 		                            List(5.0, 0.0), List(6.0, 5.0), List(7.0, 10.0), List(8.0, 15.0),
 		                            List(4.0, 0.0), List(5.0, 4.0), List(6.0, 8.0), List(7.0, 12.0)), tile101)
 		// Nearly empty tile - should be sparse
-		assert(tile111.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile111))
 		assertListTileContents(List(empty, empty, empty, empty,
 		                            empty, empty, empty, empty,
 		                            empty, empty, empty, empty,
@@ -34,6 +34,7 @@ import com.oculusinfo.binning.io.serialization.impl.PrimitiveAvroSerializer
 import com.oculusinfo.tilegen.datasets.TileAssertions
 
 import scala.collection.JavaConverters._
+import scala.collection.mutable.{Map => MutableMap}
 import scala.util.{Try, Success, Failure}
 
 import org.scalatest.FunSuite
@@ -41,11 +42,10 @@ import org.scalatest.FunSuite
 import org.apache.avro.file.CodecFactory
 
 import org.apache.spark.SharedSparkContext
+import org.apache.spark.SparkContext._
 
 import com.oculusinfo.binning.impl.AOITilePyramid
 import com.oculusinfo.binning._
-import com.oculusinfo.binning.impl.DenseTileData
-import com.oculusinfo.binning.impl.SparseTileData
 
 import com.oculusinfo.tilegen.tiling.analytics.AnalysisDescription
 import com.oculusinfo.tilegen.tiling.analytics.NumericSumBinningAnalytic
@@ -97,7 +97,7 @@ class RDDBinnerTestSuite extends FunSuite with SharedSparkContext with TileAsser
 		                                0.0, 0.0, 1.0, 0.0,
 		                                0.0, 0.0, 0.0, 1.0), tile01.get)
 		// Only 1/4 full - should be sparse
-		assert(tile01.get.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile01.get))
 
 		val tile10 = tileIO.getTile(pyramidId, new TileIndex(1, 1, 0, 4, 4))
 		assert(tile10.isDefined)
@@ -106,7 +106,7 @@ class RDDBinnerTestSuite extends FunSuite with SharedSparkContext with TileAsser
 		                                0.0, 0.0, 1.0, 0.0,
 		                                0.0, 0.0, 0.0, 1.0), tile10.get)
 		// Only 1/4 full - should be sparse
-		assert(tile10.get.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile10.get))
 	}
 
 	test("One-dimensional binning") {
@@ -145,7 +145,7 @@ class RDDBinnerTestSuite extends FunSuite with SharedSparkContext with TileAsser
 		assert(tile10.isDefined)
 		assertTileContents(List[Double](1.0, 1.0, 1.0, 0.0), tile10.get)
 		// 3/4 full - should be dense
-		assert(tile10.get.isInstanceOf[DenseTileData[_]])
+		assert(isDense(tile10.get))
 
 		val tile11 = tileIO.getTile(pyramidId, new TileIndex(1, 1, 0, 4, 1))
 		assert(!tile11.isDefined)
@@ -192,10 +192,10 @@ class RDDBinnerTestSuite extends FunSuite with SharedSparkContext with TileAsser
 		                       pyramid, None,
 		                       None,
 		                       autoId, tileIODefault, List(List(1)), xBins=4, yBins=4)
-		assert(tileIODefault.getTile(autoId, new TileIndex(1, 0, 0, 4, 4)).get.isInstanceOf[SparseTileData[_]])
-		assert(tileIODefault.getTile(autoId, new TileIndex(1, 1, 0, 4, 4)).get.isInstanceOf[DenseTileData[_]])
-		assert(tileIODefault.getTile(autoId, new TileIndex(1, 0, 1, 4, 4)).get.isInstanceOf[DenseTileData[_]])
-		assert(tileIODefault.getTile(autoId, new TileIndex(1, 1, 1, 4, 4)).get.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tileIODefault.getTile(autoId, new TileIndex(1, 0, 0, 4, 4)).get))
+		assert(isDense(tileIODefault.getTile(autoId, new TileIndex(1, 1, 0, 4, 4)).get))
+		assert(isDense(tileIODefault.getTile(autoId, new TileIndex(1, 0, 1, 4, 4)).get))
+		assert(isSparse(tileIODefault.getTile(autoId, new TileIndex(1, 1, 1, 4, 4)).get))
 
 		// Now try mandatory dense tiles
 		val tileIODense = new TestTileIO
@@ -206,10 +206,10 @@ class RDDBinnerTestSuite extends FunSuite with SharedSparkContext with TileAsser
 		                       pyramid, None,
 		                       Some(StorageType.Dense),
 		                       denseId, tileIODense, List(List(1)), xBins=4, yBins=4)
-		assert(tileIODense.getTile(denseId, new TileIndex(1, 0, 0, 4, 4)).get.isInstanceOf[DenseTileData[_]])
-		assert(tileIODense.getTile(denseId, new TileIndex(1, 1, 0, 4, 4)).get.isInstanceOf[DenseTileData[_]])
-		assert(tileIODense.getTile(denseId, new TileIndex(1, 0, 1, 4, 4)).get.isInstanceOf[DenseTileData[_]])
-		assert(tileIODense.getTile(denseId, new TileIndex(1, 1, 1, 4, 4)).get.isInstanceOf[DenseTileData[_]])
+		assert(isDense(tileIODense.getTile(denseId, new TileIndex(1, 0, 0, 4, 4)).get))
+		assert(isDense(tileIODense.getTile(denseId, new TileIndex(1, 1, 0, 4, 4)).get))
+		assert(isDense(tileIODense.getTile(denseId, new TileIndex(1, 0, 1, 4, 4)).get))
+		assert(isDense(tileIODense.getTile(denseId, new TileIndex(1, 1, 1, 4, 4)).get))
 
 		// Now try mandatory sparse tiles
 		val tileIOSparse = new TestTileIO
@@ -220,9 +220,117 @@ class RDDBinnerTestSuite extends FunSuite with SharedSparkContext with TileAsser
 		                       pyramid, None,
 		                       Some(StorageType.Sparse),
 		                       sparseId, tileIOSparse, List(List(1)), xBins=4, yBins=4)
-		assert(tileIOSparse.getTile(sparseId, new TileIndex(1, 0, 0, 4, 4)).get.isInstanceOf[SparseTileData[_]])
-		assert(tileIOSparse.getTile(sparseId, new TileIndex(1, 1, 0, 4, 4)).get.isInstanceOf[SparseTileData[_]])
-		assert(tileIOSparse.getTile(sparseId, new TileIndex(1, 0, 1, 4, 4)).get.isInstanceOf[SparseTileData[_]])
-		assert(tileIOSparse.getTile(sparseId, new TileIndex(1, 1, 1, 4, 4)).get.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tileIOSparse.getTile(sparseId, new TileIndex(1, 0, 0, 4, 4)).get))
+		assert(isSparse(tileIOSparse.getTile(sparseId, new TileIndex(1, 1, 0, 4, 4)).get))
+		assert(isSparse(tileIOSparse.getTile(sparseId, new TileIndex(1, 0, 1, 4, 4)).get))
+		assert(isSparse(tileIOSparse.getTile(sparseId, new TileIndex(1, 1, 1, 4, 4)).get))
+	}
+
+	test("Tile-at-once consolidation") {
+		// Tiles from (0, 0) to (7, 7), with bins filled by a checkerboard of
+		// densities, and each point doubled up in a different partition
+		val rawData = for (x <- 0 to 7; y <- 0 to 7; if (0 == (x + y) % 3 || x < 2)) yield ((x.toDouble, y.toDouble), 1.0)
+		val data = sc.parallelize(rawData ++ rawData.reverse, 4)
+
+		val pyramid = new AOITilePyramid(0.0, 0.0, 7.9999, 7.9999)
+		val coordFcn: (((Double, Double), Double)) => Try[(Double, Double)] = record => Try(record._1)
+		val valueFcn: (((Double, Double), Double)) => Try[Double] = record => Try(record._2)
+		val tileAnalytics: Option[AnalysisDescription[TileData[JavaDouble], Double]] = None
+		val dataAnalytics: Option[AnalysisDescription[((Double, Double), Double), Double]] = None
+
+		def binWith (strategy: ConsolidationStrategy.Value, skewSampleFraction: Option[Double] = None): TestTileIO = {
+			val binner = new RDDBinner
+			binner.consolidationStrategy = strategy
+			binner.skewSampleFraction = skewSampleFraction
+			val tileIO = new TestTileIO
+			binner.binAndWriteData(data, coordFcn, valueFcn, new CartesianIndexScheme,
+			                       new NumericSumBinningAnalytic[Double, JavaDouble](), tileAnalytics, dataAnalytics,
+			                       new PrimitiveAvroSerializer(classOf[JavaDouble], CodecFactory.bzip2Codec()),
+			                       pyramid, None, None, "consolidation test", tileIO, List(List(0, 1, 2)),
+			                       xBins=4, yBins=4)
+			tileIO
+		}
+		val byBin = binWith(ConsolidationStrategy.ByBin)
+		// Sampling all the data guarantees the level 0 tile gets split
+		val results = List(binWith(ConsolidationStrategy.ByTile),
+		                   binWith(ConsolidationStrategy.ByBin, Some(1.0)),
+		                   binWith(ConsolidationStrategy.ByTile, Some(1.0)))
+
+		for (byTile <- results; level <- 0 to 2; x <- 0 until (1 << level); y <- 0 until (1 << level)) {
+			val index = new TileIndex(level, x, y, 4, 4)
+			val expected = byBin.getTile("consolidation test", index)
+			val actual = byTile.getTile("consolidation test", index)
+			assert(expected.isDefined === actual.isDefined)
+			expected.foreach{expectedTile =>
+				// Same storage choice, same contents
+				assert(expectedTile.getClass === actual.get.getClass)
+				for (bx <- 0 until 4; by <- 0 until 4)
+					assert(expectedTile.getBin(bx, by) == actual.get.getBin(bx, by))
+			}
+		}
+	}
+
+	test("Skew-aware partition planning") {
+		// One tile with most of the data, and a spread of light ones
+		val heavy = new TileIndex(0, 0, 0, 4, 4)
+		val light = for (x <- 0 until 4; y <- 0 until 4) yield new TileIndex(2, x, y, 4, 4)
+		val weights = (light.map(tile => (tile, 1.0)) :+ (heavy -> 60.0)).toMap
+
+		val partitioner = SkewAwareTilePartitioner.plan(weights, 4)
+		assert(4 === partitioner.numPartitions)
+		assert(Map(heavy -> 4) === partitioner.getSplitTiles)
+		light.foreach(tile => assert(!partitioner.isSplit(tile)))
+
+		// Slices are ranges of bin rows
+		assert(0 === partitioner.getSlice(heavy, new BinIndex(3, 0)))
+		assert(1 === partitioner.getSlice(heavy, new BinIndex(0, 1)))
+		assert(3 === partitioner.getSlice(heavy, new BinIndex(2, 3)))
+		assert(0 === partitioner.getSlice(light(0), new BinIndex(2, 3)))
+
+		// Each slice of the heavy tile gets its own partition, and light tiles
+		// are packed evenly around them
+		val loads = new Array[Double](4)
+		(0 until 4).foreach(slice => loads(partitioner.getPartition((heavy, slice))) += 15.0)
+		light.foreach(tile => loads(partitioner.getPartition(tile)) += 1.0)
+		assert(loads.forall(_ == 19.0))
+		assert(partitioner.getPartition(light(0)) === partitioner.getPartition((light(0), 0)))
+	}
+
+	test("Skew-aware slice merging") {
+		val heavy = new TileIndex(0, 0, 0, 4, 4)
+		val light = new TileIndex(1, 0, 0, 4, 4)
+		val partitioner = SkewAwareTilePartitioner.plan(Map(heavy -> 60.0, light -> 1.0), 4)
+
+		val sliced = sc.parallelize((0 until 4).map(slice => ((heavy, slice), 1)) :+ ((light, 0), 1))
+			.partitionBy(partitioner)
+		val merged = partitioner.mergeSlices[Int](sliced, _ + _).collect.toMap
+		assert(Map(heavy -> 4, light -> 1) === merged)
+
+		// The sliced data is kept only until we're done with it
+		assert(sc.getPersistentRDDs.contains(sliced.id))
+		partitioner.unpersist()
+		assert(!sc.getPersistentRDDs.contains(sliced.id))
+	}
+
+	test("Partial tile buffers") {
+		val sum: (Double, Double) => Double = _ + _
+		val a = new PartialTile[Double](4, 4)
+		a.add(0, 1.0, sum)
+		a.add(5, 2.0, sum)
+		a.add(0, 3.0, sum)
+		assert(2 === a.size)
+		assert(!a.isDense)
+
+		// Five bins is more than a quarter of the tile
+		val b = new PartialTile[Double](4, 4)
+		for (i <- 0 until 5) b.add(i * 3, 1.0, sum)
+		assert(b.isDense)
+
+		val merged = a.merge(b, sum)
+		assert(merged.isDense)
+		assert(6 === merged.size)
+		val bins = MutableMap[Int, Double]()
+		merged.foreach((offset, value) => bins(offset) = value)
+		assert(Map(0 -> 5.0, 3 -> 1.0, 5 -> 2.0, 6 -> 1.0, 9 -> 1.0, 12 -> 1.0) === bins.toMap)
 	}
 }
@@ -43,9 +43,9 @@ import org.apache.spark.rdd.RDD
 import com.oculusinfo.binning.BinIndex
 import com.oculusinfo.binning.TileData
 import com.oculusinfo.binning.TileIndex
-import com.oculusinfo.binning.impl.SparseTileData
 import com.oculusinfo.binning.impl.AOITilePyramid
 import com.oculusinfo.binning.impl.WebMercatorTilePyramid
+import com.oculusinfo.tilegen.datasets.TileAssertions
 import com.oculusinfo.tilegen.tiling.analytics.AnalysisDescription
 import com.oculusinfo.tilegen.tiling.analytics.NumericSumBinningAnalytic
 import com.oculusinfo.tilegen.util.EndPointsToLine
@@ -62,7 +62,7 @@ case class Segment(p0x: Double, p0y: Double, p1x: Double, p1y: Double) extends S
 case class SegmentData(segment: Segment, count: Double) extends Serializable
 
 
-class RDDLineBinnerTestSuite extends FunSuite with SharedSparkContext {
+class RDDLineBinnerTestSuite extends FunSuite with SharedSparkContext with TileAssertions {
 	def wikipediaGetPoints (start: BinIndex, end: BinIndex): (Boolean, Int, Int, Int, Int) = {
 		// The un-scala-like version from wikipedia
 		var (x0, y0, x1, y1) = (start.getX(), start.getY(), end.getX(), end.getY())
@@ -146,12 +146,32 @@ class RDDLineBinnerTestSuite extends FunSuite with SharedSparkContext {
 		val tile11 = tileIO.getTile(pyramidId, new TileIndex(1, 1, 1, 256, 256))
 		assert(tile11.isEmpty)
 
-		assert(tile00.get.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile00.get))
 		for (x <- 0 to 255) assert(tile00.get.getBin(x, 14) == 1.0 && tile10.get.getBin(x, 14) == 1.0)
 	}
 	
 	
 	
+	/*
+	 * Tests that planning skew-aware consolidation doesn't change the results
+	 */
+	test("Skew-aware line binning") {
+		val expected = runLineBinning("hashed line binning", 512, true)
+		val actual = runLineBinning("skew-aware line binning", 512, true, Some(1.0))
+
+		for (x <- 0 to 1; y <- 0 to 1) {
+			val expectedTile = expected.getTile("hashed line binning", new TileIndex(1, x, y, 256, 256))
+			val actualTile = actual.getTile("skew-aware line binning", new TileIndex(1, x, y, 256, 256))
+			assert(expectedTile.isDefined === actualTile.isDefined)
+			expectedTile.foreach(tile =>
+				for (bx <- 0 to 255; by <- 0 to 255)
+					assert(tile.getBin(bx, by) == actualTile.get.getBin(bx, by))
+			)
+		}
+	}
+
+
+
 	/*
 	 * Tests the faded end line binning case, where we create a line across our world bounds
 	 * and our removal distance threshold is set such that only the end of the line is rendered.
@@ -171,8 +191,8 @@ class RDDLineBinnerTestSuite extends FunSuite with SharedSparkContext {
 		val tile11 = tileIO.getTile(pyramidId, new TileIndex(1, 1, 1, 4, 4))
 		assert(tile11.isEmpty)
 
-		assert(tile00.get.isInstanceOf[SparseTileData[_]])
-		assert(tile10.get.isInstanceOf[SparseTileData[_]])
+		assert(isSparse(tile00.get))
+		assert(isSparse(tile10.get))
 
 		for (x <- 1 to 255) {
 			assert(tile00.get.getBin(x, 14).toString.toDouble < tile00.get.getBin(x-1, 14).toString.toDouble)
@@ -205,12 +225,14 @@ class RDDLineBinnerTestSuite extends FunSuite with SharedSparkContext {
 	/*
 	 * Helper function to run line binning based on a mercator tile pyramid.
 	 */
-	def runLineBinning (pyramidId: String, maxLength: Int, showEnds: Boolean) = {
+	def runLineBinning (pyramidId: String, maxLength: Int, showEnds: Boolean,
+	                    skewSampleFraction: Option[Double] = None) = {
 		// First row of data has value at the start and end.  Segment binner
 		// should create a line between the two.
 		val data = sc.parallelize(List(new SegmentData(new Segment(-180.0, -10.0, 180.0, -10.0), 1.0)))
 		
 		val binner = new RDDLineBinner(1, maxLength, showEnds)
+		binner.skewSampleFraction = skewSampleFraction
 		val tileIO = new TestTileIO
 		val pyramid = new WebMercatorTilePyramid
 		
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tilegen.tiling
+
+
+
+import java.lang.{Double => JavaDouble}
+
+import org.apache.hadoop.hbase.util.Bytes
+
+import org.scalatest.FunSuite
+
+import org.apache.spark.SharedSparkContext
+
+import com.oculusinfo.binning.{PyramidComparator, TileData, TileIndex}
+import com.oculusinfo.binning.impl.DenseTileData
+import com.oculusinfo.binning.io.impl.HBasePyramidIO
+
+
+
+class ZOrderTilePartitionerTestSuite extends FunSuite with SharedSparkContext {
+	test("Boundaries split weight evenly") {
+		val keys = (0L until 100L).map(key => (key, 1.0))
+		assert(List(25L, 50L, 75L) === ZOrderTilePartitioner.getBoundaries(keys, 4).toList)
+
+		// Heavy keys can't be split, so fewer partitions result
+		val heavy = List((0L, 10.0), (1L, 1.0), (2L, 1.0))
+		assert(List(1L, 2L) === ZOrderTilePartitioner.getBoundaries(heavy, 4).toList)
+	}
+
+	test("Partitions are contiguous ranges of keys") {
+		val partitioner = new ZOrderTilePartitioner(Array(PyramidComparator.getTileIndexKey(new TileIndex(2, 0, 0)),
+		                                                  PyramidComparator.getTileIndexKey(new TileIndex(2, 3, 3))))
+		assert(3 === partitioner.numPartitions)
+		assert(0 === partitioner.getPartition(new TileIndex(1, 1, 1)))
+		assert(1 === partitioner.getPartition(new TileIndex(2, 0, 0)))
+		assert(1 === partitioner.getPartition(new TileIndex(2, 2, 3)))
+		assert(2 === partitioner.getPartition(new TileIndex(2, 3, 3)))
+		assert(2 === partitioner.getPartition(new TileIndex(3, 0, 0)))
+	}
+
+	test("Sorted tiles are in HBase row key order, across partitions") {
+		// Every tile of levels 0 through 5, in no particular order
+		val indices =
+			for (level <- 0 to 5; x <- 0 until (1 << level); y <- 0 until (1 << level)) yield
+				new TileIndex(level, x, y, 1, 1)
+		val tiles = sc.parallelize(scala.util.Random.shuffle(indices), 7).map(index =>
+			new DenseTileData[JavaDouble](index, JavaDouble.valueOf(0.0)): TileData[JavaDouble]
+		)
+
+		val partitions = ZOrderTilePartitioner.sortTiles(tiles, 4).glom().collect()
+		assert(4 === partitions.length)
+
+		val keys = partitions.flatten.map(tile => HBasePyramidIO.rowKeyFromTileIndex(tile.getDefinition()))
+		assert(1365 === keys.length)
+		keys.sliding(2).foreach(pair => assert(Bytes.compareTo(pair(0), pair(1)) < 0))
+
+		// Level 5 alone holds three quarters of the tiles, so it should be split up
+		partitions.foreach(partition => assert(partition.nonEmpty && partition.length < 1024))
+	}
+}
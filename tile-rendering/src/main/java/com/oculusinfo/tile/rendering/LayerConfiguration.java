@@ -124,10 +124,22 @@ public class LayerConfiguration extends ConfigurableFactory<LayerConfiguration>
             LEVEL_MINIMUMS
         )));
 
+	// The per-tile properties of the tile currently being rendered.  These are
+	// held per thread, so that a single configuration may be shared by
+	// simultaneous requests for different tiles.
+	private static class LevelProperties {
+		final TileIndex _tileCoordinate;
+		final String _levelMinimum;
+		final String _levelMaximum;
+		LevelProperties (TileIndex tileCoordinate, String levelMinimum, String levelMaximum) {
+			_tileCoordinate = tileCoordinate;
+			_levelMinimum = levelMinimum;
+			_levelMaximum = levelMaximum;
+		}
+	}
+
 	private ValueTransformerFactory _transformFactory;
-	private TileIndex _tileCoordinate;
-	private String _levelMinimum;
-	private String _levelMaximum;
+	private ThreadLocal<LevelProperties> _levelProperties;
 
 	public LayerConfiguration( FactoryProvider<PyramidIO> pyramidIOFactoryProvider,
                                FactoryProvider<TilePyramid> tilePyramidFactoryProvider,
@@ -166,6 +178,7 @@ public class LayerConfiguration extends ConfigurableFactory<LayerConfiguration>
 		addProperty(LEVEL_MINIMUMS);
 		addProperty(LEVEL_MAXIMUMS);
 
+		_levelProperties = new ThreadLocal<>();
 		_transformFactory = new ValueTransformerFactory( this, VALUE_TRANSFORM_PATH );
 		addChildFactory( _transformFactory );
 
@@ -184,19 +197,24 @@ public class LayerConfiguration extends ConfigurableFactory<LayerConfiguration>
 	@Override
 	public <PT> PT getPropertyValue (ConfigurationProperty<PT> property) {
 		if (LOCAL_PROPERTIES.contains(property)) {
-            if (TILE_COORDINATE.equals(property)) {
-				return property.getType().cast(_tileCoordinate);
+			LevelProperties levelProperties = _levelProperties.get();
+			if (null == levelProperties) {
+				return null;
+			} else if (TILE_COORDINATE.equals(property)) {
+				return property.getType().cast(levelProperties._tileCoordinate);
 			} else if (LEVEL_MAXIMUMS.equals(property)) {
-				return property.getType().cast(_levelMaximum);
+				return property.getType().cast(levelProperties._levelMaximum);
 			} else if (LEVEL_MINIMUMS.equals(property)) {
-				return property.getType().cast(_levelMinimum);
+				return property.getType().cast(levelProperties._levelMinimum);
 			}
 		}
 		return super.getPropertyValue(property);
 	}
 
     /**
-     * Set the tile index, and level minimum and maximum for the impending read
+     * Set the tile index, and level minimum and maximum for the impending read.
+     * These properties apply only to the calling thread, and remain until
+     * {@link #clearLevelProperties()} is called.
      * @param tileIndex The index of the tile to be rendererd.
      * @param levelMinimum The level minimum.
      * @param levelMaximum The level maximum.
@@ -204,9 +222,7 @@ public class LayerConfiguration extends ConfigurableFactory<LayerConfiguration>
 	public void setLevelProperties (TileIndex tileIndex,
 	                                String levelMinimum,
 	                                String levelMaximum) {
-		_tileCoordinate = tileIndex;
-		_levelMaximum = levelMaximum;
-		_levelMinimum = levelMinimum;
+		_levelProperties.set(new LevelProperties(tileIndex, levelMinimum, levelMaximum));
 		try {
 			TileDataImageRenderer<?> renderer = produce(TileDataImageRenderer.class);
 			if (null != renderer) {
@@ -218,6 +234,26 @@ public class LayerConfiguration extends ConfigurableFactory<LayerConfiguration>
 		}
 	}
 
+	/**
+	 * Clear the calling thread's tile index and level extrema, once it is
+	 * finished rendering a tile.
+	 */
+	public void clearLevelProperties () {
+		_levelProperties.remove();
+		_transformFactory.clearExtrema();
+	}
+
+
+	/**
+	 * Prepare for rendering a tile for an unidentified client.
+	 *
+	 * @see #prepareForRendering(String, String, TileIndex, Iterable)
+	 */
+	public void prepareForRendering (String layer,
+	                                 TileIndex tile,
+	                                 Iterable<TileIndex> tileSet) {
+		prepareForRendering(layer, null, tile, tileSet);
+	}
 
 	/**
 	 * This is a placeholder for the caching configuration to override; it does
@@ -228,11 +264,14 @@ public class LayerConfiguration extends ConfigurableFactory<LayerConfiguration>
 	 * JSON or an image.
 	 *
 	 * @param layer The layer to be rendered.
+	 * @param client An identifier of the client asking for the tile, or null
+	 *            if unknown
 	 * @param tile The tile to be rendered
 	 * @param tileSet Any other tiles that will need to be rendered along with
 	 *            this one.
 	 */
 	public void prepareForRendering (String layer,
+	                                 String client,
 	                                 TileIndex tile,
 	                                 Iterable<TileIndex> tileSet) {
 		// NOOP
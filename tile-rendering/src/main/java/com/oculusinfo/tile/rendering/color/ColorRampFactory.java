@@ -31,6 +31,7 @@ import java.util.List;
 
 import com.oculusinfo.tile.rendering.color.impl.FlatColorRamp;
 import com.oculusinfo.tile.rendering.color.impl.HueColorRamp;
+import com.oculusinfo.tile.rendering.color.impl.LookupTableColorRamp;
 import com.oculusinfo.tile.rendering.color.impl.SingleGradientColorRamp;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -63,6 +64,10 @@ public class ColorRampFactory extends ConfigurableFactory<ColorRamp> {
 	
 	private List<ThemedGradientFactory> gradients = new ArrayList<>();
 
+	// The ramp only depends on our configuration, so its lookup table is
+	// built once and reused until we are reconfigured.
+	private volatile LookupTableColorRamp rampTable = null;
+
 	
 	public ColorRampFactory (ConfigurableFactory<?> parent, List<String> path) {
 		super(ColorRamp.class, parent, path);
@@ -84,6 +89,7 @@ public class ColorRampFactory extends ConfigurableFactory<ColorRamp> {
 	    super.readConfiguration(rootNode);
 
 	    gradients.clear();
+	    rampTable = null;
 		
 		try {
 			readGradients(getPropertyValue(GRADIENTS), gradients);
@@ -105,6 +111,15 @@ public class ColorRampFactory extends ConfigurableFactory<ColorRamp> {
 
 	@Override
 	protected ColorRamp create () {
+		LookupTableColorRamp table = rampTable;
+		if (null == table) {
+			table = new LookupTableColorRamp(createBaseRamp());
+			rampTable = table;
+		}
+		return table;
+	}
+
+	private ColorRamp createBaseRamp () {
 		final String rampType = getPropertyValue(RAMP_TYPE);
 		final double opacity = 1.0; //getPropertyValue(OPACITY);
 		final String theme = getPropertyValue(THEME);
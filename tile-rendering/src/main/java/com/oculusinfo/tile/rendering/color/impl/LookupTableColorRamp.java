@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rendering.color.impl;
+
+import com.oculusinfo.tile.rendering.color.ColorRamp;
+
+/**
+ * A colour ramp compiled into a fixed-resolution lookup table.
+ *
+ * Evaluating most ramps means walking lists of fixed points and interpolating
+ * for every pixel; this samples another ramp once, at evenly spaced scale
+ * values, so each pixel costs one multiply and one array read.  Scale values
+ * are clamped to [0, 1].
+ */
+public final class LookupTableColorRamp implements ColorRamp {
+	public static final int DEFAULT_SIZE = 4096;
+
+	private final int[]   _table;
+	private final int     _maxIndex;
+	private final boolean _inverted;
+
+	/**
+	 * Sample the given ramp into a table of the default size.
+	 */
+	public LookupTableColorRamp (ColorRamp base) {
+		this(base, DEFAULT_SIZE, false);
+	}
+
+	/**
+	 * Sample the given ramp.
+	 *
+	 * @param base The ramp to sample
+	 * @param size The number of entries in the table; must be at least 2
+	 * @param inverted If true, low scale values look up the top of the base
+	 *            ramp, and vice versa
+	 */
+	public LookupTableColorRamp (ColorRamp base, int size, boolean inverted) {
+		if (size < 2) throw new IllegalArgumentException("Lookup table must have at least 2 entries");
+
+		_table = new int[size];
+		_maxIndex = size - 1;
+		_inverted = inverted;
+		for (int i = 0; i < size; ++i) {
+			_table[i] = base.getRGB(i / (double) _maxIndex);
+		}
+	}
+
+	private LookupTableColorRamp (int[] table, boolean inverted) {
+		_table = table;
+		_maxIndex = table.length - 1;
+		_inverted = inverted;
+	}
+
+	/**
+	 * Get a lookup table for the given ramp, sampling it only if it isn't
+	 * already one.
+	 */
+	public static LookupTableColorRamp from (ColorRamp ramp) {
+		if (ramp instanceof LookupTableColorRamp) return (LookupTableColorRamp) ramp;
+		return new LookupTableColorRamp(ramp);
+	}
+
+	/**
+	 * Get the same ramp, running in the other direction. The table itself is
+	 * shared, not copied.
+	 */
+	public LookupTableColorRamp invert () {
+		return new LookupTableColorRamp(_table, !_inverted);
+	}
+
+	public boolean isInverted () {
+		return _inverted;
+	}
+
+	public int size () {
+		return _table.length;
+	}
+
+	/**
+	 * Get the table index for a given scale value.
+	 */
+	public int getIndex (double scale) {
+		int index;
+		if (scale <= 0.0) index = 0;
+		else if (scale >= 1.0) index = _maxIndex;
+		else index = (int) (scale * _maxIndex + 0.5);
+		return _inverted ? _maxIndex - index : index;
+	}
+
+	/**
+	 * Get the colour at a given table index.
+	 */
+	public int getRGBAt (int index) {
+		return _table[index];
+	}
+
+	@Override
+	public int getRGB (double scale) {
+		return _table[getIndex(scale)];
+	}
+}
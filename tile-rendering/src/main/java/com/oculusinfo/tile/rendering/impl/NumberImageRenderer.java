@@ -24,7 +24,9 @@
  */
 package com.oculusinfo.tile.rendering.impl;
 
+import com.oculusinfo.binning.PrimitiveTileData;
 import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.impl.DoubleDenseTileData;
 import com.oculusinfo.binning.metadata.PyramidMetaData;
 import com.oculusinfo.binning.util.TypeDescriptor;
 import com.oculusinfo.factory.util.Pair;
@@ -33,6 +35,8 @@ import com.oculusinfo.factory.properties.StringProperty;
 import com.oculusinfo.tile.rendering.LayerConfiguration;
 import com.oculusinfo.tile.rendering.TileDataImageRenderer;
 import com.oculusinfo.tile.rendering.color.ColorRamp;
+import com.oculusinfo.tile.rendering.color.impl.LookupTableColorRamp;
+import com.oculusinfo.tile.rendering.transformations.value.DoubleValueTransformer;
 import com.oculusinfo.tile.rendering.transformations.value.ValueTransformer;
 
 import org.slf4j.Logger;
@@ -130,28 +134,52 @@ public class NumberImageRenderer implements TileDataImageRenderer<Number> {
 
 		double oneOverScaledRange = 1.0 / (valueMax - valueMin);
 		boolean bCoarseCircles = pixelShape.equals("circle");	// render 'coarse' bins as circles or squares?
+		boolean cull = mode.equals("cull");
 		
 		int[] rgbArray = ((DataBufferInt)bi.getRaster().getDataBuffer()).getData();
+
+		// Look colours up in a table rather than evaluating the ramp per bin
+		LookupTableColorRamp colorTable = LookupTableColorRamp.from(colorRamp);
+
+		// Read primitive tiles, and transform their values, without boxing each bin
+		PrimitiveTileData<?> primitiveData = (data instanceof PrimitiveTileData) ? (PrimitiveTileData<?>) data : null;
+		DoubleValueTransformer primitiveTransform = (t instanceof DoubleValueTransformer) ? (DoubleValueTransformer) t : null;
 		
-		if ((xScale==1.0) && (yScale==1.0)) {
+		if ((xScale==1.0) && (yScale==1.0) && null != primitiveData && null != primitiveTransform) {
+			// no bin scaling needed, and nothing boxed - render whole rows at once
+			if (primitiveData instanceof DoubleDenseTileData && xBins == outWidth) {
+				renderBins(((DoubleDenseTileData) primitiveData).getData(), 0, xBins*yBins, primitiveTransform,
+				           valueMin, valueMax, cull, colorTable, rgbArray, 0);
+			} else {
+				double[] row = new double[xBins];
+				for (int ty = 0; ty < yBins; ty++) {
+					for (int tx = 0; tx < xBins; tx++) {
+						row[tx] = primitiveData.getBinDouble(tx, ty);
+					}
+					renderBins(row, 0, xBins, primitiveTransform,
+					           valueMin, valueMax, cull, colorTable, rgbArray, ty*outWidth);
+				}
+			}
+		}
+		else if ((xScale==1.0) && (yScale==1.0)) {
 			// no bin scaling needed
 
 			for(int ty = 0; ty < yBins; ty++){
 				for(int tx = 0; tx < xBins; tx++){
 
-					double binCount = data.getBin(tx, ty).doubleValue();
-					double transformedValue = t.transform(binCount).doubleValue();
+					double binCount = (null == primitiveData) ? data.getBin(tx, ty).doubleValue() : primitiveData.getBinDouble(tx, ty);
+					double transformedValue = (null == primitiveTransform) ? t.transform(binCount).doubleValue() : primitiveTransform.transformDouble(binCount);
 					int rgb;
 
 					if (binCount > 0) {
-						if ( mode.equals("cull") ) {
+						if ( cull ) {
 							if ( transformedValue >= valueMin && transformedValue <= valueMax ) {
-								rgb = colorRamp.getRGB( ( transformedValue - valueMin ) * oneOverScaledRange );
+								rgb = colorTable.getRGB( ( transformedValue - valueMin ) * oneOverScaledRange );
 							} else {
 								rgb = COLOR_BLANK.getRGB();
 							}
 						} else {
-							rgb = colorRamp.getRGB( ( transformedValue - valueMin ) * oneOverScaledRange );
+							rgb = colorTable.getRGB( ( transformedValue - valueMin ) * oneOverScaledRange );
 						}
 					} else {
 						rgb = COLOR_BLANK.getRGB();
@@ -177,19 +205,19 @@ public class NumberImageRenderer implements TileDataImageRenderer<Number> {
 					double centreY = (maxY + minY) * 0.5;
 					//double radius2 = (maxX - centreX)*(maxX - centreX);	// squared radius 
 
-					double binCount = data.getBin(tx, ty).doubleValue();
-					double transformedValue = t.transform(binCount).doubleValue();
+					double binCount = (null == primitiveData) ? data.getBin(tx, ty).doubleValue() : primitiveData.getBinDouble(tx, ty);
+					double transformedValue = (null == primitiveTransform) ? t.transform(binCount).doubleValue() : primitiveTransform.transformDouble(binCount);
 					int rgb;
 
 					if (binCount > 0) {
-						if ( mode.equals("cull") ) {
+						if ( cull ) {
 							if ( transformedValue >= valueMin && transformedValue <= valueMax ) {
-								rgb = colorRamp.getRGB( ( transformedValue - valueMin ) * oneOverScaledRange );
+								rgb = colorTable.getRGB( ( transformedValue - valueMin ) * oneOverScaledRange );
 							} else {
 								rgb = COLOR_BLANK.getRGB();
 							}
 						} else {
-							rgb = colorRamp.getRGB( ( transformedValue - valueMin ) * oneOverScaledRange );
+							rgb = colorTable.getRGB( ( transformedValue - valueMin ) * oneOverScaledRange );
 						}
 					} else {
 						rgb = COLOR_BLANK.getRGB();
@@ -226,6 +254,41 @@ public class NumberImageRenderer implements TileDataImageRenderer<Number> {
 		return bi;
 	}
 
+	/**
+	 * Turn a run of bin values into pixels in one pass: transform each value,
+	 * cull it if requested, and look up its colour.  Bins with no positive
+	 * value are left blank.
+	 *
+	 * @param bins The bin values to render
+	 * @param binOffset The index in bins of the first bin to render
+	 * @param count The number of bins to render
+	 * @param t The transformation to apply to each bin value
+	 * @param valueMin The transformed value mapped to the bottom of the colour ramp
+	 * @param valueMax The transformed value mapped to the top of the colour ramp
+	 * @param cull If true, transformed values outside [valueMin, valueMax] are left blank
+	 * @param colorTable The colour ramp
+	 * @param pixels The ARGB pixels to which to render
+	 * @param pixelOffset The index in pixels to which to render the first bin
+	 */
+	public static void renderBins (double[] bins, int binOffset, int count, DoubleValueTransformer t,
+	                               double valueMin, double valueMax, boolean cull,
+	                               LookupTableColorRamp colorTable, int[] pixels, int pixelOffset) {
+		int blank = COLOR_BLANK.getRGB();
+		double oneOverScaledRange = 1.0 / (valueMax - valueMin);
+
+		for (int i = 0; i < count; ++i) {
+			double binCount = bins[binOffset + i];
+			int rgb = blank;
+			if (binCount > 0) {
+				double transformedValue = t.transformDouble(binCount);
+				if ( !cull || (transformedValue >= valueMin && transformedValue <= valueMax) ) {
+					rgb = colorTable.getRGB( ( transformedValue - valueMin ) * oneOverScaledRange );
+				}
+			}
+			pixels[pixelOffset + i] = rgb;
+		}
+	}
+
 
 	/**
 	 * {@inheritDoc}
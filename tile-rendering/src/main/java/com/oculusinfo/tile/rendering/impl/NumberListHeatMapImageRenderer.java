@@ -31,6 +31,7 @@ import java.util.List;
 import com.oculusinfo.tile.rendering.LayerConfiguration;
 import com.oculusinfo.tile.rendering.TileDataImageRenderer;
 import com.oculusinfo.tile.rendering.color.ColorRamp;
+import com.oculusinfo.tile.rendering.color.impl.LookupTableColorRamp;
 import com.oculusinfo.tile.rendering.transformations.tile.TileTransformer;
 import com.oculusinfo.tile.rendering.transformations.value.ValueTransformer;
 import org.slf4j.Logger;
@@ -123,7 +124,7 @@ public class NumberListHeatMapImageRenderer implements TileDataImageRenderer<Lis
 
             double xScale = ((double) bi.getWidth())/xBins;
             double yScale = ((double) bi.getHeight())/yBins;
-            ColorRamp colorRamp = config.produce(ColorRamp.class);
+            LookupTableColorRamp colorTable = LookupTableColorRamp.from(config.produce(ColorRamp.class));
 
             for(int ty = 0; ty < yBins; ty++){
                 for(int tx = 0; tx < xBins; tx++){
@@ -147,12 +148,12 @@ public class NumberListHeatMapImageRenderer implements TileDataImageRenderer<Lis
                     if (binCount > 0) {
 						if ( rangeMode.equals("cull") ) {
 							if ( transformedValue >= scaledMin && transformedValue <= scaledMax ) {
-								rgb = colorRamp.getRGB( ( transformedValue - scaledMin ) * oneOverScaledRange );
+								rgb = colorTable.getRGB( ( transformedValue - scaledMin ) * oneOverScaledRange );
 							} else {
 								rgb = COLOR_BLANK.getRGB();
 							}
 						}  else {
-							rgb = colorRamp.getRGB( ( transformedValue - scaledMin ) * oneOverScaledRange );
+							rgb = colorTable.getRGB( ( transformedValue - scaledMin ) * oneOverScaledRange );
 						}
                     } else {
                         rgb = COLOR_BLANK.getRGB();
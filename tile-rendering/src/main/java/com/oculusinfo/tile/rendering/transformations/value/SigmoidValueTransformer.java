@@ -31,7 +31,7 @@ package com.oculusinfo.tile.rendering.transformations.value;
  * 
  * @author nkronenfeld
  */
-public class SigmoidValueTransformer implements ValueTransformer<Double> {
+public class SigmoidValueTransformer implements ValueTransformer<Double>, DoubleValueTransformer {
     private double _center;
     private double _scale;
 
@@ -42,6 +42,11 @@ public class SigmoidValueTransformer implements ValueTransformer<Double> {
 
     @Override
     public Double transform (Double value) {
+        return transformDouble(value);
+    }
+
+    @Override
+    public double transformDouble (double value) {
         double scaledInput = (value-_center) / (_scale - _center);
 
         return (1/(1+Math.exp(-scaledInput)));
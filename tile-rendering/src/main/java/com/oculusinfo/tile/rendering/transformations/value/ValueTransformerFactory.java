@@ -84,20 +84,28 @@ public class ValueTransformerFactory extends ConfigurableFactory<ValueTransforme
 		addProperty(LOG_MINIMUM);
 	}
 
-	private double _layerMaximum;
-	private double _layerMinimum;
+	// Extrema depend on the tile being rendered, so are held per thread.
+	private ThreadLocal<double[]> _layerExtrema = new ThreadLocal<>();
 	// Extrema are calculated properties; we must allow a way to set them.
 	public void setExtrema (double min, double max) {
-		_layerMaximum = max;
-		_layerMinimum = min;
+		_layerExtrema.set(new double[] {min, max});
+	}
+
+	public void clearExtrema () {
+		_layerExtrema.remove();
 	}
 
 	@Override
 	public <PT> PT getPropertyValue (ConfigurationProperty<PT> property) {
-		if (LAYER_MAXIMUM.equals(property)) {
-			return property.getType().cast(_layerMaximum);
-		} else if (LAYER_MINIMUM.equals(property)) {
-			return property.getType().cast(_layerMinimum);
+		if (LAYER_MAXIMUM.equals(property) || LAYER_MINIMUM.equals(property)) {
+			double[] extrema = _layerExtrema.get();
+			if (null == extrema) {
+				return property.getType().cast(0.0);
+			} else if (LAYER_MAXIMUM.equals(property)) {
+				return property.getType().cast(extrema[1]);
+			} else {
+				return property.getType().cast(extrema[0]);
+			}
 		}
 		return super.getPropertyValue(property);
 	}
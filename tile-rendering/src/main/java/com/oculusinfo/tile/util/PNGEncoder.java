@@ -0,0 +1,542 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A PNG encoder specialized for the ARGB tile images produced by our
+ * renderers.
+ *
+ * Unlike ImageIO, the encoder reads pixels straight out of the image's data
+ * buffer, reuses a per-thread {@link Deflater} and scratch buffers between
+ * images, and picks the smallest colour type that holds the image losslessly:
+ * an indexed palette when the image uses 256 colours or fewer (typical of
+ * colour ramp output), RGB when every pixel is opaque, and RGBA otherwise.
+ *
+ * Encoders are immutable and may be shared between threads.
+ */
+public class PNGEncoder {
+	/**
+	 * The PNG scanline filter applied before compression. ADAPTIVE tries each
+	 * filter on each row and keeps the one with the smallest sum of absolute
+	 * differences, which compresses best but costs the most time.
+	 */
+	public enum Filter {
+		NONE(0), SUB(1), UP(2), AVERAGE(3), PAETH(4), ADAPTIVE(-1);
+
+		private final int _type;
+		Filter (int type) {
+			_type = type;
+		}
+	}
+
+	private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+	private static final byte[] IHDR = {'I', 'H', 'D', 'R'};
+	private static final byte[] PLTE = {'P', 'L', 'T', 'E'};
+	private static final byte[] TRNS = {'t', 'R', 'N', 'S'};
+	private static final byte[] IDAT = {'I', 'D', 'A', 'T'};
+	private static final byte[] IEND = {'I', 'E', 'N', 'D'};
+
+	private static final int COLOR_TYPE_RGB     = 2;
+	private static final int COLOR_TYPE_PALETTE = 3;
+	private static final int COLOR_TYPE_RGBA    = 6;
+
+	private static final int MAX_PALETTE_SIZE = 256;
+	// Must be a power of two, comfortably larger than the palette
+	private static final int PALETTE_TABLE_SIZE = 1024;
+	private static final int IDAT_CHUNK_SIZE = 32 * 1024;
+
+	// Deflaters hold native memory, so we keep one per thread rather than
+	// creating (and finalizing) one per image.
+	private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue () {
+			return new Scratch();
+		}
+	};
+
+	/** The compression level used by the no-argument constructor */
+	public static final int DEFAULT_COMPRESSION_LEVEL = 4;
+	/** The scanline filter used by the no-argument constructor */
+	public static final Filter DEFAULT_FILTER = Filter.SUB;
+
+
+
+	private int     _compressionLevel;
+	private Filter  _filter;
+	private boolean _allowPalette;
+
+	public PNGEncoder () {
+		this(DEFAULT_COMPRESSION_LEVEL, DEFAULT_FILTER, true);
+	}
+
+	/**
+	 * @param compressionLevel The deflate compression level, from 0 (none) to
+	 *            9 (best), or {@link Deflater#DEFAULT_COMPRESSION}
+	 * @param filter The scanline filter to apply to true-colour images
+	 * @param allowPalette If true, images with 256 colours or fewer are
+	 *            written as indexed-colour PNGs
+	 */
+	public PNGEncoder (int compressionLevel, Filter filter, boolean allowPalette) {
+		if ((compressionLevel < 0 || compressionLevel > 9) && Deflater.DEFAULT_COMPRESSION != compressionLevel) {
+			throw new IllegalArgumentException("Illegal compression level "+compressionLevel);
+		}
+		if (null == filter) {
+			throw new IllegalArgumentException("Null filter");
+		}
+		_compressionLevel = compressionLevel;
+		_filter = filter;
+		_allowPalette = allowPalette;
+	}
+
+	public int getCompressionLevel () {
+		return _compressionLevel;
+	}
+
+	public Filter getFilter () {
+		return _filter;
+	}
+
+	public boolean isPaletteAllowed () {
+		return _allowPalette;
+	}
+
+	/**
+	 * Encode an image as a PNG.
+	 */
+	public byte[] encode (BufferedImage image) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(16 * 1024);
+		encode(image, baos);
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Encode an image as a PNG, writing it to the given stream. The stream is
+	 * not closed.
+	 */
+	public void encode (BufferedImage image, OutputStream output) throws IOException {
+		Scratch scratch = SCRATCH.get();
+		int width = image.getWidth();
+		int height = image.getHeight();
+
+		int[] pixels = getPixels(image, scratch);
+		int offset = scratch._pixelOffset;
+		int stride = scratch._pixelStride;
+
+		// Work out the cheapest lossless colour type
+		int paletteSize = _allowPalette ? buildPalette(pixels, offset, stride, width, height, scratch) : -1;
+		boolean opaque = (paletteSize >= 0) ? scratch._paletteOpaque : isOpaque(pixels, offset, stride, width, height);
+		int colorType;
+		int bytesPerPixel;
+		if (paletteSize >= 0) {
+			colorType = COLOR_TYPE_PALETTE;
+			bytesPerPixel = 1;
+		} else if (opaque) {
+			colorType = COLOR_TYPE_RGB;
+			bytesPerPixel = 3;
+		} else {
+			colorType = COLOR_TYPE_RGBA;
+			bytesPerPixel = 4;
+		}
+
+		output.write(SIGNATURE);
+
+		byte[] header = scratch._header;
+		writeInt(header, 0, width);
+		writeInt(header, 4, height);
+		header[8] = 8; // bit depth
+		header[9] = (byte) colorType;
+		header[10] = 0; // deflate
+		header[11] = 0; // adaptive filtering
+		header[12] = 0; // no interlace
+		writeChunk(output, IHDR, header, 13, scratch);
+
+		if (COLOR_TYPE_PALETTE == colorType) {
+			writePalette(output, paletteSize, opaque, scratch);
+		}
+
+		writeImageData(output, pixels, offset, stride, width, height, colorType, bytesPerPixel, scratch);
+
+		writeChunk(output, IEND, header, 0, scratch);
+	}
+
+
+
+	// Get the image's pixels as packed, non-premultiplied ARGB, going
+	// directly to the data buffer when the layout allows it.
+	private static int[] getPixels (BufferedImage image, Scratch scratch) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+
+		if (BufferedImage.TYPE_INT_ARGB == image.getType()) {
+			Raster raster = image.getRaster();
+			DataBuffer buffer = raster.getDataBuffer();
+			if (buffer instanceof DataBufferInt
+			    && 1 == buffer.getNumBanks()
+			    && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+			    && 0 == raster.getSampleModelTranslateX()
+			    && 0 == raster.getSampleModelTranslateY()) {
+				SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+				scratch._pixelOffset = buffer.getOffset();
+				scratch._pixelStride = sampleModel.getScanlineStride();
+				return ((DataBufferInt) buffer).getData();
+			}
+		}
+
+		// Anything else goes through getRGB, which converts to ARGB for us.
+		int size = width * height;
+		if (null == scratch._pixels || scratch._pixels.length < size) {
+			scratch._pixels = new int[size];
+		}
+		image.getRGB(0, 0, width, height, scratch._pixels, 0, width);
+		scratch._pixelOffset = 0;
+		scratch._pixelStride = width;
+		return scratch._pixels;
+	}
+
+	private static boolean isOpaque (int[] pixels, int offset, int stride, int width, int height) {
+		for (int y = 0; y < height; ++y) {
+			int start = offset + y * stride;
+			int end = start + width;
+			for (int i = start; i < end; ++i) {
+				if ((pixels[i] >>> 24) != 0xff) return false;
+			}
+		}
+		return true;
+	}
+
+	// Collect the distinct colours in the image into the scratch palette.
+	// Returns the palette size, or -1 if the image has too many colours.
+	private static int buildPalette (int[] pixels, int offset, int stride, int width, int height, Scratch scratch) {
+		int[] slots = scratch._paletteSlots;
+		int[] colors = scratch._palette;
+		Arrays.fill(slots, 0);
+
+		int size = 0;
+		boolean opaque = true;
+		boolean havePrevious = false;
+		int previous = 0;
+		for (int y = 0; y < height; ++y) {
+			int start = offset + y * stride;
+			int end = start + width;
+			for (int i = start; i < end; ++i) {
+				int color = pixels[i];
+				// Runs of a single colour are the norm in tiles
+				if (havePrevious && color == previous) continue;
+				previous = color;
+				havePrevious = true;
+
+				int slot = findSlot(slots, colors, color);
+				if (0 == slots[slot]) {
+					if (MAX_PALETTE_SIZE == size) return -1;
+					colors[size] = color;
+					++size;
+					slots[slot] = size;
+					if ((color >>> 24) != 0xff) opaque = false;
+				}
+			}
+		}
+		scratch._paletteOpaque = opaque;
+		return size;
+	}
+
+	// Find the hash slot holding the given colour, or the empty slot where it
+	// belongs. Slots hold palette index + 1, so 0 is empty.
+	private static int findSlot (int[] slots, int[] colors, int color) {
+		int mask = PALETTE_TABLE_SIZE - 1;
+		int slot = (color * 0x9E3779B9) >>> 22;
+		while (0 != slots[slot] && colors[slots[slot] - 1] != color) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void writePalette (OutputStream output, int paletteSize, boolean opaque, Scratch scratch) throws IOException {
+		int[] colors = scratch._palette;
+		byte[] data = scratch._chunk;
+
+		for (int i = 0; i < paletteSize; ++i) {
+			int color = colors[i];
+			data[i * 3]     = (byte) (color >> 16);
+			data[i * 3 + 1] = (byte) (color >> 8);
+			data[i * 3 + 2] = (byte) color;
+		}
+		writeChunk(output, PLTE, data, paletteSize * 3, scratch);
+
+		if (!opaque) {
+			// Entries past the end of tRNS are opaque, so it can stop at the
+			// last translucent one.
+			int last = 0;
+			for (int i = 0; i < paletteSize; ++i) {
+				data[i] = (byte) (colors[i] >>> 24);
+				if ((colors[i] >>> 24) != 0xff) last = i;
+			}
+			writeChunk(output, TRNS, data, last + 1, scratch);
+		}
+	}
+
+	private void writeImageData (OutputStream output, int[] pixels, int offset, int stride,
+	                             int width, int height, int colorType, int bytesPerPixel,
+	                             Scratch scratch) throws IOException {
+		int rowLength = width * bytesPerPixel;
+		scratch.ensureRowCapacity(rowLength);
+		byte[] current = scratch._current;
+		byte[] prior = scratch._prior;
+		Arrays.fill(prior, 0, rowLength, (byte) 0);
+
+		// The PNG spec recommends leaving indexed rows unfiltered; the
+		// differences between palette indices mean nothing.
+		Filter filter = (COLOR_TYPE_PALETTE == colorType) ? Filter.NONE : _filter;
+
+		Deflater deflater = scratch._deflater;
+		deflater.reset();
+		deflater.setLevel(_compressionLevel);
+		scratch._chunkLength = 0;
+
+		for (int y = 0; y < height; ++y) {
+			int start = offset + y * stride;
+			switch (colorType) {
+			case COLOR_TYPE_PALETTE:
+				fillIndexedRow(pixels, start, width, current, scratch);
+				break;
+			case COLOR_TYPE_RGB:
+				fillRGBRow(pixels, start, width, current);
+				break;
+			default:
+				fillRGBARow(pixels, start, width, current);
+				break;
+			}
+
+			byte[] filtered = filterRow(filter, current, prior, rowLength, bytesPerPixel, scratch);
+			deflater.setInput(filtered, 0, rowLength + 1);
+			while (!deflater.needsInput()) {
+				drain(output, deflater, scratch);
+			}
+
+			byte[] swap = prior;
+			prior = current;
+			current = swap;
+		}
+		// Keep the swapped buffers for the next image
+		scratch._current = current;
+		scratch._prior = prior;
+
+		deflater.finish();
+		while (!deflater.finished()) {
+			drain(output, deflater, scratch);
+		}
+		if (scratch._chunkLength > 0) {
+			writeChunk(output, IDAT, scratch._chunk, scratch._chunkLength, scratch);
+			scratch._chunkLength = 0;
+		}
+	}
+
+	// Move compressed data into the pending IDAT chunk, writing it out when full
+	private static void drain (OutputStream output, Deflater deflater, Scratch scratch) throws IOException {
+		byte[] chunk = scratch._chunk;
+		int n = deflater.deflate(chunk, scratch._chunkLength, chunk.length - scratch._chunkLength);
+		scratch._chunkLength += n;
+		if (scratch._chunkLength == chunk.length) {
+			writeChunk(output, IDAT, chunk, chunk.length, scratch);
+			scratch._chunkLength = 0;
+		}
+	}
+
+	private static void fillIndexedRow (int[] pixels, int start, int width, byte[] row, Scratch scratch) {
+		int[] slots = scratch._paletteSlots;
+		int[] colors = scratch._palette;
+		int previous = 0;
+		byte previousIndex = 0;
+		boolean havePrevious = false;
+		for (int x = 0; x < width; ++x) {
+			int color = pixels[start + x];
+			if (!havePrevious || color != previous) {
+				previousIndex = (byte) (slots[findSlot(slots, colors, color)] - 1);
+				previous = color;
+				havePrevious = true;
+			}
+			row[x] = previousIndex;
+		}
+	}
+
+	private static void fillRGBRow (int[] pixels, int start, int width, byte[] row) {
+		for (int x = 0, b = 0; x < width; ++x, b += 3) {
+			int color = pixels[start + x];
+			row[b]     = (byte) (color >> 16);
+			row[b + 1] = (byte) (color >> 8);
+			row[b + 2] = (byte) color;
+		}
+	}
+
+	private static void fillRGBARow (int[] pixels, int start, int width, byte[] row) {
+		for (int x = 0, b = 0; x < width; ++x, b += 4) {
+			int color = pixels[start + x];
+			row[b]     = (byte) (color >> 16);
+			row[b + 1] = (byte) (color >> 8);
+			row[b + 2] = (byte) color;
+			row[b + 3] = (byte) (color >>> 24);
+		}
+	}
+
+	// Filter a row into a scratch buffer, preceded by its filter type byte
+	private static byte[] filterRow (Filter filter, byte[] current, byte[] prior, int length, int bpp, Scratch scratch) {
+		if (Filter.ADAPTIVE != filter) {
+			byte[] out = scratch._filtered[filter._type];
+			applyFilter(filter._type, current, prior, out, length, bpp);
+			return out;
+		}
+
+		int bestType = 0;
+		long bestScore = Long.MAX_VALUE;
+		for (int type = 0; type < 5; ++type) {
+			byte[] out = scratch._filtered[type];
+			applyFilter(type, current, prior, out, length, bpp);
+			long score = 0;
+			for (int i = 1; i <= length; ++i) {
+				score += Math.abs(out[i]);
+			}
+			if (score < bestScore) {
+				bestScore = score;
+				bestType = type;
+			}
+		}
+		return scratch._filtered[bestType];
+	}
+
+	private static void applyFilter (int type, byte[] cur, byte[] prior, byte[] out, int length, int bpp) {
+		out[0] = (byte) type;
+		switch (type) {
+		case 0:
+			System.arraycopy(cur, 0, out, 1, length);
+			break;
+		case 1:
+			System.arraycopy(cur, 0, out, 1, bpp);
+			for (int i = bpp; i < length; ++i) {
+				out[i + 1] = (byte) (cur[i] - cur[i - bpp]);
+			}
+			break;
+		case 2:
+			for (int i = 0; i < length; ++i) {
+				out[i + 1] = (byte) (cur[i] - prior[i]);
+			}
+			break;
+		case 3:
+			for (int i = 0; i < bpp; ++i) {
+				out[i + 1] = (byte) (cur[i] - ((prior[i] & 0xff) >>> 1));
+			}
+			for (int i = bpp; i < length; ++i) {
+				out[i + 1] = (byte) (cur[i] - (((cur[i - bpp] & 0xff) + (prior[i] & 0xff)) >>> 1));
+			}
+			break;
+		case 4:
+			for (int i = 0; i < bpp; ++i) {
+				out[i + 1] = (byte) (cur[i] - prior[i]);
+			}
+			for (int i = bpp; i < length; ++i) {
+				int a = cur[i - bpp] & 0xff;
+				int b = prior[i] & 0xff;
+				int c = prior[i - bpp] & 0xff;
+				int p = a + b - c;
+				int pa = Math.abs(p - a);
+				int pb = Math.abs(p - b);
+				int pc = Math.abs(p - c);
+				int predictor = (pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c);
+				out[i + 1] = (byte) (cur[i] - predictor);
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown filter type "+type);
+		}
+	}
+
+	private static void writeChunk (OutputStream output, byte[] type, byte[] data, int length, Scratch scratch) throws IOException {
+		byte[] buffer = scratch._header;
+		CRC32 crc = scratch._crc;
+
+		writeInt(buffer, 13, length);
+		System.arraycopy(type, 0, buffer, 17, 4);
+		output.write(buffer, 13, 8);
+
+		crc.reset();
+		crc.update(type, 0, 4);
+		if (length > 0) {
+			output.write(data, 0, length);
+			crc.update(data, 0, length);
+		}
+		writeInt(buffer, 13, (int) crc.getValue());
+		output.write(buffer, 13, 4);
+	}
+
+	private static void writeInt (byte[] buffer, int offset, int value) {
+		buffer[offset]     = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+
+
+
+	// Per-thread working state, reused from one image to the next
+	private static class Scratch {
+		final Deflater _deflater = new Deflater();
+		final CRC32 _crc = new CRC32();
+		// IHDR contents in [0, 13), chunk length/type/CRC in [13, 21)
+		final byte[] _header = new byte[21];
+		// Pending IDAT data; also large enough for PLTE and tRNS
+		final byte[] _chunk = new byte[IDAT_CHUNK_SIZE];
+		final int[] _paletteSlots = new int[PALETTE_TABLE_SIZE];
+		final int[] _palette = new int[MAX_PALETTE_SIZE];
+		boolean _paletteOpaque;
+		int _chunkLength;
+
+		int[] _pixels;
+		int _pixelOffset;
+		int _pixelStride;
+
+		byte[] _current = new byte[0];
+		byte[] _prior = new byte[0];
+		final byte[][] _filtered = new byte[5][];
+
+		void ensureRowCapacity (int rowLength) {
+			if (_current.length < rowLength) {
+				_current = new byte[rowLength];
+				_prior = new byte[rowLength];
+				for (int i = 0; i < 5; ++i) {
+					_filtered[i] = new byte[rowLength + 1];
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rendering.color;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.oculusinfo.tile.rendering.color.impl.HueColorRamp;
+import com.oculusinfo.tile.rendering.color.impl.LookupTableColorRamp;
+import com.oculusinfo.tile.rendering.color.impl.SteppedGradientColorRamp;
+import com.oculusinfo.tile.rendering.color.impl.WareColorRamp;
+
+public class LookupTableColorRampTests {
+	// With 4096 entries, neighbouring entries of our ramps differ by at most
+	// a couple of units per channel.
+	private static final int TOLERANCE = 2;
+
+	private static void assertCloseColor (int expected, int actual) {
+		for (int shift = 0; shift < 32; shift += 8) {
+			int e = (expected >>> shift) & 0xff;
+			int a = (actual >>> shift) & 0xff;
+			Assert.assertTrue("Expected "+Integer.toHexString(expected)+", got "+Integer.toHexString(actual),
+			                  Math.abs(e - a) <= TOLERANCE);
+		}
+	}
+
+	private static void assertMatchesRamp (ColorRamp base, ColorRamp table) {
+		Random random = new Random(3571);
+		for (int i = 0; i < 1000; ++i) {
+			double scale = random.nextDouble();
+			assertCloseColor(base.getRGB(scale), table.getRGB(scale));
+		}
+		Assert.assertEquals(base.getRGB(0.0), table.getRGB(0.0));
+		Assert.assertEquals(base.getRGB(1.0), table.getRGB(1.0));
+	}
+
+	@Test
+	public void testMatchesBaseRamps () {
+		ColorRamp[] ramps = new ColorRamp[] {
+			new WareColorRamp(false, 1.0),
+			new WareColorRamp(true, 1.0),
+			new HueColorRamp(0.2, 0.8),
+			SteppedGradientColorRamp.polar(false)
+		};
+		for (ColorRamp ramp: ramps) {
+			assertMatchesRamp(ramp, new LookupTableColorRamp(ramp));
+		}
+	}
+
+	@Test
+	public void testInversion () {
+		ColorRamp base = new WareColorRamp(false, 1.0);
+		LookupTableColorRamp table = new LookupTableColorRamp(base);
+		LookupTableColorRamp inverted = table.invert();
+
+		Assert.assertFalse(table.isInverted());
+		Assert.assertTrue(inverted.isInverted());
+		Assert.assertEquals(base.getRGB(1.0), inverted.getRGB(0.0));
+		Assert.assertEquals(base.getRGB(0.0), inverted.getRGB(1.0));
+		Assert.assertEquals(table.getRGB(0.25), inverted.getRGB(0.75));
+
+		LookupTableColorRamp builtInverted = new LookupTableColorRamp(base, LookupTableColorRamp.DEFAULT_SIZE, true);
+		Assert.assertEquals(inverted.getRGB(0.3), builtInverted.getRGB(0.3));
+	}
+
+	@Test
+	public void testClamping () {
+		LookupTableColorRamp table = new LookupTableColorRamp(new WareColorRamp(false, 1.0), 16, false);
+		Assert.assertEquals(16, table.size());
+		Assert.assertEquals(table.getRGB(0.0), table.getRGB(-3.0));
+		Assert.assertEquals(table.getRGB(1.0), table.getRGB(7.0));
+		Assert.assertEquals(0, table.getIndex(Double.NaN));
+		Assert.assertEquals(15, table.getIndex(1.0));
+	}
+
+	@Test
+	public void testFromReusesTable () {
+		LookupTableColorRamp table = new LookupTableColorRamp(new WareColorRamp(false, 1.0));
+		Assert.assertSame(table, LookupTableColorRamp.from(table));
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rendering.impl;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.binning.impl.DoubleDenseTileData;
+import com.oculusinfo.tile.rendering.color.ColorRamp;
+import com.oculusinfo.tile.rendering.color.impl.WareColorRamp;
+import com.oculusinfo.tile.rendering.transformations.value.LinearValueTransformer;
+import com.oculusinfo.tile.rendering.transformations.value.ValueTransformer;
+
+/*
+ * Some tests to compare memory use and rendering speed of boxed and primitive
+ * dense tiles.
+ */
+@Ignore
+public class NumberImageRendererSpeedTests {
+	private static final String BOXED = "Boxed";
+	private static final String PRIMITIVE = "Primitive";
+	private static final int BIN_SIZE = 256;
+	private static final int TILES = 50;
+	private static final int ITERATIONS = 200;
+
+	private TileData<Double> _boxedData;
+	private TileData<Double> _primitiveData;
+
+	@Before
+	public void setup () {
+		Random random = new Random(15485863);
+		TileIndex index = new TileIndex(0, 0, 0, BIN_SIZE, BIN_SIZE);
+		_boxedData = new DenseTileData<>(index);
+		_primitiveData = new DoubleDenseTileData(index);
+		for (int x=0; x < BIN_SIZE; ++x) {
+			for (int y=0; y < BIN_SIZE; ++y) {
+				double value = random.nextDouble() * 1000.0;
+				_boxedData.setBin(x, y, value);
+				_primitiveData.setBin(x, y, value);
+			}
+		}
+	}
+
+
+
+	@Test
+	public void testBoxedTileMemory () {
+		measureMemory(BOXED, false);
+	}
+
+	@Test
+	public void testPrimitiveTileMemory () {
+		measureMemory(PRIMITIVE, true);
+	}
+
+	@Test
+	public void testBoxedTileRendering () {
+		render(BOXED, _boxedData);
+	}
+
+	@Test
+	public void testPrimitiveTileRendering () {
+		render(PRIMITIVE, _primitiveData);
+	}
+
+	@Test
+	public void testPrimitiveTileBoxedTransformRendering () {
+		// The per-bin loop used before transformers worked on primitives
+		final ValueTransformer<Double> base = new LinearValueTransformer(0.0, 1000.0);
+		ValueTransformer<Double> boxedOnly = new ValueTransformer<Double>() {
+			@Override
+			public Double transform (Double value) {
+				return base.transform(value);
+			}
+			@Override
+			public Double getMaximumValue () {
+				return base.getMaximumValue();
+			}
+		};
+		render(PRIMITIVE+" (boxed transform)", _primitiveData, boxedOnly);
+	}
+
+
+
+	private void measureMemory (String tileType, boolean primitive) {
+		Random random = new Random(15485863);
+		TileData<?>[] tiles = new TileData<?>[TILES];
+
+		long startMemory = usedMemory();
+		for (int n=0; n<TILES; ++n) {
+			TileIndex index = new TileIndex(0, 0, 0, BIN_SIZE, BIN_SIZE);
+			TileData<Double> tile = primitive ? new DoubleDenseTileData(index) : new DenseTileData<Double>(index);
+			for (int x=0; x < BIN_SIZE; ++x) {
+				for (int y=0; y < BIN_SIZE; ++y) {
+					tile.setBin(x, y, random.nextDouble());
+				}
+			}
+			tiles[n] = tile;
+		}
+		long endMemory = usedMemory();
+
+		System.out.println(tileType + " tile memory");
+		System.out.println("Total memory for "+TILES+" tiles: "+((endMemory-startMemory)/(1024.0*1024.0))+"M");
+		System.out.println("Average memory per tile: "+((endMemory-startMemory)/(1024.0*1024.0*tiles.length))+"M");
+	}
+
+	private long usedMemory () {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i=0; i<3; ++i) System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private void render (String tileType, TileData<Double> data) {
+		render(tileType, data, new LinearValueTransformer(0.0, 1000.0));
+	}
+
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	private void render (String tileType, TileData<Double> data, ValueTransformer<Double> t) {
+		NumberImageRenderer renderer = new NumberImageRenderer();
+		ColorRamp ramp = new WareColorRamp(false, 1.0);
+		TileData<Number> numberData = (TileData) data;
+
+		long startTime = System.currentTimeMillis();
+		for (int n=0; n<ITERATIONS; ++n) {
+			BufferedImage bi = new BufferedImage(BIN_SIZE, BIN_SIZE, BufferedImage.TYPE_INT_ARGB);
+			renderer.renderImage(numberData, (ValueTransformer) t, 0.0, 1.0, "clamp", ramp, bi, "square");
+		}
+		long endTime = System.currentTimeMillis();
+		System.out.println(tileType + " tile rendering");
+		System.out.println("Total time: "+((endTime-startTime)/1000.0)+" seconds");
+		System.out.println("Average time: "+(((endTime-startTime)/1000.0)/ITERATIONS)+" seconds");
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rendering.impl;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.oculusinfo.binning.PrimitiveTileData;
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.binning.impl.DoubleDenseTileData;
+import com.oculusinfo.binning.impl.LongDenseTileData;
+import com.oculusinfo.tile.rendering.color.ColorRamp;
+import com.oculusinfo.tile.rendering.color.impl.WareColorRamp;
+import com.oculusinfo.tile.rendering.transformations.value.Log10ValueTransformer;
+import com.oculusinfo.tile.rendering.transformations.value.ValueTransformer;
+
+public class NumberImageRendererTests {
+	private static final int BINS = 64;
+
+	// Hides the primitive transform, forcing the renderer down its boxed path
+	private static class BoxedOnlyTransformer implements ValueTransformer<Number> {
+		private final ValueTransformer<Double> _base;
+		BoxedOnlyTransformer (ValueTransformer<Double> base) {
+			_base = base;
+		}
+		@Override
+		public Number transform (Number value) {
+			return _base.transform(value.doubleValue());
+		}
+		@Override
+		public Number getMaximumValue () {
+			return _base.getMaximumValue();
+		}
+	}
+
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	private static int[] render (TileData<?> data, ValueTransformer<?> t, String mode, int size) {
+		NumberImageRenderer renderer = new NumberImageRenderer();
+		ColorRamp ramp = new WareColorRamp(false, 1.0);
+		BufferedImage bi = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+		renderer.renderImage((TileData) data, (ValueTransformer) t, 0.2, 0.8, mode, ramp, bi, "square");
+		return bi.getRGB(0, 0, size, size, null, 0, size);
+	}
+
+	private static void fill (TileData<?> primitive, DenseTileData<Double> boxed) {
+		Random random = new Random(104729);
+		for (int x = 0; x < BINS; ++x) {
+			for (int y = 0; y < BINS; ++y) {
+				// Include some empty bins
+				long value = random.nextInt(5) == 0 ? 0 : random.nextInt(1000);
+				((PrimitiveTileData<?>) primitive).setBinDouble(x, y, value);
+				boxed.setBin(x, y, (double) value);
+			}
+		}
+	}
+
+	private static void assertSameRendering (TileData<?> primitive, TileData<?> boxed, int size) {
+		Log10ValueTransformer t = new Log10ValueTransformer(1, 1000);
+		for (String mode: new String[] {"clamp", "cull"}) {
+			int[] expected = render(boxed, new BoxedOnlyTransformer(t), mode, size);
+			int[] actual = render(primitive, t, mode, size);
+			Assert.assertArrayEquals(expected, actual);
+		}
+	}
+
+	@Test
+	public void testFusedDoubleRendering () {
+		TileIndex index = new TileIndex(0, 0, 0, BINS, BINS);
+		DoubleDenseTileData primitive = new DoubleDenseTileData(index);
+		DenseTileData<Double> boxed = new DenseTileData<>(index);
+		fill(primitive, boxed);
+		assertSameRendering(primitive, boxed, BINS);
+	}
+
+	@Test
+	public void testFusedLongRendering () {
+		TileIndex index = new TileIndex(0, 0, 0, BINS, BINS);
+		LongDenseTileData primitive = new LongDenseTileData(index);
+		DenseTileData<Double> boxed = new DenseTileData<>(index);
+		fill(primitive, boxed);
+		assertSameRendering(primitive, boxed, BINS);
+	}
+
+	@Test
+	public void testFusedRenderingWithWiderImage () {
+		// Integer bin scaling rounds this down to 1, so rows are rendered
+		// with a stride wider than the tile
+		TileIndex index = new TileIndex(0, 0, 0, BINS, BINS);
+		DoubleDenseTileData primitive = new DoubleDenseTileData(index);
+		DenseTileData<Double> boxed = new DenseTileData<>(index);
+		fill(primitive, boxed);
+		assertSameRendering(primitive, boxed, BINS + 10);
+	}
+}
@@ -53,4 +53,12 @@ public class LinearValueTransformerTests {
 		Assert.assertEquals(0.5, t.transform(5.0), EPS);
 		Assert.assertEquals(1, t.transform(20.0), EPS);
 	}
+
+	@Test
+	public void testPrimitiveMatchesBoxed () {
+		LinearValueTransformer t = new LinearValueTransformer(-10,20);
+		for (double value = -20.0; value <= 30.0; value += 0.5) {
+			Assert.assertEquals(t.transform(Double.valueOf(value)), t.transformDouble(value), 0.0);
+		}
+	}
 }
@@ -55,4 +55,12 @@ public class Log10ValueTransformerTests {
 		Assert.assertEquals(1, t.transform(5000.0), EPS);
 	}
 
+	@Test
+	public void testPrimitiveMatchesBoxed () {
+		Log10ValueTransformer t = new Log10ValueTransformer(1,1000);
+		for (double value = 0.5; value <= 2000.0; value *= 1.5) {
+			Assert.assertEquals(t.transform(Double.valueOf(value)), t.transformDouble(value), 0.0);
+		}
+	}
+
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.util;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.oculusinfo.tile.util.PNGEncoder.Filter;
+
+/*
+ * Compare encoding time and size of PNGEncoder and ImageIO on typical tile
+ * images.
+ */
+@Ignore
+public class PNGEncoderSpeedTests {
+	private static final int SIZE = 256;
+	private static final int ITERATIONS = 500;
+
+	private BufferedImage _rampImage;
+	private BufferedImage _smoothImage;
+
+	@Before
+	public void setup () {
+		Random random = new Random(15485863);
+
+		// Sparse data through a stepped ramp - few colours, lots of background
+		_rampImage = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+		for (int n = 0; n < SIZE * SIZE / 8; ++n) {
+			int step = random.nextInt(16) * 16;
+			_rampImage.setRGB(random.nextInt(SIZE), random.nextInt(SIZE), 0xff000000 | step << 16 | (255 - step));
+		}
+
+		// A smooth gradient with translucency - too many colours for a palette
+		_smoothImage = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+		for (int x = 0; x < SIZE; ++x) {
+			for (int y = 0; y < SIZE; ++y) {
+				_smoothImage.setRGB(x, y, (x ^ y) << 24 | x << 16 | y << 8 | ((x + y) / 2));
+			}
+		}
+	}
+
+	@Test
+	public void testImageIORamp () throws IOException {
+		timeImageIO("Ramp", _rampImage);
+	}
+
+	@Test
+	public void testEncoderRamp () throws IOException {
+		timeEncoder("Ramp", _rampImage, new PNGEncoder());
+	}
+
+	@Test
+	public void testImageIOSmooth () throws IOException {
+		timeImageIO("Smooth", _smoothImage);
+	}
+
+	@Test
+	public void testEncoderSmooth () throws IOException {
+		for (Filter filter: Filter.values()) {
+			for (int level: new int[] {1, 4, 6, 9}) {
+				timeEncoder("Smooth", _smoothImage, new PNGEncoder(level, filter, true));
+			}
+		}
+	}
+
+
+
+	private void timeImageIO (String imageType, BufferedImage image) throws IOException {
+		int bytes = 0;
+		long startTime = System.currentTimeMillis();
+		for (int n = 0; n < ITERATIONS; ++n) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			ImageIO.write(image, "png", baos);
+			bytes = baos.size();
+		}
+		long endTime = System.currentTimeMillis();
+		report(imageType+" image, ImageIO", bytes, endTime - startTime);
+	}
+
+	private void timeEncoder (String imageType, BufferedImage image, PNGEncoder encoder) throws IOException {
+		int bytes = 0;
+		long startTime = System.currentTimeMillis();
+		for (int n = 0; n < ITERATIONS; ++n) {
+			bytes = encoder.encode(image).length;
+		}
+		long endTime = System.currentTimeMillis();
+		report(imageType+" image, PNGEncoder (level "+encoder.getCompressionLevel()+", filter "+encoder.getFilter()+")",
+		       bytes, endTime - startTime);
+	}
+
+	private void report (String description, int bytes, long elapsed) {
+		System.out.println(description);
+		System.out.println("Encoded size: "+bytes+" bytes");
+		System.out.println("Total time: "+(elapsed/1000.0)+" seconds");
+		System.out.println("Average time: "+((elapsed/1000.0)/ITERATIONS)+" seconds");
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.util;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.oculusinfo.tile.util.PNGEncoder.Filter;
+
+public class PNGEncoderTests {
+	private static final int SIZE = 256;
+
+	// Colour type is byte 25 of a PNG: 8 signature bytes, then IHDR's length,
+	// type, width, height and bit depth.
+	private static int getColorType (byte[] png) {
+		return png[25];
+	}
+
+	private static BufferedImage decode (byte[] png) throws IOException {
+		return ImageIO.read(new ByteArrayInputStream(png));
+	}
+
+	private static void assertSamePixels (BufferedImage expected, BufferedImage actual) {
+		Assert.assertEquals(expected.getWidth(), actual.getWidth());
+		Assert.assertEquals(expected.getHeight(), actual.getHeight());
+		for (int x = 0; x < expected.getWidth(); ++x) {
+			for (int y = 0; y < expected.getHeight(); ++y) {
+				Assert.assertEquals("Pixel ["+x+", "+y+"]", expected.getRGB(x, y), actual.getRGB(x, y));
+			}
+		}
+	}
+
+	// An image with a few translucent ramp colours on a transparent background
+	private static BufferedImage createRampImage () {
+		BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+		for (int x = 0; x < SIZE; ++x) {
+			for (int y = 0; y < SIZE; y += 2) {
+				int step = (x / 16) * 16;
+				image.setRGB(x, y, (0x80 + step / 2) << 24 | step << 16 | (255 - step) << 8);
+			}
+		}
+		return image;
+	}
+
+	private static BufferedImage createNoiseImage (boolean opaque) {
+		Random random = new Random(1729);
+		BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+		for (int x = 0; x < SIZE; ++x) {
+			for (int y = 0; y < SIZE; ++y) {
+				int color = random.nextInt();
+				image.setRGB(x, y, opaque ? color | 0xff000000 : color);
+			}
+		}
+		return image;
+	}
+
+	@Test
+	public void testPaletteImage () throws IOException {
+		BufferedImage image = createRampImage();
+		byte[] png = new PNGEncoder().encode(image);
+		Assert.assertEquals(3, getColorType(png));
+		assertSamePixels(image, decode(png));
+	}
+
+	@Test
+	public void testPaletteDisabled () throws IOException {
+		BufferedImage image = createRampImage();
+		byte[] png = new PNGEncoder(PNGEncoder.DEFAULT_COMPRESSION_LEVEL, Filter.SUB, false).encode(image);
+		Assert.assertEquals(6, getColorType(png));
+		assertSamePixels(image, decode(png));
+	}
+
+	@Test
+	public void testOpaqueImage () throws IOException {
+		BufferedImage image = createNoiseImage(true);
+		byte[] png = new PNGEncoder().encode(image);
+		Assert.assertEquals(2, getColorType(png));
+		assertSamePixels(image, decode(png));
+	}
+
+	@Test
+	public void testAllFilters () throws IOException {
+		BufferedImage image = createNoiseImage(false);
+		for (Filter filter: Filter.values()) {
+			for (int level: new int[] {0, 1, 9}) {
+				byte[] png = new PNGEncoder(level, filter, true).encode(image);
+				Assert.assertEquals(6, getColorType(png));
+				assertSamePixels(image, decode(png));
+			}
+		}
+	}
+
+	@Test
+	public void testOtherImageTypes () throws IOException {
+		BufferedImage source = createNoiseImage(true);
+		BufferedImage rgb = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB);
+		rgb.getGraphics().drawImage(source, 0, 0, null);
+		assertSamePixels(rgb, decode(new PNGEncoder().encode(rgb)));
+
+		// A sub-image shares its parent's buffer, with an offset and stride
+		BufferedImage sub = source.getSubimage(10, 20, 100, 50);
+		assertSamePixels(sub, decode(new PNGEncoder().encode(sub)));
+	}
+
+	@Test
+	public void testReuseAcrossSizes () throws IOException {
+		PNGEncoder encoder = new PNGEncoder(PNGEncoder.DEFAULT_COMPRESSION_LEVEL, Filter.ADAPTIVE, true);
+		BufferedImage large = createNoiseImage(false);
+		BufferedImage small = new BufferedImage(3, 2, BufferedImage.TYPE_INT_ARGB);
+		small.setRGB(1, 1, 0xff123456);
+		assertSamePixels(large, decode(encoder.encode(large)));
+		assertSamePixels(small, decode(encoder.encode(small)));
+		assertSamePixels(large, decode(encoder.encode(large)));
+	}
+}
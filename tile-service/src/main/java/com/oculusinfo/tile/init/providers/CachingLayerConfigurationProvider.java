@@ -32,6 +32,7 @@ import org.slf4j.LoggerFactory;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 import com.oculusinfo.binning.TileIndex;
 import com.oculusinfo.binning.TilePyramid;
 import com.oculusinfo.binning.io.PyramidIO;
@@ -46,6 +47,7 @@ import com.oculusinfo.tile.rendering.TileDataImageRenderer;
 import com.oculusinfo.tile.rendering.transformations.tile.TileTransformer;
 import com.oculusinfo.tile.rest.tile.caching.CachingPyramidIO;
 import com.oculusinfo.tile.rest.tile.caching.CachingPyramidIO.LayerDataChangedListener;
+import com.oculusinfo.tile.rest.tile.caching.TilePrefetcher;
 
 @Singleton
 public class CachingLayerConfigurationProvider extends AbstractFactoryProvider<LayerConfiguration>{
@@ -58,6 +60,7 @@ public class CachingLayerConfigurationProvider extends AbstractFactoryProvider<L
     private FactoryProvider<TileTransformer<?>> _tileTransformerFactoryProvider;
     private FactoryProvider<PyramidIO> _cachingProvider;
 	private CachingPyramidIO _pyramidIO;
+	private TilePrefetcher _prefetcher;
 
     @Inject
     public CachingLayerConfigurationProvider( FactoryProvider<PyramidIO> pyramidIOFactoryProvider,
@@ -73,8 +76,20 @@ public class CachingLayerConfigurationProvider extends AbstractFactoryProvider<L
         _tileTransformerFactoryProvider = tileTransformerFactoryProvider;
         _cachingProvider = new CachingPyramidIOProvider();
 		_pyramidIO = new CachingPyramidIO();
+		_prefetcher = new TilePrefetcher(_pyramidIO);
     }
 
+	/**
+	 * Set the maximum number of tiles of each layer to keep in memory.
+	 * Prefetching is limited to a quarter of that, so as not to push out the
+	 * tiles clients are showing.
+	 */
+	@Inject(optional = true)
+	public void setTileCacheSize (@Named("com.oculusinfo.tile.cache.size") int tiles) {
+		_pyramidIO.setMaxTileCacheSize(tiles);
+		_prefetcher.setMaxTilesPerView(tiles / 4);
+	}
+
 	public void addLayerListener (LayerDataChangedListener listener) {
 		_pyramidIO.addLayerListener(listener);
 	}
@@ -114,12 +129,15 @@ public class CachingLayerConfigurationProvider extends AbstractFactoryProvider<L
 
 		@Override
 		public void prepareForRendering (String layer,
+		                                 String client,
 		                                 TileIndex tile,
 		                                 Iterable<TileIndex> tileSet) {
 			try {
 				TileSerializer<?> serializer = produce(TileSerializer.class);
 				String pyramidId = getPropertyValue(LayerConfiguration.LAYER_ID);
 				_pyramidIO.requestTiles(pyramidId, serializer, tileSet);
+				// Warm the cache with the tiles the client is likely to want next
+				_prefetcher.viewChanged(pyramidId, client, serializer, tileSet);
 			} catch (IOException e) {
 				LOGGER.warn("Error requesting tile set", e);
 			} catch (ConfigurationException e) {
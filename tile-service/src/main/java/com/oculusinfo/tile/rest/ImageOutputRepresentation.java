@@ -24,10 +24,11 @@
  */
 package com.oculusinfo.tile.rest;
 
+import com.oculusinfo.tile.util.PNGEncoder;
+
 import org.restlet.data.MediaType;
 import org.restlet.representation.OutputRepresentation;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -36,16 +37,35 @@ import java.io.OutputStream;
  * @author dgray
  */
 public class ImageOutputRepresentation extends OutputRepresentation {
+	private static final PNGEncoder PNG_ENCODER = new PNGEncoder();
+
 	private BufferedImage _image;
+	private byte[] _encodedImage;
 	
 	/**
-	 * @param mediaType
+	 * @param mediaType The media type of the image; images are always encoded
+	 *            as PNG, so this must be {@link MediaType#IMAGE_PNG}
 	 * @param image
 	 */
 	public ImageOutputRepresentation(MediaType mediaType, BufferedImage image) {
 		super(mediaType);
+		if (!MediaType.IMAGE_PNG.equals(mediaType, true)) {
+			throw new IllegalArgumentException("Unencoded images can only be written as PNG, not "+mediaType);
+		}
 
 		_image = image;
+		_encodedImage = null;
+	}
+
+	/**
+	 * @param mediaType
+	 * @param encodedImage An image already encoded in the given media type
+	 */
+	public ImageOutputRepresentation(MediaType mediaType, byte[] encodedImage) {
+		super(mediaType, encodedImage.length);
+
+		_image = null;
+		_encodedImage = encodedImage;
 	}
 
 	/* (non-Javadoc)
@@ -53,7 +73,10 @@ public class ImageOutputRepresentation extends OutputRepresentation {
 	 */
 	@Override
 	public void write(OutputStream outputStream) throws IOException {
-		// TODO: create a constant map of MediaType to ImageIO file type for the "png".
-		ImageIO.write(_image, "png", outputStream);
+		if (null != _encodedImage) {
+			outputStream.write(_encodedImage);
+		} else {
+			PNG_ENCODER.encode(_image, outputStream);
+		}
 	}
 }
@@ -29,6 +29,7 @@ import com.google.inject.multibindings.MapBinder;
 import com.oculusinfo.tile.rest.layer.LayerResource;
 import com.oculusinfo.tile.rest.layer.StateResource;
 import com.oculusinfo.tile.rest.legend.LegendResource;
+import com.oculusinfo.tile.rest.tile.TileBatchResource;
 import com.oculusinfo.tile.rest.tile.TileResource;
 import oculus.aperture.common.rest.ResourceDefinition;
 
@@ -55,6 +56,9 @@ public class RestConfigModule extends AbstractModule {
         resourceBinder.addBinding("/{version}/tile/{layer}/{level}/{x}/{y}.{ext}").toInstance(new ResourceDefinition(TileResource.class));
         resourceBinder.addBinding("/tile/{layer}/{level}/{x}/{y}.{ext}").toInstance(new ResourceDefinition(TileResource.class));
 
+        resourceBinder.addBinding("/{version}/tiles/{layer}.{ext}").toInstance(new ResourceDefinition(TileBatchResource.class));
+        resourceBinder.addBinding("/tiles/{layer}.{ext}").toInstance(new ResourceDefinition(TileBatchResource.class));
+
         resourceBinder.addBinding("/{version}/legend/{layer}").toInstance(new ResourceDefinition(LegendResource.class));
         resourceBinder.addBinding("/legend/{layer}").toInstance(new ResourceDefinition(LegendResource.class));
 	}
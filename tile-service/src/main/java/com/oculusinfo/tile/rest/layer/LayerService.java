@@ -60,11 +60,23 @@ public interface LayerService {
     /**
      * Returns the layer configuration object for a given layer id. Request parameters
      * will override any default config attributes.
+     *
+     * The returned configuration may be cached and shared between requests, and so
+     * must not be modified; use {@link #createLayerConfiguration(String, JSONObject)}
+     * for a configuration that can be.
      * @param layerId The layer identification string
      * @param requestParams Additional query parameters to override
      */
     public LayerConfiguration getLayerConfiguration( String layerId, JSONObject requestParams );
 
+    /**
+     * Creates a new layer configuration object for a given layer id, owned by the
+     * caller. Request parameters will override any default config attributes.
+     * @param layerId The layer identification string
+     * @param requestParams Additional query parameters to override
+     */
+    public LayerConfiguration createLayerConfiguration( String layerId, JSONObject requestParams );
+
     /**
      * Returns a SHA-256 hex string containing the state of the layer.
      * @param layerId The layer identification string
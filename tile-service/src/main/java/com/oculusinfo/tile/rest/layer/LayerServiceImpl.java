@@ -31,6 +31,7 @@ import com.oculusinfo.binning.io.PyramidIO;
 import com.oculusinfo.binning.io.PyramidIOFactory;
 import com.oculusinfo.binning.metadata.PyramidMetaData;
 import com.oculusinfo.binning.util.JsonUtilities;
+import com.oculusinfo.binning.util.SynchronizedLRUCache;
 import com.oculusinfo.factory.ConfigurableFactory;
 import com.oculusinfo.factory.ConfigurationException;
 import com.oculusinfo.factory.providers.FactoryProvider;
@@ -53,21 +54,35 @@ import java.util.*;
 public class LayerServiceImpl implements LayerService {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(LayerServiceImpl.class);
+	// The maximum number of built layer configurations to keep
+	private static final int CONFIGURATION_CACHE_SIZE = 256;
+	// The minimum time, in milliseconds, between checks for changed configuration files
+	private static final long CONFIG_FILE_CHECK_INTERVAL = 1000;
+	// Request parameters that say which tiles are wanted, rather than how to render them
+	private static final String[] TILE_SET_PARAMS = { "tileset", "minX", "maxX", "minY", "maxY", "minZ", "maxZ",
+	                                                  "mintile", "maxtile" };
 
-	private List< JSONObject > _layers;
-	private Map< String, JSONObject > _layersById;
+	private volatile List< JSONObject > _layers;
+	private volatile Map< String, JSONObject > _layersById;
     private Map< String, JSONObject > _layersBySha;
 	private Map< String, JSONObject > _metaDataCache;
     private FactoryProvider< LayerConfiguration > _layerConfigurationProvider;
+	// Fully built layer configurations, keyed by layer id and a hash of the request
+	// parameters used to build them
+	private SynchronizedLRUCache< String, LayerConfiguration > _configurationCache;
+	// Our configuration files, with their modification times when last read
+	private String _layerConfigurationLocation;
+	private Map< File, Long > _configFileTimes;
+	private volatile long _lastConfigFileCheck;
 
 	@Inject
 	public LayerServiceImpl( @Named("com.oculusinfo.tile.layer.config") String layerConfigurationLocation,
 	                         FactoryProvider<LayerConfiguration> layerConfigProvider ) {
-		_layers = new ArrayList<>();
-		_layersById = new HashMap<>();
-        _layersBySha = new HashMap<>();
-		_metaDataCache = new HashMap<>();
+        _layersBySha = Collections.synchronizedMap( new HashMap< String, JSONObject >() );
+		_metaDataCache = Collections.synchronizedMap( new HashMap< String, JSONObject >() );
         _layerConfigurationProvider = layerConfigProvider;
+		_configurationCache = new SynchronizedLRUCache<>( CONFIGURATION_CACHE_SIZE );
+		_layerConfigurationLocation = layerConfigurationLocation;
 
 		if (layerConfigProvider instanceof CachingLayerConfigurationProvider) {
             CachingLayerConfigurationProvider caching = (CachingLayerConfigurationProvider)layerConfigProvider;
@@ -80,6 +95,35 @@ public class LayerServiceImpl implements LayerService {
 		readConfigFiles( getConfigurationFiles( layerConfigurationLocation ) );
 	}
 
+	/*
+	 * Re-read our configuration files if any of them have changed, dropping
+	 * any configurations built from the old versions.
+	 */
+	private void checkConfigFiles () {
+		long now = System.currentTimeMillis();
+		if ( now - _lastConfigFileCheck < CONFIG_FILE_CHECK_INTERVAL ) {
+			return;
+		}
+		synchronized ( this ) {
+			if ( now - _lastConfigFileCheck < CONFIG_FILE_CHECK_INTERVAL ) {
+				return;
+			}
+			_lastConfigFileCheck = now;
+
+			File[] files = getConfigurationFiles( _layerConfigurationLocation );
+			boolean changed = ( files.length != _configFileTimes.size() );
+			for ( int i=0; i<files.length && !changed; ++i ) {
+				Long lastModified = _configFileTimes.get( files[i] );
+				changed = ( null == lastModified || lastModified != files[i].lastModified() );
+			}
+			if ( changed ) {
+				LOGGER.info( "Layer configuration files changed; re-reading" );
+				readConfigFiles( files );
+				_configurationCache.clear();
+			}
+		}
+	}
+
 	@Override
 	public List< JSONObject > getLayerJSONs() {
 		return _layers;
@@ -160,8 +204,47 @@ public class LayerServiceImpl implements LayerService {
 		return result;
 	}
 
+	/**
+	 * Strip the parameters that say which tiles a request wants from its
+	 * parameters, leaving only those that configure the layer (the state,
+	 * and any configuration overrides).  Returns null if nothing is left.
+	 */
+	private static JSONObject getConfigurationParams( JSONObject requestParams ) {
+		if ( requestParams == null ) {
+			return null;
+		}
+		JSONObject configParams = JsonUtilities.deepClone( requestParams );
+		for ( String tileSetParam: TILE_SET_PARAMS ) {
+			configParams.remove( tileSetParam );
+		}
+		return configParams.length() == 0 ? null : configParams;
+	}
+
     @Override
 	public LayerConfiguration getLayerConfiguration( String layerId, JSONObject requestParams ) {
+		checkConfigFiles();
+
+		// Configurations are cached by layer and a canonical hash of the request's
+		// configuration parameters, so equivalent requests - whatever tiles they
+		// want - share one fully built, initialized configuration.
+		JSONObject configParams = getConfigurationParams( requestParams );
+		String key = layerId;
+		if ( configParams != null ) {
+			key = layerId + ":" + ConfigurableFactory.generateSHA256( JsonUtilities.toCanonicalString( configParams ) );
+		}
+
+		LayerConfiguration config = _configurationCache.get( key );
+		if ( null == config ) {
+			config = createLayerConfiguration( layerId, configParams );
+			if ( null != config ) {
+				_configurationCache.put( key, config );
+			}
+		}
+		return config;
+	}
+
+    @Override
+	public LayerConfiguration createLayerConfiguration( String layerId, JSONObject requestParams ) {
 		try {
             // first check if the query parameters contains a SHA-256 hash. If so
             // load the configured JSONObject. Otherwise take the server default.
@@ -280,22 +363,34 @@ public class LayerServiceImpl implements LayerService {
 	}
 
 	private void readConfigFiles( File[] files ) {
+		// Build new layer lists, and swap them in all at once, so that readers
+		// never see a partially read set of layers
+		List< JSONObject > layers = new ArrayList<>();
+		Map< String, JSONObject > layersById = new HashMap<>();
+		Map< File, Long > fileTimes = new HashMap<>();
 		for (File file: files) {
-			try {
-				JSONArray contents = new JSONArray( new JSONTokener(new FileReader(file)) );
+			fileTimes.put( file, file.lastModified() );
+			try (FileReader reader = new FileReader(file)) {
+				JSONArray contents = new JSONArray( new JSONTokener(reader) );
                 for ( int i=0; i<contents.length(); i++ ) {
                     if( contents.get(i) instanceof JSONObject ) {
                         JSONObject layerJSON = contents.getJSONObject(i);
-                        _layersById.put( layerJSON.getString( LayerConfiguration.LAYER_ID.getName() ), layerJSON );
-                        _layers.add( layerJSON );
+                        layersById.put( layerJSON.getString( LayerConfiguration.LAYER_ID.getName() ), layerJSON );
+                        layers.add( layerJSON );
                     }
                 }
 			} catch (FileNotFoundException e) {
 				LOGGER.error("Cannot find layer configuration file {} ", file, e);
-				return;
+				break;
+			} catch (IOException e) {
+				LOGGER.error("Error reading layer configuration file {} ", file, e);
 			} catch (JSONException e) {
 				LOGGER.error("Layer configuration file {} was not valid JSON.", file, e);
 			}
 		}
+		_layers = layers;
+		_layersById = layersById;
+		_configFileTimes = fileTimes;
+		_lastConfigFileCheck = System.currentTimeMillis();
 	}
 }
@@ -29,6 +29,7 @@ import com.google.inject.Singleton;
 import com.oculusinfo.factory.ConfigurationException;
 import com.oculusinfo.tile.rendering.LayerConfiguration;
 import com.oculusinfo.tile.rendering.color.ColorRamp;
+import com.oculusinfo.tile.rendering.color.impl.LookupTableColorRamp;
 import com.oculusinfo.tile.rendering.transformations.value.LinearValueTransformer;
 import com.oculusinfo.tile.rendering.transformations.value.ValueTransformer;
 import com.oculusinfo.tile.rendering.transformations.value.ValueTransformerFactory;
@@ -69,7 +70,7 @@ public class LegendServiceImpl implements LegendService {
 		Graphics2D g = bi.createGraphics();
 
 		try {
-			ColorRamp colorRamp = config.produce(ColorRamp.class);
+			LookupTableColorRamp colorTable = LookupTableColorRamp.from(config.produce(ColorRamp.class));
 			
 			// legend always uses a linear capped value transform - don't use layer config specified transform
 			double levelMax = config.getPropertyValue( ValueTransformerFactory.LAYER_MAXIMUM);
@@ -90,14 +91,14 @@ public class LegendServiceImpl implements LegendService {
 			if ( renderHorizontally ) {
 				for (int i = 0; i < width; i++){
 					double v = ((double)(i+1)/(double)width) * levelMax;
-					int colorInt = colorRamp.getRGB(t.transform(v));		
+					int colorInt = colorTable.getRGB(t.transform(v));		
 					g.setColor(new Color(colorInt, true));
 					g.drawLine(i, 0, i, height);
 				}
 			} else {
 				for(int i = 0; i <= height; i++){
 					double v = ((double)(i+1)/(double)height) * levelMax;
-					int colorInt = colorRamp.getRGB(t.transform(v));		
+					int colorInt = colorTable.getRGB(t.transform(v));		
 					g.setColor(new Color(colorInt, true));
 					int y = height-i;
 					g.drawLine(0, y, width, y);
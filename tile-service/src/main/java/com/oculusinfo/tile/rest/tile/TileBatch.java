@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rest.tile;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.tile.rest.tile.TileService.TileResultHandler;
+
+
+
+/**
+ * Does the per-tile work of a batch tile request on a shared pool of threads,
+ * handing each result back on the calling thread as soon as it is finished.
+ *
+ * Only a fixed number of tiles are ever in progress, or finished but not yet
+ * handed back, at once, so the memory a batch needs doesn't grow with the
+ * number of tiles in it.
+ */
+public class TileBatch {
+	/**
+	 * The work to be done for each tile of a batch
+	 */
+	public static interface TileTask<T> {
+		public T process (TileIndex index) throws Exception;
+	}
+
+	private TileBatch () {
+	}
+
+	/**
+	 * Process a set of tiles.
+	 *
+	 * @param executor The threads on which to do the work
+	 * @param indices The tiles to process
+	 * @param maxInProgress The most tiles to have in progress at once
+	 * @param task The work to do for each tile
+	 * @param handler The recipient of the results, which is called on this
+	 *            thread, in the order in which tiles are finished.
+	 * @throws IOException If the handler fails, or any task throws an
+	 *             exception. Either way, work on any remaining tiles is
+	 *             abandoned.
+	 */
+	public static <T> void run (ExecutorService executor, Collection<TileIndex> indices, int maxInProgress,
+	                            final TileTask<T> task, TileResultHandler<T> handler) throws IOException {
+		CompletionService<Result<T>> completion = new ExecutorCompletionService<>(executor);
+		Set<Future<Result<T>>> inProgress = new HashSet<>();
+		Iterator<TileIndex> remaining = indices.iterator();
+		try {
+			while (remaining.hasNext() || !inProgress.isEmpty()) {
+				while (remaining.hasNext() && inProgress.size() < maxInProgress) {
+					final TileIndex index = remaining.next();
+					inProgress.add(completion.submit(new Callable<Result<T>>() {
+						@Override
+						public Result<T> call () throws Exception {
+							return new Result<>(index, task.process(index));
+						}
+					}));
+				}
+
+				Future<Result<T>> finished = completion.take();
+				inProgress.remove(finished);
+				Result<T> result = finished.get();
+				handler.handleTile(result._index, result._value);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted processing tile batch", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Error processing tile batch", e.getCause());
+		} finally {
+			// If we stopped early, don't leave work going that no one will use
+			for (Future<Result<T>> future: inProgress) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	private static class Result<T> {
+		final TileIndex _index;
+		final T         _value;
+		Result (TileIndex index, T value) {
+			_index = index;
+			_value = value;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rest.tile;
+
+import com.google.inject.Inject;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.tile.rendering.LayerConfiguration;
+import com.oculusinfo.tile.rest.QueryParamDecoder;
+import com.oculusinfo.tile.rest.tile.TileResource.ExtensionType;
+import com.oculusinfo.tile.rest.tile.TileResource.ResponseType;
+import com.oculusinfo.tile.rest.tile.TileService.TileResultHandler;
+import oculus.aperture.common.rest.ApertureServerResource;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.restlet.data.MediaType;
+import org.restlet.data.Status;
+import org.restlet.representation.OutputRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Get;
+import org.restlet.resource.ResourceException;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Serves many tiles of a layer from one request, at
+ * <code>/tiles/{layer}.{ext}</code>. The tiles wanted are given with the
+ * same <code>tileset</code>, <code>mintile</code>/<code>maxtile</code> or
+ * <code>minX</code>...<code>maxZ</code> query parameters the single tile
+ * endpoint takes, along with any other layer parameters.
+ *
+ * Tiles are sent back as soon as each one is ready, in no particular order:
+ * <ul>
+ * <li>Images (png, jpg, jpeg) are sent as a sequence of binary frames. Each
+ * frame is the tile's level, x index and y index, and the length of the
+ * encoded image, each as a 4-byte big-endian integer, followed by the image
+ * itself.</li>
+ * <li>Data tiles (json) are sent as newline-delimited JSON, one line per tile,
+ * each line being the object the single tile endpoint would have returned
+ * for that tile.</li>
+ * </ul>
+ */
+public class TileBatchResource extends ApertureServerResource {
+	// The most tiles one request may ask for
+	public static final int MAX_TILES = 1024;
+	public static final MediaType NDJSON = new MediaType("application/x-ndjson", "Newline-delimited JSON");
+
+	private TileService _service;
+
+
+	@Inject
+	public TileBatchResource(TileService service) {
+		this._service = service;
+	}
+
+	/**
+	 * GET request. Returns a stream of tiles from a layer.
+	 */
+	@Get
+	public Representation getTiles() throws ResourceException {
+		final String version;
+		final String layer;
+		final ExtensionType extType;
+		final JSONObject decodedQueryParams;
+		final List<TileIndex> tiles;
+		try {
+			String requestedVersion = (String) getRequest().getAttributes().get("version");
+			version = (null == requestedVersion) ? LayerConfiguration.DEFAULT_VERSION : requestedVersion;
+			layer = (String) getRequest().getAttributes().get("layer");
+			String ext = (String) getRequest().getAttributes().get("ext");
+			extType = ExtensionType.valueOf(ext.trim().toLowerCase());
+
+			// decode and build JSONObject from request parameters
+			decodedQueryParams = QueryParamDecoder.decode( getRequest().getResourceRef().getQuery() );
+
+			// parse parameters for tile sets or tile bounds, coarsest tiles first
+			tiles = new ArrayList<>( TileResource.parseTileSetDescription( decodedQueryParams ) );
+			Collections.sort( tiles );
+		} catch (Exception e) {
+			throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
+			                            "Unable to interpret requested tiles from supplied URL.", e);
+		}
+		if (tiles.isEmpty()) {
+			throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "No tiles requested.");
+		}
+		if (tiles.size() > MAX_TILES) {
+			throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
+			                            "Too many tiles requested: "+tiles.size()+" (maximum "+MAX_TILES+").");
+		}
+
+		setStatus(Status.SUCCESS_OK);
+		if (ResponseType.Image.equals(extType.getResponseType())) {
+			return new OutputRepresentation(MediaType.APPLICATION_OCTET_STREAM) {
+				@Override
+				public void write (OutputStream outputStream) throws IOException {
+					final DataOutputStream output = new DataOutputStream(outputStream);
+					// Images are encoded in the format their extension names
+					_service.getEncodedTileImages( layer, tiles, decodedQueryParams, extType.name(), new TileResultHandler<byte[]>() {
+						@Override
+						public void handleTile (TileIndex index, byte[] image) throws IOException {
+							output.writeInt(index.getLevel());
+							output.writeInt(index.getX());
+							output.writeInt(index.getY());
+							output.writeInt(image.length);
+							output.write(image);
+							output.flush();
+						}
+					} );
+				}
+			};
+		} else {
+			return new OutputRepresentation(NDJSON) {
+				@Override
+				public void write (OutputStream outputStream) throws IOException {
+					final Writer output = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+					_service.getTileObjects( layer, tiles, decodedQueryParams, new TileResultHandler<JSONObject>() {
+						@Override
+						public void handleTile (TileIndex index, JSONObject tile) throws IOException {
+							try {
+								JSONObject result = new JSONObject();
+								JSONObject tileIndex = new JSONObject();
+								tileIndex.put("level", index.getLevel());
+								tileIndex.put("xIndex", index.getX());
+								tileIndex.put("yIndex", index.getY());
+								result.put("index", tileIndex);
+								result.put("version", version);
+								result.put("tile", tile);
+								output.write(result.toString());
+								output.write('\n');
+								output.flush();
+							} catch (JSONException e) {
+								throw new IOException("Error writing tile "+index, e);
+							}
+						}
+					} );
+				}
+			};
+		}
+	}
+}
@@ -39,7 +39,6 @@ import org.restlet.representation.Representation;
 import org.restlet.resource.Get;
 import org.restlet.resource.ResourceException;
 
-import java.awt.image.BufferedImage;
 import java.util.*;
 
 public class TileResource extends ApertureServerResource {
@@ -76,13 +75,23 @@ public class TileResource extends ApertureServerResource {
 		this._service = service;
 	}
 
+	/**
+	 * Identify the client making this request, by its session if it has one,
+	 * or else by its address, so its view can be told apart from others'.
+	 */
+	private String getClient () {
+		String session = getCookies().getFirstValue( "JSESSIONID" );
+		if ( null != session ) return session;
+		return getClientInfo().getAddress();
+	}
+
     /**
      * Tilesets defined by tile indices, or tile bounds may be specified as request parameters.
      * @param query request parameter JSONObject.
      * @return Set<TileIndex> set of tile indices specified by the set or bound parameters. If
      * none are specified, return empty set.
      */
-	private Collection<TileIndex>  parseTileSetDescription( JSONObject query ) {
+	static Collection<TileIndex>  parseTileSetDescription( JSONObject query ) {
 
         Set<TileIndex> indices = new HashSet<>();
         try {
@@ -173,7 +182,8 @@ public class TileResource extends ApertureServerResource {
 				setStatus(Status.SERVER_ERROR_INTERNAL);
 			} else if (ResponseType.Image.equals(extType.getResponseType())) {
 
-				BufferedImage tile = _service.getTileImage( layer, index, tileSet, decodedQueryParams );
+				// Images are encoded in the format their extension names
+				byte[] tile = _service.getEncodedTileImage( layer, getClient(), index, tileSet, decodedQueryParams, extType.name() );
 				ImageOutputRepresentation imageRep = new ImageOutputRepresentation(extType.getMediaType(), tile);
 				setStatus(Status.SUCCESS_OK);
 				return imageRep;
@@ -191,7 +201,7 @@ public class TileResource extends ApertureServerResource {
 				tileIndex.put("yIndex", y);
 				result.put("index", tileIndex);
                 result.put("version", version);
-				result.put("tile", _service.getTileObject( layer, index, tileSet, decodedQueryParams ));
+				result.put("tile", _service.getTileObject( layer, getClient(), index, tileSet, decodedQueryParams ));
 				setStatus(Status.SUCCESS_OK);
 				return new JsonRepresentation(result);
 
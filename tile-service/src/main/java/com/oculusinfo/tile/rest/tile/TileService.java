@@ -25,12 +25,21 @@
 package com.oculusinfo.tile.rest.tile;
 
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Collection;
 
 import org.json.JSONObject;
 
 import com.oculusinfo.binning.TileIndex;
 
 public interface TileService {
+	/**
+	 * Receives the results of a batch tile request, one tile at a time
+	 */
+	public static interface TileResultHandler<T> {
+		public void handleTile (TileIndex index, T result) throws IOException;
+	}
+
 	/**
 	 * TMS tile request.
 	 *
@@ -42,6 +51,35 @@ public interface TileService {
 	 */
 	public BufferedImage getTileImage( String layer, TileIndex index, Iterable<TileIndex> tileSet, JSONObject query );
 
+	/**
+	 * TMS tile request, returning the image already encoded.  Encoded images
+	 * may be cached, and shared by all requests for the same layer state.
+	 *
+	 * @param layer - The layer for which to get an image
+	 * @param index The index of the desired tile
+	 * @param tileSet A set of other tiles which will be wanted along with this
+	 *            one
+	 * @param format The informal name of the image format, as used by ImageIO
+	 * @return The encoded image.
+	 */
+	public byte[] getEncodedTileImage( String layer, TileIndex index, Iterable<TileIndex> tileSet, JSONObject query, String format ) throws IOException;
+
+	/**
+	 * TMS tile request from a known client, returning the image already
+	 * encoded.  The tile set is taken as the client's current view.
+	 *
+	 * @param layer - The layer for which to get an image
+	 * @param client An identifier of the client making the request, or null
+	 *            if unknown
+	 * @param index The index of the desired tile
+	 * @param tileSet A set of other tiles which will be wanted along with this
+	 *            one
+	 * @param format The informal name of the image format, as used by ImageIO
+	 * @return The encoded image.
+	 */
+	public byte[] getEncodedTileImage( String layer, String client, TileIndex index, Iterable<TileIndex> tileSet,
+	                                   JSONObject query, String format ) throws IOException;
+
 	/**
 	 * TMS raw tile data request.
 	 *
@@ -52,4 +90,51 @@ public interface TileService {
 	 * @return The raw data for the indicated tile
 	 */
 	public JSONObject getTileObject( String layer, TileIndex index, Iterable<TileIndex> tileSet, JSONObject query );
+
+	/**
+	 * TMS raw tile data request from a known client.  The tile set is taken
+	 * as the client's current view.
+	 *
+	 * @param layer - The layer for which to get tile data
+	 * @param client An identifier of the client making the request, or null
+	 *            if unknown
+	 * @param index The index of the desired tile
+	 * @param tileSet A set of other tiles which will be wanted along with this
+	 *            one
+	 * @return The raw data for the indicated tile
+	 */
+	public JSONObject getTileObject( String layer, String client, TileIndex index, Iterable<TileIndex> tileSet,
+	                                 JSONObject query );
+
+	/**
+	 * Batch TMS tile request, returning each image already encoded as soon as
+	 * it is ready. Tiles are read from the layer's pyramid together, and
+	 * rendered concurrently.
+	 *
+	 * @param layer The layer for which to get images
+	 * @param indices The indices of the desired tiles
+	 * @param format The informal name of the image format, as used by ImageIO
+	 * @param handler The recipient of the encoded images, which is called on
+	 *            the calling thread, in the order in which they are finished.
+	 *            Tiles that can't be rendered are given a blank image.
+	 * @throws IOException If the handler fails, in which case the remaining
+	 *             tiles are abandoned
+	 */
+	public void getEncodedTileImages( String layer, Collection<TileIndex> indices, JSONObject query, String format,
+	                                  TileResultHandler<byte[]> handler ) throws IOException;
+
+	/**
+	 * Batch TMS raw tile data request, returning each tile as soon as it is
+	 * ready.
+	 *
+	 * @param layer The layer for which to get tile data
+	 * @param indices The indices of the desired tiles
+	 * @param handler The recipient of the raw data, which is called on the
+	 *            calling thread, in the order in which tiles are finished.
+	 *            Tiles that can't be read are given null data.
+	 * @throws IOException If the handler fails, in which case the remaining
+	 *             tiles are abandoned
+	 */
+	public void getTileObjects( String layer, Collection<TileIndex> indices, JSONObject query,
+	                            TileResultHandler<JSONObject> handler ) throws IOException;
 }
@@ -26,19 +26,26 @@ package com.oculusinfo.tile.rest.tile;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 import com.oculusinfo.binning.TileData;
 import com.oculusinfo.binning.TileIndex;
 import com.oculusinfo.binning.impl.SubTileDataView;
 import com.oculusinfo.binning.io.PyramidIO;
+import com.oculusinfo.binning.io.TileExistenceIndex;
+import com.oculusinfo.binning.io.TileExistenceIndexProvider;
 import com.oculusinfo.binning.io.serialization.SerializationTypeChecker;
 import com.oculusinfo.binning.io.serialization.TileSerializer;
 import com.oculusinfo.binning.metadata.PyramidMetaData;
 import com.oculusinfo.factory.ConfigurationException;
+import com.oculusinfo.factory.providers.FactoryProvider;
+import com.oculusinfo.tile.init.providers.CachingLayerConfigurationProvider;
 import com.oculusinfo.tile.rendering.LayerConfiguration;
 import com.oculusinfo.tile.rendering.TileDataImageRenderer;
 import com.oculusinfo.tile.rendering.transformations.tile.TileTransformer;
 import com.oculusinfo.tile.rest.layer.LayerService;
+import com.oculusinfo.tile.rest.tile.caching.RenderedImageCache;
 import com.oculusinfo.tile.util.AvroJSONConverter;
+import com.oculusinfo.tile.util.PNGEncoder;
 
 
 import org.json.JSONException;
@@ -46,11 +53,21 @@ import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.imageio.ImageIO;
+
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 @Singleton
@@ -58,16 +75,54 @@ public class TileServiceImpl implements TileService {
 	private static final Logger LOGGER = LoggerFactory.getLogger(TileServiceImpl.class);
 	private static final Color COLOR_BLANK = new Color(255,255,255,0);
 
+	// The default maximum size of the rendered image cache, in bytes
+	private static final long DEFAULT_IMAGE_CACHE_SIZE = 64L * 1024L * 1024L;
+	// The most tiles of a batch request read from their pyramid at once
+	private static final int DEFAULT_BATCH_READ_SIZE = 256;
+	// The most tiles of a batch request being rendered, or rendered and
+	// waiting to be sent, at once
+	private static final int DEFAULT_BATCH_TILES_IN_PROGRESS = 32;
+
 	private LayerService _layerService;
+	private RenderedImageCache _imageCache;
+	private PNGEncoder _pngEncoder = new PNGEncoder();
+	private ThreadPoolExecutor _batchExecutor;
+	private int _batchReadSize = DEFAULT_BATCH_READ_SIZE;
+	private int _batchTilesInProgress = DEFAULT_BATCH_TILES_IN_PROGRESS;
 
 	@Inject
-	public TileServiceImpl ( LayerService layerService ) {
+	public TileServiceImpl ( LayerService layerService,
+	                         FactoryProvider<LayerConfiguration> layerConfigProvider ) {
         _layerService = layerService;
+		_imageCache = new RenderedImageCache( DEFAULT_IMAGE_CACHE_SIZE );
+		// Rendered images are only good until their layer's data changes
+		if (layerConfigProvider instanceof CachingLayerConfigurationProvider) {
+			((CachingLayerConfigurationProvider) layerConfigProvider).addLayerListener( _imageCache );
+		}
+		// Batch requests share one pool of rendering threads
+		int threads = Runtime.getRuntime().availableProcessors();
+		_batchExecutor = new ThreadPoolExecutor( threads, threads, 60L, TimeUnit.SECONDS,
+		                                         new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger _count = new AtomicInteger( 0 );
+			@Override
+			public Thread newThread( Runnable runnable ) {
+				Thread thread = new Thread( runnable, "tile-batch-"+_count.incrementAndGet() );
+				thread.setDaemon( true );
+				return thread;
+			}
+		} );
+		_batchExecutor.allowCoreThreadTimeOut( true );
 	}
 
 
 	private <T> TileData<T> tileDataForIndex(TileIndex index, String dataId, TileSerializer<T> serializer, PyramidIO pyramidIO, int coarseness) throws IOException {
 		TileData<T> data = null;
+		// If we know which tiles exist, we can skip reading those that don't
+		TileExistenceIndex existenceIndex = null;
+		if (pyramidIO instanceof TileExistenceIndexProvider) {
+			existenceIndex = ((TileExistenceIndexProvider) pyramidIO).getTileExistenceIndex(dataId);
+		}
+
 		if (coarseness > 1) {
 			int coarsenessFactor = (int)Math.pow(2, coarseness - 1);
 
@@ -82,6 +137,11 @@ public class TileServiceImpl implements TileService {
 						(int) Math.floor(index.getX() / coarsenessFactor),
 						(int) Math.floor(index.getY() / coarsenessFactor));
 
+				if (null != existenceIndex && !existenceIndex.shouldRead(scaleLevelIndex)) {
+					tileDatas = Collections.emptyList();
+					continue;
+				}
+
 				tileDatas = pyramidIO.readTiles(dataId, serializer, Collections.singleton(scaleLevelIndex));
 				if (tileDatas.size() >= 1) {
 					//we got data for this level so use it
@@ -99,6 +159,9 @@ public class TileServiceImpl implements TileService {
 			data = SubTileDataView.fromSourceAbsolute(tileDatas.get(0), index);
 		} else {
 			// No coarseness - use requested tile
+			if (null != existenceIndex && !existenceIndex.shouldRead(index)) {
+				return null;
+			}
 			java.util.List<TileData<T>> tileDatas = pyramidIO.readTiles(dataId, serializer, Collections.singleton(index));
 			if (!tileDatas.isEmpty()) {
 				data = tileDatas.get(0);
@@ -114,13 +177,285 @@ public class TileServiceImpl implements TileService {
 	 */
 	@Override
 	public BufferedImage getTileImage( String layer, TileIndex index, Iterable<TileIndex> tileSet, JSONObject query ) {
-		int width = 256;
-		int height = 256;
 		BufferedImage bi = null;
 
 		try {
             // get layer configuration
 			LayerConfiguration config = _layerService.getLayerConfiguration( layer, query );
+			bi = renderTile( config, layer, null, index, tileSet );
+		} catch (Exception e) {
+			logRenderError( layer, index, e );
+		}
+
+		if (bi == null){
+			bi = createBlankImage();
+		}
+
+		return bi;
+	}
+
+	@Override
+	public byte[] getEncodedTileImage( String layer, TileIndex index, Iterable<TileIndex> tileSet,
+	                                   JSONObject query, String format ) throws IOException {
+		return getEncodedTileImage( layer, null, index, tileSet, query, format );
+	}
+
+	@Override
+	public byte[] getEncodedTileImage( final String layer, final String client, final TileIndex index,
+	                                   final Iterable<TileIndex> tileSet, JSONObject query,
+	                                   final String format ) throws IOException {
+		final LayerConfiguration config = _layerService.getLayerConfiguration( layer, query );
+		if ( null == config ) {
+			return encodeImage( getTileImage( layer, index, tileSet, query ), format );
+		}
+
+		// Images are cached under the full state of the layer, so any request
+		// that would render the same image shares it.
+		String dataId = config.getPropertyValue( LayerConfiguration.DATA_ID );
+		RenderedImageCache.Key key = _imageCache.createKey( layer, dataId, config.generateSHA256(), index, format );
+		try {
+			return _imageCache.getImage( key, new RenderedImageCache.ImageSource() {
+				@Override
+				public byte[] getImage () throws IOException {
+					BufferedImage bi;
+					try {
+						bi = renderTile( config, layer, client, index, tileSet );
+					} catch (IOException e) {
+						throw e;
+					} catch (Exception e) {
+						throw new IOException( e );
+					}
+					if ( null == bi ) {
+						bi = createBlankImage();
+					}
+					return encodeImage( bi, format );
+				}
+			} );
+		} catch (IOException e) {
+			// Errors are not cached; return a blank image this time.
+			Throwable cause = e;
+			while ( cause instanceof IOException && cause.getCause() instanceof Exception ) {
+				cause = cause.getCause();
+			}
+			logRenderError( layer, index, (Exception) cause );
+			return encodeImage( createBlankImage(), format );
+		}
+	}
+
+	/**
+	 * Set the maximum size, in megabytes, of rendered images to keep in memory
+	 */
+	@Inject(optional = true)
+	public void setImageCacheSize( @Named("com.oculusinfo.tile.image.cache.size") int megabytes ) {
+		_imageCache.setMaxMemoryBytes( megabytes * 1024L * 1024L );
+	}
+
+	/**
+	 * Set a directory in which to keep rendered images that don't fit in memory
+	 */
+	@Inject(optional = true)
+	public void setImageCacheDirectory( @Named("com.oculusinfo.tile.image.cache.directory") String directory,
+	                                    @Named("com.oculusinfo.tile.image.cache.directory.size") int megabytes ) {
+		_imageCache.setSpillDirectory( new File( directory ), megabytes * 1024L * 1024L );
+	}
+
+	/**
+	 * Set the deflate level (0-9) used when encoding PNG tiles
+	 */
+	@Inject(optional = true)
+	public void setPNGCompressionLevel( @Named("com.oculusinfo.tile.png.compression") int level ) {
+		_pngEncoder = new PNGEncoder( level, _pngEncoder.getFilter(), _pngEncoder.isPaletteAllowed() );
+	}
+
+	/**
+	 * Set the scanline filter (one of {@link PNGEncoder.Filter}) used when
+	 * encoding PNG tiles
+	 */
+	@Inject(optional = true)
+	public void setPNGFilter( @Named("com.oculusinfo.tile.png.filter") String filter ) {
+		_pngEncoder = new PNGEncoder( _pngEncoder.getCompressionLevel(),
+		                              PNGEncoder.Filter.valueOf( filter.toUpperCase() ),
+		                              _pngEncoder.isPaletteAllowed() );
+	}
+
+	/**
+	 * Set the number of threads shared by all batch requests for rendering tiles
+	 */
+	@Inject(optional = true)
+	public void setBatchThreads( @Named("com.oculusinfo.tile.batch.threads") int threads ) {
+		if ( threads > _batchExecutor.getMaximumPoolSize() ) {
+			_batchExecutor.setMaximumPoolSize( threads );
+			_batchExecutor.setCorePoolSize( threads );
+		} else {
+			_batchExecutor.setCorePoolSize( threads );
+			_batchExecutor.setMaximumPoolSize( threads );
+		}
+	}
+
+	/**
+	 * Set the most tiles of each batch request to read from their pyramid at
+	 * once, and the most to be rendering, or holding rendered, at once
+	 */
+	@Inject(optional = true)
+	public void setBatchLimits( @Named("com.oculusinfo.tile.batch.read.size") int readSize,
+	                            @Named("com.oculusinfo.tile.batch.in.progress") int tilesInProgress ) {
+		_batchReadSize = readSize;
+		_batchTilesInProgress = tilesInProgress;
+	}
+
+	@Override
+	public void getEncodedTileImages( final String layer, Collection<TileIndex> indices, JSONObject query,
+	                                  final String format, TileResultHandler<byte[]> handler ) throws IOException {
+		final LayerConfiguration config = _layerService.getLayerConfiguration( layer, query );
+		if ( null == config ) {
+			for ( TileIndex index: indices ) {
+				handler.handleTile( index, encodeImage( getTileImage( layer, index, indices, query ), format ) );
+			}
+			return;
+		}
+		if ( indices.isEmpty() ) return;
+
+		final String configHash = config.generateSHA256();
+		final String dataId = config.getPropertyValue( LayerConfiguration.DATA_ID );
+
+		// Batches aren't prepared for rendering: their tiles are read below,
+		// a chunk at a time, and a batch isn't a client's view.
+
+		// Send images already rendered straight away; only the rest need reading
+		final List<TileIndex> tiles = new ArrayList<>( indices.size() );
+		for ( TileIndex index: indices ) {
+			byte[] image = _imageCache.get( _imageCache.createKey( layer, dataId, configHash, index, format ) );
+			if ( null == image ) {
+				tiles.add( index );
+			} else {
+				handler.handleTile( index, image );
+			}
+		}
+
+		for ( int start = 0; start < tiles.size(); start += _batchReadSize ) {
+			List<TileIndex> chunk = tiles.subList( start, Math.min( tiles.size(), start + _batchReadSize ) );
+			// Read the whole chunk in one go; null if tiles can't be read that way
+			final Map<TileIndex, TileData<?>> chunkData = readTileData( config, chunk );
+
+			TileBatch.run( _batchExecutor, chunk, _batchTilesInProgress, new TileBatch.TileTask<byte[]>() {
+				@Override
+				public byte[] process( final TileIndex index ) throws IOException {
+					RenderedImageCache.Key key = _imageCache.createKey( layer, dataId, configHash, index, format );
+					try {
+						return _imageCache.getImage( key, new RenderedImageCache.ImageSource() {
+							@Override
+							public byte[] getImage () throws IOException {
+								BufferedImage bi;
+								try {
+									bi = renderTile( config, layer, index, chunkData );
+								} catch (IOException e) {
+									throw e;
+								} catch (Exception e) {
+									throw new IOException( e );
+								}
+								if ( null == bi ) {
+									bi = createBlankImage();
+								}
+								return encodeImage( bi, format );
+							}
+						} );
+					} catch (IOException e) {
+						logRenderError( layer, index, e );
+						return encodeImage( createBlankImage(), format );
+					}
+				}
+			}, handler );
+		}
+	}
+
+	@Override
+	public void getTileObjects( String layer, Collection<TileIndex> indices, JSONObject query,
+	                            TileResultHandler<JSONObject> handler ) throws IOException {
+		final LayerConfiguration config = _layerService.getLayerConfiguration( layer, query );
+		if ( null == config ) {
+			for ( TileIndex index: indices ) {
+				handler.handleTile( index, null );
+			}
+			return;
+		}
+		if ( indices.isEmpty() ) return;
+
+		// Tile objects are converted straight from their serialized form, so
+		// are read one at a time, as streams; reading the set ahead of time
+		// as tiles would only read everything twice.
+		TileBatch.run( _batchExecutor, indices, _batchTilesInProgress, new TileBatch.TileTask<JSONObject>() {
+			@Override
+			public JSONObject process( TileIndex index ) {
+				return getTileObject( config, index );
+			}
+		}, handler );
+	}
+
+	// Read a set of tiles from a layer in one go, skipping any known not to
+	// exist, keyed by their (untiled) index. Returns null if the layer's
+	// tiles can't be read directly.
+	private Map<TileIndex, TileData<?>> readTileData( LayerConfiguration config, List<TileIndex> indices ) {
+		try {
+			int coarseness = config.getPropertyValue(LayerConfiguration.COARSENESS);
+			if ( coarseness > 1 ) {
+				// Coarse tiles come from other levels; they are read per tile.
+				return null;
+			}
+			TileDataImageRenderer<?> renderer = config.produce(TileDataImageRenderer.class);
+			return readTileData( config, indices, renderer );
+		} catch (Exception e) {
+			LOGGER.warn( "Error reading tile batch; tiles will be read individually", e );
+			return null;
+		}
+	}
+
+	private <T> Map<TileIndex, TileData<?>> readTileData( LayerConfiguration config, List<TileIndex> indices,
+	                                                      TileDataImageRenderer<T> renderer ) throws ConfigurationException, IOException {
+		String dataId = config.getPropertyValue(LayerConfiguration.DATA_ID);
+		PyramidIO pyramidIO = config.produce(PyramidIO.class);
+		TileSerializer<T> serializer = SerializationTypeChecker.checkBinClass(config.produce(TileSerializer.class),
+		                                                                      renderer.getAcceptedBinClass(),
+		                                                                      renderer.getAcceptedTypeDescriptor());
+
+		List<TileIndex> toRead = new ArrayList<>( indices.size() );
+		TileExistenceIndex existenceIndex = null;
+		if (pyramidIO instanceof TileExistenceIndexProvider) {
+			existenceIndex = ((TileExistenceIndexProvider) pyramidIO).getTileExistenceIndex(dataId);
+		}
+		for ( TileIndex index: indices ) {
+			if ( null == existenceIndex || existenceIndex.shouldRead( index ) ) {
+				toRead.add( index );
+			}
+		}
+
+		Map<TileIndex, TileData<?>> data = new HashMap<>();
+		if ( !toRead.isEmpty() ) {
+			for ( TileData<T> tile: pyramidIO.readTiles( dataId, serializer, toRead ) ) {
+				if ( null != tile ) {
+					data.put( untiled( tile.getDefinition() ), tile );
+				}
+			}
+		}
+		return data;
+	}
+
+	// Tiles are matched up with requests by position alone, whatever their
+	// number of bins
+	private static TileIndex untiled( TileIndex index ) {
+		return new TileIndex( index.getLevel(), index.getX(), index.getY() );
+	}
+
+	// Render a tile image, or return null if there is no data for the tile
+	private BufferedImage renderTile( LayerConfiguration config, String layer, String client, TileIndex index,
+	                                  Iterable<TileIndex> tileSet ) throws Exception {
+		config.prepareForRendering( layer, client, index, tileSet );
+		return renderTile( config, layer, index, null );
+	}
+
+	// Render a tile image, taking its data from the given tiles, if already read
+	private BufferedImage renderTile( LayerConfiguration config, String layer, TileIndex index,
+	                                  Map<TileIndex, TileData<?>> tileData ) throws Exception {
+		try {
             // set level extrema
             PyramidMetaData metadata = _layerService.getMetaData( layer );
             String minimum = metadata.getCustomMetaData(""+index.getLevel(), "minimum");
@@ -129,42 +464,73 @@ public class TileServiceImpl implements TileService {
 
             // produce the tile renderer from the configuration
 			TileDataImageRenderer<?> tileRenderer = config.produce(TileDataImageRenderer.class);
-			bi = renderTileImage(config, layer, index, tileSet, tileRenderer);
+			return renderTileImage(config, index, tileRenderer, tileData);
+		} finally {
+			// The configuration is shared between requests; clear our per-tile state from it.
+			if (null != config) config.clearLevelProperties();
+		}
+	}
 
-		} catch (ConfigurationException e) {
+	private void logRenderError( String layer, TileIndex index, Exception e ) {
+		if (e instanceof ConfigurationException) {
 			LOGGER.warn("No renderer specified for tile request. "+ e.getMessage());
-		} catch (IllegalArgumentException e) {
+		} else if (e instanceof IllegalArgumentException) {
             LOGGER.info("Renderer configuration not recognized.");
-		} catch (Exception e) {
+		} else {
 			LOGGER.warn("Tile is corrupt: " + layer + ":" + index);
 			LOGGER.warn("Tile error: ", e);
 		}
+	}
 
-		if (bi == null){
-			bi = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-			Graphics2D g = bi.createGraphics();
-			g.setColor(COLOR_BLANK);
-			g.fillRect(0, 0, 256, 256);
-			g.dispose();
-		}
-
+	private BufferedImage createBlankImage() {
+		BufferedImage bi = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = bi.createGraphics();
+		g.setColor(COLOR_BLANK);
+		g.fillRect(0, 0, 256, 256);
+		g.dispose();
 		return bi;
 	}
 
-	private <T> BufferedImage renderTileImage (LayerConfiguration config, String layer,
-	                                           TileIndex index, Iterable<TileIndex> tileSet,
-	                                           TileDataImageRenderer<T> renderer) throws ConfigurationException, IOException {
-        // prepare for rendering
-		config.prepareForRendering(layer, index, tileSet);
+	private byte[] encodeImage( BufferedImage image, String format ) throws IOException {
+		if ( "png".equalsIgnoreCase( format ) ) {
+			return _pngEncoder.encode( image );
+		}
+		if ( ( "jpg".equalsIgnoreCase( format ) || "jpeg".equalsIgnoreCase( format ) ) && image.getColorModel().hasAlpha() ) {
+			// JPEGs have no alpha channel; flatten the image onto the blank colour
+			BufferedImage opaque = new BufferedImage( image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB );
+			Graphics2D g = opaque.createGraphics();
+			g.setColor( new Color( COLOR_BLANK.getRed(), COLOR_BLANK.getGreen(), COLOR_BLANK.getBlue() ) );
+			g.fillRect( 0, 0, image.getWidth(), image.getHeight() );
+			g.drawImage( image, 0, 0, null );
+			g.dispose();
+			image = opaque;
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		if ( !ImageIO.write( image, format, baos ) ) {
+			throw new IOException( "No image writer for format "+format );
+		}
+		baos.close();
+		return baos.toByteArray();
+	}
 
-		String dataId = config.getPropertyValue(LayerConfiguration.DATA_ID);
-		PyramidIO pyramidIO = config.produce(PyramidIO.class);
-		TileSerializer<T> serializer = SerializationTypeChecker.checkBinClass(config.produce(TileSerializer.class),
-		                                                                      renderer.getAcceptedBinClass(),
-		                                                                      renderer.getAcceptedTypeDescriptor());
+	@SuppressWarnings("unchecked")
+	private <T> BufferedImage renderTileImage (LayerConfiguration config, TileIndex index,
+	                                           TileDataImageRenderer<T> renderer,
+	                                           Map<TileIndex, TileData<?>> tileData) throws ConfigurationException, IOException {
+		TileData<T> data;
+		if (null != tileData) {
+			// Already read, with a serializer checked against this renderer
+			data = (TileData<T>) tileData.get(untiled(index));
+		} else {
+			String dataId = config.getPropertyValue(LayerConfiguration.DATA_ID);
+			PyramidIO pyramidIO = config.produce(PyramidIO.class);
+			TileSerializer<T> serializer = SerializationTypeChecker.checkBinClass(config.produce(TileSerializer.class),
+			                                                                      renderer.getAcceptedBinClass(),
+			                                                                      renderer.getAcceptedTypeDescriptor());
 
-		int coarseness = config.getPropertyValue(LayerConfiguration.COARSENESS);
-		TileData<T> data = tileDataForIndex(index, dataId, serializer, pyramidIO, coarseness);
+			int coarseness = config.getPropertyValue(LayerConfiguration.COARSENESS);
+			data = tileDataForIndex(index, dataId, serializer, pyramidIO, coarseness);
+		}
 
 		if (data != null) {
 			return renderer.render(data, config);
@@ -175,15 +541,25 @@ public class TileServiceImpl implements TileService {
 
 	@Override
 	public JSONObject getTileObject( String layer, TileIndex index, Iterable<TileIndex> tileSet, JSONObject query) {
+		return getTileObject( layer, null, index, tileSet, query );
+	}
+
+	@Override
+	public JSONObject getTileObject( String layer, String client, TileIndex index, Iterable<TileIndex> tileSet,
+	                                 JSONObject query ) {
+        // get layer configuration
+        LayerConfiguration config = _layerService.getLayerConfiguration( layer, query );
+        // prepare for rendering
+        config.prepareForRendering(layer, client, index, tileSet);
+        return getTileObject( config, index );
+	}
+
+	private JSONObject getTileObject( LayerConfiguration config, TileIndex index ) {
 		try {
-            // get layer configuration
-		    LayerConfiguration config = _layerService.getLayerConfiguration( layer, query );
             // get data source id, and produce pyramid io and serializer
             String dataId = config.getPropertyValue(LayerConfiguration.DATA_ID);
 		    PyramidIO pyramidIO = config.produce(PyramidIO.class);
 			TileSerializer<?> serializer = config.produce(TileSerializer.class);
-            // prepare for rendering
-			config.prepareForRendering(layer, index, tileSet);
             // pull tile data from pyramid io
 			InputStream tile = pyramidIO.getTileStream( dataId, serializer, index );
 			if (null == tile) {
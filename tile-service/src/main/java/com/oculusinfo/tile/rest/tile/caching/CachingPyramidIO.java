@@ -32,6 +32,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,22 +40,57 @@ import org.slf4j.LoggerFactory;
 import com.oculusinfo.binning.TileData;
 import com.oculusinfo.binning.TileIndex;
 import com.oculusinfo.binning.io.PyramidIO;
+import com.oculusinfo.binning.io.TileExistenceIndex;
+import com.oculusinfo.binning.io.TileExistenceIndexProvider;
 import com.oculusinfo.binning.io.serialization.TileSerializer;
 import com.oculusinfo.factory.ConfigurableFactory;
 import com.oculusinfo.factory.ConfigurationException;
-import com.oculusinfo.tile.rest.tile.caching.TileCacheEntry.CacheRequestCallback;
+import com.oculusinfo.tile.rest.tile.caching.TileCache.TileLoader;
 
-public class CachingPyramidIO implements PyramidIO {
+public class CachingPyramidIO implements PyramidIO, TileExistenceIndexProvider, TilePrefetcher.TileRequester {
 	private static final Logger LOGGER = LoggerFactory.getLogger(CachingPyramidIO.class);
+	// The default maximum number of tiles cached for each pyramid
+	public static final int DEFAULT_TILE_CACHE_SIZE = 100;
+	// The default maximum size, in bytes, of the serialized tile cache for each pyramid
+	public static final long DEFAULT_STREAM_CACHE_SIZE = 64L * 1024L * 1024L;
 
 	private Map<String, TileCache<?>>                    _tileCaches;
+	private Map<String, TileStreamCache>                 _streamCaches;
 	private Map<String, PyramidIO>                       _basePyramidIOs;
 	private List<LayerDataChangedListener>               _layerListeners;
+	private int                                          _maxTileCacheSize;
+	private long                                         _maxStreamCacheBytes;
 
 	public CachingPyramidIO () {
+		this(DEFAULT_TILE_CACHE_SIZE, DEFAULT_STREAM_CACHE_SIZE);
+	}
+
+	/**
+	 * @param maxTileCacheSize The maximum number of tiles kept for each
+	 *            pyramid
+	 * @param maxStreamCacheBytes The maximum size, in bytes, of the cache of
+	 *            serialized tiles kept for each pyramid
+	 */
+	public CachingPyramidIO (int maxTileCacheSize, long maxStreamCacheBytes) {
 		_tileCaches = new HashMap<>();
+		_streamCaches = new HashMap<>();
 		_basePyramidIOs = new HashMap<>();
-		_layerListeners = new ArrayList<>();
+		_layerListeners = new CopyOnWriteArrayList<>();
+		_maxTileCacheSize = maxTileCacheSize;
+		_maxStreamCacheBytes = maxStreamCacheBytes;
+	}
+
+	/**
+	 * Set the maximum number of tiles kept for each pyramid.  Tiles already
+	 * cached are dropped.
+	 */
+	synchronized public void setMaxTileCacheSize (int maxTileCacheSize) {
+		_maxTileCacheSize = maxTileCacheSize;
+		_tileCaches.clear();
+	}
+
+	synchronized public int getMaxTileCacheSize () {
+		return _maxTileCacheSize;
 	}
 
 	public void addLayerListener (LayerDataChangedListener listener) {
@@ -74,27 +110,65 @@ public class CachingPyramidIO implements PyramidIO {
 		@SuppressWarnings({"rawtypes", "unchecked"})
 		TileCache<T> cache = (TileCache)_tileCaches.get(pyramidId);
 		if (null == cache) {
-			cache = new TileCache<>(10000, 100);
-			cache.addGlobalCallback(new GlobalCallback<T>(pyramidId));
+			cache = new TileCache<>(_maxTileCacheSize);
 			_tileCaches.put(pyramidId, cache);
 		}
 		return cache;
 	}
 
-	// Using the callback mechanism in the tile cache, get a tile and hand it
-	// back synchronously.
-	//
-	// This does _not_ handle making the request; that must be done separately
-	// with RequestData.
-	private <T> TileData<T> getTileData (String pyramidId, TileIndex index) {
-		TileCache<T> cache = getTileCache(pyramidId);
+	/**
+	 * Get the cache of serialized tiles for a given pyramid.  This is mostly
+	 * of use for monitoring cache hit and miss rates.
+	 */
+	synchronized public TileStreamCache getTileStreamCache (String pyramidId) {
+		TileStreamCache cache = _streamCaches.get(pyramidId);
+		if (null == cache) {
+			cache = new TileStreamCache(_maxStreamCacheBytes);
+			_streamCaches.put(pyramidId, cache);
+		}
+		return cache;
+	}
 
-		CacheListenerCallback<T> callback = new CacheListenerCallback<>();
-		cache.requestTile(index, callback);
+	// Get a loader that reads tiles from the given pyramid's base pyramid IO
+	private <T> TileLoader<T> getTileLoader (final String pyramidId, final TileSerializer<T> serializer) {
+		return new TileLoader<T>() {
+			@Override
+			public List<TileData<T>> loadTiles (List<TileIndex> indices) throws IOException {
+				PyramidIO base = getBasePyramidIO(pyramidId);
+				if (null == base) return null;
+
+				// Don't bother the base pyramid IO with tiles that don't exist
+				TileExistenceIndex existenceIndex = getTileExistenceIndex(base, pyramidId);
+				if (null != existenceIndex) {
+					indices = existenceIndex.filter(indices);
+					if (indices.isEmpty()) return null;
+				}
+
+				return base.readTiles(pyramidId, serializer, indices);
+			}
+		};
+	}
 
-		TileData<T> tile = callback.waitForTile();
+	// Drop the given tiles from our caches, and let our listeners know the
+	// pyramid has changed
+	private void dataChanged (String pyramidId, Iterable<TileIndex> indices) {
+		if (null != indices) {
+			TileCache<?> tileCache = getTileCache(pyramidId);
+			TileStreamCache streamCache = getTileStreamCache(pyramidId);
+			for (TileIndex index: indices) {
+				tileCache.invalidate(index);
+				streamCache.remove(index);
+			}
+		}
+		for (LayerDataChangedListener listener: _layerListeners) {
+			listener.onLayerDataChanged(pyramidId);
+		}
+	}
 
-		return tile;
+	private PyramidIO getWritableBasePyramidIO (String pyramidId) throws IOException {
+		PyramidIO base = getBasePyramidIO(pyramidId);
+		if (null == base) throw new IOException("Attempt to write to unknown pyramid "+pyramidId);
+		return base;
 	}
 
 
@@ -102,19 +176,32 @@ public class CachingPyramidIO implements PyramidIO {
 
 	@Override
 	public void initializeForWrite (String pyramidId) throws IOException {
-		throw new UnsupportedOperationException("Caching Pyramid IO only supports reading");
+		getWritableBasePyramidIO(pyramidId).initializeForWrite(pyramidId);
 	}
 
+	/**
+	 * Writes go straight to the base pyramid IO; any cached copies of the
+	 * written tiles are dropped afterwards.
+	 */
 	@Override
 	public <T> void writeTiles (String pyramidId,
 	                            TileSerializer<T> serializer,
 	                            Iterable<TileData<T>> data) throws IOException {
-		throw new UnsupportedOperationException("Caching Pyramid IO only supports reading");
+		// Collected first, in case the data can only be iterated once
+		List<TileData<T>> tiles = new ArrayList<>();
+		List<TileIndex> indices = new ArrayList<>();
+		for (TileData<T> tile: data) {
+			tiles.add(tile);
+			indices.add(tile.getDefinition());
+		}
+		getWritableBasePyramidIO(pyramidId).writeTiles(pyramidId, serializer, tiles);
+		dataChanged(pyramidId, indices);
 	}
 
 	@Override
 	public void writeMetaData (String pyramidId, String metaData) throws IOException {
-		throw new UnsupportedOperationException("Caching Pyramid IO only supports reading");
+		getWritableBasePyramidIO(pyramidId).writeMetaData(pyramidId, metaData);
+		dataChanged(pyramidId, null);
 	}
 
 
@@ -149,39 +236,20 @@ public class CachingPyramidIO implements PyramidIO {
 	}
 
 	/**
-	 * Request a set of tiles, retrieving some of them immediately, and setting
-	 * the rest up for eventual retrieval
+	 * Request a set of tiles, reading into the cache any that are not already
+	 * there or on their way.
 	 * 
 	 * @param pyramidId the pyramid io
 	 * @param serializer the serializer
 	 * @param indices Indices of tiles to be requested.  May not be null.
 	 * @throws IOException
 	 */
+	@Override
 	public <T> void requestTiles (String pyramidId,
 	                              TileSerializer<T> serializer,
 	                              Iterable<TileIndex> indices) throws IOException {
 		TileCache<T> cache = getTileCache(pyramidId);
-
-		synchronized (cache) {
-			// First, request and retrieve all tiles needed over the long term
-			// Only request those we don't already have
-			List<TileIndex> newIndices = new ArrayList<>(cache.getNewRequests(indices));
-			if (newIndices.isEmpty())
-				return;
-
-			PyramidIO base = getBasePyramidIO(pyramidId);
-			List<TileData<T>> tiles = base.readTiles(pyramidId, serializer, newIndices);
-    
-			// Cache recieved tiles...
-			for (TileData<T> tile: tiles) {
-				cache.provideTile(tile);
-				newIndices.remove(tile.getDefinition());
-			}
-			// And the fact that some were empty
-			for (TileIndex index: newIndices) {
-				cache.provideEmptyTile(index);
-			}
-		}
+		cache.getTiles(indices, getTileLoader(pyramidId, serializer));
 	}
 
 	@Override
@@ -189,111 +257,80 @@ public class CachingPyramidIO implements PyramidIO {
 	                                        TileSerializer<T> serializer,
 	                                        Iterable<TileIndex> indices) throws IOException {
 		TileCache<T> cache = getTileCache(pyramidId);
-		synchronized (cache) {
-			List<TileData<T>> tiles = new ArrayList<>();
-			for (TileIndex index: indices) {
-				// We rely on configuration to make sure types match here
-				@SuppressWarnings({"unchecked", "rawtypes"})
-				TileData<T> tile = (TileData) getTileData(pyramidId, index);
-
-				if (null != tile)
-					tiles.add(tile);
-			}
-    
-			return(tiles);
-		}
+		return cache.getTiles(indices, getTileLoader(pyramidId, serializer));
 	}
 
 	@Override
 	public <T> InputStream getTileStream (String pyramidId,
 	                                      TileSerializer<T> serializer,
 	                                      TileIndex index) throws IOException {
-		// We cache tiles, not streams, so we need to serialize the tile into a
-		// stream, in order to return a stream.
-		TileData<T> tile = getTileData(pyramidId, index);
+		// Streams are cached as the raw bytes the base pyramid IO gave us, so
+		// that they never need to be deserialized or reserialized here.
+		TileStreamCache cache = getTileStreamCache(pyramidId);
+		byte[] data = cache.get(index);
 
-		if (null == tile) {
-			return null;
-		} else {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			serializer.serialize(tile, baos);
-			baos.flush();
-			baos.close();
-			return new ByteArrayInputStream(baos.toByteArray());
-		}
-	}
-
-	@Override
-	public String readMetaData (String pyramidId) throws IOException {
-		return getBasePyramidIO(pyramidId).readMetaData(pyramidId);
-	}
-
-	@Override
-	public void removeTiles (String id, Iterable<TileIndex> tiles ) throws IOException {
-		throw new IOException("removeTiles not currently supported for CachingPyramidIO");
-	}
-
-	private class CacheListenerCallback<T> implements CacheRequestCallback<T> {
-		private TileData<T> _tile;
-		private boolean     _waiting;
-		private boolean     _notified;
+		if (null == data) {
+			PyramidIO base = getBasePyramidIO(pyramidId);
+			if (null == base) return null;
 
+			TileExistenceIndex existenceIndex = getTileExistenceIndex(base, pyramidId);
+			if (null != existenceIndex && !existenceIndex.shouldRead(index)) return null;
 
+			InputStream stream = base.getTileStream(pyramidId, serializer, index);
+			if (null == stream) return null;
 
-		public CacheListenerCallback () {
-			_tile = null;
-			_waiting = false;
-			_notified = false;
+			try {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = stream.read(buffer)) >= 0) {
+					baos.write(buffer, 0, read);
+				}
+				baos.close();
+				data = baos.toByteArray();
+			} finally {
+				stream.close();
+			}
+			cache.put(index, data);
 		}
 
-		synchronized public TileData<T> waitForTile () {
-				if (!_notified)
-					try {
-						_waiting = true;
-						wait(1000);
-					} catch (InterruptedException e) {
-						LOGGER.warn("Error waiting for return for tile.", e);
-						return null;
-					} finally {
-						_waiting = false;
-					}
-
-				return _tile;
-			}
+		return new ByteArrayInputStream(data);
+	}
 
-		@Override
-		synchronized public boolean onTileReceived (TileIndex index, TileData<T> tile) {
-				_tile = tile;
-				_notified = true;
-				if (_waiting)
-					this.notify();
-				return true;
-			}
+	/**
+	 * Get the tile existence index of a pyramid, if its base pyramid IO keeps
+	 * one. This is mostly of use for monitoring how many reads the index is
+	 * saving.
+	 */
+	@Override
+	public TileExistenceIndex getTileExistenceIndex (String pyramidId) {
+		PyramidIO base = getBasePyramidIO(pyramidId);
+		if (null == base) return null;
+		return getTileExistenceIndex(base, pyramidId);
+	}
 
-		@Override
-		public void onTileAbandoned (TileIndex index) {
-			if (_waiting)
-				this.notify();
+	private TileExistenceIndex getTileExistenceIndex (PyramidIO base, String pyramidId) {
+		if (base instanceof TileExistenceIndexProvider) {
+			return ((TileExistenceIndexProvider) base).getTileExistenceIndex(pyramidId);
 		}
+		return null;
 	}
 
-	private class GlobalCallback<T> implements TileCacheEntry.CacheRequestCallback<T> {
-		private String _layer;
-		GlobalCallback (String layer) {
-			_layer = layer;
-		}
-		@Override
-		public boolean onTileReceived (TileIndex index, TileData<T> tile) {
-			for (LayerDataChangedListener listener: _layerListeners) {
-				listener.onLayerDataChanged(_layer);
-			}
-			return false;
-		}
+	@Override
+	public String readMetaData (String pyramidId) throws IOException {
+		return getBasePyramidIO(pyramidId).readMetaData(pyramidId);
+	}
 
-		@Override
-		public void onTileAbandoned (TileIndex index) {
-		}
+	@Override
+	public void removeTiles (String id, Iterable<TileIndex> tiles ) throws IOException {
+		getWritableBasePyramidIO(id).removeTiles(id, tiles);
+		dataChanged(id, tiles);
 	}
+
+	/**
+	 * Notification that tiles or metadata have been written to, or removed
+	 * from, a pyramid through this pyramid IO.
+	 */
 	public interface LayerDataChangedListener {
 		public void onLayerDataChanged (String layer);
 	}
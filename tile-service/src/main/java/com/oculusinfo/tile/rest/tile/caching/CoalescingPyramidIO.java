@@ -0,0 +1,515 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rest.tile.caching;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.oculusinfo.binning.BinIndex;
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.impl.PrimitiveSparseTileData;
+import com.oculusinfo.binning.impl.SparseTileData;
+import com.oculusinfo.binning.io.PyramidIO;
+import com.oculusinfo.binning.io.ReleasablePyramidIO;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+import com.oculusinfo.factory.util.Pair;
+
+
+
+/**
+ * A pyramid IO that sits in front of a pyramid IO that computes its tiles -
+ * such as the on-demand tiling pyramid IOs - and makes fewer, larger requests
+ * of it.
+ *
+ * Requests for tiles of the same pyramid that arrive within a short window
+ * of one another are gathered into a single request of the base pyramid IO,
+ * so a client asking for a whole view's worth of tiles at once causes one
+ * computation, not one per tile.  A tile that is already being computed is
+ * never requested again; later requests for it just wait for the first.
+ *
+ * Computed tiles are kept in a size-bounded result cache, keyed by pyramid
+ * ID and by a hash of the configuration with which that pyramid was
+ * initialized.  Each configuration of a pyramid is a separate pyramid to the
+ * base pyramid IO (the first keeps the pyramid's own ID; later ones have the
+ * configuration hash appended), so tiles cached under one configuration are
+ * always tiles computed with it.  Requests are for the configuration with
+ * which the pyramid was most recently initialized.
+ *
+ * Only the few most recently initialized configurations of each pyramid are
+ * kept; older ones have their tiles dropped from the result cache and, if
+ * the base pyramid IO is a ReleasablePyramidIO, their base pyramids released.
+ */
+public class CoalescingPyramidIO implements PyramidIO {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CoalescingPyramidIO.class);
+	// The default time, in milliseconds, to wait for more requests before computing tiles
+	public static final long DEFAULT_WINDOW = 20L;
+	// The default maximum number of tiles to compute at once
+	public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+	// The default maximum size, in bytes, of the cache of computed tiles
+	public static final long DEFAULT_RESULT_CACHE_SIZE = 256L * 1024L * 1024L;
+	// The number of batches that may be computed at once
+	private static final int BATCH_THREADS = 4;
+	// A rough size, in bytes, of a bin of a computed tile
+	private static final long ESTIMATED_BIN_SIZE = 16L;
+	// The configuration hash of pyramids we weren't asked to initialize
+	private static final String NO_CONFIGURATION = "";
+	// The most configurations of any one pyramid kept at once
+	static final int MAX_CONFIGURATIONS = 4;
+
+	private PyramidIO                                                    _base;
+	private long                                                         _window;
+	private int                                                          _maxBatchSize;
+	private TileResultCache                                              _results;
+	private ScheduledExecutorService                                     _executor;
+	private Map<String, String>                                          _configurationHashes;
+	private ConcurrentHashMap<String, String>                            _firstConfigurationHashes;
+	// The configurations kept of each pyramid, least recently initialized first
+	private Map<String, Set<String>>                                     _configurations;
+	// Tiles being computed, and the batches waiting to be computed.  Both,
+	// and the result cache, are only modified while holding _pending.
+	private Map<TileResultCache.Key, SettableFuture<TileData<?>>>        _inFlight;
+	private Map<BatchKey, Batch>                                         _pending;
+
+	public CoalescingPyramidIO (PyramidIO base) {
+		this(base, DEFAULT_WINDOW, DEFAULT_MAX_BATCH_SIZE, DEFAULT_RESULT_CACHE_SIZE);
+	}
+
+	/**
+	 * @param base The pyramid IO that computes tiles
+	 * @param window The time, in milliseconds, to wait for more requests after
+	 *            the first before computing tiles
+	 * @param maxBatchSize The maximum number of tiles to compute at once.
+	 *            Batches reaching this size are computed immediately.
+	 * @param maxResultCacheBytes The maximum estimated size, in bytes, of the
+	 *            cache of computed tiles
+	 */
+	public CoalescingPyramidIO (PyramidIO base, long window, int maxBatchSize, long maxResultCacheBytes) {
+		_base = base;
+		_window = window;
+		_maxBatchSize = maxBatchSize;
+		_results = new TileResultCache(maxResultCacheBytes);
+		_executor = Executors.newScheduledThreadPool(BATCH_THREADS,
+		                                             new ThreadFactoryBuilder().setDaemon(true)
+		                                             .setNameFormat("tile-coalescer-%d").build());
+		_configurationHashes = new ConcurrentHashMap<>();
+		_firstConfigurationHashes = new ConcurrentHashMap<>();
+		_configurations = new HashMap<>();
+		_inFlight = new HashMap<>();
+		_pending = new HashMap<>();
+	}
+
+	/**
+	 * Get the cache of computed tiles.  This is mostly of use for monitoring
+	 * cache hit and miss rates.
+	 */
+	public TileResultCache getResultCache () {
+		return _results;
+	}
+
+	/**
+	 * Stop the threads that compute batches of tiles.
+	 */
+	public void shutdown () {
+		_executor.shutdown();
+	}
+
+
+
+	@Override
+	public void initializeForWrite (String pyramidId) throws IOException {
+		throw new UnsupportedOperationException("Coalescing Pyramid IO only supports reading");
+	}
+
+	@Override
+	public <T> void writeTiles (String pyramidId,
+	                            TileSerializer<T> serializer,
+	                            Iterable<TileData<T>> data) throws IOException {
+		throw new UnsupportedOperationException("Coalescing Pyramid IO only supports reading");
+	}
+
+	@Override
+	public void writeMetaData (String pyramidId, String metaData) throws IOException {
+		throw new UnsupportedOperationException("Coalescing Pyramid IO only supports reading");
+	}
+
+	@Override
+	public void initializeForRead (String pyramidId, int width, int height,
+	                               Properties dataDescription) {
+		String configurationHash = getConfigurationHash(width, height, dataDescription);
+		_firstConfigurationHashes.putIfAbsent(pyramidId, configurationHash);
+		_base.initializeForRead(getBasePyramidId(pyramidId, configurationHash), width, height, dataDescription);
+
+		List<String> replaced = new ArrayList<>();
+		synchronized (_configurations) {
+			Set<String> configurations = _configurations.get(pyramidId);
+			if (null == configurations) {
+				configurations = new LinkedHashSet<>();
+				_configurations.put(pyramidId, configurations);
+			}
+			configurations.remove(configurationHash);
+			configurations.add(configurationHash);
+			Iterator<String> i = configurations.iterator();
+			while (configurations.size() > MAX_CONFIGURATIONS) {
+				replaced.add(i.next());
+				i.remove();
+			}
+			_configurationHashes.put(pyramidId, configurationHash);
+		}
+		for (String oldHash: replaced) {
+			releaseConfiguration(pyramidId, oldHash);
+		}
+	}
+
+	// Drop the tiles of a configuration we no longer keep, and let the base
+	// pyramid IO release what it holds for it
+	private void releaseConfiguration (String pyramidId, String configurationHash) {
+		synchronized (_pending) {
+			_results.remove(pyramidId, configurationHash);
+		}
+		if (_base instanceof ReleasablePyramidIO) {
+			((ReleasablePyramidIO) _base).releasePyramid(getBasePyramidId(pyramidId, configurationHash));
+		}
+	}
+
+	/*
+	 * Get the ID under which the base pyramid IO knows one configuration of a
+	 * pyramid.
+	 */
+	private String getBasePyramidId (String pyramidId, String configurationHash) {
+		if (NO_CONFIGURATION.equals(configurationHash)
+		    || configurationHash.equals(_firstConfigurationHashes.get(pyramidId))) {
+			return pyramidId;
+		}
+		return pyramidId+"."+configurationHash;
+	}
+
+	/*
+	 * Get the SHA-1 hash of a pyramid's configuration, in a canonical order.
+	 */
+	static String getConfigurationHash (int width, int height, Properties dataDescription) {
+		try {
+			Charset utf8 = Charset.forName("UTF-8");
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update((width+"x"+height+"\n").getBytes(utf8));
+			if (null != dataDescription) {
+				for (String name: new TreeSet<>(dataDescription.stringPropertyNames())) {
+					digest.update((name+"="+dataDescription.getProperty(name)+"\n").getBytes(utf8));
+				}
+			}
+			return String.format("%040x", new BigInteger(1, digest.digest()));
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-1
+			throw new IllegalStateException("SHA-1 unavailable", e);
+		}
+	}
+
+	private String getConfigurationHash (String pyramidId) {
+		String hash = _configurationHashes.get(pyramidId);
+		if (null == hash) return NO_CONFIGURATION;
+		return hash;
+	}
+
+	@Override
+	public <T> List<TileData<T>> readTiles (String pyramidId,
+	                                        TileSerializer<T> serializer,
+	                                        Iterable<TileIndex> indices) throws IOException {
+		String configurationHash = getConfigurationHash(pyramidId);
+
+		// Find each tile in the cache, or in flight, or add it to a batch.
+		// LinkedHashMap preserves request order and removes duplicate requests.
+		Map<TileIndex, Optional<TileData<?>>> cached = new HashMap<>();
+		Map<TileIndex, SettableFuture<TileData<?>>> futures = new LinkedHashMap<>();
+		List<TileIndex> requested = new ArrayList<>();
+		List<Batch> fullBatches = new ArrayList<>();
+		synchronized (_pending) {
+			for (TileIndex index: indices) {
+				if (cached.containsKey(index) || futures.containsKey(index)) continue;
+				requested.add(index);
+
+				TileResultCache.Key key = new TileResultCache.Key(pyramidId, configurationHash, index);
+				Optional<TileData<?>> result = _results.get(key);
+				if (null != result) {
+					cached.put(index, result);
+					continue;
+				}
+
+				SettableFuture<TileData<?>> future = _inFlight.get(key);
+				if (null == future) {
+					future = SettableFuture.create();
+					_inFlight.put(key, future);
+					Batch batch = addToBatch(pyramidId, configurationHash, serializer, index, future);
+					if (batch._tiles.size() >= _maxBatchSize) {
+						_pending.remove(batch._key);
+						fullBatches.add(batch);
+					}
+				}
+				futures.put(index, future);
+			}
+		}
+		for (final Batch batch: fullBatches) {
+			_executor.execute(new Runnable() {
+				@Override
+				public void run () {
+					compute(batch);
+				}
+			});
+		}
+
+		// Gather our results, waiting for any still being computed
+		List<TileData<T>> results = new ArrayList<>();
+		for (TileIndex index: requested) {
+			TileData<?> tile;
+			if (cached.containsKey(index)) tile = cached.get(index).orNull();
+			else tile = waitFor(futures.get(index));
+
+			// We rely on configuration to make sure types match here
+			@SuppressWarnings("unchecked")
+			TileData<T> typedTile = (TileData<T>) tile;
+			if (null != typedTile) results.add(typedTile);
+		}
+		return results;
+	}
+
+	// Add a tile to the batch of its pyramid, creating and scheduling a new
+	// batch if there isn't one waiting.  Must be called while holding _pending.
+	private Batch addToBatch (String pyramidId, String configurationHash, TileSerializer<?> serializer,
+	                          TileIndex index, SettableFuture<TileData<?>> future) {
+		// Tiles computed together must have the same number of bins
+		BatchKey batchKey = new BatchKey(pyramidId, configurationHash, index.getXBins(), index.getYBins());
+		Batch batch = _pending.get(batchKey);
+		if (null == batch) {
+			final Batch newBatch = new Batch(batchKey, serializer);
+			_pending.put(batchKey, newBatch);
+			_executor.schedule(new Runnable() {
+				@Override
+				public void run () {
+					synchronized (_pending) {
+						// Already computed, if it filled up
+						if (newBatch != _pending.get(newBatch._key)) return;
+						_pending.remove(newBatch._key);
+					}
+					compute(newBatch);
+				}
+			}, _window, TimeUnit.MILLISECONDS);
+			batch = newBatch;
+		}
+		batch._tiles.put(index, future);
+		return batch;
+	}
+
+	// Compute a batch of tiles, and hand them to everyone waiting for them
+	private void compute (Batch batch) {
+		String pyramidId = batch._key._pyramidId;
+		String configurationHash = batch._key._configurationHash;
+		List<TileIndex> indices = new ArrayList<>(batch._tiles.keySet());
+		try {
+			long startTime = System.currentTimeMillis();
+			@SuppressWarnings({"rawtypes", "unchecked"})
+			List<TileData<?>> tiles = (List) _base.readTiles(getBasePyramidId(pyramidId, configurationHash),
+			                                                 (TileSerializer) batch._serializer, indices);
+			LOGGER.debug("Computed {} tiles of {} in {}ms",
+			             new Object[] {indices.size(), pyramidId, System.currentTimeMillis() - startTime});
+
+			Map<TileIndex, TileData<?>> byIndex = new HashMap<>();
+			if (null != tiles) {
+				for (TileData<?> tile: tiles) {
+					if (null != tile) byIndex.put(tile.getDefinition(), tile);
+				}
+			}
+
+			synchronized (_pending) {
+				for (TileIndex index: indices) {
+					TileResultCache.Key key = new TileResultCache.Key(pyramidId, configurationHash, index);
+					TileData<?> tile = byIndex.get(index);
+					// A null list means the base pyramid IO couldn't compute
+					// anything (likely an uninitialized pyramid), so there is
+					// nothing worth remembering.
+					if (null != tiles) _results.put(key, tile, estimateSize(tile));
+					_inFlight.remove(key);
+				}
+			}
+			for (Map.Entry<TileIndex, SettableFuture<TileData<?>>> entry: batch._tiles.entrySet()) {
+				entry.getValue().set(byIndex.get(entry.getKey()));
+			}
+		} catch (IOException|RuntimeException|Error e) {
+			LOGGER.warn("Error computing tiles of "+pyramidId, e);
+			// Pass the failure to anyone waiting, and forget these tiles so
+			// that the next request tries again.
+			synchronized (_pending) {
+				for (TileIndex index: indices) {
+					_inFlight.remove(new TileResultCache.Key(pyramidId, configurationHash, index));
+				}
+			}
+			for (SettableFuture<TileData<?>> future: batch._tiles.values()) {
+				future.setException(e);
+			}
+		}
+	}
+
+	// Estimate the size of a tile from the number of bins it holds; this is
+	// done for every tile computed, so is kept much cheaper than serializing.
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	private long estimateSize (TileData<?> tile) {
+		if (null == tile) return 0L;
+
+		long bins = 0L;
+		if (tile instanceof PrimitiveSparseTileData) {
+			bins = ((PrimitiveSparseTileData) tile).size();
+		} else if (tile instanceof SparseTileData) {
+			Iterator<Pair<BinIndex, ?>> i = ((SparseTileData) tile).getData();
+			while (i.hasNext()) {
+				i.next();
+				++bins;
+			}
+		} else {
+			bins = (long) tile.getDefinition().getXBins() * tile.getDefinition().getYBins();
+		}
+		return bins * ESTIMATED_BIN_SIZE;
+	}
+
+	private TileData<?> waitFor (SettableFuture<TileData<?>> future) throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof IOException) throw new IOException(cause.getMessage(), cause);
+					if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+					if (cause instanceof Error) throw (Error) cause;
+					throw new IOException(cause);
+				}
+			}
+		} finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public <T> InputStream getTileStream (String pyramidId,
+	                                      TileSerializer<T> serializer,
+	                                      TileIndex index) throws IOException {
+		List<TileData<T>> tiles = readTiles(pyramidId, serializer, Collections.singletonList(index));
+		if (null == tiles || tiles.isEmpty()) return null;
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		serializer.serialize(tiles.get(0), baos);
+		baos.close();
+		return new ByteArrayInputStream(baos.toByteArray());
+	}
+
+	@Override
+	public String readMetaData (String pyramidId) throws IOException {
+		return _base.readMetaData(getBasePyramidId(pyramidId, getConfigurationHash(pyramidId)));
+	}
+
+	@Override
+	public void removeTiles (String id, Iterable<TileIndex> tiles) throws IOException {
+		String configurationHash = getConfigurationHash(id);
+		synchronized (_pending) {
+			for (TileIndex index: tiles) {
+				_results.remove(new TileResultCache.Key(id, configurationHash, index));
+			}
+		}
+		_base.removeTiles(getBasePyramidId(id, configurationHash), tiles);
+	}
+
+
+
+	// Tiles computed together: all of the same pyramid and configuration,
+	// with the same number of bins
+	private static class BatchKey {
+		String _pyramidId;
+		String _configurationHash;
+		int    _xBins;
+		int    _yBins;
+
+		BatchKey (String pyramidId, String configurationHash, int xBins, int yBins) {
+			_pyramidId = pyramidId;
+			_configurationHash = configurationHash;
+			_xBins = xBins;
+			_yBins = yBins;
+		}
+
+		@Override
+		public boolean equals (Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof BatchKey)) return false;
+			BatchKey that = (BatchKey) obj;
+			return _pyramidId.equals(that._pyramidId) && _configurationHash.equals(that._configurationHash)
+				&& _xBins == that._xBins && _yBins == that._yBins;
+		}
+
+		@Override
+		public int hashCode () {
+			return ((_pyramidId.hashCode() * 31 + _configurationHash.hashCode()) * 31 + _xBins) * 31 + _yBins;
+		}
+	}
+
+	// A set of tiles waiting to be computed together.  The serializer of the
+	// first request is used for all; computing pyramid IOs generally ignore it.
+	private static class Batch {
+		BatchKey                                         _key;
+		TileSerializer<?>                                _serializer;
+		Map<TileIndex, SettableFuture<TileData<?>>>      _tiles;
+
+		Batch (BatchKey key, TileSerializer<?> serializer) {
+			_key = key;
+			_serializer = serializer;
+			_tiles = new LinkedHashMap<>();
+		}
+	}
+}
@@ -0,0 +1,481 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rest.tile.caching;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.factory.ConfigurableFactory;
+import com.oculusinfo.tile.rest.tile.caching.CachingPyramidIO.LayerDataChangedListener;
+
+
+
+/**
+ * A cache of encoded tile images, keyed by layer, layer state, tile, output
+ * format, and the version of the layer's data.
+ *
+ * Images are held in memory, up to a maximum number of bytes, after which the
+ * least recently used are dropped - or, if a spill directory has been given,
+ * moved to disk, up to a second limit.
+ *
+ * Simultaneous requests for the same image are rendered only once.
+ *
+ * The data version of a layer is changed whenever its data is changed; this
+ * drops all images of the layer, and makes sure any image rendered from the
+ * old data is not cached.  Data versions are kept by the ID of the data the
+ * layer shows, as that is what data change notifications identify.
+ */
+public class RenderedImageCache implements LayerDataChangedListener {
+	private static final Logger LOGGER = LoggerFactory.getLogger(RenderedImageCache.class);
+	// The names of spill files - see Key.getFileName
+	private static final Pattern SPILL_FILE_NAME = Pattern.compile("[0-9a-f]{64}\\.\\w+");
+
+	private long                                          _maxMemoryBytes;
+	private long                                          _memoryBytes;
+	// In access order, least recently used first
+	private LinkedHashMap<Key, byte[]>                    _memory;
+
+	private File                                          _spillDirectory;
+	private long                                          _maxSpillBytes;
+	private long                                          _spillBytes;
+	// Sizes of the images on disk, in access order
+	private LinkedHashMap<Key, Long>                      _spilled;
+
+	private ConcurrentHashMap<String, AtomicLong>         _dataVersions;
+	private ConcurrentHashMap<Key, SettableFuture<byte[]>> _rendering;
+
+	private AtomicLong                                    _hits;
+	private AtomicLong                                    _misses;
+
+	/**
+	 * Create an image cache that holds images only in memory
+	 * 
+	 * @param maxMemoryBytes The maximum total size, in bytes, of the images to
+	 *            keep in memory
+	 */
+	public RenderedImageCache (long maxMemoryBytes) {
+		_maxMemoryBytes = maxMemoryBytes;
+		_memoryBytes = 0L;
+		_memory = new LinkedHashMap<>(16, 0.75f, true);
+		_spillDirectory = null;
+		_maxSpillBytes = 0L;
+		_spillBytes = 0L;
+		_spilled = new LinkedHashMap<>(16, 0.75f, true);
+		_dataVersions = new ConcurrentHashMap<>();
+		_rendering = new ConcurrentHashMap<>();
+		_hits = new AtomicLong(0L);
+		_misses = new AtomicLong(0L);
+	}
+
+	/**
+	 * Set the memory limit of the cache.  Images beyond the new limit are
+	 * dropped (or spilled to disk) when next an image is added.
+	 */
+	synchronized public void setMaxMemoryBytes (long maxMemoryBytes) {
+		_maxMemoryBytes = maxMemoryBytes;
+	}
+
+	/**
+	 * Allow images dropped from memory to be kept on disk.
+	 * 
+	 * @param directory The directory in which to store images. Any images
+	 *            already there, from earlier runs, are deleted, as their data
+	 *            versions can't be known.
+	 * @param maxBytes The maximum total size, in bytes, of the images to keep
+	 *            on disk
+	 */
+	synchronized public void setSpillDirectory (File directory, long maxBytes) {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			LOGGER.warn("Couldn't create image cache directory {}; images will only be cached in memory", directory);
+			return;
+		}
+		// Drop anything spilled to the previous directory
+		for (Key key: new ArrayList<>(_spilled.keySet())) removeSpilled(key);
+
+		File[] files = directory.listFiles();
+		if (null != files) {
+			for (File file: files) {
+				if (file.isFile() && SPILL_FILE_NAME.matcher(file.getName()).matches() && !file.delete()) {
+					LOGGER.warn("Couldn't delete old cached image {}", file);
+				}
+			}
+		}
+		_spillDirectory = directory;
+		_maxSpillBytes = maxBytes;
+	}
+
+	/**
+	 * Get the key under which to cache an image.  The key includes the
+	 * current version of the layer's data, so should be created before
+	 * rendering starts.
+	 * 
+	 * @param layer The layer of the image
+	 * @param state A hash of the layer state from which the image is rendered
+	 * @param index The tile of the image
+	 * @param format The format in which the image is encoded
+	 */
+	public Key createKey (String layer, String state, TileIndex index, String format) {
+		return createKey(layer, layer, state, index, format);
+	}
+
+	/**
+	 * Get the key under which to cache an image of a layer whose data ID
+	 * differs from the layer ID.
+	 * 
+	 * @param layer The layer of the image
+	 * @param dataId The ID of the data shown by the layer
+	 * @param state A hash of the layer state from which the image is rendered
+	 * @param index The tile of the image
+	 * @param format The format in which the image is encoded
+	 */
+	public Key createKey (String layer, String dataId, String state, TileIndex index, String format) {
+		return new Key(layer, dataId, state, index, format, getDataVersion(dataId));
+	}
+
+	/**
+	 * Get an image, rendering it if it is neither cached nor currently being
+	 * rendered.  The rendered image is cached unless the layer's data has
+	 * changed since the key was created.
+	 * 
+	 * @param key The key of the image
+	 * @param source The means of rendering the image when needed
+	 * @return The encoded image
+	 */
+	public byte[] getImage (Key key, ImageSource source) throws IOException {
+		byte[] image = get(key);
+		if (null != image) {
+			_hits.incrementAndGet();
+			return image;
+		}
+		_misses.incrementAndGet();
+
+		SettableFuture<byte[]> future = SettableFuture.create();
+		SettableFuture<byte[]> existing = _rendering.putIfAbsent(key, future);
+		if (null != existing) {
+			return waitFor(existing);
+		}
+
+		try {
+			image = source.getImage();
+			if (null != image) put(key, image);
+			future.set(image);
+			return image;
+		} catch (IOException|RuntimeException|Error e) {
+			future.setException(e);
+			throw e;
+		} finally {
+			_rendering.remove(key, future);
+		}
+	}
+
+	/**
+	 * Get a cached image
+	 * 
+	 * @return The encoded image, or null if it isn't in the cache
+	 */
+	public byte[] get (Key key) {
+		File spillFile;
+		synchronized (this) {
+			byte[] image = _memory.get(key);
+			if (null != image) return image;
+			if (!_spilled.containsKey(key)) return null;
+			spillFile = getSpillFile(key);
+		}
+
+		// Read spilled images outside the lock.  This means the file may be
+		// deleted - by the image being dropped from disk - while we look for
+		// it, in which case it is simply a miss.
+		byte[] image;
+		try {
+			image = readFile(spillFile);
+		} catch (FileNotFoundException e) {
+			LOGGER.debug("Cached image {} was dropped before it could be read", spillFile);
+			dropSpilled(key, spillFile);
+			return null;
+		} catch (IOException e) {
+			LOGGER.warn("Error reading cached image {}", spillFile, e);
+			dropSpilled(key, spillFile);
+			return null;
+		}
+		put(key, image);
+		return image;
+	}
+
+	/**
+	 * Cache an image.  The image is ignored if the layer's data has changed
+	 * since the key was created.
+	 */
+	public void put (Key key, byte[] image) {
+		List<Map.Entry<Key, byte[]>> toSpill = new ArrayList<>();
+		synchronized (this) {
+			if (key._dataVersion != getDataVersion(key._dataId)) return;
+
+			removeSpilled(key);
+			byte[] old = _memory.put(key, image);
+			if (null != old) _memoryBytes -= old.length;
+			_memoryBytes += image.length;
+
+			Iterator<Map.Entry<Key, byte[]>> i = _memory.entrySet().iterator();
+			while (_memoryBytes > _maxMemoryBytes && i.hasNext()) {
+				Map.Entry<Key, byte[]> entry = i.next();
+				i.remove();
+				_memoryBytes -= entry.getValue().length;
+				if (null != _spillDirectory && entry.getValue().length <= _maxSpillBytes) {
+					toSpill.add(entry);
+				}
+			}
+		}
+
+		// Write to disk outside the lock
+		for (Map.Entry<Key, byte[]> entry: toSpill) {
+			spill(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Get the current version of a set of data
+	 */
+	public long getDataVersion (String dataId) {
+		AtomicLong version = _dataVersions.get(dataId);
+		if (null == version) return 0L;
+		return version.get();
+	}
+
+	@Override
+	public void onLayerDataChanged (String dataId) {
+		AtomicLong version = _dataVersions.get(dataId);
+		if (null == version) {
+			version = new AtomicLong(0L);
+			AtomicLong existing = _dataVersions.putIfAbsent(dataId, version);
+			if (null != existing) version = existing;
+		}
+		version.incrementAndGet();
+
+		// Drop all old images of the data
+		synchronized (this) {
+			Iterator<Map.Entry<Key, byte[]>> i = _memory.entrySet().iterator();
+			while (i.hasNext()) {
+				Map.Entry<Key, byte[]> entry = i.next();
+				if (entry.getKey()._dataId.equals(dataId)) {
+					i.remove();
+					_memoryBytes -= entry.getValue().length;
+				}
+			}
+			List<Key> spilledKeys = new ArrayList<>(_spilled.keySet());
+			for (Key key: spilledKeys) {
+				if (key._dataId.equals(dataId)) removeSpilled(key);
+			}
+		}
+	}
+
+	/** The number of images in memory */
+	synchronized public int getMemoryCount () {
+		return _memory.size();
+	}
+
+	/** The number of images on disk */
+	synchronized public int getSpillCount () {
+		return _spilled.size();
+	}
+
+	/** The number of requests for images that were found in the cache */
+	public long getHitCount () {
+		return _hits.get();
+	}
+
+	/** The number of requests for images that had to be rendered */
+	public long getMissCount () {
+		return _misses.get();
+	}
+
+
+
+	private File getSpillFile (Key key) {
+		return new File(_spillDirectory, key.getFileName());
+	}
+
+	private void spill (Key key, byte[] image) {
+		File file;
+		synchronized (this) {
+			if (null == _spillDirectory) return;
+			file = getSpillFile(key);
+		}
+		try (OutputStream output = new FileOutputStream(file)) {
+			output.write(image);
+		} catch (IOException e) {
+			LOGGER.warn("Error writing cached image {}", file, e);
+			file.delete();
+			return;
+		}
+
+		synchronized (this) {
+			// The image may have been re-cached in memory, or its layer
+			// changed, while we were writing.
+			if (_memory.containsKey(key) || key._dataVersion != getDataVersion(key._dataId)) {
+				file.delete();
+				return;
+			}
+			Long old = _spilled.put(key, (long) image.length);
+			if (null != old) _spillBytes -= old;
+			_spillBytes += image.length;
+
+			Iterator<Map.Entry<Key, Long>> i = _spilled.entrySet().iterator();
+			while (_spillBytes > _maxSpillBytes && i.hasNext()) {
+				Map.Entry<Key, Long> entry = i.next();
+				i.remove();
+				_spillBytes -= entry.getValue();
+				getSpillFile(entry.getKey()).delete();
+			}
+		}
+	}
+
+	// Must be called while synchronized
+	private void removeSpilled (Key key) {
+		Long size = _spilled.remove(key);
+		if (null != size) {
+			_spillBytes -= size;
+			getSpillFile(key).delete();
+		}
+	}
+
+	// Forget a spilled image that couldn't be read, unless the spill
+	// directory has changed since
+	synchronized private void dropSpilled (Key key, File file) {
+		if (null != _spillDirectory && file.equals(getSpillFile(key))) removeSpilled(key);
+	}
+
+	private byte[] readFile (File file) throws IOException {
+		try (InputStream input = new FileInputStream(file)) {
+			long length = file.length();
+			byte[] data = new byte[(int) length];
+			int offset = 0;
+			while (offset < data.length) {
+				int read = input.read(data, offset, data.length - offset);
+				// Truncated by deletion while we were reading
+				if (read < 0) throw new FileNotFoundException(file.toString());
+				offset += read;
+			}
+			return data;
+		}
+	}
+
+	private byte[] waitFor (SettableFuture<byte[]> future) throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof IOException) throw new IOException(cause.getMessage(), cause);
+					if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+					if (cause instanceof Error) throw (Error) cause;
+					throw new IOException(cause);
+				}
+			}
+		} finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+
+
+	/**
+	 * The means of rendering and encoding an image that isn't in the cache
+	 */
+	public static interface ImageSource {
+		public byte[] getImage () throws IOException;
+	}
+
+	/**
+	 * The key identifying a cached image
+	 */
+	public static class Key {
+		private final String    _layer;
+		private final String    _dataId;
+		private final String    _state;
+		private final TileIndex _index;
+		private final String    _format;
+		private final long      _dataVersion;
+		private final int       _hashCode;
+
+		Key (String layer, String dataId, String state, TileIndex index, String format, long dataVersion) {
+			_layer = layer;
+			_dataId = dataId;
+			_state = state;
+			_index = index;
+			_format = format;
+			_dataVersion = dataVersion;
+			_hashCode = toString().hashCode();
+		}
+
+		String getFileName () {
+			return ConfigurableFactory.generateSHA256(toString()) + "." + _format;
+		}
+
+		@Override
+		public int hashCode () {
+			return _hashCode;
+		}
+
+		@Override
+		public boolean equals (Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Key)) return false;
+			Key that = (Key) obj;
+			return _dataVersion == that._dataVersion
+				&& _layer.equals(that._layer)
+				&& _dataId.equals(that._dataId)
+				&& _state.equals(that._state)
+				&& _index.equals(that._index)
+				&& _format.equals(that._format);
+		}
+
+		@Override
+		public String toString () {
+			return _layer + ":" + _dataId + ":" + _dataVersion + ":" + _state + ":" + _index + ":" + _format;
+		}
+	}
+}
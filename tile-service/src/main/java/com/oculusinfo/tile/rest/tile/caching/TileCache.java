@@ -23,206 +23,217 @@
  */
 package com.oculusinfo.tile.rest.tile.caching;
 
-
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.SettableFuture;
 import com.oculusinfo.binning.TileData;
 import com.oculusinfo.binning.TileIndex;
-import com.oculusinfo.binning.util.LRUCache.RemovalPolicy;
-import com.oculusinfo.factory.util.Pair;
-import com.oculusinfo.binning.util.SynchronizedLRUCache;
-import com.oculusinfo.tile.rest.tile.caching.TileCacheEntry.CacheRequestCallback;
-
-import java.util.*;
-import java.util.Map.Entry;
 
 
 
 /**
- * An LRU cache of tiles, with its own specific removal policy and cache entry
- * type
- * 
+ * A bounded cache of tiles that coalesces concurrent requests.
+ *
+ * Each tile is represented by a future.  The first request for a tile that
+ * isn't in the cache claims it, and is responsible for reading it; any other
+ * request for the same tile while that read is in progress simply waits on
+ * the same future, so each tile is read from the backing store once no matter
+ * how many clients want it.  Requests for different tiles never block one
+ * another.
+ *
+ * Tiles that have finished loading are kept in an access-ordered cache; when
+ * it grows beyond its maximum size, the least recently used tiles are
+ * dropped.  Tiles still being read are held apart from it, so are never
+ * dropped, and don't count towards the maximum size.
+ *
  * @author nkronenfeld
- * 
  */
 public class TileCache<T> {
-	// The maximum amount of time an unrecieved tile is guaranteed to remain in
-	// the cache, in milliseconds
-	private long                                                    _maxTileAge;
-	// The cache iteself
-	private SynchronizedLRUCache<TileIndex, TileCacheEntry<T>> _cache;
-	// A list of all keys which have recieved their data, with the time at which they were first requested.
-	private TreeSet<Pair<TileIndex, Long>>                          _haveData;
-	// A list of all keys, in the order in which they were requested.
-	private List<TileIndex>                                         _orderedKeys;
-	// A listener to attach to all entries
-	private CacheEntryListener                                      _entryListener;
-	// A list of global listeners to all requests
-	private List<CacheRequestCallback<T>>                           _globalCallbacks;
-
-	public TileCache (long maxAge, int maxSize) {
-		_maxTileAge = maxAge;
-		_cache = new SynchronizedLRUCache<>(maxSize,
-		                                    new TileCacheRemovalPolicy());
-		_haveData= new TreeSet<>(new EntryAgeComparator());
-		_orderedKeys = new LinkedList<>();
-		_entryListener = new CacheEntryListener();
-		_globalCallbacks = new ArrayList<>();
+	// Tiles that have finished loading
+	private Cache<TileIndex, SettableFuture<TileData<T>>>             _tiles;
+	// Tiles still being read
+	private ConcurrentHashMap<TileIndex, SettableFuture<TileData<T>>> _loading;
+
+	public TileCache (int maxSize) {
+		// A single segment, so that the size limit and the order of eviction
+		// are exact; reads don't lock even so.
+		_tiles = CacheBuilder.newBuilder().concurrencyLevel(1).maximumSize(maxSize).build();
+		_loading = new ConcurrentHashMap<>();
 	}
 
-	public void addGlobalCallback (CacheRequestCallback<T> callback) {
-		_globalCallbacks.add(callback);
-	}
-
-	public void removeGlobalCallback (CacheRequestCallback<T> callback) {
-		_globalCallbacks.remove(callback);
+	/**
+	 * Get a single tile, reading it with the given loader if no one else has
+	 * read it or is reading it.
+	 *
+	 * @return The requested tile, or null if the tile doesn't exist
+	 */
+	public TileData<T> getTile (TileIndex index, TileLoader<T> loader) throws IOException {
+		List<TileIndex> indices = new ArrayList<>(1);
+		indices.add(index);
+		List<TileData<T>> tiles = getTiles(indices, loader);
+		if (tiles.isEmpty()) return null;
+		return tiles.get(0);
 	}
 
 	/**
-	 * Take a list of tiles to request, and return the subset that are new
-	 * requests - i.e., ones not already in the cache.
-	 * 
-	 * Each new request will be placed in the cache.
-	 * 
-	 * @param requests
-	 *            The list of tiles needed
-	 * @return A sublist of just those tiles not already requested
+	 * Get a set of tiles.  Any tiles not already in the cache or already being
+	 * read are read together, in a single call to the loader; this call then
+	 * waits for any tiles other callers are in the process of reading.
+	 *
+	 * @param indices The tiles to get
+	 * @param loader The means of reading tiles that aren't in the cache
+	 * @return All requested tiles that exist, in the order in which they were
+	 *         requested
 	 */
-	public List<TileIndex> getNewRequests (Iterable<TileIndex> requests) {
-		List<TileIndex> needed = new ArrayList<>();
-		synchronized (_cache) {
-			for (TileIndex index : requests) {
-				if (!_cache.containsKey(index)) {
-					// Create the tile request, and listen for its fulfilment
-					TileCacheEntry<T> entry = new TileCacheEntry<T>(index);
-					entry.requestTile(_entryListener);
-
-					// Add to cache
-					_cache.put(index, entry);
-					// Add to list of keys in request order
-					_orderedKeys.add(index);
-
-					needed.add(index);
+	public List<TileData<T>> getTiles (Iterable<TileIndex> indices, TileLoader<T> loader) throws IOException {
+		// Find or claim each tile. LinkedHashMap preserves request order and
+		// removes duplicate requests.
+		Map<TileIndex, SettableFuture<TileData<T>>> futures = new LinkedHashMap<>();
+		Map<TileIndex, SettableFuture<TileData<T>>> claimed = new LinkedHashMap<>();
+		for (TileIndex index: indices) {
+			if (futures.containsKey(index)) continue;
+
+			SettableFuture<TileData<T>> future = _tiles.getIfPresent(index);
+			if (null == future) future = _loading.get(index);
+			if (null == future) {
+				SettableFuture<TileData<T>> newFuture = SettableFuture.create();
+				future = _loading.putIfAbsent(index, newFuture);
+				if (null == future) {
+					// The tile may have finished loading since we looked
+					future = _tiles.getIfPresent(index);
+					if (null == future) {
+						future = newFuture;
+						claimed.put(index, newFuture);
+					} else {
+						_loading.remove(index, newFuture);
+					}
 				}
 			}
+			futures.put(index, future);
 		}
 
-		return needed;
+		// Read the tiles we claimed
+		if (!claimed.isEmpty()) {
+			load(claimed, loader);
+		}
+
+		// Wait for everything
+		List<TileData<T>> results = new ArrayList<>();
+		for (Map.Entry<TileIndex, SettableFuture<TileData<T>>> entry: futures.entrySet()) {
+			TileData<T> tile = waitFor(entry.getValue());
+			if (null != tile) results.add(tile);
+		}
+		return results;
 	}
 
 	/**
-	 * Request a tile.
-	 * 
-	 * @param index
-	 *            The index of the tile being requested.
-	 * 
-	 * @param callback
-	 *            A callback to call when the request is fulfilled.
+	 * Determine if a tile is in the cache, or in the process of being read
+	 * into it.  This doesn't count as a use of the tile.
 	 */
-	public void requestTile (TileIndex index, CacheRequestCallback<T> callback) {
-		_cache.get(index).requestTile(callback);
+	public boolean contains (TileIndex index) {
+		return _tiles.asMap().containsKey(index) || _loading.containsKey(index);
 	}
 
-	public void provideTile (TileData<T> tile) {
-		if (null == tile)
-			return;
+	/**
+	 * Get the number of tiles in the cache, including those still being read
+	 */
+	public int size () {
+		return (int) _tiles.size() + _loading.size();
+	}
 
-		TileIndex index = tile.getDefinition();
-		TileCacheEntry<T> entry = _cache.get(index);
-		if (null != entry)
-			entry.setTile(tile);
+	/**
+	 * Drop a tile from the cache, so that it will be re-read when next
+	 * requested.  Anyone already waiting on the tile will still get it, but a
+	 * read in progress will not be cached.
+	 */
+	public void invalidate (TileIndex index) {
+		_loading.remove(index);
+		_tiles.invalidate(index);
 	}
 
-	public void provideEmptyTile (TileIndex index) {
-		TileCacheEntry<T> entry = _cache.get(index);
-		if (null != entry)
-			entry.setTile(null);
+	/**
+	 * Drop all tiles from the cache
+	 */
+	public void clear () {
+		_loading.clear();
+		_tiles.invalidateAll();
 	}
 
-	private class CacheEntryListener implements CacheRequestCallback<T> {
-		@Override
-		public boolean onTileReceived (TileIndex index, TileData<T> tile) {
-			TileCacheEntry<T> entry = _cache.get(index);
-			if (null != entry) {
-				_haveData.add(new Pair<TileIndex, Long>(index,
-				                                        entry.initialRequestTime()));
-			}
-			// Notify any global listeners
-			if (null != _globalCallbacks && !_globalCallbacks.isEmpty()) {
-				for (CacheRequestCallback<T> callback: _globalCallbacks) {
-					callback.onTileReceived(index, tile);
+	private void load (Map<TileIndex, SettableFuture<TileData<T>>> claimed, TileLoader<T> loader) throws IOException {
+		try {
+			List<TileData<T>> tiles = loader.loadTiles(new ArrayList<>(claimed.keySet()));
+			if (null != tiles) {
+				for (TileData<T> tile: tiles) {
+					SettableFuture<TileData<T>> future = claimed.get(tile.getDefinition());
+					if (null != future) future.set(tile);
 				}
 			}
-			return false;
-		}
-
-		@Override
-		public void onTileAbandoned (TileIndex index) {
-			// If we're here, everything's already handled, so there is nothing
-			// more to do.
+			for (Map.Entry<TileIndex, SettableFuture<TileData<T>>> entry: claimed.entrySet()) {
+				// Anything we didn't get doesn't exist
+				entry.getValue().set(null);
+				cacheLoaded(entry.getKey(), entry.getValue());
+			}
+		} catch (IOException|RuntimeException|Error e) {
+			// Pass the failure to anyone waiting, and forget these tiles so
+			// that the next request tries again.
+			for (Map.Entry<TileIndex, SettableFuture<TileData<T>>> entry: claimed.entrySet()) {
+				entry.getValue().setException(e);
+				_loading.remove(entry.getKey(), entry.getValue());
+			}
+			throw e;
 		}
 	}
 
-
-
-	private class TileCacheRemovalPolicy
-		implements
-		RemovalPolicy<TileIndex, TileCacheEntry<T>> {
-		@Override
-		public boolean shouldRemove (Entry<TileIndex, TileCacheEntry<T>> entry,
-		                             Map<TileIndex, TileCacheEntry<T>> map,
-		                             int suggestedMaxSize) {
-			if (null == entry) {
-				return false;
-			} else if (null == entry.getValue()) {
-				return true;
-			} else {
-				TileCacheEntry<T> value = entry.getValue();
-				if (value.hasBeenRetrieved() || value.age() > _maxTileAge) {
-					// This entry has been received, or is to old for us to
-					// care; just remove it.
-					return true;
-				} else {
-					// First see if there is anything which has already been
-					// handled, so can be freely deleted.
-					for (Pair<TileIndex, Long> hasData: _haveData) {
-						TileIndex index = hasData.getFirst();
-						TileCacheEntry<T> entryWithData = _cache.get(index);
-						if (entryWithData.hasBeenRetrieved()) {
-							_cache.remove(index);
-							return false;
-						}
-					}
-
-					// If we get this far, there was nothing already handled.
-					//
-					// See if there's anything so old we just don't care about
-					// its safety any more.
-					if (_orderedKeys.size() > 0) {
-						TileIndex oldestKey = _orderedKeys.get(0);
-						TileCacheEntry<T> oldestEntry = _cache.get(oldestKey);
-						if (oldestEntry.age() > _maxTileAge) {
-							_cache.remove(oldestKey);
-						}
-					}
-					return false;
+	private TileData<T> waitFor (SettableFuture<TileData<T>> future) throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof IOException) throw new IOException(cause.getMessage(), cause);
+					if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+					if (cause instanceof Error) throw (Error) cause;
+					throw new IOException(cause);
 				}
 			}
+		} finally {
+			if (interrupted) Thread.currentThread().interrupt();
 		}
+	}
 
-		@Override
-		public void onElementRemoved (TileIndex key,
-		                              TileCacheEntry<T> value) {
-			value.abandonTile();
+	// Move a tile that has finished loading into the cache - unless it was
+	// invalidated while it was being read.
+	private void cacheLoaded (TileIndex index, SettableFuture<TileData<T>> future) {
+		_tiles.put(index, future);
+		if (!_loading.remove(index, future)) {
+			_tiles.asMap().remove(index, future);
 		}
 	}
 
 
 
-	// Compare two elements in our _haveData list.  This puts the older element first.
-	private class EntryAgeComparator implements
-		Comparator<Pair<TileIndex, Long>> {
-		@Override
-		public int compare (Pair<TileIndex, Long> o1, Pair<TileIndex, Long> o2) {
-			return -o1.getSecond().compareTo(o2.getSecond());
-		}
+	/**
+	 * The means by which a tile cache reads tiles it doesn't have.
+	 */
+	public static interface TileLoader<T> {
+		/**
+		 * Read a set of tiles.
+		 *
+		 * @param indices The tiles to read
+		 * @return Those tiles that exist. Missing tiles are simply left out.
+		 */
+		public List<TileData<T>> loadTiles (List<TileIndex> indices) throws IOException;
 	}
 }
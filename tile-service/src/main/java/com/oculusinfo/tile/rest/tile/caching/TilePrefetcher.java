@@ -0,0 +1,443 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rest.tile.caching;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+
+
+
+/**
+ * Reads tiles into the cache before clients ask for them.
+ *
+ * Each time a client tells us what tiles it is showing of a layer, we guess
+ * which tiles it will want next - the ring of tiles just outside its view,
+ * and the tiles of the next level down - and read them in the background.
+ * Comparing the view with the one before it tells us which way the client
+ * is moving, so the tiles it is moving towards are read first: ahead of a
+ * pan, the leading edge of the ring; when zooming in, the children; when
+ * zooming out, the parents.
+ *
+ * Prefetching is strictly best-effort. Reads happen on a few low-priority
+ * threads with a bounded queue (the oldest waiting work is dropped when it is
+ * full), and work for a view the client has already left is skipped.
+ *
+ * Views are tracked per client and layer; only the most recently active
+ * views are remembered. Prefetched tiles share the tile cache with the tiles
+ * clients are actually showing, so the most tiles prefetched for any one
+ * view should be well below the cache size (see setMaxTilesPerView).
+ */
+public class TilePrefetcher {
+	private static final Logger LOGGER = LoggerFactory.getLogger(TilePrefetcher.class);
+
+	public static final int DEFAULT_THREADS            = 2;
+	public static final int DEFAULT_QUEUE_SIZE         = 64;
+	public static final int DEFAULT_MAX_TILES_PER_VIEW = CachingPyramidIO.DEFAULT_TILE_CACHE_SIZE / 4;
+	// Tiles are requested in batches of this size, so that a change of view
+	// can cut off work part way through
+	static final int        BATCH_SIZE                 = 16;
+	// The most prefetched tiles remembered per layer, to see if they get used
+	private static final int MAX_TRACKED_TILES         = 4096;
+	// The most views remembered at once
+	private static final int MAX_TRACKED_VIEWS         = 1024;
+
+
+
+	private final TileRequester         _requester;
+	private volatile int                _maxTilesPerView;
+	private final ThreadPoolExecutor    _executor;
+	private final Map<String, Viewport> _viewports;
+	private final AtomicLong            _tilesPrefetched;
+	private final AtomicLong            _tilesUsed;
+	private final AtomicLong            _batchesCancelled;
+
+	public TilePrefetcher (TileRequester requester) {
+		this(requester, DEFAULT_THREADS, DEFAULT_QUEUE_SIZE, DEFAULT_MAX_TILES_PER_VIEW);
+	}
+
+	/**
+	 * @param requester The means of reading tiles into the cache
+	 * @param threads The number of threads reading tiles
+	 * @param queueSize The most batches of tiles waiting to be read
+	 * @param maxTilesPerView The most tiles to prefetch for any one view
+	 */
+	public TilePrefetcher (TileRequester requester, int threads, int queueSize, int maxTilesPerView) {
+		_requester = requester;
+		_maxTilesPerView = maxTilesPerView;
+		_executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+		                                   new ArrayBlockingQueue<Runnable>(queueSize),
+		                                   new ThreadFactory() {
+			                                   private final AtomicInteger _count = new AtomicInteger(0);
+			                                   @Override
+			                                   public Thread newThread (Runnable runnable) {
+				                                   Thread thread = new Thread(runnable, "tile-prefetch-"+_count.incrementAndGet());
+				                                   thread.setDaemon(true);
+				                                   thread.setPriority(Thread.MIN_PRIORITY);
+				                                   return thread;
+			                                   }
+		                                   },
+		                                   new ThreadPoolExecutor.DiscardOldestPolicy());
+		_executor.allowCoreThreadTimeOut(true);
+		_viewports = new LinkedHashMap<String, Viewport>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry (Map.Entry<String, Viewport> eldest) {
+				return size() > MAX_TRACKED_VIEWS;
+			}
+		};
+		_tilesPrefetched = new AtomicLong(0L);
+		_tilesUsed = new AtomicLong(0L);
+		_batchesCancelled = new AtomicLong(0L);
+	}
+
+	/**
+	 * Set the most tiles to prefetch for any one view
+	 */
+	public void setMaxTilesPerView (int maxTilesPerView) {
+		_maxTilesPerView = maxTilesPerView;
+	}
+
+	/**
+	 * Note the tiles an unidentified client is showing of a layer. All such
+	 * clients share one view of each layer.
+	 *
+	 * @see #viewChanged(String, String, TileSerializer, Iterable)
+	 */
+	public <T> void viewChanged (String pyramidId, TileSerializer<T> serializer,
+	                             Iterable<TileIndex> tileSet) {
+		viewChanged(pyramidId, null, serializer, tileSet);
+	}
+
+	/**
+	 * Note the tiles a client is showing of a layer, and start reading the
+	 * tiles it is likely to want next. Calls for a view we already know
+	 * about (as when each tile of a view is requested with the whole view)
+	 * do nothing.
+	 *
+	 * @param pyramidId The pyramid from which the layer's tiles are read
+	 * @param client An identifier of the client, or null if unknown
+	 * @param serializer The serializer with which to read them
+	 * @param tileSet All the tiles the client is showing. A set of a single
+	 *            tile says nothing about what the client is looking at, and
+	 *            is ignored.
+	 */
+	public <T> void viewChanged (final String pyramidId, String client,
+	                             final TileSerializer<T> serializer, Iterable<TileIndex> tileSet) {
+		if (null == tileSet) return;
+		Set<TileIndex> view = new HashSet<>();
+		for (TileIndex tile: tileSet) view.add(tile);
+		if (view.size() < 2) return;
+
+		final Viewport viewport;
+		final long generation;
+		List<TileIndex> predicted;
+		String viewKey = (null == client) ? pyramidId : pyramidId+"\n"+client;
+		synchronized (_viewports) {
+			Viewport existing = _viewports.get(viewKey);
+			viewport = (null == existing) ? new Viewport() : existing;
+			if (null == existing) _viewports.put(viewKey, viewport);
+		}
+		synchronized (viewport) {
+			if (view.equals(viewport._current)) return;
+
+			// See which of the tiles we guessed at were wanted
+			int used = 0;
+			for (TileIndex tile: view) {
+				if (null != viewport._prefetched.remove(tile)) ++used;
+			}
+			_tilesUsed.addAndGet(used);
+
+			predicted = predictTiles(viewport._current, view, _maxTilesPerView);
+			viewport._current = view;
+			generation = ++viewport._generation;
+		}
+
+		for (int start = 0; start < predicted.size(); start += BATCH_SIZE) {
+			final List<TileIndex> batch = predicted.subList(start, Math.min(predicted.size(), start + BATCH_SIZE));
+			_executor.execute(new Runnable() {
+				@Override
+				public void run () {
+					synchronized (viewport) {
+						if (generation != viewport._generation) {
+							// The client has moved on
+							_batchesCancelled.incrementAndGet();
+							return;
+						}
+					}
+					try {
+						_requester.requestTiles(pyramidId, serializer, batch);
+						// Only tiles actually read count towards the use rate
+						synchronized (viewport) {
+							for (TileIndex tile: batch) viewport._prefetched.put(tile, Boolean.TRUE);
+						}
+						_tilesPrefetched.addAndGet(batch.size());
+					} catch (IOException|RuntimeException e) {
+						LOGGER.debug("Error prefetching tiles for {}", pyramidId, e);
+					}
+				}
+			});
+		}
+	}
+
+	/** The number of tiles read ahead of time so far */
+	public long getTilesPrefetched () {
+		return _tilesPrefetched.get();
+	}
+
+	/** The number of tiles read ahead of time that a client then went on to show */
+	public long getTilesUsed () {
+		return _tilesUsed.get();
+	}
+
+	/** The proportion of tiles read ahead of time that were then used */
+	public double getUseRate () {
+		long prefetched = _tilesPrefetched.get();
+		if (0 == prefetched) return 0.0;
+		return ((double) _tilesUsed.get()) / prefetched;
+	}
+
+	/** The number of batches of tiles skipped because the client had moved on */
+	public long getBatchesCancelled () {
+		return _batchesCancelled.get();
+	}
+
+	/**
+	 * Stop prefetching. Work already waiting is abandoned.
+	 */
+	public void shutdown () {
+		_executor.shutdownNow();
+	}
+
+
+
+	/**
+	 * Guess which tiles a client will want next, most likely first.
+	 *
+	 * @param previous The view before the current one, or null if unknown
+	 * @param current The client's current view
+	 * @param maxTiles The most tiles to return
+	 */
+	static List<TileIndex> predictTiles (Set<TileIndex> previous, Set<TileIndex> current, int maxTiles) {
+		Map<Integer, Bounds> currentBounds = Bounds.byLevel(current);
+		Map<Integer, Bounds> previousBounds = (null == previous) ? Collections.<Integer, Bounds>emptyMap() : Bounds.byLevel(previous);
+
+		int currentLevel = mainLevel(currentBounds);
+		int previousLevel = previousBounds.isEmpty() ? currentLevel : mainLevel(previousBounds);
+
+		List<TileIndex> ring = new ArrayList<>();
+		List<TileIndex> children = new ArrayList<>();
+		List<TileIndex> parents = new ArrayList<>();
+		for (Bounds bounds: currentBounds.values()) {
+			Bounds before = previousBounds.get(bounds._level);
+			ring.addAll(bounds.getRing(null == before ? 0.0 : bounds.getCenterX() - before.getCenterX(),
+			                           null == before ? 0.0 : bounds.getCenterY() - before.getCenterY()));
+			children.addAll(bounds.getChildren());
+			parents.addAll(bounds.getParents());
+		}
+
+		List<List<TileIndex>> order = new ArrayList<>();
+		if (currentLevel > previousLevel) {
+			order.add(children);
+			order.add(ring);
+		} else if (currentLevel < previousLevel) {
+			order.add(parents);
+			order.add(ring);
+			order.add(children);
+		} else {
+			order.add(ring);
+			order.add(children);
+		}
+
+		Set<TileIndex> predicted = new LinkedHashSet<>();
+		for (List<TileIndex> tiles: order) {
+			for (TileIndex tile: tiles) {
+				if (predicted.size() >= maxTiles) break;
+				if (!current.contains(tile)) predicted.add(tile);
+			}
+		}
+		return new ArrayList<>(predicted);
+	}
+
+	// The level with the most tiles in view
+	private static int mainLevel (Map<Integer, Bounds> bounds) {
+		Bounds main = null;
+		for (Bounds level: bounds.values()) {
+			if (null == main || level._count > main._count) main = level;
+		}
+		return main._level;
+	}
+
+
+
+	/**
+	 * The means by which the prefetcher reads tiles into the cache.
+	 */
+	public static interface TileRequester {
+		/**
+		 * Read a set of tiles into the cache, if they aren't there already.
+		 */
+		public <T> void requestTiles (String pyramidId, TileSerializer<T> serializer,
+		                              Iterable<TileIndex> indices) throws IOException;
+	}
+
+	/*
+	 * What we know about one client's view of one layer
+	 */
+	private static class Viewport {
+		Set<TileIndex>          _current;
+		long                    _generation;
+		// Tiles we've prefetched and that haven't been shown yet, oldest first
+		Map<TileIndex, Boolean> _prefetched = new LinkedHashMap<TileIndex, Boolean>() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry (Map.Entry<TileIndex, Boolean> eldest) {
+				return size() > MAX_TRACKED_TILES;
+			}
+		};
+	}
+
+	/*
+	 * The bounding box of the tiles in view on one level
+	 */
+	private static class Bounds {
+		static Map<Integer, Bounds> byLevel (Set<TileIndex> tiles) {
+			Map<Integer, Bounds> bounds = new HashMap<>();
+			for (TileIndex tile: tiles) {
+				Bounds levelBounds = bounds.get(tile.getLevel());
+				if (null == levelBounds) {
+					levelBounds = new Bounds(tile);
+					bounds.put(tile.getLevel(), levelBounds);
+				} else {
+					levelBounds.add(tile);
+				}
+			}
+			return bounds;
+		}
+
+		final int _level;
+		final int _xBins;
+		final int _yBins;
+		int       _minX;
+		int       _maxX;
+		int       _minY;
+		int       _maxY;
+		int       _count;
+
+		Bounds (TileIndex tile) {
+			_level = tile.getLevel();
+			_xBins = tile.getXBins();
+			_yBins = tile.getYBins();
+			_minX = _maxX = tile.getX();
+			_minY = _maxY = tile.getY();
+			_count = 1;
+		}
+
+		void add (TileIndex tile) {
+			_minX = Math.min(_minX, tile.getX());
+			_maxX = Math.max(_maxX, tile.getX());
+			_minY = Math.min(_minY, tile.getY());
+			_maxY = Math.max(_maxY, tile.getY());
+			++_count;
+		}
+
+		double getCenterX () {
+			return (_minX + _maxX) / 2.0;
+		}
+
+		double getCenterY () {
+			return (_minY + _maxY) / 2.0;
+		}
+
+		// The tiles just outside the box, those in the direction of motion first
+		List<TileIndex> getRing (final double dx, final double dy) {
+			long max = (1L << _level) - 1;
+			List<TileIndex> ring = new ArrayList<>();
+			for (long x = _minX - 1L; x <= _maxX + 1L; ++x) {
+				for (long y = _minY - 1L; y <= _maxY + 1L; ++y) {
+					if (x < 0 || y < 0 || x > max || y > max) continue;
+					if (_minX <= x && x <= _maxX && _minY <= y && y <= _maxY) continue;
+					ring.add(new TileIndex(_level, (int) x, (int) y, _xBins, _yBins));
+				}
+			}
+			if (0.0 != dx || 0.0 != dy) {
+				final double cx = getCenterX();
+				final double cy = getCenterY();
+				Collections.sort(ring, new Comparator<TileIndex>() {
+					@Override
+					public int compare (TileIndex a, TileIndex b) {
+						double aAhead = (a.getX() - cx) * dx + (a.getY() - cy) * dy;
+						double bAhead = (b.getX() - cx) * dx + (b.getY() - cy) * dy;
+						return Double.compare(bAhead, aAhead);
+					}
+				});
+			}
+			return ring;
+		}
+
+		// The tiles of the next level down covering the box
+		List<TileIndex> getChildren () {
+			List<TileIndex> children = new ArrayList<>();
+			if (_level >= 30) return children;
+			for (int x = 2 * _minX; x <= 2 * _maxX + 1; ++x) {
+				for (int y = 2 * _minY; y <= 2 * _maxY + 1; ++y) {
+					children.add(new TileIndex(_level + 1, x, y, _xBins, _yBins));
+				}
+			}
+			return children;
+		}
+
+		// The tiles of the next level up covering the box
+		List<TileIndex> getParents () {
+			List<TileIndex> parents = new ArrayList<>();
+			if (0 == _level) return parents;
+			for (int x = _minX / 2; x <= _maxX / 2; ++x) {
+				for (int y = _minY / 2; y <= _maxY / 2; ++y) {
+					parents.add(new TileIndex(_level - 1, x, y, _xBins, _yBins));
+				}
+			}
+			return parents;
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rest.tile.caching;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.common.base.Optional;
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+
+
+
+/**
+ * A least-recently-used cache of computed tiles, bounded by the estimated
+ * total number of bytes held rather than by the number of tiles.
+ *
+ * Tiles are keyed not just by pyramid and index, but by a hash of the
+ * configuration that produced them, so that tiles computed under an old
+ * configuration are never served under a new one.  Tiles that were computed
+ * and found to be empty are cached too, so that empty areas are not
+ * recomputed either.
+ */
+public class TileResultCache {
+	// The bytes charged for each entry, over and above the tile itself
+	private static final long ENTRY_OVERHEAD = 128L;
+
+	private long                     _maxBytes;
+	// Kept in access order, least recently used first.
+	private LinkedHashMap<Key, Entry> _entries;
+	private long                     _bytes;
+	private long                     _hits;
+	private long                     _misses;
+
+	/**
+	 * Create a cache of computed tiles
+	 * 
+	 * @param maxBytes The maximum estimated total size, in bytes, of all
+	 *            tiles held by the cache
+	 */
+	public TileResultCache (long maxBytes) {
+		_maxBytes = maxBytes;
+		_entries = new LinkedHashMap<>(16, 0.75f, true);
+		_bytes = 0L;
+		_hits = 0L;
+		_misses = 0L;
+	}
+
+	/**
+	 * Get a computed tile, if it is in the cache.
+	 * 
+	 * @return The tile, or an absent value if the tile was computed and found
+	 *         to be empty, or null if the tile is not in the cache.
+	 */
+	synchronized public Optional<TileData<?>> get (Key key) {
+		Entry entry = _entries.get(key);
+		if (null == entry) {
+			++_misses;
+			return null;
+		}
+		++_hits;
+		return Optional.<TileData<?>>fromNullable(entry._tile);
+	}
+
+	/**
+	 * Put a computed tile into the cache.
+	 * 
+	 * @param key The key of the tile
+	 * @param tile The tile, or null if the tile was computed and found to be
+	 *            empty
+	 * @param size The estimated size of the tile, in bytes
+	 */
+	synchronized public void put (Key key, TileData<?> tile, long size) {
+		remove(key);
+		long totalSize = size + ENTRY_OVERHEAD;
+		// Anything that can't fit even in an empty cache is just not cached.
+		if (totalSize > _maxBytes) return;
+
+		_entries.put(key, new Entry(tile, totalSize));
+		_bytes += totalSize;
+		evictExcess();
+	}
+
+	/**
+	 * Remove a tile from the cache, if it is there.
+	 */
+	synchronized public void remove (Key key) {
+		Entry entry = _entries.remove(key);
+		if (null != entry) _bytes -= entry._size;
+	}
+
+	/**
+	 * Remove all tiles computed with one configuration of a pyramid.
+	 */
+	synchronized public void remove (String pyramidId, String configurationHash) {
+		Iterator<Map.Entry<Key, Entry>> i = _entries.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<Key, Entry> entry = i.next();
+			Key key = entry.getKey();
+			if (key._pyramidId.equals(pyramidId) && key._configurationHash.equals(configurationHash)) {
+				i.remove();
+				_bytes -= entry.getValue()._size;
+			}
+		}
+	}
+
+	/**
+	 * Remove all tiles from the cache.  Hit and miss counts are retained.
+	 */
+	synchronized public void clear () {
+		_entries.clear();
+		_bytes = 0L;
+	}
+
+	/** The number of tiles currently in the cache */
+	synchronized public int size () {
+		return _entries.size();
+	}
+
+	/** The estimated total number of bytes currently held by the cache */
+	synchronized public long getSizeInBytes () {
+		return _bytes;
+	}
+
+	/** The number of requests to this cache that found their tile */
+	synchronized public long getHitCount () {
+		return _hits;
+	}
+
+	/** The number of requests to this cache that didn't find their tile */
+	synchronized public long getMissCount () {
+		return _misses;
+	}
+
+	// Drop least-recently used entries until we are within our allotment
+	private void evictExcess () {
+		Iterator<Map.Entry<Key, Entry>> i = _entries.entrySet().iterator();
+		while (_bytes > _maxBytes && i.hasNext()) {
+			Map.Entry<Key, Entry> entry = i.next();
+			i.remove();
+			_bytes -= entry.getValue()._size;
+		}
+	}
+
+
+
+	private static class Entry {
+		TileData<?> _tile;
+		long        _size;
+		Entry (TileData<?> tile, long size) {
+			_tile = tile;
+			_size = size;
+		}
+	}
+
+	/**
+	 * The key of a computed tile: the pyramid it is in, a hash of the
+	 * configuration with which that pyramid was computed, and its index.
+	 */
+	public static class Key {
+		private String    _pyramidId;
+		private String    _configurationHash;
+		private TileIndex _index;
+
+		public Key (String pyramidId, String configurationHash, TileIndex index) {
+			_pyramidId = pyramidId;
+			_configurationHash = configurationHash;
+			_index = index;
+		}
+
+		public String getPyramidId () {
+			return _pyramidId;
+		}
+
+		public String getConfigurationHash () {
+			return _configurationHash;
+		}
+
+		public TileIndex getIndex () {
+			return _index;
+		}
+
+		@Override
+		public boolean equals (Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Key)) return false;
+			Key that = (Key) obj;
+			return _pyramidId.equals(that._pyramidId)
+				&& _configurationHash.equals(that._configurationHash)
+				&& _index.equals(that._index);
+		}
+
+		@Override
+		public int hashCode () {
+			return (_pyramidId.hashCode() * 31 + _configurationHash.hashCode()) * 31 + _index.hashCode();
+		}
+
+		@Override
+		public String toString () {
+			return _pyramidId+"@"+_configurationHash+":"+_index;
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rest.tile.caching;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.oculusinfo.binning.TileIndex;
+
+
+
+/**
+ * A cache of raw, serialized tiles, bounded by the total number of bytes held
+ * rather than by the number of tiles.
+ *
+ * Eviction is segmented-LRU: tiles enter a probationary segment, and are
+ * promoted to a protected segment on their second hit.  Tiles demoted from the
+ * protected segment go back to probation, so tiles read only once (as during a
+ * pan across a large area) cannot flush out the tiles everyone keeps reading.
+ *
+ * Hits and misses are counted so that the effectiveness of the cache can be
+ * monitored.
+ */
+public class TileStreamCache {
+	// The proportion of our total size allowed to protected entries
+	private static final double PROTECTED_PROPORTION = 0.8;
+
+	private long                             _maxBytes;
+	private long                             _maxProtectedBytes;
+	// Both segments are kept in access order, least recently used first.
+	private LinkedHashMap<TileIndex, byte[]> _probation;
+	private LinkedHashMap<TileIndex, byte[]> _protected;
+	private long                             _probationBytes;
+	private long                             _protectedBytes;
+	private long                             _hits;
+	private long                             _misses;
+
+	/**
+	 * Create a cache of serialized tiles
+	 * 
+	 * @param maxBytes The maximum total size, in bytes, of all tiles held by
+	 *            the cache
+	 */
+	public TileStreamCache (long maxBytes) {
+		_maxBytes = maxBytes;
+		_maxProtectedBytes = (long) (maxBytes * PROTECTED_PROPORTION);
+		_probation = new LinkedHashMap<>(16, 0.75f, true);
+		_protected = new LinkedHashMap<>(16, 0.75f, true);
+		_probationBytes = 0L;
+		_protectedBytes = 0L;
+		_hits = 0L;
+		_misses = 0L;
+	}
+
+	/**
+	 * Get the serialized form of a tile, if it is in the cache.
+	 * 
+	 * The returned array is the cache's own copy, and must not be modified.
+	 * 
+	 * @param index The index of the tile to get
+	 * @return The serialized tile, or null if the tile is not in the cache.
+	 */
+	synchronized public byte[] get (TileIndex index) {
+		byte[] data = _protected.get(index);
+		if (null != data) {
+			++_hits;
+			return data;
+		}
+
+		data = _probation.remove(index);
+		if (null != data) {
+			// Second hit - promote to protected
+			++_hits;
+			_probationBytes -= data.length;
+			_protected.put(index, data);
+			_protectedBytes += data.length;
+			demoteExcess();
+			return data;
+		}
+
+		++_misses;
+		return null;
+	}
+
+	/**
+	 * Put the serialized form of a tile into the cache.
+	 * 
+	 * @param index The index of the tile
+	 * @param data The serialized tile.  The cache takes ownership of this
+	 *            array; it must not be modified after this call.
+	 */
+	synchronized public void put (TileIndex index, byte[] data) {
+		remove(index);
+		// Anything that can't fit even in an empty cache is just not cached.
+		if (data.length > _maxBytes) return;
+
+		_probation.put(index, data);
+		_probationBytes += data.length;
+		evictExcess();
+	}
+
+	/**
+	 * Remove a tile from the cache, if it is there.
+	 */
+	synchronized public void remove (TileIndex index) {
+		byte[] data = _probation.remove(index);
+		if (null != data) _probationBytes -= data.length;
+		data = _protected.remove(index);
+		if (null != data) _protectedBytes -= data.length;
+	}
+
+	/**
+	 * Remove all tiles from the cache.  Hit and miss counts are retained.
+	 */
+	synchronized public void clear () {
+		_probation.clear();
+		_protected.clear();
+		_probationBytes = 0L;
+		_protectedBytes = 0L;
+	}
+
+	/** The number of tiles currently in the cache */
+	synchronized public int size () {
+		return _probation.size() + _protected.size();
+	}
+
+	/** The total number of bytes currently held by the cache */
+	synchronized public long getSizeInBytes () {
+		return _probationBytes + _protectedBytes;
+	}
+
+	/** The number of requests to this cache that found their tile */
+	synchronized public long getHitCount () {
+		return _hits;
+	}
+
+	/** The number of requests to this cache that didn't find their tile */
+	synchronized public long getMissCount () {
+		return _misses;
+	}
+
+	// Move least-recently used protected entries back to probation until the
+	// protected segment is within its allotment
+	private void demoteExcess () {
+		Iterator<Map.Entry<TileIndex, byte[]>> i = _protected.entrySet().iterator();
+		while (_protectedBytes > _maxProtectedBytes && i.hasNext()) {
+			Map.Entry<TileIndex, byte[]> entry = i.next();
+			i.remove();
+			_protectedBytes -= entry.getValue().length;
+			_probation.put(entry.getKey(), entry.getValue());
+			_probationBytes += entry.getValue().length;
+		}
+		evictExcess();
+	}
+
+	// Drop least-recently used probationary entries until we are within our
+	// total allotment
+	private void evictExcess () {
+		Iterator<Map.Entry<TileIndex, byte[]>> i = _probation.entrySet().iterator();
+		while (_probationBytes + _protectedBytes > _maxBytes && i.hasNext()) {
+			Map.Entry<TileIndex, byte[]> entry = i.next();
+			i.remove();
+			_probationBytes -= entry.getValue().length;
+		}
+	}
+}
@@ -130,4 +130,32 @@ public class LayerServiceTests {
 		}
 	}
 
+	@Test
+	public void layerConfigurationCacheTest() throws Exception {
+		// Equivalent requests should share a configuration
+		JSONObject override0 = QueryParamDecoder.decode( "renderer.ramp=cool&renderer.coarseness=3" );
+		JSONObject override1 = QueryParamDecoder.decode( "renderer.coarseness=3&renderer.ramp=cool" );
+		JSONObject override2 = QueryParamDecoder.decode( "renderer.ramp=hot" );
+		LayerConfiguration config0 = _layerService.getLayerConfiguration( "test-layer0", override0 );
+		LayerConfiguration config1 = _layerService.getLayerConfiguration( "test-layer0", override1 );
+		LayerConfiguration config2 = _layerService.getLayerConfiguration( "test-layer0", override2 );
+		Assert.assertSame( config0, config1 );
+		Assert.assertNotSame( config0, config2 );
+		Assert.assertSame( _layerService.getLayerConfiguration( "test-layer0", null ),
+		                   _layerService.getLayerConfiguration( "test-layer0", null ) );
+		Assert.assertNotSame( _layerService.getLayerConfiguration( "test-layer0", null ),
+		                      _layerService.getLayerConfiguration( "test-layer1", null ) );
+
+		// The tiles a request wants don't change its configuration
+		JSONObject view0 = QueryParamDecoder.decode( "renderer.ramp=cool&renderer.coarseness=3&tileset=1,0,0" );
+		JSONObject view1 = QueryParamDecoder.decode( "renderer.ramp=cool&renderer.coarseness=3&tileset=1,1,0|1,0,1" );
+		Assert.assertSame( _layerService.getLayerConfiguration( "test-layer0", view0 ),
+		                   _layerService.getLayerConfiguration( "test-layer0", view1 ) );
+		Assert.assertSame( config0, _layerService.getLayerConfiguration( "test-layer0", view0 ) );
+		Assert.assertSame( _layerService.getLayerConfiguration( "test-layer0", null ),
+		                   _layerService.getLayerConfiguration( "test-layer0", QueryParamDecoder.decode( "mintile=1,0,0&maxtile=1,1,1" ) ) );
+
+		// Created configurations are always new
+		Assert.assertNotSame( config0, _layerService.createLayerConfiguration( "test-layer0", override0 ) );
+	}
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rest.tile;
+
+
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.tile.rest.tile.TileService.TileResultHandler;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+
+public class TileBatchTests {
+	private ExecutorService _executor;
+	private List<TileIndex> _indices;
+
+
+
+	@Before
+	public void setup () {
+		_executor = Executors.newFixedThreadPool(4);
+		_indices = new ArrayList<>();
+		for (int x=0; x<8; ++x) {
+			for (int y=0; y<8; ++y) {
+				_indices.add(new TileIndex(3, x, y));
+			}
+		}
+	}
+
+	@After
+	public void cleanup () {
+		_executor.shutdownNow();
+		_executor = null;
+		_indices = null;
+	}
+
+
+
+	@Test
+	public void testAllTilesHandled () throws Exception {
+		final Set<TileIndex> handled = new HashSet<>();
+		TileBatch.run(_executor, _indices, 5, new TileBatch.TileTask<String>() {
+			@Override
+			public String process (TileIndex index) {
+				return index.toString();
+			}
+		}, new TileResultHandler<String>() {
+			@Override
+			public void handleTile (TileIndex index, String result) {
+				Assert.assertEquals(index.toString(), result);
+				Assert.assertTrue(handled.add(index));
+			}
+		});
+		Assert.assertEquals(new HashSet<>(_indices), handled);
+	}
+
+	@Test
+	public void testWorkInProgressIsBounded () throws Exception {
+		// Count tiles from when they start until they are handled
+		final AtomicInteger inProgress = new AtomicInteger(0);
+		final AtomicInteger maxInProgress = new AtomicInteger(0);
+		TileBatch.run(_executor, _indices, 3, new TileBatch.TileTask<Integer>() {
+			@Override
+			public Integer process (TileIndex index) throws Exception {
+				int current = inProgress.incrementAndGet();
+				synchronized (maxInProgress) {
+					maxInProgress.set(Math.max(maxInProgress.get(), current));
+				}
+				Thread.sleep(2);
+				return index.getX();
+			}
+		}, new TileResultHandler<Integer>() {
+			@Override
+			public void handleTile (TileIndex index, Integer result) throws IOException {
+				try {
+					// A slow consumer shouldn't let results pile up
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				inProgress.decrementAndGet();
+			}
+		});
+		Assert.assertEquals(0, inProgress.get());
+		Assert.assertTrue(maxInProgress.get() <= 3);
+	}
+
+	@Test
+	public void testHandlerFailure () {
+		final AtomicInteger processed = new AtomicInteger(0);
+		try {
+			TileBatch.run(_executor, _indices, 4, new TileBatch.TileTask<Integer>() {
+				@Override
+				public Integer process (TileIndex index) {
+					return processed.incrementAndGet();
+				}
+			}, new TileResultHandler<Integer>() {
+				@Override
+				public void handleTile (TileIndex index, Integer result) throws IOException {
+					throw new IOException("Client went away");
+				}
+			});
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertEquals("Client went away", e.getMessage());
+		}
+		// The rest of the batch was abandoned
+		Assert.assertTrue(processed.get() <= 4);
+	}
+
+	@Test
+	public void testTaskFailure () {
+		try {
+			TileBatch.run(_executor, _indices, 4, new TileBatch.TileTask<Integer>() {
+				@Override
+				public Integer process (TileIndex index) {
+					if (3 == index.getX()) throw new IllegalStateException("Bad tile");
+					return 0;
+				}
+			}, new TileResultHandler<Integer>() {
+				@Override
+				public void handleTile (TileIndex index, Integer result) {
+				}
+			});
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rest.tile.caching;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.binning.io.PyramidIO;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+import com.oculusinfo.factory.ConfigurableFactory;
+import com.oculusinfo.factory.ConfigurationException;
+
+
+
+public class CachingPyramidIOTests {
+	private CountingPyramidIO  _base;
+	private CachingPyramidIO   _io;
+	private RenderedImageCache _images;
+
+
+
+	@Before
+	public void setup () throws ConfigurationException {
+		_base = new CountingPyramidIO();
+		ConfigurableFactory<PyramidIO> factory = new ConfigurableFactory<PyramidIO>(PyramidIO.class, null, null) {
+			@Override
+			protected PyramidIO create () {
+				return _base;
+			}
+		};
+		factory.readConfiguration(new JSONObject());
+
+		_io = new CachingPyramidIO();
+		_io.setupBasePyramidIO("pyramid", factory);
+		_images = new RenderedImageCache(1000);
+		_io.addLayerListener(_images);
+	}
+
+
+
+	// Tiles whose value is the number of times they have been written
+	private static class CountingPyramidIO implements PyramidIO {
+		AtomicInteger _reads = new AtomicInteger(0);
+		AtomicInteger _writes = new AtomicInteger(0);
+
+		@Override
+		public void initializeForWrite (String pyramidId) {
+		}
+
+		@Override
+		public <T> void writeTiles (String pyramidId, TileSerializer<T> serializer, Iterable<TileData<T>> data) {
+			_writes.incrementAndGet();
+		}
+
+		@Override
+		public void writeMetaData (String pyramidId, String metaData) {
+		}
+
+		@Override
+		public void initializeForRead (String pyramidId, int width, int height, Properties dataDescription) {
+		}
+
+		@Override
+		public <T> List<TileData<T>> readTiles (String pyramidId, TileSerializer<T> serializer,
+		                                        Iterable<TileIndex> tiles) {
+			List<TileData<T>> results = new ArrayList<>();
+			for (TileIndex index: tiles) {
+				_reads.incrementAndGet();
+				@SuppressWarnings("unchecked")
+				T value = (T) Integer.valueOf(_writes.get());
+				results.add(new DenseTileData<T>(index, value));
+			}
+			return results;
+		}
+
+		@Override
+		public <T> InputStream getTileStream (String pyramidId, TileSerializer<T> serializer, TileIndex tile) {
+			return null;
+		}
+
+		@Override
+		public String readMetaData (String pyramidId) {
+			return null;
+		}
+
+		@Override
+		public void removeTiles (String id, Iterable<TileIndex> tiles) {
+		}
+	}
+
+	// Renders a tile read through the caching pyramid IO
+	private byte[] render (final TileIndex index) throws IOException {
+		RenderedImageCache.Key key = _images.createKey("layer", "pyramid", "state", index, "png");
+		return _images.getImage(key, new RenderedImageCache.ImageSource() {
+			@Override
+			public byte[] getImage () throws IOException {
+				List<TileData<Integer>> tiles = _io.readTiles("pyramid", null, Arrays.asList(index));
+				return new byte[] {tiles.get(0).getBin(0, 0).byteValue()};
+			}
+		});
+	}
+
+
+
+	@Test
+	public void testReadsKeepRenderedImages () throws IOException {
+		TileIndex a = new TileIndex(1, 0, 0);
+		TileIndex b = new TileIndex(1, 1, 0);
+
+		render(a);
+		render(b);
+		Assert.assertEquals(2, _base._reads.get());
+		Assert.assertEquals(0, _images.getHitCount());
+
+		// Filling the tile cache with b mustn't have dropped the image of a
+		render(a);
+		Assert.assertEquals(1, _images.getHitCount());
+		Assert.assertEquals(2, _base._reads.get());
+	}
+
+	@Test
+	public void testWritesDropCachedData () throws IOException {
+		TileIndex a = new TileIndex(1, 0, 0);
+		TileIndex b = new TileIndex(1, 1, 0);
+
+		Assert.assertEquals(0, render(a)[0]);
+		render(b);
+
+		List<TileData<Integer>> written = new ArrayList<>();
+		written.add(new DenseTileData<Integer>(a, 1));
+		_io.writeTiles("pyramid", null, written);
+		Assert.assertEquals(1, _base._writes.get());
+
+		// Both the tile and its image should have been dropped
+		Assert.assertEquals(1, render(a)[0]);
+		Assert.assertEquals(3, _base._reads.get());
+		Assert.assertEquals(0, _images.getHitCount());
+
+		// The tile of b is still cached, though its image was dropped along
+		// with the rest of the layer's
+		Assert.assertEquals(0, render(b)[0]);
+		Assert.assertEquals(3, _base._reads.get());
+	}
+}
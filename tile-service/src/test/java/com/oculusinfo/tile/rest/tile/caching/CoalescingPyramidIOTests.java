@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rest.tile.caching;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.binning.io.PyramidIO;
+import com.oculusinfo.binning.io.ReleasablePyramidIO;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+
+
+
+public class CoalescingPyramidIOTests {
+	private ComputingPyramidIO  _base;
+	private CoalescingPyramidIO _io;
+
+
+
+	@Before
+	public void setup () {
+		_base = new ComputingPyramidIO();
+		_io = new CoalescingPyramidIO(_base, 100L, 256, 64L * 1024L * 1024L);
+		_io.initializeForRead("pyramid", 256, 256, new Properties());
+	}
+
+	@After
+	public void cleanup () {
+		_io.shutdown();
+		_io = null;
+		_base = null;
+	}
+
+
+
+	// Computes tiles whose value is their x index, except for any tile with
+	// a y index of 3, which is empty.  Records each request made of it, the
+	// pyramid it was of, and the pyramids released.
+	private static class ComputingPyramidIO implements PyramidIO, ReleasablePyramidIO {
+		List<List<TileIndex>> _requests = new CopyOnWriteArrayList<>();
+		List<String>          _pyramidIds = new CopyOnWriteArrayList<>();
+		List<String>          _released = new CopyOnWriteArrayList<>();
+
+		@Override
+		public void releasePyramid (String pyramidId) {
+			_released.add(pyramidId);
+		}
+
+		@Override
+		public void initializeForWrite (String pyramidId) {
+		}
+
+		@Override
+		public <T> void writeTiles (String pyramidId, TileSerializer<T> serializer, Iterable<TileData<T>> data) {
+		}
+
+		@Override
+		public void writeMetaData (String pyramidId, String metaData) {
+		}
+
+		@Override
+		public void initializeForRead (String pyramidId, int width, int height, Properties dataDescription) {
+		}
+
+		@Override
+		public <T> List<TileData<T>> readTiles (String pyramidId, TileSerializer<T> serializer,
+		                                        Iterable<TileIndex> tiles) throws IOException {
+			List<TileIndex> request = new ArrayList<>();
+			List<TileData<T>> results = new ArrayList<>();
+			for (TileIndex index: tiles) {
+				request.add(index);
+				if (3 != index.getY()) {
+					@SuppressWarnings("unchecked")
+					T value = (T) Integer.valueOf(index.getX());
+					results.add(new DenseTileData<T>(index, value));
+				}
+			}
+			_requests.add(request);
+			_pyramidIds.add(pyramidId);
+			return results;
+		}
+
+		@Override
+		public <T> InputStream getTileStream (String pyramidId, TileSerializer<T> serializer, TileIndex tile) {
+			return null;
+		}
+
+		@Override
+		public String readMetaData (String pyramidId) {
+			return null;
+		}
+
+		@Override
+		public void removeTiles (String id, Iterable<TileIndex> tiles) {
+		}
+	}
+
+	private List<TileData<Integer>> read (TileIndex... indices) throws IOException {
+		return _io.readTiles("pyramid", null, Arrays.asList(indices));
+	}
+
+	@Test
+	public void testConcurrentRequestsCoalesce () throws Exception {
+		final int N = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<TileData<Integer>> results = new CopyOnWriteArrayList<>();
+		final List<Throwable> errors = new CopyOnWriteArrayList<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int i=0; i<N; ++i) {
+			// Every thread asks for its own tile, and for one tile they all share
+			final TileIndex own = new TileIndex(3, i, 0);
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run () {
+					try {
+						start.await();
+						results.addAll(read(own, new TileIndex(3, 0, 7)));
+					} catch (Throwable t) {
+						errors.add(t);
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread: threads) thread.join();
+
+		Assert.assertTrue(errors.isEmpty());
+		Assert.assertEquals(2 * N, results.size());
+		// All requests arrive within the window, so one computation does them
+		// all, with each tile asked for once
+		Assert.assertEquals(1, _base._requests.size());
+		Assert.assertEquals(N + 1, _base._requests.get(0).size());
+	}
+
+	@Test
+	public void testResultCaching () throws IOException {
+		List<TileData<Integer>> tiles = read(new TileIndex(2, 1, 0), new TileIndex(2, 1, 3), new TileIndex(2, 2, 0));
+		// Empty tiles are dropped, and order kept
+		Assert.assertEquals(2, tiles.size());
+		Assert.assertEquals(new TileIndex(2, 1, 0), tiles.get(0).getDefinition());
+		Assert.assertEquals(2, tiles.get(1).getBin(0, 0).intValue());
+		Assert.assertEquals(1, _base._requests.size());
+
+		// Everything, including the empty tile, should now come from the cache
+		tiles = read(new TileIndex(2, 2, 0), new TileIndex(2, 1, 3));
+		Assert.assertEquals(1, tiles.size());
+		Assert.assertEquals(1, _base._requests.size());
+		Assert.assertEquals(3, _io.getResultCache().size());
+
+		// A new configuration means new tiles
+		Properties description = new Properties();
+		description.setProperty("oculus.binning.levels.0", "2");
+		_io.initializeForRead("pyramid", 256, 256, description);
+		read(new TileIndex(2, 2, 0));
+		Assert.assertEquals(2, _base._requests.size());
+	}
+
+	@Test
+	public void testConfigurationsComputedSeparately () throws IOException {
+		read(new TileIndex(2, 1, 0));
+
+		// Another configuration of the same pyramid is a separate pyramid to
+		// the base pyramid IO
+		Properties description = new Properties();
+		description.setProperty("oculus.binning.levels.0", "2");
+		_io.initializeForRead("pyramid", 256, 256, description);
+		read(new TileIndex(2, 1, 0));
+		Assert.assertEquals(2, _base._pyramidIds.size());
+		Assert.assertEquals("pyramid", _base._pyramidIds.get(0));
+		Assert.assertEquals("pyramid."+CoalescingPyramidIO.getConfigurationHash(256, 256, description),
+		                    _base._pyramidIds.get(1));
+
+		// Going back to the first configuration finds its own tiles
+		_io.initializeForRead("pyramid", 256, 256, new Properties());
+		read(new TileIndex(2, 1, 0));
+		Assert.assertEquals(2, _base._requests.size());
+	}
+
+	@Test
+	public void testOldConfigurationsReleased () throws IOException {
+		read(new TileIndex(2, 1, 0));
+		Assert.assertEquals(1, _io.getResultCache().size());
+
+		List<String> hashes = new ArrayList<>();
+		for (int n=1; n<=CoalescingPyramidIO.MAX_CONFIGURATIONS; ++n) {
+			Properties description = new Properties();
+			description.setProperty("oculus.binning.levels.0", ""+n);
+			hashes.add(CoalescingPyramidIO.getConfigurationHash(256, 256, description));
+			_io.initializeForRead("pyramid", 256, 256, description);
+		}
+
+		// The first configuration is the oldest, and so is let go, tiles and all
+		Assert.assertEquals(Arrays.asList("pyramid"), _base._released);
+		Assert.assertEquals(0, _io.getResultCache().size());
+
+		// Re-initializing a configuration we still keep makes it the newest
+		Properties description = new Properties();
+		description.setProperty("oculus.binning.levels.0", "1");
+		_io.initializeForRead("pyramid", 256, 256, description);
+		_io.initializeForRead("pyramid", 256, 256, new Properties());
+		Assert.assertEquals(Arrays.asList("pyramid", "pyramid."+hashes.get(1)), _base._released);
+	}
+
+	@Test
+	public void testBatchSizeLimit () throws IOException {
+		_io.shutdown();
+		_io = new CoalescingPyramidIO(_base, 60000L, 4, 64L * 1024L * 1024L);
+		List<TileIndex> indices = new ArrayList<>();
+		for (int x=0; x<4; ++x) indices.add(new TileIndex(2, x, 0));
+
+		// A full batch shouldn't wait out the window
+		long startTime = System.currentTimeMillis();
+		List<TileData<Integer>> tiles = _io.readTiles("pyramid", null, indices);
+		Assert.assertEquals(4, tiles.size());
+		Assert.assertTrue(System.currentTimeMillis() - startTime < 30000L);
+	}
+
+	@Test
+	public void testConfigurationHash () {
+		Properties a = new Properties();
+		a.setProperty("x", "1");
+		a.setProperty("y", "2");
+		Properties b = new Properties();
+		b.setProperty("y", "2");
+		b.setProperty("x", "1");
+		Assert.assertEquals(CoalescingPyramidIO.getConfigurationHash(256, 256, a),
+		                    CoalescingPyramidIO.getConfigurationHash(256, 256, b));
+		Assert.assertFalse(CoalescingPyramidIO.getConfigurationHash(256, 256, a)
+		                   .equals(CoalescingPyramidIO.getConfigurationHash(128, 128, a)));
+		b.setProperty("x", "3");
+		Assert.assertFalse(CoalescingPyramidIO.getConfigurationHash(256, 256, a)
+		                   .equals(CoalescingPyramidIO.getConfigurationHash(256, 256, b)));
+	}
+}
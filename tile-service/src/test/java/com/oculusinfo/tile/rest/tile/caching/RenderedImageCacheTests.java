@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rest.tile.caching;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.tile.rest.tile.caching.RenderedImageCache.ImageSource;
+import com.oculusinfo.tile.rest.tile.caching.RenderedImageCache.Key;
+
+
+
+public class RenderedImageCacheTests {
+	private File _spillDirectory;
+
+	@Before
+	public void setup () throws IOException {
+		_spillDirectory = File.createTempFile("imageCache", "");
+		_spillDirectory.delete();
+	}
+
+	@After
+	public void cleanup () {
+		File[] files = _spillDirectory.listFiles();
+		if (null != files) {
+			for (File file: files) file.delete();
+		}
+		_spillDirectory.delete();
+	}
+
+	private static class CountingSource implements ImageSource {
+		AtomicInteger _renders = new AtomicInteger(0);
+		int _size;
+		CountingSource (int size) {
+			_size = size;
+		}
+		@Override
+		public byte[] getImage () throws IOException {
+			_renders.incrementAndGet();
+			byte[] image = new byte[_size];
+			image[0] = (byte) _renders.get();
+			return image;
+		}
+	}
+
+	private static Key key (RenderedImageCache cache, String layer, int x) {
+		return cache.createKey(layer, "state", new TileIndex(3, x, 0), "png");
+	}
+
+	@Test
+	public void testRenderOnce () throws IOException {
+		RenderedImageCache cache = new RenderedImageCache(1000);
+		CountingSource source = new CountingSource(10);
+
+		byte[] first = cache.getImage(key(cache, "a", 0), source);
+		byte[] second = cache.getImage(key(cache, "a", 0), source);
+		Assert.assertSame(first, second);
+		Assert.assertEquals(1, source._renders.get());
+		Assert.assertEquals(1, cache.getHitCount());
+		Assert.assertEquals(1, cache.getMissCount());
+
+		// Different state, different image
+		cache.getImage(cache.createKey("a", "other", new TileIndex(3, 0, 0), "png"), source);
+		Assert.assertEquals(2, source._renders.get());
+	}
+
+	@Test
+	public void testInvalidation () throws IOException {
+		RenderedImageCache cache = new RenderedImageCache(1000);
+		CountingSource source = new CountingSource(10);
+
+		cache.getImage(key(cache, "a", 0), source);
+		cache.getImage(key(cache, "b", 0), source);
+		Key staleKey = key(cache, "a", 1);
+
+		cache.onLayerDataChanged("a");
+		Assert.assertEquals(1, cache.getMemoryCount());
+		Assert.assertNull(cache.get(key(cache, "a", 0)));
+		Assert.assertNotNull(cache.get(key(cache, "b", 0)));
+
+		// Images rendered from old data shouldn't be cached
+		cache.put(staleKey, new byte[10]);
+		Assert.assertNull(cache.get(key(cache, "a", 1)));
+	}
+
+	@Test
+	public void testSpill () throws IOException {
+		RenderedImageCache cache = new RenderedImageCache(25);
+		cache.setSpillDirectory(_spillDirectory, 45);
+		CountingSource source = new CountingSource(10);
+
+		for (int x=0; x<8; ++x) {
+			cache.getImage(key(cache, "a", x), source);
+		}
+		Assert.assertEquals(2, cache.getMemoryCount());
+		Assert.assertEquals(4, cache.getSpillCount());
+		Assert.assertEquals(4, _spillDirectory.listFiles().length);
+
+		// Spilled images should be read back, not re-rendered
+		byte[] image = cache.getImage(key(cache, "a", 4), source);
+		Assert.assertEquals(8, source._renders.get());
+		Assert.assertEquals(5, image[0]);
+
+		// The oldest should have been dropped entirely
+		cache.getImage(key(cache, "a", 0), source);
+		Assert.assertEquals(9, source._renders.get());
+
+		cache.onLayerDataChanged("a");
+		Assert.assertEquals(0, cache.getSpillCount());
+		Assert.assertEquals(0, _spillDirectory.listFiles().length);
+	}
+
+	@Test
+	public void testOldSpillFilesDeleted () throws IOException {
+		_spillDirectory.mkdirs();
+		RenderedImageCache oldCache = new RenderedImageCache(0);
+		File oldImage = new File(_spillDirectory, key(oldCache, "a", 0).getFileName());
+		File other = new File(_spillDirectory, "other.txt");
+		Assert.assertTrue(oldImage.createNewFile());
+		Assert.assertTrue(other.createNewFile());
+
+		RenderedImageCache cache = new RenderedImageCache(25);
+		cache.setSpillDirectory(_spillDirectory, 45);
+		Assert.assertFalse(oldImage.exists());
+		Assert.assertTrue(other.exists());
+		Assert.assertEquals(0, cache.getSpillCount());
+	}
+
+	@Test
+	public void testMissingSpillFile () throws IOException {
+		RenderedImageCache cache = new RenderedImageCache(25);
+		cache.setSpillDirectory(_spillDirectory, 45);
+		CountingSource source = new CountingSource(10);
+
+		for (int x=0; x<6; ++x) {
+			cache.getImage(key(cache, "a", x), source);
+		}
+		Assert.assertEquals(4, cache.getSpillCount());
+
+		// As if dropped from disk while being looked up
+		Key key = key(cache, "a", 1);
+		Assert.assertTrue(new File(_spillDirectory, key.getFileName()).delete());
+		Assert.assertNull(cache.get(key));
+		Assert.assertEquals(3, cache.getSpillCount());
+
+		// ... after which it is simply rendered again
+		byte[] image = cache.getImage(key, source);
+		Assert.assertEquals(7, image[0]);
+		Assert.assertEquals(7, source._renders.get());
+	}
+
+	@Test
+	public void testConcurrentRequestsRenderOnce () throws Exception {
+		final RenderedImageCache cache = new RenderedImageCache(1000);
+		final CountDownLatch renderStarted = new CountDownLatch(1);
+		final CountDownLatch releaseRender = new CountDownLatch(1);
+		final CountingSource counter = new CountingSource(10);
+		final ImageSource slowSource = new ImageSource() {
+			@Override
+			public byte[] getImage () throws IOException {
+				renderStarted.countDown();
+				try {
+					releaseRender.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				return counter.getImage();
+			}
+		};
+
+		final AtomicInteger received = new AtomicInteger(0);
+		Thread[] threads = new Thread[8];
+		for (int i=0; i<threads.length; ++i) {
+			threads[i] = new Thread() {
+				@Override
+				public void run () {
+					try {
+						if (null != cache.getImage(key(cache, "a", 0), slowSource))
+							received.incrementAndGet();
+					} catch (IOException e) {
+						// Not counted
+					}
+				}
+			};
+			threads[i].start();
+		}
+		renderStarted.await();
+		// Give the other threads a chance to pile up behind the first
+		Thread.sleep(50);
+		releaseRender.countDown();
+		for (Thread thread: threads) thread.join();
+
+		Assert.assertEquals(threads.length, received.get());
+		Assert.assertEquals(1, counter._renders.get());
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rest.tile.caching;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.oculusinfo.binning.TileData;
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.impl.DenseTileData;
+import com.oculusinfo.tile.rest.tile.caching.TileCache.TileLoader;
+
+/*
+ * A load test of the tile cache, to show how request throughput scales with
+ * the number of client threads when the backing store is slow.
+ */
+@Ignore
+public class TileCacheLoadTests {
+	// Simulated backing store latency per read, in milliseconds
+	private static final int READ_LATENCY = 5;
+	private static final int REQUESTS_PER_THREAD = 400;
+	private static final int DISTINCT_TILES = 2000;
+	private static final int CACHE_SIZE = 500;
+
+	private static class SlowLoader implements TileLoader<Integer> {
+		AtomicInteger _reads = new AtomicInteger(0);
+
+		@Override
+		public List<TileData<Integer>> loadTiles (List<TileIndex> indices) throws IOException {
+			_reads.incrementAndGet();
+			try {
+				Thread.sleep(READ_LATENCY);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			List<TileData<Integer>> tiles = new ArrayList<>();
+			for (TileIndex index: indices) {
+				tiles.add(new DenseTileData<Integer>(new TileIndex(index.getLevel(), index.getX(), index.getY(), 1, 1), index.getX()));
+			}
+			return tiles;
+		}
+	}
+
+	private void runLoad (final int threadCount) throws InterruptedException {
+		final TileCache<Integer> cache = new TileCache<>(CACHE_SIZE);
+		final SlowLoader loader = new SlowLoader();
+		final AtomicInteger failures = new AtomicInteger(0);
+
+		Thread[] threads = new Thread[threadCount];
+		for (int t=0; t<threadCount; ++t) {
+			final Random random = new Random(t);
+			threads[t] = new Thread() {
+				@Override
+				public void run () {
+					for (int n=0; n<REQUESTS_PER_THREAD; ++n) {
+						// Skew requests toward a small set of popular tiles
+						int tile = (int) (DISTINCT_TILES * Math.pow(random.nextDouble(), 3));
+						try {
+							cache.getTile(new TileIndex(10, tile, 0, 1, 1), loader);
+						} catch (IOException e) {
+							failures.incrementAndGet();
+						}
+					}
+				}
+			};
+		}
+
+		long startTime = System.currentTimeMillis();
+		for (Thread thread: threads) thread.start();
+		for (Thread thread: threads) thread.join();
+		long endTime = System.currentTimeMillis();
+
+		int requests = threadCount * REQUESTS_PER_THREAD;
+		double seconds = (endTime - startTime) / 1000.0;
+		System.out.println("Tile cache load - " + threadCount + " threads");
+		System.out.println("Total time: " + seconds + " seconds");
+		System.out.println("Requests: " + requests + ", backing reads: " + loader._reads.get() + ", failures: " + failures.get());
+		System.out.println("Throughput: " + (requests / seconds) + " requests/second");
+	}
+
+	@Test
+	public void testThroughputScaling () throws InterruptedException {
+		for (int threads = 1; threads <= 32; threads *= 2) {
+			runLoad(threads);
+		}
+	}
+}
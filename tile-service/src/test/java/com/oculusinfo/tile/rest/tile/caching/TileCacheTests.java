@@ -27,15 +27,20 @@ package com.oculusinfo.tile.rest.tile.caching;
 import com.oculusinfo.binning.TileData;
 import com.oculusinfo.binning.TileIndex;
 import com.oculusinfo.binning.impl.DenseTileData;
-import com.oculusinfo.tile.rest.tile.caching.TileCacheEntry.CacheRequestCallback;
+import com.oculusinfo.tile.rest.tile.caching.TileCache.TileLoader;
 
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 
@@ -57,9 +62,7 @@ public class TileCacheTests {
 	@Before
 	public void setupCache () {
 		_N = 5;
-		// quarter-second, 5-object cache - objects past 5 are removed after 1/4
-		// second (or less, if data given), as more data is inserted.
-		_cache = new TileCache<>(250, _N);
+		_cache = new TileCache<>(_N);
 	}
 
 	@After
@@ -70,126 +73,174 @@ public class TileCacheTests {
 
 
 
-	private void checkRequest (TileIndex index, boolean expectedNewRequest) {
-		List<TileIndex> newRequests = _cache.getNewRequests(Collections.singletonList(index));
-		if (expectedNewRequest) {
-			// Make sure the request was new
-			Assert.assertEquals(1, newRequests.size());
-			Assert.assertEquals(index, newRequests.get(0));
-		} else {
-			// Make sure there was no new request
-			Assert.assertEquals(0, newRequests.size());
+	// Loads tiles whose value is their x index, except for any tile with a y
+	// index of 3, which is missing. Counts the tiles it is asked to load.
+	private static class CountingLoader implements TileLoader<Integer> {
+		AtomicInteger _loads = new AtomicInteger(0);
+
+		@Override
+		public List<TileData<Integer>> loadTiles (List<TileIndex> indices) throws IOException {
+			List<TileData<Integer>> tiles = new ArrayList<>();
+			for (TileIndex index: indices) {
+				_loads.incrementAndGet();
+				if (3 != index.getY())
+					tiles.add(new DenseTileData<Integer>(index, index.getX()));
+			}
+			return tiles;
 		}
 	}
 
-	// Test first to make sure when all is properly notified, in the expected
-	// normal way, the oldest element is removed first.
 	@Test
-	public void testSimpleCacheRemoval () {
-		CacheRequestCallback<Integer> callback = new NoOpCacheRequestCallback();
-
-		int i;
-		for (i=0; i<_N; ++i) {
-			TileData<Integer> data = new DenseTileData<Integer>(_indices[i], i);
+	public void testCaching () throws IOException {
+		CountingLoader loader = new CountingLoader();
 
-			// provide and listen to each tile
-			checkRequest(_indices[i], true);
-			_cache.requestTile(_indices[i], callback);
-			_cache.provideTile(data);
-		}
+		TileData<Integer> tile = _cache.getTile(_indices[1], loader);
+		Assert.assertEquals(_indices[1], tile.getDefinition());
+		Assert.assertEquals(1, loader._loads.get());
 
-		// Make another request
-		checkRequest(_indices[i], true);
+		tile = _cache.getTile(_indices[1], loader);
+		Assert.assertEquals(_indices[1], tile.getDefinition());
+		Assert.assertEquals(1, loader._loads.get());
 
-		// Make sure all but our first request is still there
-		for (i=1; i<_N; ++i) {
-			checkRequest(_indices[i], false);
-		}
+		// Missing tiles are remembered too
+		Assert.assertNull(_cache.getTile(_indices[3], loader));
+		Assert.assertNull(_cache.getTile(_indices[3], loader));
+		Assert.assertEquals(2, loader._loads.get());
+	}
 
-		// Make sure our first request is gone
-		checkRequest(_indices[0], true);
+	@Test
+	public void testMultipleRequests () throws IOException {
+		CountingLoader loader = new CountingLoader();
+		_cache.getTile(_indices[0], loader);
+
+		List<TileData<Integer>> tiles = _cache.getTiles(Arrays.asList(_indices[2], _indices[0], _indices[3], _indices[2]), loader);
+		// Only new tiles should be loaded
+		Assert.assertEquals(3, loader._loads.get());
+		// Results should be in order, with missing tiles and repeats dropped
+		Assert.assertEquals(2, tiles.size());
+		Assert.assertEquals(_indices[2], tiles.get(0).getDefinition());
+		Assert.assertEquals(_indices[0], tiles.get(1).getDefinition());
 	}
 
-	// Make sure requests don't disappear if data hasn't been provided for them
+	// Make sure the oldest tiles are removed first
 	@Test
-	public void testMissingCacheRemoval () {
-		CacheRequestCallback<Integer> callback = new NoOpCacheRequestCallback();
-
-		int i;
-		for (i=0; i<_N; ++i) {
-			// listen to each tile
-			checkRequest(_indices[i], true);
-			_cache.requestTile(_indices[i], callback);
+	public void testSimpleCacheRemoval () throws IOException {
+		CountingLoader loader = new CountingLoader();
+		for (int i=0; i<_N+1; ++i) {
+			_cache.getTile(_indices[i], loader);
 		}
-
-		// Make another request
-		checkRequest(_indices[i], true);
-
-		// Make sure all requests so far are still there
-		for (i=0; i<_N+1; ++i) {
-			checkRequest(_indices[i], false);
+		Assert.assertEquals(_N, _cache.size());
+		Assert.assertFalse(_cache.contains(_indices[0]));
+		for (int i=1; i<_N+1; ++i) {
+			Assert.assertTrue(_cache.contains(_indices[i]));
 		}
 	}
 
-	// Make sure potential requests don't disappear if they have not yet been 
-	// requested.
+	// Make sure tiles that are in use are kept over ones that aren't
 	@Test
-	public void testUnrequestedCacheRemoval () {
-		int i;
-		for (i=0; i<_N; ++i) {
-			TileData<Integer> data = new DenseTileData<Integer>(_indices[i], i);
-
-			// provide and listen to each tile
-			checkRequest(_indices[i], true);
-			_cache.provideTile(data);
+	public void testLeastRecentlyUsedRemoval () throws IOException {
+		CountingLoader loader = new CountingLoader();
+		for (int i=0; i<_N; ++i) {
+			_cache.getTile(_indices[i], loader);
 		}
+		_cache.getTile(_indices[0], loader);
+		_cache.getTile(_indices[_N], loader);
 
-		// Make another request
-		checkRequest(_indices[i], true);
-
-		// Make sure all requests so far are still there
-		for (i=0; i<_N+1; ++i) {
-			checkRequest(_indices[i], false);
-		}
+		Assert.assertEquals(_N, _cache.size());
+		Assert.assertTrue(_cache.contains(_indices[0]));
+		Assert.assertFalse(_cache.contains(_indices[1]));
+		Assert.assertEquals(_N+1, loader._loads.get());
 	}
 
-	// Make sure potential requests don't disappear if they have not yet been 
-	// requested.
+	// Make sure invalidated tiles are re-read, and leave nothing behind
 	@Test
-	public void testUnrequestedCacheRemovalTimeout () throws InterruptedException {
-		int i;
-		for (i=0; i<_N; ++i) {
-			TileData<Integer> data = new DenseTileData<Integer>(_indices[i], i);
-
-			// provide and listen to each tile
-			checkRequest(_indices[i], true);
-			_cache.provideTile(data);
+	public void testInvalidation () throws IOException {
+		CountingLoader loader = new CountingLoader();
+		for (int i=0; i<100; ++i) {
+			_cache.getTile(_indices[0], loader);
+			_cache.invalidate(_indices[0]);
 		}
+		Assert.assertEquals(100, loader._loads.get());
+		Assert.assertEquals(0, _cache.size());
 
-		Thread.sleep(260);
-		// Make another request
-		checkRequest(_indices[i], true);
-
-		// Make sure all requests so far are still there
-		for (i=1; i<_N+1; ++i) {
-			checkRequest(_indices[i], false);
+		// Filling the cache again shouldn't drop anything early
+		for (int i=1; i<_N+1; ++i) {
+			_cache.getTile(_indices[i], loader);
+		}
+		for (int i=1; i<_N+1; ++i) {
+			Assert.assertTrue(_cache.contains(_indices[i]));
 		}
-		checkRequest(_indices[0], true);
 	}
 
+	// Make sure failed reads are not cached
+	@Test
+	public void testFailedLoad () throws IOException {
+		TileLoader<Integer> failingLoader = new TileLoader<Integer>() {
+			@Override
+			public List<TileData<Integer>> loadTiles (List<TileIndex> indices) throws IOException {
+				throw new IOException("Test failure");
+			}
+		};
+		try {
+			_cache.getTile(_indices[0], failingLoader);
+			Assert.fail("Load failure not propagated");
+		} catch (IOException e) {
+			// expected
+		}
+		Assert.assertFalse(_cache.contains(_indices[0]));
 
+		CountingLoader loader = new CountingLoader();
+		Assert.assertNotNull(_cache.getTile(_indices[0], loader));
+		Assert.assertEquals(1, loader._loads.get());
+	}
 
-	// Simple callback to do nothing, but act as if we've done something.
-	private class NoOpCacheRequestCallback implements CacheRequestCallback<Integer> {
-		@Override
-		public boolean onTileReceived (TileIndex index, TileData<Integer> tile) {
-			// Noop, but say we did something.
-			return true;
+	// Make sure simultaneous requests for the same tile share one read
+	@Test
+	public void testConcurrentRequestsCoalesce () throws Exception {
+		final CountDownLatch loadStarted = new CountDownLatch(1);
+		final CountDownLatch releaseLoad = new CountDownLatch(1);
+		final CountingLoader counter = new CountingLoader();
+		final TileLoader<Integer> slowLoader = new TileLoader<Integer>() {
+			@Override
+			public List<TileData<Integer>> loadTiles (List<TileIndex> indices) throws IOException {
+				loadStarted.countDown();
+				try {
+					releaseLoad.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				return counter.loadTiles(indices);
+			}
+		};
+
+		final List<TileData<Integer>> results = Collections.synchronizedList(new ArrayList<TileData<Integer>>());
+		Thread[] threads = new Thread[8];
+		for (int i=0; i<threads.length; ++i) {
+			threads[i] = new Thread() {
+				@Override
+				public void run () {
+					try {
+						results.add(_cache.getTile(_indices[5], slowLoader));
+					} catch (IOException e) {
+						// Leave it out of the results
+					}
+				}
+			};
+			threads[i].start();
 		}
 
-		@Override
-		public void onTileAbandoned (TileIndex index) {
-			// Noop
+		loadStarted.await();
+		// Another tile shouldn't be blocked by the slow one
+		CountingLoader fastLoader = new CountingLoader();
+		Assert.assertNotNull(_cache.getTile(_indices[6], fastLoader));
+
+		releaseLoad.countDown();
+		for (Thread thread: threads) thread.join();
+
+		Assert.assertEquals(1, counter._loads.get());
+		Assert.assertEquals(threads.length, results.size());
+		for (TileData<Integer> tile: results) {
+			Assert.assertEquals(_indices[5], tile.getDefinition());
 		}
 	}
 }
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rest.tile.caching;
+
+
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.io.serialization.TileSerializer;
+import com.oculusinfo.tile.rest.tile.caching.TilePrefetcher.TileRequester;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+
+public class TilePrefetcherTests {
+	private TilePrefetcher _prefetcher;
+
+
+
+	@After
+	public void cleanup () {
+		if (null != _prefetcher) _prefetcher.shutdown();
+		_prefetcher = null;
+	}
+
+
+
+	// Records the tiles it is asked for. Requests wait until the gate is
+	// opened.
+	private static class RecordingRequester implements TileRequester {
+		CountDownLatch          _started = new CountDownLatch(1);
+		volatile CountDownLatch _gate = new CountDownLatch(0);
+		List<TileIndex>         _requested = new ArrayList<>();
+		int                     _requests = 0;
+
+		@Override
+		public <T> void requestTiles (String pyramidId, TileSerializer<T> serializer,
+		                              Iterable<TileIndex> indices) throws IOException {
+			_started.countDown();
+			try {
+				_gate.await();
+			} catch (InterruptedException e) {
+				return;
+			}
+			synchronized (this) {
+				++_requests;
+				for (TileIndex index: indices) _requested.add(index);
+			}
+		}
+
+		synchronized int getRequests () {
+			return _requests;
+		}
+	}
+
+	private static Set<TileIndex> view (int level, int minX, int maxX, int minY, int maxY) {
+		Set<TileIndex> view = new HashSet<>();
+		for (int x=minX; x<=maxX; ++x) {
+			for (int y=minY; y<=maxY; ++y) {
+				view.add(new TileIndex(level, x, y));
+			}
+		}
+		return view;
+	}
+
+	private static void waitFor (Condition condition) throws InterruptedException {
+		long end = System.currentTimeMillis() + 5000;
+		while (!condition.isMet() && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		Assert.assertTrue(condition.isMet());
+	}
+
+	private static interface Condition {
+		boolean isMet ();
+	}
+
+
+
+	@Test
+	public void testRingAndChildren () {
+		Set<TileIndex> current = view(3, 2, 3, 2, 3);
+		List<TileIndex> predicted = TilePrefetcher.predictTiles(null, current, 64);
+
+		// 12 ring tiles, then 16 children
+		Assert.assertEquals(28, predicted.size());
+		for (int i=0; i<12; ++i) {
+			TileIndex tile = predicted.get(i);
+			Assert.assertEquals(3, tile.getLevel());
+			Assert.assertFalse(current.contains(tile));
+			Assert.assertTrue(1 <= tile.getX() && tile.getX() <= 4);
+			Assert.assertTrue(1 <= tile.getY() && tile.getY() <= 4);
+		}
+		Assert.assertEquals(view(4, 4, 7, 4, 7), new HashSet<>(predicted.subList(12, 28)));
+	}
+
+	@Test
+	public void testLimit () {
+		List<TileIndex> predicted = TilePrefetcher.predictTiles(null, view(3, 2, 3, 2, 3), 10);
+		Assert.assertEquals(10, predicted.size());
+	}
+
+	@Test
+	public void testEdges () {
+		// On level 1, only the tiles to the right exist
+		List<TileIndex> predicted = TilePrefetcher.predictTiles(null, view(1, 0, 0, 0, 1), 64);
+		Assert.assertEquals(new TileIndex(1, 1, 0), predicted.get(0));
+		Assert.assertEquals(new TileIndex(1, 1, 1), predicted.get(1));
+		for (TileIndex tile: predicted.subList(2, predicted.size())) {
+			Assert.assertEquals(2, tile.getLevel());
+		}
+	}
+
+	@Test
+	public void testPanOrdering () {
+		// Moving right, so the column to the right should come first
+		List<TileIndex> predicted = TilePrefetcher.predictTiles(view(3, 2, 3, 2, 3), view(3, 3, 4, 2, 3), 64);
+		for (int i=0; i<4; ++i) {
+			Assert.assertEquals(5, predicted.get(i).getX());
+		}
+
+		// Moving up and left
+		predicted = TilePrefetcher.predictTiles(view(3, 3, 4, 3, 4), view(3, 2, 3, 2, 3), 64);
+		Assert.assertEquals(new TileIndex(3, 1, 1), predicted.get(0));
+	}
+
+	@Test
+	public void testZoomOrdering () {
+		// Zooming in: children first
+		List<TileIndex> predicted = TilePrefetcher.predictTiles(view(3, 2, 3, 2, 3), view(4, 4, 7, 4, 7), 64);
+		Assert.assertEquals(5, predicted.get(0).getLevel());
+
+		// Zooming out: parents first
+		predicted = TilePrefetcher.predictTiles(view(4, 4, 7, 4, 7), view(3, 2, 3, 2, 3), 64);
+		Assert.assertEquals(new TileIndex(2, 1, 1), predicted.get(0));
+	}
+
+	@Test
+	public void testIgnoresRepeatsAndSingleTiles () throws Exception {
+		final RecordingRequester requester = new RecordingRequester();
+		_prefetcher = new TilePrefetcher(requester, 1, 16, 64);
+
+		_prefetcher.viewChanged("test", null, view(3, 2, 2, 2, 2));
+		_prefetcher.viewChanged("test", null, view(3, 2, 3, 2, 3));
+		_prefetcher.viewChanged("test", null, view(3, 2, 3, 2, 3));
+		waitFor(new Condition() {
+			public boolean isMet () {
+				return 28 == _prefetcher.getTilesPrefetched();
+			}
+		});
+		Thread.sleep(50);
+		Assert.assertEquals(28, requester._requested.size());
+		Assert.assertEquals(28, new HashSet<>(requester._requested).size());
+	}
+
+	@Test
+	public void testCancellation () throws Exception {
+		final RecordingRequester requester = new RecordingRequester();
+		requester._gate = new CountDownLatch(1);
+		_prefetcher = new TilePrefetcher(requester, 1, 16, 64);
+
+		// 28 tiles: two batches, the first of which is held up
+		_prefetcher.viewChanged("test", null, view(3, 2, 3, 2, 3));
+		Assert.assertTrue(requester._started.await(5, TimeUnit.SECONDS));
+		// Move on before the second batch can start
+		_prefetcher.viewChanged("test", null, view(3, 4, 5, 4, 5));
+		requester._gate.countDown();
+
+		// The held batch finishes, the stale one is skipped, and the two
+		// batches of the new view run
+		waitFor(new Condition() {
+			public boolean isMet () {
+				return 3 == requester.getRequests() && 1 == _prefetcher.getBatchesCancelled();
+			}
+		});
+	}
+
+	@Test
+	public void testUsage () throws Exception {
+		RecordingRequester requester = new RecordingRequester();
+		_prefetcher = new TilePrefetcher(requester, 1, 16, 64);
+
+		_prefetcher.viewChanged("test", null, view(3, 2, 3, 2, 3));
+		waitFor(new Condition() {
+			public boolean isMet () {
+				return 28 == _prefetcher.getTilesPrefetched();
+			}
+		});
+
+		// Hold up further prefetching, so the counts stay put
+		requester._gate = new CountDownLatch(1);
+
+		// Pan right by one; two of the new tiles were prefetched
+		_prefetcher.viewChanged("test", null, view(3, 3, 4, 2, 3));
+		Assert.assertEquals(2, _prefetcher.getTilesUsed());
+		Assert.assertEquals(2.0/28.0, _prefetcher.getUseRate(), 1E-12);
+
+		// Other layers are tracked separately
+		_prefetcher.viewChanged("other", null, view(3, 4, 5, 2, 3));
+		Assert.assertEquals(2, _prefetcher.getTilesUsed());
+	}
+
+	@Test
+	public void testOnlyReadTilesCount () throws Exception {
+		RecordingRequester requester = new RecordingRequester();
+		requester._gate = new CountDownLatch(1);
+		_prefetcher = new TilePrefetcher(requester, 1, 16, 64);
+
+		// Nothing has been read yet, so nothing can have been used
+		_prefetcher.viewChanged("test", null, view(3, 2, 3, 2, 3));
+		Assert.assertTrue(requester._started.await(5, TimeUnit.SECONDS));
+		_prefetcher.viewChanged("test", null, view(3, 3, 4, 2, 3));
+		Assert.assertEquals(0, _prefetcher.getTilesUsed());
+		Assert.assertEquals(0.0, _prefetcher.getUseRate(), 1E-12);
+		requester._gate.countDown();
+	}
+
+	@Test
+	public void testClientsTrackedSeparately () throws Exception {
+		RecordingRequester requester = new RecordingRequester();
+		_prefetcher = new TilePrefetcher(requester, 1, 16, 64);
+
+		_prefetcher.viewChanged("test", "a", null, view(3, 2, 3, 2, 3));
+		waitFor(new Condition() {
+			public boolean isMet () {
+				return 28 == _prefetcher.getTilesPrefetched();
+			}
+		});
+		requester._gate = new CountDownLatch(1);
+
+		// Another client's view of the same layer doesn't supersede the first
+		_prefetcher.viewChanged("test", "b", null, view(3, 5, 6, 5, 6));
+		_prefetcher.viewChanged("test", "a", null, view(3, 3, 4, 2, 3));
+		Assert.assertEquals(2, _prefetcher.getTilesUsed());
+		requester._gate.countDown();
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rest.tile.caching;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.oculusinfo.binning.TileIndex;
+import com.oculusinfo.binning.impl.DenseTileData;
+
+
+
+public class TileResultCacheTests {
+	private static TileResultCache.Key key (String hash, int n) {
+		return new TileResultCache.Key("pyramid", hash, new TileIndex(4, n, 0));
+	}
+
+	@Test
+	public void testHitsAndMisses () {
+		TileResultCache cache = new TileResultCache(10000);
+		Assert.assertNull(cache.get(key("a", 0)));
+		cache.put(key("a", 0), new DenseTileData<Integer>(key("a", 0).getIndex(), 1), 100);
+		Assert.assertEquals(key("a", 0).getIndex(), cache.get(key("a", 0)).get().getDefinition());
+		// Empty tiles are remembered as such
+		cache.put(key("a", 1), null, 0);
+		Assert.assertFalse(cache.get(key("a", 1)).isPresent());
+		// A different configuration is a different tile
+		Assert.assertNull(cache.get(key("b", 0)));
+
+		Assert.assertEquals(2, cache.getHitCount());
+		Assert.assertEquals(2, cache.getMissCount());
+	}
+
+	@Test
+	public void testByteBound () {
+		// Each entry costs its size plus 128 bytes of overhead
+		TileResultCache cache = new TileResultCache(1000);
+		for (int i=0; i<10; ++i) {
+			cache.put(key("a", i), null, 172);
+			Assert.assertTrue(cache.getSizeInBytes() <= 1000);
+		}
+		Assert.assertEquals(3, cache.size());
+		// Use 7, so 8 is the least recently used when 10 goes in
+		Assert.assertNotNull(cache.get(key("a", 7)));
+		cache.put(key("a", 10), null, 172);
+		Assert.assertNotNull(cache.get(key("a", 7)));
+		Assert.assertNull(cache.get(key("a", 8)));
+
+		// Too big to ever fit
+		cache.put(key("a", 20), null, 1000);
+		Assert.assertNull(cache.get(key("a", 20)));
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2015 Oculus Info Inc. http://www.oculusinfo.com/
+ *
+ * Released under the MIT License.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.oculusinfo.tile.rest.tile.caching;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.oculusinfo.binning.TileIndex;
+
+
+
+public class TileStreamCacheTests {
+	private static TileIndex index (int n) {
+		return new TileIndex(4, n, 0);
+	}
+
+	@Test
+	public void testHitsAndMisses () {
+		TileStreamCache cache = new TileStreamCache(1000);
+		Assert.assertNull(cache.get(index(0)));
+		cache.put(index(0), new byte[10]);
+		Assert.assertEquals(10, cache.get(index(0)).length);
+		Assert.assertEquals(10, cache.get(index(0)).length);
+		Assert.assertNull(cache.get(index(1)));
+
+		Assert.assertEquals(2, cache.getHitCount());
+		Assert.assertEquals(2, cache.getMissCount());
+	}
+
+	@Test
+	public void testByteBound () {
+		TileStreamCache cache = new TileStreamCache(100);
+		for (int i=0; i<10; ++i) {
+			cache.put(index(i), new byte[30]);
+			Assert.assertTrue(cache.getSizeInBytes() <= 100);
+		}
+		Assert.assertEquals(3, cache.size());
+		// Most recent tiles should be the ones kept
+		Assert.assertNotNull(cache.get(index(9)));
+		Assert.assertNotNull(cache.get(index(8)));
+		Assert.assertNotNull(cache.get(index(7)));
+		Assert.assertNull(cache.get(index(6)));
+
+		// Too big to ever fit
+		cache.put(index(20), new byte[101]);
+		Assert.assertNull(cache.get(index(20)));
+		Assert.assertTrue(cache.getSizeInBytes() <= 100);
+	}
+
+	@Test
+	public void testReplace () {
+		TileStreamCache cache = new TileStreamCache(100);
+		cache.put(index(0), new byte[30]);
+		cache.put(index(0), new byte[40]);
+		Assert.assertEquals(1, cache.size());
+		Assert.assertEquals(40, cache.getSizeInBytes());
+		cache.remove(index(0));
+		Assert.assertEquals(0, cache.size());
+		Assert.assertEquals(0, cache.getSizeInBytes());
+	}
+
+	// Tiles that have been hit more than once should survive a scan of
+	// tiles that are each read only once.
+	@Test
+	public void testScanResistance () {
+		TileStreamCache cache = new TileStreamCache(100);
+		cache.put(index(0), new byte[10]);
+		cache.put(index(1), new byte[10]);
+		cache.get(index(0));
+		cache.get(index(1));
+
+		for (int i=100; i<200; ++i) {
+			cache.put(index(i), new byte[10]);
+		}
+
+		Assert.assertNotNull(cache.get(index(0)));
+		Assert.assertNotNull(cache.get(index(1)));
+		Assert.assertTrue(cache.getSizeInBytes() <= 100);
+	}
+}